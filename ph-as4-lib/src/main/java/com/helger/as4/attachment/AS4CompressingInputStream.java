@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An {@link InputStream} that delivers the compressed version of a source
+ * {@link InputStream}. Compression happens on the fly while this stream is
+ * read, so neither the source nor the compressed content needs to be held in
+ * memory or written to a temporary file.<br>
+ * The source is always fed to the compressor in chunks of the same size, so
+ * that reading the same source twice results in exactly the same bytes. This
+ * is required because signed attachments are read once for the digest
+ * calculation and once more for the transmission.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class AS4CompressingInputStream extends InputStream
+{
+  /** The number of source bytes compressed at once */
+  public static final int DEFAULT_CHUNK_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+
+  private final InputStream m_aSourceIS;
+  private final EAS4CompressionMode m_eCompressionMode;
+  private final byte [] m_aChunk;
+  private final NonBlockingByteArrayOutputStream m_aCompressedOS = new NonBlockingByteArrayOutputStream ();
+  private final OutputStream m_aCompressOS;
+  private byte [] m_aCompressed = new byte [0];
+  private int m_nCompressedPos = 0;
+  private boolean m_bSourceEOF = false;
+
+  public AS4CompressingInputStream (@Nonnull final InputStream aSourceIS,
+                                    @Nonnull final EAS4CompressionMode eCompressionMode) throws IOException
+  {
+    this (aSourceIS, eCompressionMode, DEFAULT_CHUNK_SIZE);
+  }
+
+  public AS4CompressingInputStream (@Nonnull final InputStream aSourceIS,
+                                    @Nonnull final EAS4CompressionMode eCompressionMode,
+                                    @Nonnegative final int nChunkSize) throws IOException
+  {
+    ValueEnforcer.notNull (aSourceIS, "SourceIS");
+    ValueEnforcer.notNull (eCompressionMode, "CompressionMode");
+    ValueEnforcer.isGT0 (nChunkSize, "ChunkSize");
+    m_aSourceIS = aSourceIS;
+    m_eCompressionMode = eCompressionMode;
+    m_aChunk = new byte [nChunkSize];
+    m_aCompressOS = eCompressionMode.getCompressStream (m_aCompressedOS);
+  }
+
+  /**
+   * Compress the next chunk of the source.
+   *
+   * @return <code>false</code> if the source was already completely
+   *         compressed.
+   * @throws IOException
+   *         In case reading or compressing fails
+   */
+  private boolean _compressNextChunk () throws IOException
+  {
+    if (m_bSourceEOF)
+      return false;
+
+    // Always fill the whole chunk, independent of how many bytes the source
+    // delivers per read call
+    int nRead = 0;
+    while (nRead < m_aChunk.length)
+    {
+      final int nBytes = m_aSourceIS.read (m_aChunk, nRead, m_aChunk.length - nRead);
+      if (nBytes < 0)
+        break;
+      nRead += nBytes;
+    }
+    if (nRead > 0)
+      m_aCompressOS.write (m_aChunk, 0, nRead);
+    if (nRead < m_aChunk.length)
+    {
+      // Writes the trailer
+      m_aCompressOS.close ();
+      m_bSourceEOF = true;
+    }
+
+    m_aCompressed = m_aCompressedOS.toByteArray ();
+    m_aCompressedOS.reset ();
+    m_nCompressedPos = 0;
+    return true;
+  }
+
+  @Override
+  public int read () throws IOException
+  {
+    final byte [] aBuf = new byte [1];
+    final int nRead = read (aBuf, 0, 1);
+    return nRead < 0 ? -1 : aBuf[0] & 0xff;
+  }
+
+  @Override
+  public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    ValueEnforcer.isArrayOfsLen (aBuf, nOfs, nLen);
+    if (nLen == 0)
+      return 0;
+
+    // The compressor may not emit anything for a chunk
+    while (m_nCompressedPos >= m_aCompressed.length)
+      if (!_compressNextChunk ())
+        return -1;
+
+    final int nBytes = Math.min (nLen, m_aCompressed.length - m_nCompressedPos);
+    System.arraycopy (m_aCompressed, m_nCompressedPos, aBuf, nOfs, nBytes);
+    m_nCompressedPos += nBytes;
+    return nBytes;
+  }
+
+  @Override
+  public int available ()
+  {
+    return m_aCompressed.length - m_nCompressedPos;
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    // Release the compressor resources if the stream was not read completely
+    if (!m_bSourceEOF)
+    {
+      m_bSourceEOF = true;
+      StreamHelper.close (m_aCompressOS);
+    }
+    m_aSourceIS.close ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("SourceIS", m_aSourceIS)
+                                       .append ("CompressionMode", m_eCompressionMode)
+                                       .append ("ChunkSize", m_aChunk.length)
+                                       .append ("SourceEOF", m_bSourceEOF)
+                                       .getToString ();
+  }
+}
@@ -124,6 +124,24 @@ public enum EAS4CompressionMode implements IHasID <String>
   @Nonnull
   public abstract OutputStream getCompressStream (@Nonnull OutputStream aOS) throws IOException;
 
+  /**
+   * Get an {@link InputStream} that delivers the compressed content of the
+   * provided {@link InputStream}. Compression happens while reading.
+   *
+   * @param aIS
+   *        The source {@link InputStream} with the uncompressed content. May
+   *        not be <code>null</code>.
+   * @return The compressing {@link InputStream}
+   * @throws IOException
+   *         In case of IO error
+   * @see AS4CompressingInputStream
+   */
+  @Nonnull
+  public InputStream getCompressingInputStream (@Nonnull final InputStream aIS) throws IOException
+  {
+    return new AS4CompressingInputStream (aIS, this);
+  }
+
   @Nullable
   public static EAS4CompressionMode getFromMimeTypeStringOrNull (@Nullable final String sMimeType)
   {
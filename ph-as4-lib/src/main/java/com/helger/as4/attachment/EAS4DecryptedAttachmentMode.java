@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.as4.util.AS4SpoolOutputStream;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how decrypted incoming attachments are provided to the message
+ * processors.
+ *
+ * @author Philip Helger
+ */
+public enum EAS4DecryptedAttachmentMode implements IHasID <String>
+{
+  /**
+   * Decrypt each attachment once into an {@link AS4SpoolOutputStream}: small
+   * attachments are kept in memory, large attachments are decrypted directly
+   * into a temporary file. The result can be read multiple times.
+   */
+  SPOOL ("spool"),
+  /**
+   * Provide the decrypting stream itself. Nothing is buffered, but each
+   * attachment can only be read once, and decryption happens while the message
+   * processor reads it. Only use this if all message processors read each
+   * attachment at most once.
+   */
+  STREAM ("stream");
+
+  private final String m_sID;
+
+  private EAS4DecryptedAttachmentMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EAS4DecryptedAttachmentMode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EAS4DecryptedAttachmentMode.class, sID);
+  }
+
+  @Nullable
+  public static EAS4DecryptedAttachmentMode getFromIDOrDefault (@Nullable final String sID,
+                                                               @Nullable final EAS4DecryptedAttachmentMode eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EAS4DecryptedAttachmentMode.class, sID, eDefault);
+  }
+}
@@ -17,13 +17,16 @@
 package com.helger.as4.attachment;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 
 import javax.annotation.Nonnull;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 
 import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.StreamHelper;
 
 /**
  * Factory interface for {@link WSS4JAttachment} objects for handling incoming
@@ -50,4 +53,36 @@ public interface IIncomingAttachmentFactory extends Serializable
   @Nonnull
   WSS4JAttachment createAttachment (@Nonnull MimeBodyPart aBodyPart,
                                     @Nonnull AS4ResourceManager aResMgr) throws IOException, MessagingException;
+
+  /**
+   * Create an attachment from a MIME part that is read in a streaming way. The
+   * part headers are already parsed and the body is available as a stream
+   * that is still connected to the underlying request. The body is not
+   * content-transfer-decoded yet.<br>
+   * The default implementation reads the whole body into memory and delegates
+   * to {@link #createAttachment(MimeBodyPart, AS4ResourceManager)} to stay
+   * compatible with existing implementations. Override this method to spool
+   * the body directly to its final storage.
+   *
+   * @param aHeaders
+   *        The parsed MIME part headers. May not be <code>null</code>.
+   * @param aBodyIS
+   *        The raw body input stream of the MIME part. May not be
+   *        <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The internal attachment representation. Never <code>null</code>.
+   * @throws IOException
+   *         In case of IO error
+   * @throws MessagingException
+   *         In case MIME part reading fails.
+   */
+  @Nonnull
+  default WSS4JAttachment createAttachment (@Nonnull final InternetHeaders aHeaders,
+                                            @Nonnull final InputStream aBodyIS,
+                                            @Nonnull final AS4ResourceManager aResMgr) throws IOException,
+                                                                                       MessagingException
+  {
+    return createAttachment (new MimeBodyPart (aHeaders, StreamHelper.getAllBytes (aBodyIS)), aResMgr);
+  }
 }
@@ -25,6 +25,7 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Enumeration;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
@@ -32,14 +33,17 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.mail.Header;
 import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
 
 import org.apache.wss4j.common.ext.Attachment;
 import org.apache.wss4j.common.util.AttachmentUtils;
 
 import com.helger.as4.CAS4;
 import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SpoolOutputStream;
 import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
@@ -67,8 +71,13 @@ import com.helger.mail.datasource.InputStreamProviderDataSource;
  */
 public class WSS4JAttachment extends Attachment
 {
+  /** The buffer size used when streaming incoming attachments */
+  public static final int STREAMING_BUFFER_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+
   private final AS4ResourceManager m_aResMgr;
   private IHasInputStream m_aISP;
+  private File m_aSourceFile;
+  private long m_nSourceLength = -1;
   private EContentTransferEncoding m_eCTE = EContentTransferEncoding.BINARY;
   private EAS4CompressionMode m_eCM;
   private Charset m_aCharset;
@@ -140,9 +149,57 @@ public class WSS4JAttachment extends Attachment
   }
 
   public void setSourceStreamProvider (@Nonnull final IHasInputStream aISP)
+  {
+    setSourceStreamProvider (aISP, -1);
+  }
+
+  /**
+   * Set the source stream provider with a known length.
+   *
+   * @param aISP
+   *        The input stream provider. May not be <code>null</code>.
+   * @param nSourceLength
+   *        The number of bytes the provided stream delivers or -1 if unknown.
+   */
+  public void setSourceStreamProvider (@Nonnull final IHasInputStream aISP, final long nSourceLength)
   {
     ValueEnforcer.notNull (aISP, "InputStreamProvider");
     m_aISP = aISP;
+    m_aSourceFile = null;
+    m_nSourceLength = nSourceLength < 0 ? -1 : nSourceLength;
+  }
+
+  /**
+   * Use the provided file as the source. The file may be read multiple times
+   * and is streamed directly from disk when the MIME message is written.
+   *
+   * @param aFile
+   *        The existing file to use. May not be <code>null</code>.
+   */
+  public void setSourceFile (@Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aFile)),
+                             aFile.length ());
+    m_aSourceFile = aFile;
+  }
+
+  /**
+   * @return The file the source stream is read from. Only non-
+   *         <code>null</code> if {@link #setSourceFile(File)} was used.
+   */
+  @Nullable
+  public File getSourceFile ()
+  {
+    return m_aSourceFile;
+  }
+
+  /**
+   * @return The number of bytes of the source stream or -1 if unknown.
+   */
+  public long getSourceLength ()
+  {
+    return m_nSourceLength;
   }
 
   /**
@@ -243,6 +300,8 @@ public class WSS4JAttachment extends Attachment
                                        .append ("Headers", getHeaders ())
                                        .append ("ResourceManager", m_aResMgr)
                                        .append ("ISP", m_aISP)
+                                       .append ("SourceFile", m_aSourceFile)
+                                       .append ("SourceLength", m_nSourceLength)
                                        .append ("CTE", m_eCTE)
                                        .append ("CM", m_eCM)
                                        .append ("Charset", m_aCharset)
@@ -261,8 +320,26 @@ public class WSS4JAttachment extends Attachment
     aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, aAttachment.getMimeType ());
   }
 
+  @Nonnull
+  private static IHasInputStream _getCompressingProvider (@Nonnull final EAS4CompressionMode eCompressionMode,
+                                                          @Nonnull final Supplier <InputStream> aSrcSupplier)
+  {
+    return HasInputStream.multiple ( () -> {
+      try
+      {
+        return eCompressionMode.getCompressingInputStream (aSrcSupplier.get ());
+      }
+      catch (final IOException ex)
+      {
+        throw new UncheckedIOException (ex);
+      }
+    });
+  }
+
   /**
-   * Constructor. Performs compression internally.
+   * Constructor. If a compression mode is provided, the content is compressed
+   * on the fly each time the attachment is read, so the compressed content is
+   * never stored and the compressed length is unknown.
    *
    * @param aSrcFile
    *        Source, uncompressed, unencrypted file.
@@ -274,7 +351,7 @@ public class WSS4JAttachment extends Attachment
    *        The resource manager to use. May not be <code>null</code>.
    * @return The newly created attachment instance. Never <code>null</code>.
    * @throws IOException
-   *         In case something goes wrong during compression
+   *         In case of an IO error
    */
   @Nonnull
   public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final File aSrcFile,
@@ -288,34 +365,29 @@ public class WSS4JAttachment extends Attachment
     final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, aMimeType.getAsString ());
     _addOutgoingHeaders (ret, FilenameHelper.getWithoutPath (aSrcFile));
 
-    // If the attachment has an compressionMode do it directly, so that
-    // encryption later on works on the compressed content
-    File aRealFile;
     if (eCompressionMode != null)
     {
       ret.setCompressionMode (eCompressionMode);
 
-      // Create temporary file with compressed content
-      aRealFile = aResMgr.createTempFile ();
-      try (final OutputStream aOS = eCompressionMode.getCompressStream (FileHelper.getBufferedOutputStream (aRealFile)))
-      {
-        StreamHelper.copyInputStreamToOutputStream (FileHelper.getBufferedInputStream (aSrcFile), aOS);
-      }
+      // Compress on the fly, so that signing and encryption later on work on
+      // the compressed content without the need for a temporary file
+      ret.setSourceStreamProvider (_getCompressingProvider (eCompressionMode,
+                                                            () -> FileHelper.getBufferedInputStream (aSrcFile)));
     }
     else
     {
       // No compression - use file as-is
-      aRealFile = aSrcFile;
+      // Set a stream provider that can be read multiple times (opens a new
+      // FileInputStream internally)
+      ret.setSourceFile (aSrcFile);
     }
-
-    // Set a stream provider that can be read multiple times (opens a new
-    // FileInputStream internally)
-    ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
     return ret;
   }
 
   /**
-   * Constructor. Performs compression internally.
+   * Constructor. If a compression mode is provided, the content is compressed
+   * on the fly each time the attachment is read, so the compressed content is
+   * never stored and the compressed length is unknown.
    *
    * @param aSrcData
    *        Source in-memory data, uncompressed, unencrypted file.
@@ -329,7 +401,7 @@ public class WSS4JAttachment extends Attachment
    *        The resource manager to use. May not be <code>null</code>.
    * @return The newly created attachment instance. Never <code>null</code>.
    * @throws IOException
-   *         In case something goes wrong during compression
+   *         In case of an IO error
    */
   @Nonnull
   public static WSS4JAttachment createOutgoingFileAttachment (@Nonnull final byte [] aSrcData,
@@ -345,31 +417,38 @@ public class WSS4JAttachment extends Attachment
     final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, aMimeType.getAsString ());
     _addOutgoingHeaders (ret, sFilename);
 
-    // If the attachment has an compressionMode do it directly, so that
-    // encryption later on works on the compressed content
     if (eCompressionMode != null)
     {
       ret.setCompressionMode (eCompressionMode);
 
-      // Create temporary file with compressed content
-      final File aRealFile = aResMgr.createTempFile ();
-      try (final OutputStream aOS = eCompressionMode.getCompressStream (FileHelper.getBufferedOutputStream (aRealFile)))
-      {
-        aOS.write (aSrcData);
-      }
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aRealFile)));
+      // Compress on the fly, so that signing and encryption later on work on
+      // the compressed content
+      ret.setSourceStreamProvider (_getCompressingProvider (eCompressionMode,
+                                                            () -> new NonBlockingByteArrayInputStream (aSrcData)));
     }
     else
     {
       // No compression - use data as-is
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aSrcData)));
+      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aSrcData)),
+                                   aSrcData.length);
     }
     return ret;
   }
 
+  /**
+   * Check if an attachment of the provided size may be kept in memory. This is
+   * only the per attachment limit - additionally the process-wide memory
+   * budget of the {@link AS4ResourceManager} must not be exceeded.
+   *
+   * @param nBytes
+   *        The size of the attachment in bytes. A negative value means the size
+   *        is unknown.
+   * @return <code>true</code> if the size is known and does not exceed the per
+   *         attachment limit
+   */
   public static boolean canBeKeptInMemory (final long nBytes)
   {
-    return nBytes <= 64 * CGlobal.BYTES_PER_KILOBYTE;
+    return nBytes >= 0 && nBytes <= AS4SpoolOutputStream.DEFAULT_MEMORY_THRESHOLD;
   }
 
   @Nonnull
@@ -391,7 +470,10 @@ public class WSS4JAttachment extends Attachment
       ret.setId (sRealContentID);
     }
 
-    if (canBeKeptInMemory (aBodyPart.getSize ()))
+    // Parts with an unknown size (-1) cannot be accounted for and are therefore
+    // always written to a temp file
+    final long nSize = aBodyPart.getSize ();
+    if (canBeKeptInMemory (nSize) && aResMgr.tryReserveMemory (nSize))
     {
       // keep some small parts in memory
       final DataHandler aDH = aBodyPart.getDataHandler ();
@@ -414,22 +496,98 @@ public class WSS4JAttachment extends Attachment
       {
         aBodyPart.getDataHandler ().writeTo (aOS);
       }
-      ret.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
+      aResMgr.onSpilled (aTempFile.length (), true);
+      ret.setSourceFile (aTempFile);
     }
 
+    _addIncomingHeaders (ret, aBodyPart.getAllHeaders ());
+    return ret;
+  }
+
+  private static void _addIncomingHeaders (@Nonnull final WSS4JAttachment aAttachment,
+                                           @Nonnull final Enumeration <?> aEnum)
+  {
     // Convert all headers to attributes
-    final Enumeration <?> aEnum = aBodyPart.getAllHeaders ();
     while (aEnum.hasMoreElements ())
     {
       final Header aHeader = (Header) aEnum.nextElement ();
-      ret.addHeader (aHeader.getName (), aHeader.getValue ());
+      aAttachment.addHeader (aHeader.getName (), aHeader.getValue ());
     }
 
     // These headers are mandatory and overwrite headers from the MIME body part
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DESCRIPTION, "Attachment");
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + ret.getId () + ">");
-    ret.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, ret.getMimeType ());
+    aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_DESCRIPTION, "Attachment");
+    aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_ID, "<attachment=" + aAttachment.getId () + ">");
+    aAttachment.addHeader (AttachmentUtils.MIME_HEADER_CONTENT_TYPE, aAttachment.getMimeType ());
+  }
+
+  /**
+   * Create an incoming attachment from a MIME part that is read in a streaming
+   * way. The body is read exactly once: parts that can be kept in memory are
+   * buffered in memory, larger parts are spooled directly to a temporary file
+   * as soon as the in-memory threshold is exceeded. The body is never held
+   * completely in memory before that decision is made.
+   *
+   * @param aHeaders
+   *        The parsed MIME part headers. May not be <code>null</code>.
+   * @param aBodyIS
+   *        The raw (not content-transfer-decoded) body of the MIME part. May
+   *        not be <code>null</code>. Is closed after reading.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @return The newly created attachment instance. Never <code>null</code>.
+   * @throws MessagingException
+   *         In case the content transfer encoding is unsupported
+   * @throws IOException
+   *         In case reading or spooling fails
+   */
+  @Nonnull
+  public static WSS4JAttachment createIncomingFileAttachment (@Nonnull final InternetHeaders aHeaders,
+                                                              @Nonnull final InputStream aBodyIS,
+                                                              @Nonnull final AS4ResourceManager aResMgr) throws MessagingException,
+                                                                                                         IOException
+  {
+    ValueEnforcer.notNull (aHeaders, "Headers");
+    ValueEnforcer.notNull (aBodyIS, "BodyIS");
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+
+    // Same default as MimeBodyPart.getContentType ()
+    final String sContentType = aHeaders.getHeader (CHttpHeader.CONTENT_TYPE, null);
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr,
+                                                     sContentType != null ? sContentType : "text/plain");
+
+    {
+      // Reference in header is: <ID>
+      final String sRealContentID = StringHelper.trimStartAndEnd (aHeaders.getHeader (CHttpHeader.CONTENT_ID, null),
+                                                                  '<',
+                                                                  '>');
+      ret.setId (sRealContentID);
+    }
+
+    // Decode the content transfer encoding on the fly
+    final String sCTE = aHeaders.getHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, null);
+    final InputStream aDecodedIS = sCTE != null ? MimeUtility.decode (aBodyIS, sCTE.trim ()) : aBodyIS;
+
+    // Keep small parts in memory and switch to a temp file as soon as the
+    // threshold is exceeded
+    final AS4SpoolOutputStream aSpoolOS = new AS4SpoolOutputStream (aResMgr);
+    try
+    {
+      final byte [] aBuffer = new byte [STREAMING_BUFFER_SIZE];
+      int nRead;
+      while ((nRead = aDecodedIS.read (aBuffer)) > -1)
+        aSpoolOS.write (aBuffer, 0, nRead);
+    }
+    finally
+    {
+      aSpoolOS.close ();
+      StreamHelper.close (aDecodedIS);
+    }
+    if (aSpoolOS.isSpooledToFile ())
+      ret.setSourceFile (aSpoolOS.getTempFile ());
+    else
+      ret.setSourceStreamProvider (aSpoolOS.getAsInputStreamProvider (), aSpoolOS.getSize ());
 
+    _addIncomingHeaders (ret, aHeaders.getAllHeaders ());
     return ret;
   }
 }
@@ -0,0 +1,548 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.exception.InitializationException;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.HttpClientFactory;
+
+/**
+ * A long-lived, shared non-blocking HTTP client for sending AS4 messages in
+ * the background. All connections are handled by a small number of I/O
+ * threads, so the number of requests in flight is not limited by a number of
+ * threads but only by the number of connections. The number of concurrently
+ * executing requests per endpoint (= HTTP route) is limited; further requests
+ * to the same endpoint are queued without occupying a thread or a connection
+ * and are started as soon as a previous request to the same endpoint
+ * finished.<br>
+ * Responses are received completely in memory and the response handlers are
+ * invoked in a separate small thread pool, so that they never block the I/O
+ * threads. In contrast to {@link AS4HttpClientPool} failed requests are not
+ * retried.<br>
+ * Use {@link #getDefaultInstance()} to get the instance that is used by
+ * {@link BasicHttpPoster} by default.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4AsyncHttpClientPool implements Closeable
+{
+  public static final int DEFAULT_IO_THREAD_COUNT = Math.min (Runtime.getRuntime ().availableProcessors (), 4);
+  public static final int DEFAULT_CALLBACK_THREAD_COUNT = Runtime.getRuntime ().availableProcessors ();
+  public static final int DEFAULT_MAX_TOTAL = 2000;
+  public static final int DEFAULT_MAX_IN_FLIGHT_PER_ENDPOINT = AS4HttpClientPool.DEFAULT_MAX_PER_ROUTE;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncHttpClientPool.class);
+  private static final Object s_aDefaultLock = new Object ();
+  private static AS4AsyncHttpClientPool s_aDefaultInstance;
+
+  /**
+   * A request together with the future to be completed.
+   */
+  private static final class SendTask
+  {
+    private final Runnable m_aStarter;
+    private final CompletableFuture <?> m_aFuture;
+
+    SendTask (@Nonnull final Runnable aStarter, @Nonnull final CompletableFuture <?> aFuture)
+    {
+      m_aStarter = aStarter;
+      m_aFuture = aFuture;
+    }
+  }
+
+  private static final class EndpointGate
+  {
+    private int m_nInFlight = 0;
+    private final Queue <SendTask> m_aPending = new ArrayDeque <> ();
+  }
+
+  private final PoolingNHttpClientConnectionManager m_aConnMgr;
+  private final CloseableHttpAsyncClient m_aHttpClient;
+  private final ExecutorService m_aCallbackES;
+  private final int m_nMaxInFlightPerEndpoint;
+  private final ConcurrentHashMap <HttpRoute, EndpointGate> m_aGates = new ConcurrentHashMap <> ();
+  // All futures that are not yet completed
+  private final Set <CompletableFuture <?>> m_aOutstanding = ConcurrentHashMap.newKeySet ();
+  private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+  /**
+   * Constructor with all default values and the default SSL context.
+   */
+  public AS4AsyncHttpClientPool ()
+  {
+    this (null,
+          DEFAULT_IO_THREAD_COUNT,
+          DEFAULT_CALLBACK_THREAD_COUNT,
+          DEFAULT_MAX_TOTAL,
+          DEFAULT_MAX_IN_FLIGHT_PER_ENDPOINT,
+          null,
+          null,
+          false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aSSLContext
+   *        The SSL context to use for all TLS connections. May be
+   *        <code>null</code> to use the default SSL context.
+   * @param nIOThreadCount
+   *        The number of I/O threads handling all connections. Must be &gt; 0.
+   * @param nCallbackThreadCount
+   *        The number of threads invoking the response handlers. Must be &gt;
+   *        0.
+   * @param nMaxTotal
+   *        The maximum number of connections and therefore of concurrently
+   *        executing requests in total. Must be &gt; 0.
+   * @param nMaxInFlightPerEndpoint
+   *        The maximum number of concurrently executing requests (and
+   *        connections) per endpoint. Must be &gt; 0.
+   * @param aRequestConfig
+   *        The default configuration (timeouts etc.) of all requests. May be
+   *        <code>null</code> to use the defaults of {@link HttpClientFactory}.
+   * @param aProxy
+   *        The proxy to use for all requests. May be <code>null</code>.
+   * @param bUseSystemProperties
+   *        <code>true</code> to use the system properties for proxy settings
+   *        etc. Only relevant if no explicit proxy is provided.
+   * @throws InitializationException
+   *         If the I/O reactor cannot be created
+   */
+  public AS4AsyncHttpClientPool (@Nullable final SSLContext aSSLContext,
+                                 @Nonnegative final int nIOThreadCount,
+                                 @Nonnegative final int nCallbackThreadCount,
+                                 @Nonnegative final int nMaxTotal,
+                                 @Nonnegative final int nMaxInFlightPerEndpoint,
+                                 @Nullable final RequestConfig aRequestConfig,
+                                 @Nullable final HttpHost aProxy,
+                                 final boolean bUseSystemProperties)
+  {
+    ValueEnforcer.isGT0 (nIOThreadCount, "IOThreadCount");
+    ValueEnforcer.isGT0 (nCallbackThreadCount, "CallbackThreadCount");
+    ValueEnforcer.isGT0 (nMaxTotal, "MaxTotal");
+    ValueEnforcer.isGT0 (nMaxInFlightPerEndpoint, "MaxInFlightPerEndpoint");
+
+    final SSLIOSessionStrategy aSSLStrategy = aSSLContext != null ? new SSLIOSessionStrategy (aSSLContext)
+                                                                  : SSLIOSessionStrategy.getDefaultStrategy ();
+    final Registry <SchemeIOSessionStrategy> aRegistry = RegistryBuilder.<SchemeIOSessionStrategy> create ()
+                                                                        .register ("http", NoopIOSessionStrategy.INSTANCE)
+                                                                        .register ("https", aSSLStrategy)
+                                                                        .build ();
+    final IOReactorConfig aIOConfig = IOReactorConfig.custom ().setIoThreadCount (nIOThreadCount).build ();
+    try
+    {
+      m_aConnMgr = new PoolingNHttpClientConnectionManager (new DefaultConnectingIOReactor (aIOConfig,
+                                                                                           new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                                            .setNamingPattern ("as4-async-io-%d")
+                                                                                                                            .build ()),
+                                                            aRegistry);
+    }
+    catch (final IOReactorException ex)
+    {
+      throw new InitializationException ("Failed to create the I/O reactor", ex);
+    }
+    m_aConnMgr.setMaxTotal (nMaxTotal);
+    m_aConnMgr.setDefaultMaxPerRoute (nMaxInFlightPerEndpoint);
+
+    // Same timeouts as with a new HTTP client per message
+    final RequestConfig aEffectiveRequestConfig = aRequestConfig != null ? aRequestConfig
+                                                                         : new HttpClientFactory ().createRequestConfigBuilder ()
+                                                                                                   .build ();
+    final HttpAsyncClientBuilder aBuilder = HttpAsyncClients.custom ()
+                                                            .setConnectionManager (m_aConnMgr)
+                                                            .setDefaultRequestConfig (aEffectiveRequestConfig)
+                                                            .setKeepAliveStrategy (DefaultConnectionKeepAliveStrategy.INSTANCE);
+    if (aProxy != null)
+      aBuilder.setProxy (aProxy);
+    else
+      if (bUseSystemProperties)
+        aBuilder.useSystemProperties ();
+    m_aHttpClient = aBuilder.build ();
+    m_aHttpClient.start ();
+
+    // Response handlers may parse XML - keep them off the I/O threads
+    final ThreadPoolExecutor aTPE = new ThreadPoolExecutor (nCallbackThreadCount,
+                                                            nCallbackThreadCount,
+                                                            60,
+                                                            TimeUnit.SECONDS,
+                                                            new LinkedBlockingQueue <> (),
+                                                            new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                             .setNamingPattern ("as4-async-callback-%d")
+                                                                                             .build ());
+    aTPE.allowCoreThreadTimeOut (true);
+    m_aCallbackES = aTPE;
+    m_nMaxInFlightPerEndpoint = nMaxInFlightPerEndpoint;
+  }
+
+  /**
+   * @return The maximum number of concurrently executing requests per
+   *         endpoint. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxInFlightPerEndpoint ()
+  {
+    return m_nMaxInFlightPerEndpoint;
+  }
+
+  @Nullable
+  private EndpointGate _getGate (@Nonnull final String sURL)
+  {
+    return m_aGates.get (AS4HttpClientPool.getRoute (sURL));
+  }
+
+  /**
+   * @param sURL
+   *        The endpoint URL. May not be <code>null</code>.
+   * @return The number of currently executing requests to the endpoint. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public int getInFlightCount (@Nonnull final String sURL)
+  {
+    final EndpointGate aGate = _getGate (sURL);
+    if (aGate == null)
+      return 0;
+    synchronized (aGate)
+    {
+      return aGate.m_nInFlight;
+    }
+  }
+
+  /**
+   * @param sURL
+   *        The endpoint URL. May not be <code>null</code>.
+   * @return The number of requests to the endpoint waiting for execution.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPendingCount (@Nonnull final String sURL)
+  {
+    final EndpointGate aGate = _getGate (sURL);
+    if (aGate == null)
+      return 0;
+    synchronized (aGate)
+    {
+      return aGate.m_aPending.size ();
+    }
+  }
+
+  /**
+   * @return The connection statistics over all routes. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public PoolStats getTotalStats ()
+  {
+    return m_aConnMgr.getTotalStats ();
+  }
+
+  /**
+   * Close all idle connections, e.g. after a certificate change.
+   */
+  public void closeIdleConnections ()
+  {
+    m_aConnMgr.closeIdleConnections (0, TimeUnit.MILLISECONDS);
+  }
+
+  public boolean isClosed ()
+  {
+    return m_aClosed.get ();
+  }
+
+  /**
+   * Start the provided task.
+   *
+   * @return <code>false</code> if the task could not be started. In that case
+   *         the future of the task was completed exceptionally and the slot of
+   *         the task must be released by the caller.
+   */
+  private static boolean _start (@Nonnull final SendTask aTask)
+  {
+    // Cancelled or failed while waiting
+    if (aTask.m_aFuture.isDone ())
+      return false;
+    try
+    {
+      aTask.m_aStarter.run ();
+      return true;
+    }
+    catch (final RuntimeException ex)
+    {
+      // E.g. the client was closed concurrently
+      aTask.m_aFuture.completeExceptionally (ex);
+      return false;
+    }
+  }
+
+  private void _release (@Nonnull final EndpointGate aGate)
+  {
+    while (true)
+    {
+      final SendTask aNext;
+      synchronized (aGate)
+      {
+        aNext = aGate.m_aPending.poll ();
+        if (aNext == null)
+        {
+          aGate.m_nInFlight--;
+          return;
+        }
+      }
+      // The slot is handed over to the next request of the same endpoint. If
+      // that cannot be started, it is handed over to the one after it.
+      if (_start (aNext))
+        return;
+    }
+  }
+
+  private <T> void _handleResponse (@Nonnull final HttpResponse aResponse,
+                                    @Nonnull final ResponseHandler <? extends T> aResponseHandler,
+                                    @Nonnull final CompletableFuture <T> aFuture)
+  {
+    try
+    {
+      m_aCallbackES.execute ( () -> {
+        try
+        {
+          aFuture.complete (aResponseHandler.handleResponse (aResponse));
+        }
+        catch (final Throwable t)
+        {
+          aFuture.completeExceptionally (t);
+        }
+        finally
+        {
+          EntityUtils.consumeQuietly (aResponse.getEntity ());
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Closed in the meantime
+      aFuture.completeExceptionally (ex);
+    }
+  }
+
+  /**
+   * Execute the provided request asynchronously. The calling thread is never
+   * blocked.
+   *
+   * @param aRequest
+   *        The request to execute. Its URI must be absolute. May not be
+   *        <code>null</code>. The entity (if any) is read from its input
+   *        stream.
+   * @param aResponseHandler
+   *        The response handler. It is invoked in a thread of this pool. May
+   *        not be <code>null</code>.
+   * @return The future with the result of the response handler. Never
+   *         <code>null</code>. If this pool was closed, the future is
+   *         completed with a {@link RejectedExecutionException}. Cancelling
+   *         the future aborts the request.
+   * @param <T>
+   *        Response type
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> execute (@Nonnull final HttpUriRequest aRequest,
+                                            @Nonnull final ResponseHandler <? extends T> aResponseHandler)
+  {
+    ValueEnforcer.notNull (aRequest, "Request");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+
+    final CompletableFuture <T> ret = new CompletableFuture <> ();
+    if (m_aClosed.get ())
+    {
+      ret.completeExceptionally (new RejectedExecutionException ("The AS4 async HTTP client pool was closed"));
+      return ret;
+    }
+    m_aOutstanding.add (ret);
+    ret.whenComplete ( (r, t) -> m_aOutstanding.remove (ret));
+
+    final EndpointGate aGate = m_aGates.computeIfAbsent (AS4HttpClientPool.getRoute (aRequest.getURI ().toString ()),
+                                                         k -> new EndpointGate ());
+    final SendTask aTask = new SendTask ( () -> {
+      final Future <HttpResponse> aExchange = m_aHttpClient.execute (HttpAsyncMethods.create (aRequest),
+                                                                     HttpAsyncMethods.createConsumer (),
+                                                                     new FutureCallback <HttpResponse> ()
+                                                                     {
+                                                                       public void completed (final HttpResponse aResponse)
+                                                                       {
+                                                                         _release (aGate);
+                                                                         _handleResponse (aResponse,
+                                                                                          aResponseHandler,
+                                                                                          ret);
+                                                                       }
+
+                                                                       public void failed (final Exception ex)
+                                                                       {
+                                                                         _release (aGate);
+                                                                         ret.completeExceptionally (ex);
+                                                                       }
+
+                                                                       public void cancelled ()
+                                                                       {
+                                                                         _release (aGate);
+                                                                         ret.completeExceptionally (new CancellationException ("The request was cancelled"));
+                                                                       }
+                                                                     });
+      ret.whenComplete ( (r, t) -> {
+        if (ret.isCancelled ())
+          aExchange.cancel (true);
+      });
+    }, ret);
+
+    final boolean bStartNow;
+    synchronized (aGate)
+    {
+      bStartNow = aGate.m_nInFlight < m_nMaxInFlightPerEndpoint;
+      if (bStartNow)
+        aGate.m_nInFlight++;
+      else
+        aGate.m_aPending.add (aTask);
+    }
+    if (bStartNow && !_start (aTask))
+      _release (aGate);
+    return ret;
+  }
+
+  /**
+   * Close the pool. Requests that did not finish yet are completed with a
+   * {@link RejectedExecutionException}.
+   */
+  public void close ()
+  {
+    if (!m_aClosed.compareAndSet (false, true))
+      return;
+
+    try
+    {
+      // Closes the connection manager and the I/O reactor as well
+      m_aHttpClient.close ();
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to close the AS4 async HTTP client", ex);
+    }
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aCallbackES);
+
+    // Whatever is left will never complete
+    final RejectedExecutionException aEx = new RejectedExecutionException ("The AS4 async HTTP client pool was closed");
+    for (final CompletableFuture <?> aFuture : m_aOutstanding)
+      aFuture.completeExceptionally (aEx);
+    m_aGates.clear ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxInFlightPerEndpoint", m_nMaxInFlightPerEndpoint)
+                                       .append ("Endpoints", m_aGates.size ())
+                                       .append ("Outstanding", m_aOutstanding.size ())
+                                       .append ("Closed", m_aClosed.get ())
+                                       .getToString ();
+  }
+
+  /**
+   * @return The default instance that is used by {@link BasicHttpPoster}.
+   *         Created on demand. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4AsyncHttpClientPool getDefaultInstance ()
+  {
+    synchronized (s_aDefaultLock)
+    {
+      if (s_aDefaultInstance == null)
+        s_aDefaultInstance = new AS4AsyncHttpClientPool ();
+      return s_aDefaultInstance;
+    }
+  }
+
+  /**
+   * Set a different default instance, e.g. with a custom SSL context or other
+   * limits. The previous default instance is closed.
+   *
+   * @param aPool
+   *        The new default instance. May be <code>null</code> to create a new
+   *        one on demand.
+   */
+  public static void setDefaultInstance (@Nullable final AS4AsyncHttpClientPool aPool)
+  {
+    final AS4AsyncHttpClientPool aOld;
+    synchronized (s_aDefaultLock)
+    {
+      aOld = s_aDefaultInstance;
+      s_aDefaultInstance = aPool;
+    }
+    if (aOld != null && aOld != aPool)
+    {
+      LOGGER.info ("Closing previous default AS4 async HTTP client pool");
+      StreamHelper.close (aOld);
+    }
+  }
+}
@@ -22,7 +22,6 @@ import java.io.IOException;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
-import javax.mail.internet.MimeMessage;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -31,12 +30,11 @@ import com.helger.as4.CAS4;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.crypto.AS4CryptoFactory;
-import com.helger.as4.http.HttpMimeMessageEntity;
+import com.helger.as4.http.HttpMultipartRelatedEntity;
 import com.helger.as4.http.HttpXMLEntity;
 import com.helger.as4.messaging.domain.AS4UserMessage;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.messaging.encrypt.EncryptionCreator;
-import com.helger.as4.messaging.mime.MimeMessageCreator;
 import com.helger.as4.messaging.sign.SignedMessageCreator;
 import com.helger.as4.model.pmode.PMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
@@ -254,10 +252,11 @@ public class AS4ClientUserMessage extends AbstractAS4Client
     Document aDoc = aUserMsg.getAsSOAPDocument (m_aPayload);
 
     // 1. compress
-    // Is done when the attachments are added
+    // Is done on the fly whenever the attachments are read - while the digests
+    // are calculated for signing and while the message is transmitted
 
     // 2. sign and/or encrpyt
-    MimeMessage aMimeMsg = null;
+    HttpMultipartRelatedEntity aMultipartEntity = null;
     if (bSign || bEncrypt)
     {
       final AS4CryptoFactory aCryptoFactory = internalCreateCryptoFactory ();
@@ -285,12 +284,12 @@ public class AS4ClientUserMessage extends AbstractAS4Client
         final boolean bMustUnderstand = true;
         if (bAttachmentsPresent)
         {
-          aMimeMsg = aEncCreator.encryptMimeMessage (getSOAPVersion (),
-                                                     aDoc,
-                                                     bMustUnderstand,
-                                                     m_aAttachments,
-                                                     m_aResMgr,
-                                                     getCryptoAlgorithmCrypt ());
+          aMultipartEntity = aEncCreator.encryptMultipartEntity (getSOAPVersion (),
+                                                                 aDoc,
+                                                                 bMustUnderstand,
+                                                                 m_aAttachments,
+                                                                 m_aResMgr,
+                                                                 getCryptoAlgorithmCrypt ());
         }
         else
         {
@@ -302,16 +301,16 @@ public class AS4ClientUserMessage extends AbstractAS4Client
       }
     }
 
-    if (bAttachmentsPresent && aMimeMsg == null)
+    if (bAttachmentsPresent && aMultipartEntity == null)
     {
       // * not encrypted, not signed
       // * not encrypted, signed
-      aMimeMsg = MimeMessageCreator.generateMimeMessage (getSOAPVersion (), aDoc, m_aAttachments);
+      aMultipartEntity = new HttpMultipartRelatedEntity (getSOAPVersion (), aDoc, m_aAttachments);
     }
 
-    if (aMimeMsg != null)
+    if (aMultipartEntity != null)
     {
-      return new BuiltMessage (sMessageID, new HttpMimeMessageEntity (aMimeMsg));
+      return new BuiltMessage (sMessageID, aMultipartEntity);
     }
 
     // Wrap SOAP XML
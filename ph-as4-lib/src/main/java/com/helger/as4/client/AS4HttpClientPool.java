@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.httpclient.HttpClientFactory;
+import com.helger.httpclient.IHttpClientProvider;
+
+/**
+ * A long-lived, shared HTTP client with a pooled connection manager for all
+ * outbound AS4 traffic. Connections are kept alive and reused per route (=
+ * endpoint), so that consecutive messages to the same endpoint don't need a new
+ * TCP connection and TLS handshake. Because all TLS connections are created
+ * from the same {@link SSLContext} TLS sessions are resumed as well. Idle and
+ * expired connections are evicted in the background.<br>
+ * The default request configuration (timeouts etc.) is the same as the one of
+ * {@link HttpClientFactory}. A proxy or the usage of the system properties
+ * (<code>http.proxyHost</code> etc.) can be configured in the constructor.<br>
+ * As an {@link IHttpClientProvider} this class provides the shared client in a
+ * way that closing it has no effect.<br>
+ * Use {@link #getDefaultInstance()} to get the instance that is used by
+ * {@link BasicHttpPoster} by default.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4HttpClientPool implements IHttpClientProvider, Closeable
+{
+  public static final int DEFAULT_MAX_TOTAL = 200;
+  public static final int DEFAULT_MAX_PER_ROUTE = 20;
+  public static final long DEFAULT_IDLE_EVICTION_SECONDS = 60;
+  public static final int DEFAULT_RETRIES = 3;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4HttpClientPool.class);
+  private static final Object s_aDefaultLock = new Object ();
+  private static AS4HttpClientPool s_aDefaultInstance;
+
+  /**
+   * A view on the shared HTTP client that cannot be closed.
+   */
+  private static final class NonClosingHttpClient extends CloseableHttpClient
+  {
+    private final CloseableHttpClient m_aDelegate;
+
+    NonClosingHttpClient (@Nonnull final CloseableHttpClient aDelegate)
+    {
+      m_aDelegate = aDelegate;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute (final HttpHost aTarget,
+                                               final HttpRequest aRequest,
+                                               final HttpContext aContext) throws IOException
+    {
+      return m_aDelegate.execute (aTarget, aRequest, aContext);
+    }
+
+    @Override
+    @Deprecated
+    public HttpParams getParams ()
+    {
+      return m_aDelegate.getParams ();
+    }
+
+    @Override
+    @Deprecated
+    public ClientConnectionManager getConnectionManager ()
+    {
+      return m_aDelegate.getConnectionManager ();
+    }
+
+    public void close ()
+    {
+      // The shared client is closed by the pool only
+    }
+  }
+
+  private final PoolingHttpClientConnectionManager m_aConnMgr;
+  private final CloseableHttpClient m_aHttpClient;
+  private final CloseableHttpClient m_aNonClosingHttpClient;
+
+  /**
+   * Constructor with all default values and the default SSL context.
+   */
+  public AS4HttpClientPool ()
+  {
+    this (null, DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_IDLE_EVICTION_SECONDS, DEFAULT_RETRIES);
+  }
+
+  /**
+   * Constructor without proxy and with the default request configuration.
+   *
+   * @param aSSLContext
+   *        The SSL context to use for all TLS connections. May be
+   *        <code>null</code> to use the default SSL context.
+   * @param nMaxTotal
+   *        The maximum number of connections in total. Must be &gt; 0.
+   * @param nMaxPerRoute
+   *        The default maximum number of connections per route. Must be &gt;
+   *        0.
+   * @param nIdleEvictionSeconds
+   *        Connections idle for longer than this number of seconds are closed.
+   *        Must be &gt; 0.
+   * @param nRetries
+   *        The number of retries in case of an I/O error. Must be &ge; 0.
+   */
+  public AS4HttpClientPool (@Nullable final SSLContext aSSLContext,
+                            @Nonnegative final int nMaxTotal,
+                            @Nonnegative final int nMaxPerRoute,
+                            @Nonnegative final long nIdleEvictionSeconds,
+                            @Nonnegative final int nRetries)
+  {
+    this (aSSLContext, nMaxTotal, nMaxPerRoute, nIdleEvictionSeconds, nRetries, null, null, false);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aSSLContext
+   *        The SSL context to use for all TLS connections. May be
+   *        <code>null</code> to use the default SSL context.
+   * @param nMaxTotal
+   *        The maximum number of connections in total. Must be &gt; 0.
+   * @param nMaxPerRoute
+   *        The default maximum number of connections per route. Must be &gt;
+   *        0.
+   * @param nIdleEvictionSeconds
+   *        Connections idle for longer than this number of seconds are closed.
+   *        Must be &gt; 0.
+   * @param nRetries
+   *        The number of retries in case of an I/O error. Must be &ge; 0.
+   * @param aRequestConfig
+   *        The default configuration (timeouts etc.) of all requests. May be
+   *        <code>null</code> to use the defaults of {@link HttpClientFactory}.
+   * @param aProxy
+   *        The proxy to use for all requests. May be <code>null</code>.
+   * @param bUseSystemProperties
+   *        <code>true</code> to use the system properties for proxy settings
+   *        etc. Only relevant if no explicit proxy is provided.
+   */
+  public AS4HttpClientPool (@Nullable final SSLContext aSSLContext,
+                            @Nonnegative final int nMaxTotal,
+                            @Nonnegative final int nMaxPerRoute,
+                            @Nonnegative final long nIdleEvictionSeconds,
+                            @Nonnegative final int nRetries,
+                            @Nullable final RequestConfig aRequestConfig,
+                            @Nullable final HttpHost aProxy,
+                            final boolean bUseSystemProperties)
+  {
+    ValueEnforcer.isGT0 (nMaxTotal, "MaxTotal");
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    ValueEnforcer.isGT0 (nIdleEvictionSeconds, "IdleEvictionSeconds");
+    ValueEnforcer.isGE0 (nRetries, "Retries");
+
+    final SSLConnectionSocketFactory aSSLFactory = aSSLContext != null ? new SSLConnectionSocketFactory (aSSLContext)
+                                                                       : SSLConnectionSocketFactory.getSocketFactory ();
+    final Registry <ConnectionSocketFactory> aRegistry = RegistryBuilder.<ConnectionSocketFactory> create ()
+                                                                        .register ("http",
+                                                                                   PlainConnectionSocketFactory.getSocketFactory ())
+                                                                        .register ("https", aSSLFactory)
+                                                                        .build ();
+    m_aConnMgr = new PoolingHttpClientConnectionManager (aRegistry);
+    m_aConnMgr.setMaxTotal (nMaxTotal);
+    m_aConnMgr.setDefaultMaxPerRoute (nMaxPerRoute);
+    // Check stale connections that were idle for more than 2 seconds
+    m_aConnMgr.setValidateAfterInactivity (2000);
+
+    // Same timeouts as with a new HTTP client per message
+    final RequestConfig aEffectiveRequestConfig = aRequestConfig != null ? aRequestConfig
+                                                                         : new HttpClientFactory ().createRequestConfigBuilder ()
+                                                                                                   .build ();
+    final HttpClientBuilder aBuilder = HttpClients.custom ()
+                                                  .setConnectionManager (m_aConnMgr)
+                                                  .setDefaultRequestConfig (aEffectiveRequestConfig)
+                                                  .setKeepAliveStrategy (DefaultConnectionKeepAliveStrategy.INSTANCE)
+                                                  .setRetryHandler (new DefaultHttpRequestRetryHandler (nRetries, false))
+                                                  .evictExpiredConnections ()
+                                                  .evictIdleConnections (nIdleEvictionSeconds, TimeUnit.SECONDS);
+    if (aProxy != null)
+      aBuilder.setProxy (aProxy);
+    else
+      if (bUseSystemProperties)
+        aBuilder.useSystemProperties ();
+    m_aHttpClient = aBuilder.build ();
+    m_aNonClosingHttpClient = new NonClosingHttpClient (m_aHttpClient);
+  }
+
+  /**
+   * @return The shared HTTP client. Never <code>null</code>. Don't close it -
+   *         use {@link #close()} on this object instead.
+   */
+  @Nonnull
+  public CloseableHttpClient getHttpClient ()
+  {
+    return m_aHttpClient;
+  }
+
+  /**
+   * @return The shared HTTP client in a way that closing it has no effect.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public CloseableHttpClient createHttpClient ()
+  {
+    return m_aNonClosingHttpClient;
+  }
+
+  /**
+   * Set the maximum number of connections for a single endpoint.
+   *
+   * @param sURL
+   *        The URL of the endpoint. Only scheme, host and port are relevant.
+   *        May not be <code>null</code>.
+   * @param nMaxPerRoute
+   *        The maximum number of connections to this endpoint. Must be &gt; 0.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS4HttpClientPool setMaxConnectionsPerRoute (@Nonnull final String sURL, @Nonnegative final int nMaxPerRoute)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.isGT0 (nMaxPerRoute, "MaxPerRoute");
+    m_aConnMgr.setMaxPerRoute (getRoute (sURL), nMaxPerRoute);
+    return this;
+  }
+
+  /**
+   * Get the HTTP route for the provided URL, as used by the connection pool.
+   *
+   * @param sURL
+   *        The URL to use. May not be <code>null</code>.
+   * @return The route and never <code>null</code>.
+   */
+  @Nonnull
+  public static HttpRoute getRoute (@Nonnull final String sURL)
+  {
+    final URI aURI = URI.create (sURL);
+    final boolean bSecure = "https".equalsIgnoreCase (aURI.getScheme ());
+    int nPort = aURI.getPort ();
+    if (nPort < 0)
+      nPort = bSecure ? 443 : 80;
+    return new HttpRoute (new HttpHost (aURI.getHost (), nPort, aURI.getScheme ()), null, bSecure);
+  }
+
+  /**
+   * @return The statistics over all routes. Never <code>null</code>.
+   */
+  @Nonnull
+  public PoolStats getTotalStats ()
+  {
+    return m_aConnMgr.getTotalStats ();
+  }
+
+  /**
+   * @return The statistics per route, with the target host URI as the key.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsOrderedMap <String, PoolStats> getAllRouteStats ()
+  {
+    final ICommonsOrderedMap <String, PoolStats> ret = new CommonsLinkedHashMap <> ();
+    for (final HttpRoute aRoute : m_aConnMgr.getRoutes ())
+      ret.put (aRoute.getTargetHost ().toURI (), m_aConnMgr.getStats (aRoute));
+    return ret;
+  }
+
+  /**
+   * Close all idle connections, e.g. after a certificate change.
+   */
+  public void closeIdleConnections ()
+  {
+    m_aConnMgr.closeIdleConnections (0, TimeUnit.MILLISECONDS);
+  }
+
+  public void close () throws IOException
+  {
+    // Closes the connection manager as well
+    m_aHttpClient.close ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TotalStats", m_aConnMgr.getTotalStats ()).getToString ();
+  }
+
+  /**
+   * @return The default instance that is used by {@link BasicHttpPoster}.
+   *         Created on demand. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4HttpClientPool getDefaultInstance ()
+  {
+    synchronized (s_aDefaultLock)
+    {
+      if (s_aDefaultInstance == null)
+        s_aDefaultInstance = new AS4HttpClientPool ();
+      return s_aDefaultInstance;
+    }
+  }
+
+  /**
+   * Set a different default instance, e.g. with a custom SSL context or other
+   * limits. The previous default instance is closed.
+   *
+   * @param aPool
+   *        The new default instance. May be <code>null</code> to create a new
+   *        one on demand.
+   */
+  public static void setDefaultInstance (@Nullable final AS4HttpClientPool aPool)
+  {
+    final AS4HttpClientPool aOld;
+    synchronized (s_aDefaultLock)
+    {
+      aOld = s_aDefaultInstance;
+      s_aDefaultInstance = aPool;
+    }
+    if (aOld != null && aOld != aPool)
+    {
+      LOGGER.info ("Closing previous default AS4 HTTP client pool");
+      StreamHelper.close (aOld);
+    }
+  }
+}
@@ -16,6 +16,8 @@
  */
 package com.helger.as4.client;
 
+import java.util.concurrent.CompletableFuture;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
@@ -156,6 +158,13 @@ public abstract class AbstractAS4Client extends BasicHttpPoster
       throw new IllegalStateException ("Key password is not configured.");
   }
 
+  /**
+   * Create the crypto factory for the configured key store. This is cheap, as
+   * the key store itself is loaded only once per process by the
+   * {@link com.helger.as4.crypto.AS4CryptoRegistry}.
+   *
+   * @return A new crypto factory. Never <code>null</code>.
+   */
   @Nonnull
   protected AS4CryptoFactory internalCreateCryptoFactory ()
   {
@@ -184,6 +193,40 @@ public abstract class AbstractAS4Client extends BasicHttpPoster
     return new SentMessage <> (aBuiltMsg.getMessageID (), aResponse);
   }
 
+  /**
+   * Build the message in the calling thread and send it in the background via
+   * the {@link AS4AsyncHttpClientPool}. The message is built synchronously, so that
+   * the client may be modified afterwards. Errors when building the message
+   * are reported via the returned future.
+   *
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aResponseHandler
+   *        The response handler. May not be <code>null</code>.
+   * @return The future with the sent message. Never <code>null</code>.
+   * @param <T>
+   *        Response type
+   * @see #sendMessage(String, ResponseHandler)
+   */
+  @Nonnull
+  public <T> CompletableFuture <SentMessage <T>> sendMessageAsync (@Nonnull final String sURL,
+                                                                   @Nonnull final ResponseHandler <? extends T> aResponseHandler)
+  {
+    final BuiltMessage aBuiltMsg;
+    try
+    {
+      aBuiltMsg = buildMessage ();
+    }
+    catch (final Exception ex)
+    {
+      final CompletableFuture <SentMessage <T>> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (ex);
+      return ret;
+    }
+    return this.<T> sendGenericMessageAsync (sURL, aBuiltMsg.getHttpEntity (), aResponseHandler)
+               .thenApply (aResponse -> new SentMessage <> (aBuiltMsg.getMessageID (), aResponse));
+  }
+
   @Nullable
   public IMicroDocument sendMessageAndGetMicroDocument (@Nonnull final String sURL) throws Exception
   {
@@ -17,6 +17,7 @@
 package com.helger.as4.client;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -29,6 +30,7 @@ import org.apache.http.util.EntityUtils;
 
 import com.helger.as4.http.AS4HttpDebug;
 import com.helger.as4.http.HttpMimeMessageEntity;
+import com.helger.as4.http.HttpMultipartRelatedEntity;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.OverrideOnDemand;
@@ -39,42 +41,108 @@ import com.helger.httpclient.IHttpClientProvider;
 
 /**
  * A generic HTTP POST wrapper based on {@link IHttpClientProvider} and
- * {@link HttpPost}.
- * 
+ * {@link HttpPost}. By default the shared
+ * {@link AS4HttpClientPool#getDefaultInstance()} is used as the provider, so
+ * that connections are reused across instances. Alternatively a custom
+ * {@link IHttpClientProvider} can be set, which usually creates a new HTTP
+ * client for each message.
+ *
  * @author Philip Helger
  */
 public class BasicHttpPoster
 {
-  // By default no special SSL context present
-  private IHttpClientProvider m_aHTTPClientProvider = new HttpClientFactory ().setRetries (3);
+  // By default the shared pool is used
+  private AS4HttpClientPool m_aHttpClientPool;
+  private IHttpClientProvider m_aHTTPClientProvider;
+  // By default the shared async HTTP client pool is used
+  private AS4AsyncHttpClientPool m_aAsyncHttpClientPool;
 
   public BasicHttpPoster ()
   {}
 
   /**
-   * @return The internal http client provider used in
+   * @return The HTTP client pool used in
+   *         {@link #sendGenericMessage(String, HttpEntity, ResponseHandler)} if
+   *         no HTTP client provider is set. Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4HttpClientPool getHttpClientPool ()
+  {
+    final AS4HttpClientPool ret = m_aHttpClientPool;
+    return ret != null ? ret : AS4HttpClientPool.getDefaultInstance ();
+  }
+
+  /**
+   * Set the HTTP client pool to be used. The pool is not closed by this class.
+   *
+   * @param aHttpClientPool
+   *        The pool to use. May be <code>null</code> to use the default pool.
+   * @return this for chaining
+   */
+  @Nonnull
+  public BasicHttpPoster setHttpClientPool (@Nullable final AS4HttpClientPool aHttpClientPool)
+  {
+    m_aHttpClientPool = aHttpClientPool;
+    return this;
+  }
+
+  /**
+   * @return The async HTTP client pool used in
+   *         {@link #sendGenericMessageAsync(String, HttpEntity, ResponseHandler)}.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public AS4AsyncHttpClientPool getAsyncHttpClientPool ()
+  {
+    final AS4AsyncHttpClientPool ret = m_aAsyncHttpClientPool;
+    return ret != null ? ret : AS4AsyncHttpClientPool.getDefaultInstance ();
+  }
+
+  /**
+   * Set the async HTTP client pool to be used. The pool is not closed by this
+   * class. A custom SSL context for asynchronous sending must be configured
+   * on this pool, as the HTTP client provider is not used for it.
+   *
+   * @param aAsyncHttpClientPool
+   *        The pool to use. May be <code>null</code> to use the default pool.
+   * @return this for chaining
+   */
+  @Nonnull
+  public BasicHttpPoster setAsyncHttpClientPool (@Nullable final AS4AsyncHttpClientPool aAsyncHttpClientPool)
+  {
+    m_aAsyncHttpClientPool = aAsyncHttpClientPool;
+    return this;
+  }
+
+  /**
+   * @return The http client provider used in
    *         {@link #sendGenericMessage(String, HttpEntity, ResponseHandler)}.
+   *         This is the HTTP client pool, if no custom provider is set. Never
+   *         <code>null</code>.
    */
   @Nonnull
   protected IHttpClientProvider getHttpClientProvider ()
   {
-    return m_aHTTPClientProvider;
+    final IHttpClientProvider ret = m_aHTTPClientProvider;
+    return ret != null ? ret : getHttpClientPool ();
   }
 
   /**
    * Set the HTTP client provider to be used. This is e.g. necessary when a
    * custom SSL context is to be used. See {@link HttpClientFactory} as the
    * default implementation of {@link IHttpClientProvider}. This provider is
-   * used in {@link #sendGenericMessage(String, HttpEntity, ResponseHandler)}.
+   * used in {@link #sendGenericMessage(String, HttpEntity, ResponseHandler)}
+   * instead of the HTTP client pool and creates a new HTTP client for each
+   * message. Prefer a {@link AS4HttpClientPool} with a custom SSL context.
    *
    * @param aHttpClientProvider
-   *        The HTTP client provider to be used. May not be <code>null</code>.
+   *        The HTTP client provider to be used. May be <code>null</code> to
+   *        use the HTTP client pool.
    * @return this for chaining
    */
   @Nonnull
-  public BasicHttpPoster setHttpClientProvider (@Nonnull final IHttpClientProvider aHttpClientProvider)
+  public BasicHttpPoster setHttpClientProvider (@Nullable final IHttpClientProvider aHttpClientProvider)
   {
-    ValueEnforcer.notNull (aHttpClientProvider, "HttpClientProvider");
     m_aHTTPClientProvider = aHttpClientProvider;
     return this;
   }
@@ -89,6 +157,42 @@ public class BasicHttpPoster
   protected void customizeHttpPost (@Nonnull final HttpPost aPost)
   {}
 
+  @Nonnull
+  private HttpPost _createHttpPost (@Nonnull final String sURL, @Nonnull final HttpEntity aHttpEntity)
+  {
+    final HttpPost aPost = new HttpPost (sURL);
+    if (aHttpEntity instanceof HttpMimeMessageEntity)
+    {
+      MessageHelperMethods.moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aHttpEntity).getMimeMessage (),
+                                                        aPost);
+    }
+    else
+      if (aHttpEntity instanceof HttpMultipartRelatedEntity)
+      {
+        ((HttpMultipartRelatedEntity) aHttpEntity).addHttpHeaders (aPost);
+      }
+    aPost.setEntity (aHttpEntity);
+
+    // Overridable method
+    customizeHttpPost (aPost);
+
+    AS4HttpDebug.debug ( () -> {
+      final StringBuilder ret = new StringBuilder ("SEND-START to ").append (sURL);
+      try
+      {
+        ret.append ("\n");
+        for (final Header h : aPost.getAllHeaders ())
+          ret.append (h.getName ()).append ('=').append (h.getValue ()).append (CHttp.EOL);
+        ret.append (CHttp.EOL);
+        ret.append (EntityUtils.toString (aHttpEntity));
+      }
+      catch (final IOException ex)
+      { /* ignore */ }
+      return ret.toString ();
+    });
+    return aPost;
+  }
+
   @Nullable
   public <T> T sendGenericMessage (@Nonnull final String sURL,
                                    @Nonnull final HttpEntity aHttpEntity,
@@ -97,35 +201,56 @@ public class BasicHttpPoster
     ValueEnforcer.notEmpty (sURL, "URL");
     ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
 
-    try (final HttpClientManager aClient = new HttpClientManager (m_aHTTPClientProvider))
-    {
-      final HttpPost aPost = new HttpPost (sURL);
-      if (aHttpEntity instanceof HttpMimeMessageEntity)
-      {
-        MessageHelperMethods.moveMIMEHeadersToHTTPHeader (((HttpMimeMessageEntity) aHttpEntity).getMimeMessage (),
-                                                          aPost);
-      }
-      aPost.setEntity (aHttpEntity);
-
-      // Overridable method
-      customizeHttpPost (aPost);
-
-      AS4HttpDebug.debug ( () -> {
-        final StringBuilder ret = new StringBuilder ("SEND-START to ").append (sURL);
-        try
-        {
-          ret.append ("\n");
-          for (final Header h : aPost.getAllHeaders ())
-            ret.append (h.getName ()).append ('=').append (h.getValue ()).append (CHttp.EOL);
-          ret.append (CHttp.EOL);
-          ret.append (EntityUtils.toString (aHttpEntity));
-        }
-        catch (final IOException ex)
-        { /* ignore */ }
-        return ret.toString ();
-      });
+    final HttpPost aPost = _createHttpPost (sURL, aHttpEntity);
 
+    // Closing has no effect on the client of the shared pool - the connection
+    // is released after the response handler was invoked
+    try (final HttpClientManager aClient = new HttpClientManager (getHttpClientProvider ()))
+    {
       return aClient.execute (aPost, aResponseHandler);
     }
   }
+
+  /**
+   * Send the message in the background with the non-blocking
+   * {@link AS4AsyncHttpClientPool} in use, which also limits the number of
+   * concurrently executing requests per endpoint. The calling thread is not
+   * blocked and no thread is occupied while waiting for the response. The
+   * HTTP client provider is not used here.
+   *
+   * @param sURL
+   *        The URL to send to. May neither be <code>null</code> nor empty.
+   * @param aHttpEntity
+   *        The entity to be sent. May not be <code>null</code>.
+   * @param aResponseHandler
+   *        The response handler. It is invoked in a thread of the pool. May
+   *        not be <code>null</code>.
+   * @return The future with the result of the response handler. Never
+   *         <code>null</code>.
+   * @param <T>
+   *        Response type
+   * @see #sendGenericMessage(String, HttpEntity, ResponseHandler)
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> sendGenericMessageAsync (@Nonnull final String sURL,
+                                                            @Nonnull final HttpEntity aHttpEntity,
+                                                            @Nonnull final ResponseHandler <? extends T> aResponseHandler)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+    ValueEnforcer.notNull (aHttpEntity, "HttpEntity");
+    ValueEnforcer.notNull (aResponseHandler, "ResponseHandler");
+
+    final HttpPost aPost;
+    try
+    {
+      aPost = _createHttpPost (sURL, aHttpEntity);
+    }
+    catch (final RuntimeException ex)
+    {
+      final CompletableFuture <T> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (ex);
+      return ret;
+    }
+    return getAsyncHttpClientPool ().execute (aPost, aResponseHandler);
+  }
 }
@@ -0,0 +1,302 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.security.auth.callback.CallbackHandler;
+
+import org.apache.wss4j.common.crypto.CryptoType;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.apache.wss4j.common.crypto.PasswordEncryptor;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.equals.EqualsHelper;
+
+/**
+ * A special {@link Merlin} with two optional in-memory caches:
+ * <ul>
+ * <li>Unlocked private keys
+ * ({@link CryptoProperties#PROPERTY_CACHE_PRIVATE_KEYS}): for JKS and PKCS12
+ * key stores each {@link #getPrivateKey(String, String)} call re-runs the
+ * password based key decryption, which is more expensive than the actual
+ * private key operation when signing or decrypting a message. Keys requested
+ * by alias are only returned from the cache if the same password is provided
+ * again. Keys requested by certificate or public key are cached after the
+ * callback handler provided the correct password once.</li>
+ * <li>Certificate indexes ({@link CryptoProperties#PROPERTY_INDEX_CERTIFICATES}):
+ * instead of iterating all aliases, certificate references are resolved via an
+ * {@link AS4CertificateIndex} that is built upon first use and rebuilt if the
+ * key store or trust store is exchanged. DN based lookups that are not found
+ * in the index fall back to Merlin, because the DN syntax used in a reference
+ * may not be parsable by {@link javax.security.auth.x500.X500Principal}.</li>
+ * </ul>
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4CachingMerlin extends Merlin
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4CachingMerlin.class);
+
+  private static final class AliasKey
+  {
+    private final String m_sPassword;
+    private final PrivateKey m_aKey;
+
+    AliasKey (@Nullable final String sPassword, @Nonnull final PrivateKey aKey)
+    {
+      m_sPassword = sPassword;
+      m_aKey = aKey;
+    }
+  }
+
+  private final boolean m_bCachePrivateKeys;
+  private final boolean m_bIndexCertificates;
+  private final Map <String, AliasKey> m_aAliasKeys = new ConcurrentHashMap <> ();
+  private final Map <PublicKey, PrivateKey> m_aPublicKeyKeys = new ConcurrentHashMap <> ();
+  private final Object m_aIndexLock = new Object ();
+  // No initializer - may be reset while the super constructor runs
+  private volatile AS4CertificateIndex m_aCertIndex;
+
+  /**
+   * Constructor
+   *
+   * @param bCachePrivateKeys
+   *        <code>true</code> to keep unlocked private keys in memory
+   * @param bIndexCertificates
+   *        <code>true</code> to resolve certificates via an index
+   */
+  public AS4CachingMerlin (final boolean bCachePrivateKeys, final boolean bIndexCertificates)
+  {
+    m_bCachePrivateKeys = bCachePrivateKeys;
+    m_bIndexCertificates = bIndexCertificates;
+  }
+
+  public AS4CachingMerlin (@Nullable final Properties aProperties,
+                           @Nullable final ClassLoader aClassLoader,
+                           @Nullable final PasswordEncryptor aPasswordEncryptor,
+                           final boolean bCachePrivateKeys,
+                           final boolean bIndexCertificates) throws WSSecurityException, IOException
+  {
+    super (aProperties, aClassLoader, aPasswordEncryptor);
+    m_bCachePrivateKeys = bCachePrivateKeys;
+    m_bIndexCertificates = bIndexCertificates;
+  }
+
+  public boolean isCachePrivateKeys ()
+  {
+    return m_bCachePrivateKeys;
+  }
+
+  public boolean isIndexCertificates ()
+  {
+    return m_bIndexCertificates;
+  }
+
+  /**
+   * @return The number of currently cached private keys. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCachedKeyCount ()
+  {
+    return m_aAliasKeys.size () + m_aPublicKeyKeys.size ();
+  }
+
+  /**
+   * Remove all cached private keys. Must be called if the key store is
+   * exchanged via {@link #setKeyStore(KeyStore)}. If the key store file is
+   * modified, the {@link AS4CryptoRegistry} creates a new instance anyway.
+   */
+  public void clearCache ()
+  {
+    m_aAliasKeys.clear ();
+    m_aPublicKeyKeys.clear ();
+  }
+
+  @Override
+  public void setKeyStore (@Nullable final KeyStore aKeyStore)
+  {
+    super.setKeyStore (aKeyStore);
+    m_aCertIndex = null;
+  }
+
+  @Override
+  public void setTrustStore (@Nullable final KeyStore aTrustStore)
+  {
+    super.setTrustStore (aTrustStore);
+    m_aCertIndex = null;
+  }
+
+  @Nullable
+  private byte [] _getSKIBytes (@Nonnull final X509Certificate aCert)
+  {
+    try
+    {
+      return getSKIBytesFromCert (aCert);
+    }
+    catch (final WSSecurityException ex)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * @return The certificate index to use or <code>null</code> if certificate
+   *         indexing is disabled or the index could not be built.
+   */
+  @Nullable
+  public AS4CertificateIndex getCertificateIndex ()
+  {
+    if (!m_bIndexCertificates)
+      return null;
+
+    AS4CertificateIndex ret = m_aCertIndex;
+    if (ret == null)
+      synchronized (m_aIndexLock)
+      {
+        ret = m_aCertIndex;
+        if (ret == null)
+          try
+          {
+            ret = new AS4CertificateIndex (getKeyStore (), getTrustStore (), this::_getSKIBytes);
+            m_aCertIndex = ret;
+          }
+          catch (final GeneralSecurityException ex)
+          {
+            LOGGER.warn ("Failed to index the certificates - falling back to a full search", ex);
+          }
+      }
+    return ret;
+  }
+
+  @Override
+  public X509Certificate [] getX509Certificates (@Nullable final CryptoType aCryptoType) throws WSSecurityException
+  {
+    final AS4CertificateIndex aIndex = aCryptoType == null ? null : getCertificateIndex ();
+    if (aIndex != null && aCryptoType.getType () != null)
+      switch (aCryptoType.getType ())
+      {
+        case ISSUER_SERIAL:
+        {
+          final X509Certificate [] ret = aIndex.getByIssuerSerial (aCryptoType.getIssuer (), aCryptoType.getSerial ());
+          if (ret != null)
+            return ret;
+          break;
+        }
+        case SUBJECT_DN:
+        {
+          final X509Certificate [] ret = aIndex.getBySubjectDN (aCryptoType.getSubjectDN ());
+          if (ret != null)
+            return ret;
+          break;
+        }
+        case SKI_BYTES:
+          // Exact byte match - no need to search again
+          return aIndex.getBySKI (aCryptoType.getBytes ());
+        case THUMBPRINT_SHA1:
+          return aIndex.getBySHA1Thumbprint (aCryptoType.getBytes ());
+        default:
+          // Alias lookups are direct anyway
+          break;
+      }
+    return super.getX509Certificates (aCryptoType);
+  }
+
+  @Override
+  public String getX509Identifier (@Nullable final X509Certificate aCert) throws WSSecurityException
+  {
+    final AS4CertificateIndex aIndex = getCertificateIndex ();
+    if (aIndex != null)
+      return aIndex.getAlias (aCert);
+    return super.getX509Identifier (aCert);
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (@Nullable final String sIdentifier,
+                                   @Nullable final String sPassword) throws WSSecurityException
+  {
+    if (!m_bCachePrivateKeys)
+      return super.getPrivateKey (sIdentifier, sPassword);
+
+    if (sIdentifier != null)
+    {
+      final AliasKey aCached = m_aAliasKeys.get (sIdentifier);
+      if (aCached != null && EqualsHelper.equals (aCached.m_sPassword, sPassword))
+        return aCached.m_aKey;
+    }
+
+    final PrivateKey ret = super.getPrivateKey (sIdentifier, sPassword);
+    if (sIdentifier != null && ret != null)
+      m_aAliasKeys.put (sIdentifier, new AliasKey (sPassword, ret));
+    return ret;
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (@Nullable final X509Certificate aCertificate,
+                                   @Nullable final CallbackHandler aCallbackHandler) throws WSSecurityException
+  {
+    if (!m_bCachePrivateKeys)
+      return super.getPrivateKey (aCertificate, aCallbackHandler);
+
+    if (aCertificate != null)
+    {
+      final PrivateKey aCached = m_aPublicKeyKeys.get (aCertificate.getPublicKey ());
+      if (aCached != null)
+        return aCached;
+    }
+
+    final PrivateKey ret = super.getPrivateKey (aCertificate, aCallbackHandler);
+    if (aCertificate != null && ret != null)
+      m_aPublicKeyKeys.put (aCertificate.getPublicKey (), ret);
+    return ret;
+  }
+
+  @Override
+  public PrivateKey getPrivateKey (@Nullable final PublicKey aPublicKey,
+                                   @Nullable final CallbackHandler aCallbackHandler) throws WSSecurityException
+  {
+    if (!m_bCachePrivateKeys)
+      return super.getPrivateKey (aPublicKey, aCallbackHandler);
+
+    if (aPublicKey != null)
+    {
+      final PrivateKey aCached = m_aPublicKeyKeys.get (aPublicKey);
+      if (aCached != null)
+        return aCached;
+    }
+
+    final PrivateKey ret = super.getPrivateKey (aPublicKey, aCallbackHandler);
+    if (aPublicKey != null && ret != null)
+      m_aPublicKeyKeys.put (aPublicKey, ret);
+    return ret;
+  }
+}
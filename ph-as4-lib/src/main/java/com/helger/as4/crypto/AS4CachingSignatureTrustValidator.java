@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.security.cert.X509Certificate;
+
+import javax.annotation.Nonnull;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.apache.wss4j.dom.handler.RequestData;
+import org.apache.wss4j.dom.validate.SignatureTrustValidator;
+
+import com.helger.commons.ValueEnforcer;
+
+/**
+ * A {@link SignatureTrustValidator} that uses an
+ * {@link AS4TrustValidationCache} for the certificate path validation. The
+ * validity period of the certificates is still checked for every message.
+ * Register it via
+ * <code>WSSConfig.setValidator (WSConstants.SIGNATURE, ...)</code>.
+ *
+ * @author Philip Helger
+ */
+public class AS4CachingSignatureTrustValidator extends SignatureTrustValidator
+{
+  private final AS4TrustValidationCache m_aCache;
+
+  public AS4CachingSignatureTrustValidator (@Nonnull final AS4TrustValidationCache aCache)
+  {
+    ValueEnforcer.notNull (aCache, "Cache");
+    m_aCache = aCache;
+  }
+
+  @Nonnull
+  public final AS4TrustValidationCache getCache ()
+  {
+    return m_aCache;
+  }
+
+  @Override
+  protected void verifyTrustInCerts (@Nonnull final X509Certificate [] aCerts,
+                                     @Nonnull final Crypto aCrypto,
+                                     @Nonnull final RequestData aData,
+                                     final boolean bEnableRevocation) throws WSSecurityException
+  {
+    // The constraints are part of the key, as they influence the result
+    final String sConstraints = String.valueOf (aData.getSubjectCertConstraints ()) +
+                                "|" +
+                                String.valueOf (aData.getIssuerDNPatterns ());
+    m_aCache.verifyTrust (aCerts,
+                          aCrypto,
+                          bEnableRevocation,
+                          sConstraints,
+                          () -> super.verifyTrustInCerts (aCerts, aCrypto, aData, bEnableRevocation));
+  }
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.security.auth.x500.X500Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * In-memory indexes over the certificates of a key store and a trust store.
+ * WSS4J's Merlin resolves certificate references by iterating all aliases,
+ * which is linear in the store size for every message. This index is built
+ * once and resolves issuer and serial number, subject key identifier, SHA-1
+ * and SHA-256 thumbprint, subject DN and the alias of a certificate in
+ * constant time.<br>
+ * Like in Merlin, the first certificate of each alias is indexed, the key store
+ * takes precedence over the trust store and the complete certificate chain of
+ * an alias is returned where Merlin does so.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class AS4CertificateIndex
+{
+  /**
+   * Determine the subject key identifier of a certificate.
+   */
+  @FunctionalInterface
+  public interface ISKIProvider
+  {
+    /**
+     * @param aCert
+     *        The certificate to use. Never <code>null</code>.
+     * @return The subject key identifier bytes or <code>null</code> if they
+     *         cannot be determined.
+     */
+    @Nullable
+    byte [] getSKIBytes (@Nonnull X509Certificate aCert);
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4CertificateIndex.class);
+
+  private final ICommonsMap <String, X509Certificate []> m_aByIssuerSerial = new CommonsHashMap <> ();
+  private final ICommonsMap <String, X509Certificate []> m_aBySKI = new CommonsHashMap <> ();
+  private final ICommonsMap <String, X509Certificate []> m_aBySHA1 = new CommonsHashMap <> ();
+  private final ICommonsMap <String, X509Certificate []> m_aBySHA256 = new CommonsHashMap <> ();
+  private final ICommonsMap <String, ICommonsList <X509Certificate>> m_aBySubject = new CommonsHashMap <> ();
+  private final ICommonsMap <X509Certificate, String> m_aAliases = new CommonsHashMap <> ();
+  private int m_nCertificateCount = 0;
+
+  /**
+   * Build the index.
+   *
+   * @param aKeyStore
+   *        The key store to index. May be <code>null</code>.
+   * @param aTrustStore
+   *        The trust store to index. May be <code>null</code>.
+   * @param aSKIProvider
+   *        The function to determine the subject key identifier of a
+   *        certificate. Must be the same as used by the crypto, so that the
+   *        lookup results are identical. May not be <code>null</code>.
+   * @throws GeneralSecurityException
+   *         If a store cannot be read
+   */
+  public AS4CertificateIndex (@Nullable final KeyStore aKeyStore,
+                              @Nullable final KeyStore aTrustStore,
+                              @Nonnull final ISKIProvider aSKIProvider) throws GeneralSecurityException
+  {
+    ValueEnforcer.notNull (aSKIProvider, "SKIProvider");
+
+    final MessageDigest aSHA1 = MessageDigest.getInstance ("SHA-1");
+    final MessageDigest aSHA256 = MessageDigest.getInstance ("SHA-256");
+    // Key store first, so that its entries take precedence
+    for (final KeyStore aStore : new KeyStore [] { aKeyStore, aTrustStore })
+      if (aStore != null)
+      {
+        final Enumeration <String> aAliases = aStore.aliases ();
+        while (aAliases.hasMoreElements ())
+        {
+          final String sAlias = aAliases.nextElement ();
+          final X509Certificate [] aChain = _getChain (aStore, sAlias);
+          if (aChain == null)
+            continue;
+
+          final X509Certificate aCert = aChain[0];
+          final X509Certificate [] aSingle = new X509Certificate [] { aCert };
+          m_aByIssuerSerial.putIfAbsent (_getIssuerSerialKey (aCert.getIssuerX500Principal (), aCert.getSerialNumber ()),
+                                         aChain);
+          final byte [] aSKI = aSKIProvider.getSKIBytes (aCert);
+          if (aSKI != null)
+            m_aBySKI.putIfAbsent (StringHelper.getHexEncoded (aSKI), aSingle);
+          final byte [] aEncoded = aCert.getEncoded ();
+          m_aBySHA1.putIfAbsent (StringHelper.getHexEncoded (aSHA1.digest (aEncoded)), aSingle);
+          m_aBySHA256.putIfAbsent (StringHelper.getHexEncoded (aSHA256.digest (aEncoded)), aSingle);
+          m_aBySubject.computeIfAbsent (_getDNKey (aCert.getSubjectX500Principal ()), k -> new CommonsArrayList <> ())
+                      .add (aCert);
+          m_aAliases.putIfAbsent (aCert, sAlias);
+          m_nCertificateCount++;
+        }
+      }
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Indexed " + m_nCertificateCount + " certificates");
+  }
+
+  @Nullable
+  private static X509Certificate [] _getChain (@Nonnull final KeyStore aStore,
+                                               @Nonnull final String sAlias) throws GeneralSecurityException
+  {
+    Certificate [] aCerts = aStore.getCertificateChain (sAlias);
+    if (aCerts == null || aCerts.length == 0)
+    {
+      final Certificate aCert = aStore.getCertificate (sAlias);
+      if (aCert == null)
+        return null;
+      aCerts = new Certificate [] { aCert };
+    }
+    if (!(aCerts[0] instanceof X509Certificate))
+      return null;
+
+    final X509Certificate [] ret = new X509Certificate [aCerts.length];
+    for (int i = 0; i < aCerts.length; ++i)
+    {
+      if (!(aCerts[i] instanceof X509Certificate))
+        return new X509Certificate [] { ret[0] };
+      ret[i] = (X509Certificate) aCerts[i];
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static String _getDNKey (@Nonnull final X500Principal aPrincipal)
+  {
+    return aPrincipal.getName (X500Principal.CANONICAL);
+  }
+
+  @Nonnull
+  private static String _getIssuerSerialKey (@Nonnull final X500Principal aIssuer, @Nonnull final BigInteger aSerial)
+  {
+    return _getDNKey (aIssuer) + '#' + aSerial.toString (16);
+  }
+
+  @Nullable
+  private static X509Certificate [] _getCopy (@Nullable final X509Certificate [] aCerts)
+  {
+    // Callers may modify the returned array
+    return aCerts == null ? null : aCerts.clone ();
+  }
+
+  @Nullable
+  private static X500Principal _parseDN (@Nullable final String sDN)
+  {
+    if (StringHelper.hasNoText (sDN))
+      return null;
+    try
+    {
+      return new X500Principal (sDN);
+    }
+    catch (final IllegalArgumentException ex)
+    {
+      // DN in a syntax not supported by X500Principal
+      return null;
+    }
+  }
+
+  /**
+   * @return The number of indexed certificates. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCertificateCount ()
+  {
+    return m_nCertificateCount;
+  }
+
+  /**
+   * @param sIssuerDN
+   *        Issuer DN. May be <code>null</code>.
+   * @param aSerial
+   *        Serial number. May be <code>null</code>.
+   * @return The certificate chain of the matching alias or <code>null</code>
+   *         if either no certificate matches or if the DN cannot be parsed.
+   */
+  @Nullable
+  public X509Certificate [] getByIssuerSerial (@Nullable final String sIssuerDN, @Nullable final BigInteger aSerial)
+  {
+    final X500Principal aIssuer = _parseDN (sIssuerDN);
+    if (aIssuer == null || aSerial == null)
+      return null;
+    return _getCopy (m_aByIssuerSerial.get (_getIssuerSerialKey (aIssuer, aSerial)));
+  }
+
+  /**
+   * @param aSKI
+   *        Subject key identifier bytes. May be <code>null</code>.
+   * @return The matching certificate or <code>null</code>.
+   */
+  @Nullable
+  public X509Certificate [] getBySKI (@Nullable final byte [] aSKI)
+  {
+    return aSKI == null ? null : _getCopy (m_aBySKI.get (StringHelper.getHexEncoded (aSKI)));
+  }
+
+  /**
+   * @param aThumbprint
+   *        SHA-1 hash of the encoded certificate. May be <code>null</code>.
+   * @return The matching certificate or <code>null</code>.
+   */
+  @Nullable
+  public X509Certificate [] getBySHA1Thumbprint (@Nullable final byte [] aThumbprint)
+  {
+    return aThumbprint == null ? null : _getCopy (m_aBySHA1.get (StringHelper.getHexEncoded (aThumbprint)));
+  }
+
+  /**
+   * @param aThumbprint
+   *        SHA-256 hash of the encoded certificate. May be <code>null</code>.
+   * @return The matching certificate or <code>null</code>.
+   */
+  @Nullable
+  public X509Certificate [] getBySHA256Thumbprint (@Nullable final byte [] aThumbprint)
+  {
+    return aThumbprint == null ? null : _getCopy (m_aBySHA256.get (StringHelper.getHexEncoded (aThumbprint)));
+  }
+
+  /**
+   * @param sSubjectDN
+   *        Subject DN. May be <code>null</code>.
+   * @return All certificates with the provided subject or <code>null</code> if
+   *         either no certificate matches or if the DN cannot be parsed.
+   */
+  @Nullable
+  public X509Certificate [] getBySubjectDN (@Nullable final String sSubjectDN)
+  {
+    final X500Principal aSubject = _parseDN (sSubjectDN);
+    if (aSubject == null)
+      return null;
+    final ICommonsList <X509Certificate> aCerts = m_aBySubject.get (_getDNKey (aSubject));
+    return aCerts == null ? null : aCerts.toArray (new X509Certificate [aCerts.size ()]);
+  }
+
+  /**
+   * @param aCert
+   *        The certificate to search. May be <code>null</code>.
+   * @return The alias of the provided certificate or <code>null</code>.
+   */
+  @Nullable
+  public String getAlias (@Nullable final X509Certificate aCert)
+  {
+    return aCert == null ? null : m_aAliases.get (aCert);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("CertificateCount", m_nCertificateCount).getToString ();
+  }
+}
@@ -24,9 +24,9 @@ import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.apache.wss4j.common.crypto.Crypto;
-import org.apache.wss4j.common.crypto.CryptoFactory;
 import org.apache.wss4j.dom.engine.WSSConfig;
 
+import com.helger.as4.crypto.revocation.AS4RevocationChecker;
 import com.helger.commons.exception.InitializationException;
 import com.helger.commons.io.resource.ClassPathResource;
 import com.helger.commons.string.StringHelper;
@@ -47,7 +47,6 @@ public final class AS4CryptoFactory implements Serializable
   public static final AS4CryptoFactory DEFAULT_INSTANCE = new AS4CryptoFactory ((String) null);
 
   private final CryptoProperties m_aCryptoProps;
-  private transient Crypto m_aCrypto;
 
   @Nonnull
   private static CryptoProperties _createPropsFromFile (@Nullable final String sCryptoPropertiesPath)
@@ -94,22 +93,26 @@ public final class AS4CryptoFactory implements Serializable
     return m_aCryptoProps;
   }
 
+  /**
+   * @return The shared {@link Crypto} for the crypto properties of this
+   *         factory. Never <code>null</code>.
+   * @see AS4CryptoRegistry
+   */
   @Nonnull
   public Crypto getCrypto ()
   {
-    Crypto ret = m_aCrypto;
-    if (ret == null)
-    {
-      try
-      {
-        ret = CryptoFactory.getInstance (m_aCryptoProps.getAsProperties ());
-      }
-      catch (final Exception ex)
-      {
-        throw new InitializationException ("Failed to init crypto properties!", ex);
-      }
-      m_aCrypto = ret;
-    }
-    return ret;
+    // Loaded only once per process and reloaded if the key store changes
+    return AS4CryptoRegistry.getDefaultInstance ().getCrypto (m_aCryptoProps);
+  }
+
+  /**
+   * @return The shared revocation checker for the crypto properties of this
+   *         factory or <code>null</code> if revocation checking is disabled.
+   * @see AS4CryptoRegistry#getRevocationChecker(CryptoProperties)
+   */
+  @Nullable
+  public AS4RevocationChecker getRevocationChecker ()
+  {
+    return AS4CryptoRegistry.getDefaultInstance ().getRevocationChecker (m_aCryptoProps);
   }
 }
@@ -0,0 +1,411 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.crypto.CryptoFactory;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.crypto.revocation.AS4RevocationChecker;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsTreeMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsSortedMap;
+import com.helger.commons.exception.InitializationException;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * Process-wide registry of WSS4J {@link Crypto} instances. Loading a key store
+ * (and decrypting it) is expensive, so each distinct set of crypto properties
+ * is loaded only once and the resulting (thread-safe) {@link Crypto} is shared
+ * by all users. If the key store or trust store is a file, it is reloaded after
+ * it was modified. The number of loads and the load time are available via
+ * {@link #getLoadCount()} and the {@link StatisticsManager}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4CryptoRegistry
+{
+  /** The default minimum duration between two checks of the same file */
+  public static final long DEFAULT_CHECK_INTERVAL_MS = TimeUnit.SECONDS.toMillis (5);
+
+  private static final String PROP_PROVIDER = "org.apache.wss4j.crypto.provider";
+  private static final String PROP_KEYSTORE_FILE = "org.apache.wss4j.crypto.merlin.keystore.file";
+  private static final String PROP_TRUSTSTORE_FILE = "org.apache.wss4j.crypto.merlin.truststore.file";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4CryptoRegistry.class);
+  private static final IMutableStatisticsHandlerTimer s_aStatsLoadTime = StatisticsManager.getTimerHandler (AS4CryptoRegistry.class.getName () +
+                                                                                                           "$load");
+  private static final Object s_aDefaultLock = new Object ();
+  private static AS4CryptoRegistry s_aDefaultInstance;
+
+  /**
+   * A file a {@link Crypto} was loaded from, including its state at load time.
+   */
+  private static final class WatchedFile
+  {
+    private final File m_aFile;
+    private final long m_nLastModified;
+    private final long m_nLength;
+
+    WatchedFile (@Nonnull final File aFile)
+    {
+      m_aFile = aFile;
+      m_nLastModified = aFile.lastModified ();
+      m_nLength = aFile.length ();
+    }
+
+    boolean isModified ()
+    {
+      return m_aFile.lastModified () != m_nLastModified || m_aFile.length () != m_nLength;
+    }
+  }
+
+  private static final class Entry
+  {
+    private final Crypto m_aCrypto;
+    private final ICommonsList <WatchedFile> m_aFiles;
+    private volatile long m_nLastCheck;
+
+    Entry (@Nonnull final Crypto aCrypto, @Nonnull final ICommonsList <WatchedFile> aFiles)
+    {
+      m_aCrypto = aCrypto;
+      m_aFiles = aFiles;
+      m_nLastCheck = System.currentTimeMillis ();
+    }
+
+    boolean isUpToDate (final long nCheckIntervalMS)
+    {
+      if (m_aFiles.isEmpty ())
+        return true;
+
+      final long nNow = System.currentTimeMillis ();
+      if (nNow - m_nLastCheck < nCheckIntervalMS)
+        return true;
+
+      if (m_aFiles.containsAny (WatchedFile::isModified))
+        return false;
+      m_nLastCheck = nNow;
+      return true;
+    }
+
+    void setChecked ()
+    {
+      m_nLastCheck = System.currentTimeMillis ();
+    }
+  }
+
+  private final long m_nCheckIntervalMS;
+  private final Map <ICommonsSortedMap <String, String>, Entry> m_aMap = new ConcurrentHashMap <> ();
+  private final Map <ICommonsSortedMap <String, String>, AS4RevocationChecker> m_aRevocationCheckers = new ConcurrentHashMap <> ();
+  private final AtomicLong m_aLoadCount = new AtomicLong (0);
+
+  public AS4CryptoRegistry ()
+  {
+    this (DEFAULT_CHECK_INTERVAL_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nCheckIntervalMS
+   *        The minimum duration in milliseconds between two checks whether the
+   *        key store or trust store file of a cached {@link Crypto} was
+   *        modified. Use 0 to check on every access.
+   */
+  public AS4CryptoRegistry (@Nonnegative final long nCheckIntervalMS)
+  {
+    ValueEnforcer.isGE0 (nCheckIntervalMS, "CheckIntervalMS");
+    m_nCheckIntervalMS = nCheckIntervalMS;
+  }
+
+  /**
+   * @return The minimum duration in milliseconds between two checks of the same
+   *         file. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getCheckIntervalMS ()
+  {
+    return m_nCheckIntervalMS;
+  }
+
+  /**
+   * @return The number of {@link Crypto} instances loaded so far, including
+   *         reloads. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getLoadCount ()
+  {
+    return m_aLoadCount.get ();
+  }
+
+  /**
+   * @return The number of currently cached {@link Crypto} instances. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public int getCachedCount ()
+  {
+    return m_aMap.size ();
+  }
+
+  /**
+   * Remove all cached {@link Crypto} instances, so that they are loaded again
+   * upon the next access.
+   */
+  public void clearCache ()
+  {
+    m_aMap.clear ();
+  }
+
+  @Nullable
+  private static File _getFile (@Nullable final String sPath)
+  {
+    if (StringHelper.hasNoText (sPath))
+      return null;
+
+    // Same order as in Merlin: file system first, class path second
+    final File aFile = new File (sPath);
+    if (aFile.isFile ())
+      return aFile;
+
+    final URL aURL = ClassPathResource.getAsURL (sPath);
+    if (aURL != null && "file".equals (aURL.getProtocol ()))
+      try
+      {
+        return new File (aURL.toURI ());
+      }
+      catch (final URISyntaxException ex)
+      {
+        // Fall through
+      }
+    // E.g. in a JAR file - cannot be modified
+    return null;
+  }
+
+  @Nonnull
+  private static Crypto _createCrypto (@Nonnull final ICommonsSortedMap <String, String> aKey,
+                                      @Nonnull final Properties aProps) throws Exception
+  {
+    final boolean bCachePrivateKeys = Boolean.parseBoolean (aKey.get (CryptoProperties.PROPERTY_CACHE_PRIVATE_KEYS));
+    final boolean bIndexCertificates = Boolean.parseBoolean (aKey.get (CryptoProperties.PROPERTY_INDEX_CERTIFICATES));
+    if (bCachePrivateKeys || bIndexCertificates)
+    {
+      final String sProvider = aKey.get (PROP_PROVIDER);
+      if (sProvider == null || Merlin.class.getName ().equals (sProvider))
+      {
+        // Same class loader as used by CryptoFactory
+        return new AS4CachingMerlin (aProps,
+                                     CryptoFactory.class.getClassLoader (),
+                                     null,
+                                     bCachePrivateKeys,
+                                     bIndexCertificates);
+      }
+      LOGGER.warn ("Private key caching and certificate indexing are only supported for " +
+                   Merlin.class.getName () +
+                   " but crypto provider '" +
+                   sProvider +
+                   "' is used");
+    }
+    return CryptoFactory.getInstance (aProps);
+  }
+
+  @Nonnull
+  private Entry _load (@Nonnull final ICommonsSortedMap <String, String> aKey, @Nonnull final Properties aProps)
+  {
+    final StopWatch aSW = StopWatch.createdStarted ();
+    final ICommonsList <WatchedFile> aFiles = new CommonsArrayList <> ();
+    for (final String sProp : new String [] { PROP_KEYSTORE_FILE, PROP_TRUSTSTORE_FILE })
+    {
+      // Remember the state before loading, so that concurrent modifications
+      // lead to another reload
+      final File aFile = _getFile (aKey.get (sProp));
+      if (aFile != null)
+        aFiles.add (new WatchedFile (aFile));
+    }
+
+    final Crypto aCrypto;
+    try
+    {
+      aCrypto = _createCrypto (aKey, aProps);
+    }
+    catch (final Exception ex)
+    {
+      throw new InitializationException ("Failed to init crypto properties!", ex);
+    }
+
+    m_aLoadCount.incrementAndGet ();
+    final long nMillis = aSW.stopAndGetMillis ();
+    s_aStatsLoadTime.addTime (nMillis);
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Loaded crypto for key store '" + aKey.get (PROP_KEYSTORE_FILE) + "' in " + nMillis + " ms");
+    return new Entry (aCrypto, aFiles);
+  }
+
+  @Nonnull
+  private static ICommonsSortedMap <String, String> _getKey (@Nonnull final Properties aProps)
+  {
+    final ICommonsSortedMap <String, String> ret = new CommonsTreeMap <> ();
+    for (final Map.Entry <Object, Object> aEntry : aProps.entrySet ())
+      ret.put (String.valueOf (aEntry.getKey ()), String.valueOf (aEntry.getValue ()));
+    return ret;
+  }
+
+  /**
+   * Get the shared {@link Crypto} for the provided properties. It is loaded if
+   * it is not yet cached or if the underlying key store or trust store file was
+   * modified. If reloading a modified file fails (e.g. because it is currently
+   * being written), the previously loaded {@link Crypto} is used until the next
+   * check.
+   *
+   * @param aCryptoProps
+   *        The crypto properties to use. May not be <code>null</code> and must
+   *        be read.
+   * @return The shared {@link Crypto}. Never <code>null</code>.
+   * @throws InitializationException
+   *         If the initial loading fails
+   */
+  @Nonnull
+  public Crypto getCrypto (@Nonnull final CryptoProperties aCryptoProps)
+  {
+    ValueEnforcer.notNull (aCryptoProps, "CryptoProps");
+    final Properties aProps = aCryptoProps.getAsProperties ();
+    if (aProps == null)
+      throw new InitializationException ("The crypto properties were not read");
+
+    final ICommonsSortedMap <String, String> aKey = _getKey (aProps);
+    final Entry aEntry = m_aMap.get (aKey);
+    if (aEntry != null && aEntry.isUpToDate (m_nCheckIntervalMS))
+      return aEntry.m_aCrypto;
+
+    // Load or reload - only once, even if called concurrently
+    return m_aMap.compute (aKey, (k, aOld) -> {
+      if (aOld != null && aOld != aEntry)
+      {
+        // Reloaded by another thread in the meantime
+        return aOld;
+      }
+      if (aOld == null)
+        return _load (k, aProps);
+
+      LOGGER.info ("Reloading modified key store '" + k.get (PROP_KEYSTORE_FILE) + "'");
+      try
+      {
+        return _load (k, aProps);
+      }
+      catch (final InitializationException ex)
+      {
+        // Keep the previous crypto and try again after the check interval
+        LOGGER.error ("Failed to reload modified key store '" +
+                      k.get (PROP_KEYSTORE_FILE) +
+                      "' - continuing to use the previously loaded one",
+                      ex);
+        aOld.setChecked ();
+        return aOld;
+      }
+    }).m_aCrypto;
+  }
+
+  /**
+   * Get the shared {@link AS4RevocationChecker} for the provided properties.
+   * It is created upon the first access and keeps its OCSP cache and local
+   * CRLs for the lifetime of this registry.
+   *
+   * @param aCryptoProps
+   *        The crypto properties to use. May not be <code>null</code> and must
+   *        be read.
+   * @return <code>null</code> if revocation checking is disabled.
+   * @throws InitializationException
+   *         If the properties were not read
+   * @see AS4RevocationChecker#create(CryptoProperties)
+   */
+  @Nullable
+  public AS4RevocationChecker getRevocationChecker (@Nonnull final CryptoProperties aCryptoProps)
+  {
+    ValueEnforcer.notNull (aCryptoProps, "CryptoProps");
+    if (!aCryptoProps.getRevocationCheckMode ().isEnabled ())
+      return null;
+
+    final Properties aProps = aCryptoProps.getAsProperties ();
+    if (aProps == null)
+      throw new InitializationException ("The crypto properties were not read");
+    return m_aRevocationCheckers.computeIfAbsent (_getKey (aProps),
+                                                  k -> AS4RevocationChecker.create (aCryptoProps));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("CheckIntervalMS", m_nCheckIntervalMS)
+                                       .append ("CachedCount", m_aMap.size ())
+                                       .append ("LoadCount", m_aLoadCount.get ())
+                                       .getToString ();
+  }
+
+  /**
+   * @return The default instance used by {@link AS4CryptoFactory}. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public static AS4CryptoRegistry getDefaultInstance ()
+  {
+    synchronized (s_aDefaultLock)
+    {
+      if (s_aDefaultInstance == null)
+        s_aDefaultInstance = new AS4CryptoRegistry ();
+      return s_aDefaultInstance;
+    }
+  }
+
+  /**
+   * Set a different default instance, e.g. with a different check interval.
+   *
+   * @param aRegistry
+   *        The new default instance. May be <code>null</code> to create a new
+   *        one on demand.
+   */
+  public static void setDefaultInstance (@Nullable final AS4CryptoRegistry aRegistry)
+  {
+    synchronized (s_aDefaultLock)
+    {
+      s_aDefaultInstance = aRegistry;
+    }
+  }
+}
@@ -0,0 +1,360 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.ext.WSSecurityException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A bounded cache for the results of certificate path validations. The same
+ * partner certificates arrive over and over again, so the expensive trust
+ * chain validation is only performed once per certificate within the
+ * configured time to live. Failed validations are cached as well, but usually
+ * for a shorter duration.<br>
+ * Results are cached per {@link Crypto} instance. As the
+ * {@link AS4CryptoRegistry} creates a new instance whenever the trust store
+ * file changes, a modified trust store automatically leads to new validations.
+ * The {@link Crypto} instances are only weakly referenced, so that replaced
+ * trust stores (and cached private keys) are not kept alive by this cache;
+ * their entries are removed upon the next validation. The oldest entry is
+ * evicted first if the cache is full.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4TrustValidationCache
+{
+  /** The default maximum number of cached validation results */
+  public static final int DEFAULT_MAX_SIZE = 1000;
+  /** The default duration a successful validation is cached */
+  public static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis (10);
+  /** The default duration a failed validation is cached */
+  public static final long DEFAULT_NEGATIVE_TTL_MS = TimeUnit.SECONDS.toMillis (30);
+
+  private static final IMutableStatisticsHandlerCounter s_aStatsHit = StatisticsManager.getCounterHandler (AS4TrustValidationCache.class.getName () +
+                                                                                                          "$hit");
+  private static final IMutableStatisticsHandlerCounter s_aStatsMiss = StatisticsManager.getCounterHandler (AS4TrustValidationCache.class.getName () +
+                                                                                                           "$miss");
+
+  /**
+   * The actual trust validation to be performed upon a cache miss.
+   */
+  @FunctionalInterface
+  public interface ITrustVerifier
+  {
+    /**
+     * Validate the trust chain.
+     *
+     * @throws WSSecurityException
+     *         If the certificate is not trusted
+     */
+    void verifyTrust () throws WSSecurityException;
+  }
+
+  private static final class CacheKey
+  {
+    private final WeakReference <Crypto> m_aCrypto;
+    private final int m_nCryptoHashCode;
+    private final String m_sFingerprint;
+    private final boolean m_bRevocation;
+    private final String m_sConstraints;
+
+    CacheKey (@Nonnull final Crypto aCrypto,
+              @Nonnull final String sFingerprint,
+              final boolean bRevocation,
+              @Nullable final String sConstraints)
+    {
+      m_aCrypto = new WeakReference <> (aCrypto);
+      m_nCryptoHashCode = System.identityHashCode (aCrypto);
+      m_sFingerprint = sFingerprint;
+      m_bRevocation = bRevocation;
+      m_sConstraints = sConstraints;
+    }
+
+    boolean isCryptoCollected ()
+    {
+      return m_aCrypto.get () == null;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final CacheKey rhs = (CacheKey) o;
+      // Identity of the crypto - a reloaded trust store is a new instance
+      final Crypto aCrypto = m_aCrypto.get ();
+      return aCrypto != null &&
+             aCrypto == rhs.m_aCrypto.get () &&
+             m_sFingerprint.equals (rhs.m_sFingerprint) &&
+             m_bRevocation == rhs.m_bRevocation &&
+             EqualsHelper.equals (m_sConstraints, rhs.m_sConstraints);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_nCryptoHashCode)
+                                         .append (m_sFingerprint)
+                                         .append (m_bRevocation)
+                                         .append (m_sConstraints)
+                                         .getHashCode ();
+    }
+  }
+
+  private static final class CacheValue
+  {
+    private final long m_nExpirationTime;
+    private final WSSecurityException m_aException;
+
+    CacheValue (final long nExpirationTime, @Nullable final WSSecurityException aException)
+    {
+      m_nExpirationTime = nExpirationTime;
+      m_aException = aException;
+    }
+  }
+
+  private final int m_nMaxSize;
+  private final long m_nTTLMS;
+  private final long m_nNegativeTTLMS;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final Map <CacheKey, CacheValue> m_aCache;
+  private final AtomicLong m_aHitCount = new AtomicLong (0);
+  private final AtomicLong m_aMissCount = new AtomicLong (0);
+
+  public AS4TrustValidationCache ()
+  {
+    this (DEFAULT_MAX_SIZE, DEFAULT_TTL_MS, DEFAULT_NEGATIVE_TTL_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nMaxSize
+   *        The maximum number of cached results. Must be &gt; 0.
+   * @param nTTLMS
+   *        The duration in milliseconds a successful validation is cached.
+   * @param nNegativeTTLMS
+   *        The duration in milliseconds a failed validation is cached. Use 0
+   *        to not cache failed validations.
+   */
+  public AS4TrustValidationCache (@Nonnegative final int nMaxSize,
+                                  @Nonnegative final long nTTLMS,
+                                  @Nonnegative final long nNegativeTTLMS)
+  {
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    ValueEnforcer.isGE0 (nTTLMS, "TTLMS");
+    ValueEnforcer.isGE0 (nNegativeTTLMS, "NegativeTTLMS");
+    m_nMaxSize = nMaxSize;
+    m_nTTLMS = nTTLMS;
+    m_nNegativeTTLMS = nNegativeTTLMS;
+    m_aCache = new LinkedHashMap <CacheKey, CacheValue> ()
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <CacheKey, CacheValue> aEldest)
+      {
+        return size () > m_nMaxSize;
+      }
+    };
+  }
+
+  @Nonnegative
+  public final int getMaxSize ()
+  {
+    return m_nMaxSize;
+  }
+
+  @Nonnegative
+  public final long getTTLMS ()
+  {
+    return m_nTTLMS;
+  }
+
+  @Nonnegative
+  public final long getNegativeTTLMS ()
+  {
+    return m_nNegativeTTLMS;
+  }
+
+  /**
+   * @return The number of currently cached results, including expired ones.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCacheSize ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aCache.size ());
+  }
+
+  /**
+   * @return The number of validations answered from the cache. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aHitCount.get ();
+  }
+
+  /**
+   * @return The number of validations that were performed. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getMissCount ()
+  {
+    return m_aMissCount.get ();
+  }
+
+  /**
+   * Remove all cached results, e.g. after the trust store was modified
+   * programmatically.
+   */
+  public void clearCache ()
+  {
+    m_aRWLock.writeLocked ( () -> m_aCache.clear ());
+  }
+
+  @Nonnull
+  private static String _getFingerprint (@Nonnull final X509Certificate [] aCerts) throws WSSecurityException
+  {
+    try
+    {
+      final MessageDigest aMD = MessageDigest.getInstance ("SHA-256");
+      for (final X509Certificate aCert : aCerts)
+        aMD.update (aCert.getEncoded ());
+      return StringHelper.getHexEncoded (aMD.digest ());
+    }
+    catch (final NoSuchAlgorithmException | CertificateEncodingException ex)
+    {
+      throw new WSSecurityException (WSSecurityException.ErrorCode.FAILURE, ex);
+    }
+  }
+
+  private void _put (@Nonnull final CacheKey aKey, @Nonnull final CacheValue aValue)
+  {
+    m_aRWLock.writeLocked ( () -> {
+      // Drop the results of trust stores that are no longer in use
+      m_aCache.keySet ().removeIf (CacheKey::isCryptoCollected);
+      m_aCache.put (aKey, aValue);
+    });
+  }
+
+  /**
+   * Validate the trust of the provided certificates, using a cached result if
+   * available.
+   *
+   * @param aCerts
+   *        The certificate chain to validate. May neither be <code>null</code>
+   *        nor empty.
+   * @param aCrypto
+   *        The crypto containing the trust anchors. May not be
+   *        <code>null</code>.
+   * @param bRevocation
+   *        <code>true</code> if revocation checking is enabled
+   * @param sConstraints
+   *        The string representation of all further constraints that influence
+   *        the result. May be <code>null</code>.
+   * @param aVerifier
+   *        The actual validation to be performed upon a cache miss. May not be
+   *        <code>null</code>.
+   * @throws WSSecurityException
+   *         If the certificate is not trusted - either from the verifier or,
+   *         for a cached failure, a new exception with the cached one as its
+   *         cause
+   */
+  public void verifyTrust (@Nonnull final X509Certificate [] aCerts,
+                           @Nonnull final Crypto aCrypto,
+                           final boolean bRevocation,
+                           @Nullable final String sConstraints,
+                           @Nonnull final ITrustVerifier aVerifier) throws WSSecurityException
+  {
+    ValueEnforcer.notEmptyNoNullValue (aCerts, "Certs");
+    ValueEnforcer.notNull (aCrypto, "Crypto");
+    ValueEnforcer.notNull (aVerifier, "Verifier");
+
+    final CacheKey aKey = new CacheKey (aCrypto, _getFingerprint (aCerts), bRevocation, sConstraints);
+    final CacheValue aCached = m_aRWLock.readLocked ( () -> m_aCache.get (aKey));
+    if (aCached != null && aCached.m_nExpirationTime > System.currentTimeMillis ())
+    {
+      m_aHitCount.incrementAndGet ();
+      s_aStatsHit.increment ();
+      if (aCached.m_aException != null)
+      {
+        // Don't share one exception instance between threads
+        throw new WSSecurityException (aCached.m_aException.getErrorCode (), aCached.m_aException);
+      }
+      return;
+    }
+
+    m_aMissCount.incrementAndGet ();
+    s_aStatsMiss.increment ();
+    try
+    {
+      aVerifier.verifyTrust ();
+    }
+    catch (final WSSecurityException ex)
+    {
+      if (m_nNegativeTTLMS > 0)
+      {
+        final CacheValue aValue = new CacheValue (System.currentTimeMillis () + m_nNegativeTTLMS, ex);
+        _put (aKey, aValue);
+      }
+      throw ex;
+    }
+    if (m_nTTLMS > 0)
+    {
+      final CacheValue aValue = new CacheValue (System.currentTimeMillis () + m_nTTLMS, null);
+      _put (aKey, aValue);
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MaxSize", m_nMaxSize)
+                                       .append ("TTLMS", m_nTTLMS)
+                                       .append ("NegativeTTLMS", m_nNegativeTTLMS)
+                                       .append ("HitCount", m_aHitCount.get ())
+                                       .append ("MissCount", m_aMissCount.get ())
+                                       .getToString ();
+  }
+}
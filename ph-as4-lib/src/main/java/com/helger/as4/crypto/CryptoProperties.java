@@ -25,10 +25,18 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
+import com.helger.as4.crypto.revocation.AS4CRLStore;
+import com.helger.as4.crypto.revocation.AS4RevocationChecker;
+import com.helger.as4.crypto.revocation.ERevocationCheckMode;
 import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.exception.InitializationException;
 import com.helger.commons.io.resource.IReadableResource;
 import com.helger.commons.lang.NonBlockingProperties;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.StringParser;
 import com.helger.commons.string.ToStringGenerator;
 import com.helger.security.keystore.EKeyStoreType;
 
@@ -40,6 +48,62 @@ import com.helger.security.keystore.EKeyStoreType;
 @Immutable
 public class CryptoProperties implements Serializable
 {
+  /**
+   * Optional boolean property to keep the unlocked private keys in memory. Only
+   * considered for the {@link org.apache.wss4j.common.crypto.Merlin} provider.
+   * Default is <code>false</code>.
+   *
+   * @see AS4CachingMerlin
+   */
+  public static final String PROPERTY_CACHE_PRIVATE_KEYS = "ph-as4.crypto.privatekey.cache";
+
+  /**
+   * Optional boolean property to resolve certificates from the key store and
+   * trust store via in-memory indexes instead of iterating all aliases. Only
+   * considered for the {@link org.apache.wss4j.common.crypto.Merlin} provider.
+   * Default is <code>false</code>.
+   *
+   * @see AS4CertificateIndex
+   */
+  public static final String PROPERTY_INDEX_CERTIFICATES = "ph-as4.crypto.certificate.index";
+
+  /**
+   * Optional property with the revocation check mode. Must be one of the IDs
+   * of {@link ERevocationCheckMode}. Default is <code>none</code>.
+   *
+   * @see AS4RevocationChecker
+   */
+  public static final String PROPERTY_REVOCATION_MODE = "ph-as4.revocation.mode";
+
+  /**
+   * Optional property with a comma separated list of local CRL files and
+   * directories containing CRL files.
+   *
+   * @see AS4CRLStore
+   */
+  public static final String PROPERTY_REVOCATION_CRL_PATHS = "ph-as4.revocation.crl.paths";
+
+  /**
+   * Optional property with the interval in seconds in which modified CRL files
+   * are re-read. Use 0 to disable. Default is
+   * {@value #DEFAULT_REVOCATION_CRL_REFRESH_SECONDS}.
+   */
+  public static final String PROPERTY_REVOCATION_CRL_REFRESH_SECONDS = "ph-as4.revocation.crl.refreshseconds";
+  public static final long DEFAULT_REVOCATION_CRL_REFRESH_SECONDS = 300;
+
+  /**
+   * Optional boolean property to query OCSP responders if no current local CRL
+   * is available. Default is <code>true</code>.
+   */
+  public static final String PROPERTY_REVOCATION_OCSP = "ph-as4.revocation.ocsp";
+
+  /**
+   * Optional property with the maximum age in seconds of an accepted OCSP
+   * response. Default is {@value #DEFAULT_REVOCATION_OCSP_MAX_AGE_SECONDS}.
+   */
+  public static final String PROPERTY_REVOCATION_OCSP_MAX_AGE_SECONDS = "ph-as4.revocation.ocsp.maxageseconds";
+  public static final long DEFAULT_REVOCATION_OCSP_MAX_AGE_SECONDS = 7 * 24 * 60 * 60;
+
   private NonBlockingProperties m_aProps;
 
   public CryptoProperties (@Nullable final Map <String, String> aProps)
@@ -122,6 +186,87 @@ public class CryptoProperties implements Serializable
     return _getProperty ("org.apache.wss4j.crypto.merlin.keystore.private.password");
   }
 
+  /**
+   * @return <code>true</code> if the unlocked private keys should be kept in
+   *         memory, <code>false</code> if not (default).
+   * @see #PROPERTY_CACHE_PRIVATE_KEYS
+   */
+  public boolean isCachePrivateKeys ()
+  {
+    return Boolean.parseBoolean (_getProperty (PROPERTY_CACHE_PRIVATE_KEYS));
+  }
+
+  /**
+   * @return <code>true</code> if certificates should be resolved via in-memory
+   *         indexes, <code>false</code> if not (default).
+   * @see #PROPERTY_INDEX_CERTIFICATES
+   */
+  public boolean isIndexCertificates ()
+  {
+    return Boolean.parseBoolean (_getProperty (PROPERTY_INDEX_CERTIFICATES));
+  }
+
+  /**
+   * @return The revocation check mode. Never <code>null</code>. Defaults to
+   *         {@link ERevocationCheckMode#NONE}.
+   * @see #PROPERTY_REVOCATION_MODE
+   */
+  @Nonnull
+  public ERevocationCheckMode getRevocationCheckMode ()
+  {
+    return ERevocationCheckMode.getFromIDOrDefault (StringHelper.trim (_getProperty (PROPERTY_REVOCATION_MODE)),
+                                                    ERevocationCheckMode.NONE);
+  }
+
+  /**
+   * @return The configured CRL files and directories. Never <code>null</code>
+   *         but maybe empty.
+   * @see #PROPERTY_REVOCATION_CRL_PATHS
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <String> getRevocationCRLPaths ()
+  {
+    final ICommonsList <String> ret = new CommonsArrayList <> ();
+    for (final String sPath : StringHelper.getExploded (',', _getProperty (PROPERTY_REVOCATION_CRL_PATHS)))
+      if (StringHelper.hasText (sPath.trim ()))
+        ret.add (sPath.trim ());
+    return ret;
+  }
+
+  /**
+   * @return The CRL refresh interval in seconds. Values &le; 0 disable the
+   *         refresh.
+   * @see #PROPERTY_REVOCATION_CRL_REFRESH_SECONDS
+   */
+  public long getRevocationCRLRefreshSeconds ()
+  {
+    return StringParser.parseLong (StringHelper.trim (_getProperty (PROPERTY_REVOCATION_CRL_REFRESH_SECONDS)),
+                                   DEFAULT_REVOCATION_CRL_REFRESH_SECONDS);
+  }
+
+  /**
+   * @return <code>true</code> if OCSP responders should be queried (default),
+   *         <code>false</code> if not.
+   * @see #PROPERTY_REVOCATION_OCSP
+   */
+  public boolean isRevocationOCSPEnabled ()
+  {
+    return StringParser.parseBool (StringHelper.trim (_getProperty (PROPERTY_REVOCATION_OCSP)), true);
+  }
+
+  /**
+   * @return The maximum age in seconds of an accepted OCSP response. Values
+   *         &le; 0 are replaced by the default.
+   * @see #PROPERTY_REVOCATION_OCSP_MAX_AGE_SECONDS
+   */
+  public long getRevocationOCSPMaxAgeSeconds ()
+  {
+    final long nSeconds = StringParser.parseLong (StringHelper.trim (_getProperty (PROPERTY_REVOCATION_OCSP_MAX_AGE_SECONDS)),
+                                                  DEFAULT_REVOCATION_OCSP_MAX_AGE_SECONDS);
+    return nSeconds > 0 ? nSeconds : DEFAULT_REVOCATION_OCSP_MAX_AGE_SECONDS;
+  }
+
   @Override
   public String toString ()
   {
@@ -0,0 +1,295 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.InputStream;
+import java.security.cert.CRL;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.security.auth.x500.X500Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Certificate revocation lists (CRLs) that are read from local files or
+ * directories. All regular files contained in a configured directory are read
+ * (DER or PEM encoded). The CRLs are kept in memory and indexed by issuer, so
+ * that a revocation check does not need any I/O. Modified files are re-read
+ * upon {@link #reload()}, which can also be run periodically in the background
+ * via {@link #startBackgroundRefresh(long)}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4CRLStore implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4CRLStore.class);
+
+  /**
+   * The CRLs read from a single file, including the state of the file.
+   */
+  private static final class FileEntry
+  {
+    private final long m_nLastModified;
+    private final long m_nLength;
+    private final ICommonsList <X509CRL> m_aCRLs;
+
+    FileEntry (final long nLastModified, final long nLength, @Nonnull final ICommonsList <X509CRL> aCRLs)
+    {
+      m_nLastModified = nLastModified;
+      m_nLength = nLength;
+      m_aCRLs = aCRLs;
+    }
+
+    boolean isUpToDate (@Nonnull final File aFile)
+    {
+      return aFile.lastModified () == m_nLastModified && aFile.length () == m_nLength;
+    }
+  }
+
+  private final ICommonsList <File> m_aPaths;
+  private final AtomicLong m_aLoadCount = new AtomicLong (0);
+  // Only accessed in reload
+  private final ICommonsMap <File, FileEntry> m_aFiles = new CommonsHashMap <> ();
+  // Immutable snapshot - replaced upon reload
+  private volatile ICommonsMap <X500Principal, X509CRL> m_aCRLs = new CommonsHashMap <> ();
+  private ScheduledExecutorService m_aRefresher;
+
+  /**
+   * Constructor. No CRL is read - call {@link #reload()} afterwards.
+   *
+   * @param aPaths
+   *        The CRL files and directories containing CRL files. May not be
+   *        <code>null</code>.
+   */
+  public AS4CRLStore (@Nonnull final Iterable <File> aPaths)
+  {
+    ValueEnforcer.notNullNoNullValue (aPaths, "Paths");
+    m_aPaths = new CommonsArrayList <> (aPaths);
+  }
+
+  /**
+   * @return A copy of all configured files and directories. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public ICommonsList <File> getAllPaths ()
+  {
+    return m_aPaths.getClone ();
+  }
+
+  /**
+   * @return The number of CRL files that were (re-)read so far. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getLoadCount ()
+  {
+    return m_aLoadCount.get ();
+  }
+
+  /**
+   * @return The number of issuers for which a CRL is present. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCRLCount ()
+  {
+    return m_aCRLs.size ();
+  }
+
+  @Nonnull
+  private static ICommonsList <File> _getAllFiles (@Nonnull final File aPath)
+  {
+    final ICommonsList <File> ret = new CommonsArrayList <> ();
+    if (aPath.isDirectory ())
+    {
+      final File [] aFiles = aPath.listFiles ();
+      if (aFiles != null)
+        for (final File aFile : aFiles)
+          if (aFile.isFile ())
+            ret.add (aFile);
+    }
+    else
+      if (aPath.isFile ())
+        ret.add (aPath);
+      else
+        LOGGER.warn ("CRL path '" + aPath.getAbsolutePath () + "' does not exist");
+    return ret;
+  }
+
+  @Nonnull
+  private static ICommonsList <X509CRL> _readCRLs (@Nonnull final File aFile)
+  {
+    final ICommonsList <X509CRL> ret = new CommonsArrayList <> ();
+    try (final InputStream aIS = FileHelper.getBufferedInputStream (aFile))
+    {
+      if (aIS == null)
+        throw new IllegalStateException ("Failed to open file");
+      for (final CRL aCRL : CertificateFactory.getInstance ("X.509").generateCRLs (aIS))
+        if (aCRL instanceof X509CRL)
+          ret.add ((X509CRL) aCRL);
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.warn ("Failed to read CRL file '" + aFile.getAbsolutePath () + "'", ex);
+    }
+    return ret;
+  }
+
+  /**
+   * Read all new and modified CRL files and forget the CRLs of deleted files.
+   * Unmodified files are not read again.
+   */
+  public synchronized void reload ()
+  {
+    final ICommonsMap <File, FileEntry> aOldFiles = m_aFiles.getClone ();
+    boolean bChanged = false;
+    m_aFiles.clear ();
+    for (final File aPath : m_aPaths)
+      for (final File aFile : _getAllFiles (aPath))
+      {
+        FileEntry aEntry = aOldFiles.remove (aFile);
+        if (aEntry == null || !aEntry.isUpToDate (aFile))
+        {
+          // Remember the state before reading, so that concurrent
+          // modifications lead to another read
+          final long nLastModified = aFile.lastModified ();
+          final long nLength = aFile.length ();
+          aEntry = new FileEntry (nLastModified, nLength, _readCRLs (aFile));
+          m_aLoadCount.incrementAndGet ();
+          bChanged = true;
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("Read " + aEntry.m_aCRLs.size () + " CRLs from '" + aFile.getAbsolutePath () + "'");
+        }
+        m_aFiles.put (aFile, aEntry);
+      }
+    if (aOldFiles.isNotEmpty ())
+      bChanged = true;
+
+    if (bChanged)
+    {
+      // Use the most recent CRL per issuer
+      final ICommonsMap <X500Principal, X509CRL> aCRLs = new CommonsHashMap <> ();
+      for (final FileEntry aEntry : m_aFiles.values ())
+        for (final X509CRL aCRL : aEntry.m_aCRLs)
+          aCRLs.merge (aCRL.getIssuerX500Principal (),
+                       aCRL,
+                       (aOld, aNew) -> aNew.getThisUpdate ().after (aOld.getThisUpdate ()) ? aNew : aOld);
+      m_aCRLs = aCRLs;
+    }
+  }
+
+  /**
+   * Periodically call {@link #reload()} in a background thread.
+   *
+   * @param nIntervalMS
+   *        The interval in milliseconds. Must be &gt; 0.
+   */
+  public synchronized void startBackgroundRefresh (@Nonnegative final long nIntervalMS)
+  {
+    ValueEnforcer.isGT0 (nIntervalMS, "IntervalMS");
+    if (m_aRefresher != null)
+      throw new IllegalStateException ("The background refresh is already running");
+
+    final ScheduledThreadPoolExecutor aSTPE = new ScheduledThreadPoolExecutor (1,
+                                                                                new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                                                 .setNamingPattern ("as4-crl-refresh-%d")
+                                                                                                                 .build ());
+    aSTPE.scheduleWithFixedDelay ( () -> {
+      try
+      {
+        reload ();
+      }
+      catch (final RuntimeException ex)
+      {
+        // Keep the schedule alive
+        LOGGER.error ("Failed to reload CRLs", ex);
+      }
+    }, nIntervalMS, nIntervalMS, TimeUnit.MILLISECONDS);
+    m_aRefresher = aSTPE;
+  }
+
+  /**
+   * Stop the background refresh, if it is running.
+   */
+  public synchronized void close ()
+  {
+    if (m_aRefresher != null)
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aRefresher);
+      m_aRefresher = null;
+    }
+  }
+
+  /**
+   * Get the most recent CRL of the provided issuer.
+   *
+   * @param aIssuer
+   *        The issuer to search. May be <code>null</code>.
+   * @return <code>null</code> if no CRL of this issuer is present.
+   */
+  @Nullable
+  public X509CRL getCRL (@Nullable final X500Principal aIssuer)
+  {
+    return aIssuer == null ? null : m_aCRLs.get (aIssuer);
+  }
+
+  /**
+   * @param aCRL
+   *        The CRL to check. May not be <code>null</code>.
+   * @param aNow
+   *        The current date. May not be <code>null</code>.
+   * @return <code>true</code> if the CRL has no next update date or if the
+   *         next update date is in the future.
+   */
+  public static boolean isCurrent (@Nonnull final X509CRL aCRL, @Nonnull final Date aNow)
+  {
+    final Date aNextUpdate = aCRL.getNextUpdate ();
+    return aNextUpdate == null || aNextUpdate.after (aNow);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Paths", m_aPaths)
+                                       .append ("CRLCount", m_aCRLs.size ())
+                                       .append ("LoadCount", m_aLoadCount.get ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import com.helger.as4.client.AS4HttpClientPool;
+import com.helger.commons.ValueEnforcer;
+
+/**
+ * {@link IOCSPTransport} that POSTs the request via HTTP, using the shared
+ * connection pool of {@link AS4HttpClientPool}. Each request uses its own short
+ * timeouts, so that a hanging responder neither blocks message processing nor
+ * the background refresh for long.
+ *
+ * @author Philip Helger
+ */
+public class AS4HttpOCSPTransport implements IOCSPTransport
+{
+  public static final String MIME_TYPE_OCSP_REQUEST = "application/ocsp-request";
+  public static final String MIME_TYPE_OCSP_RESPONSE = "application/ocsp-response";
+  /** The default timeout to connect and to get a pooled connection */
+  public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5_000;
+  /** The default timeout waiting for data */
+  public static final int DEFAULT_SOCKET_TIMEOUT_MS = 10_000;
+
+  private final RequestConfig m_aRequestConfig;
+
+  public AS4HttpOCSPTransport ()
+  {
+    this (DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_SOCKET_TIMEOUT_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nConnectTimeoutMS
+   *        The timeout in milliseconds to connect to the responder and to get a
+   *        connection from the pool. Must be &gt; 0.
+   * @param nSocketTimeoutMS
+   *        The timeout in milliseconds waiting for data from the responder.
+   *        Must be &gt; 0.
+   */
+  public AS4HttpOCSPTransport (@Nonnegative final int nConnectTimeoutMS, @Nonnegative final int nSocketTimeoutMS)
+  {
+    ValueEnforcer.isGT0 (nConnectTimeoutMS, "ConnectTimeoutMS");
+    ValueEnforcer.isGT0 (nSocketTimeoutMS, "SocketTimeoutMS");
+    m_aRequestConfig = RequestConfig.custom ()
+                                    .setConnectionRequestTimeout (nConnectTimeoutMS)
+                                    .setConnectTimeout (nConnectTimeoutMS)
+                                    .setSocketTimeout (nSocketTimeoutMS)
+                                    .build ();
+  }
+
+  /**
+   * @return The request configuration used for all OCSP requests. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final RequestConfig getRequestConfig ()
+  {
+    return m_aRequestConfig;
+  }
+
+  @Nonnull
+  public byte [] sendOCSPRequest (@Nonnull final String sURL, @Nonnull final byte [] aRequest) throws IOException
+  {
+    final HttpPost aPost = new HttpPost (sURL);
+    aPost.setConfig (m_aRequestConfig);
+    aPost.setHeader ("Accept", MIME_TYPE_OCSP_RESPONSE);
+    aPost.setEntity (new ByteArrayEntity (aRequest, ContentType.create (MIME_TYPE_OCSP_REQUEST)));
+    try (final CloseableHttpResponse aResponse = AS4HttpClientPool.getDefaultInstance ()
+                                                                  .getHttpClient ()
+                                                                  .execute (aPost))
+    {
+      final int nStatusCode = aResponse.getStatusLine ().getStatusCode ();
+      final HttpEntity aEntity = aResponse.getEntity ();
+      if (nStatusCode != 200 || aEntity == null)
+      {
+        EntityUtils.consumeQuietly (aEntity);
+        throw new IOException ("OCSP responder '" + sURL + "' returned HTTP status " + nStatusCode);
+      }
+      return EntityUtils.toByteArray (aEntity);
+    }
+  }
+}
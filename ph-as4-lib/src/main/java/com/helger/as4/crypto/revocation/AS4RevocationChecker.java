@@ -0,0 +1,736 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.crypto.CryptoType;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.crypto.CryptoProperties;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Checks the revocation status of certificates with as little latency as
+ * possible:
+ * <ol>
+ * <li>A current CRL from the optional {@link AS4CRLStore} answers the request
+ * without any I/O.</li>
+ * <li>Otherwise OCSP is used, if enabled. OCSP responses are cached per issuer
+ * and serial number until their next update date (or for a default duration if
+ * the responder does not provide one). The cache is bounded; the oldest entry
+ * is evicted first if it is full.</li>
+ * </ol>
+ * OCSP responses are only accepted if they are neither outdated nor older than
+ * a configurable maximum age, and if a delegated responder certificate is
+ * currently valid.
+ * In {@link ERevocationCheckMode#SOFT_FAIL} mode, an outdated cached result is
+ * returned immediately and refreshed in the background, so that a slow or
+ * unavailable responder never blocks message processing once a result is
+ * known. In {@link ERevocationCheckMode#HARD_FAIL} mode outdated results are
+ * never used.<br>
+ * Self-signed certificates are trust anchors and are not checked.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4RevocationChecker implements Closeable
+{
+  /**
+   * The default duration an OCSP response without next update date is cached
+   */
+  public static final long DEFAULT_OCSP_TTL_MS = TimeUnit.MINUTES.toMillis (5);
+  /**
+   * The default maximum age of the "this update" date of an accepted OCSP
+   * response
+   */
+  public static final long DEFAULT_OCSP_MAX_AGE_MS = TimeUnit.DAYS.toMillis (7);
+  /** The default maximum number of cached OCSP responses */
+  public static final int DEFAULT_OCSP_CACHE_MAX_SIZE = 10_000;
+  /** The tolerated clock difference to the OCSP responder */
+  public static final long OCSP_CLOCK_SKEW_MS = TimeUnit.MINUTES.toMillis (1);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4RevocationChecker.class);
+  private static final String STATS_PREFIX = AS4RevocationChecker.class.getName ();
+  private static final IMutableStatisticsHandlerCounter s_aStatsCRL = StatisticsManager.getCounterHandler (STATS_PREFIX +
+                                                                                                          "$crl");
+  private static final IMutableStatisticsHandlerCounter s_aStatsOCSPHit = StatisticsManager.getCounterHandler (STATS_PREFIX +
+                                                                                                              "$ocsp.hit");
+  private static final IMutableStatisticsHandlerCounter s_aStatsOCSPStale = StatisticsManager.getCounterHandler (STATS_PREFIX +
+                                                                                                                "$ocsp.stale");
+  private static final IMutableStatisticsHandlerCounter s_aStatsOCSPFetch = StatisticsManager.getCounterHandler (STATS_PREFIX +
+                                                                                                                "$ocsp.fetch");
+  private static final IMutableStatisticsHandlerCounter s_aStatsOCSPError = StatisticsManager.getCounterHandler (STATS_PREFIX +
+                                                                                                                "$ocsp.error");
+
+  private static final class OCSPEntry
+  {
+    private final ERevocationStatus m_eStatus;
+    private final long m_nExpirationTime;
+
+    OCSPEntry (@Nonnull final ERevocationStatus eStatus, final long nExpirationTime)
+    {
+      m_eStatus = eStatus;
+      m_nExpirationTime = nExpirationTime;
+    }
+
+    boolean isCurrent (final long nNow)
+    {
+      return m_nExpirationTime > nNow;
+    }
+  }
+
+  private final ERevocationCheckMode m_eMode;
+  private final AS4CRLStore m_aCRLStore;
+  private final IOCSPTransport m_aOCSPTransport;
+  private final long m_nDefaultOCSPTTLMS;
+  private final long m_nOCSPMaxAgeMS;
+  private final int m_nOCSPCacheMaxSize;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final Map <String, OCSPEntry> m_aOCSPCache;
+  // Keys of the OCSP requests currently refreshed in the background
+  private final Set <String> m_aPendingRefreshs = ConcurrentHashMap.newKeySet ();
+  private final ExecutorService m_aRefreshExecutor;
+  private final AtomicLong m_aOCSPRequestCount = new AtomicLong (0);
+
+  /**
+   * Constructor using {@link #DEFAULT_OCSP_MAX_AGE_MS} and
+   * {@link #DEFAULT_OCSP_CACHE_MAX_SIZE}
+   *
+   * @param eMode
+   *        The check mode. May not be <code>null</code>.
+   * @param aCRLStore
+   *        The local CRLs to use. May be <code>null</code>.
+   * @param aOCSPTransport
+   *        The transport to send OCSP requests. May be <code>null</code> to
+   *        disable OCSP.
+   * @param nDefaultOCSPTTLMS
+   *        The duration in milliseconds an OCSP response without next update
+   *        date is cached. Must be &ge; 0.
+   */
+  public AS4RevocationChecker (@Nonnull final ERevocationCheckMode eMode,
+                               @Nullable final AS4CRLStore aCRLStore,
+                               @Nullable final IOCSPTransport aOCSPTransport,
+                               @Nonnegative final long nDefaultOCSPTTLMS)
+  {
+    this (eMode, aCRLStore, aOCSPTransport, nDefaultOCSPTTLMS, DEFAULT_OCSP_MAX_AGE_MS, DEFAULT_OCSP_CACHE_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param eMode
+   *        The check mode. May not be <code>null</code>.
+   * @param aCRLStore
+   *        The local CRLs to use. May be <code>null</code>.
+   * @param aOCSPTransport
+   *        The transport to send OCSP requests. May be <code>null</code> to
+   *        disable OCSP.
+   * @param nDefaultOCSPTTLMS
+   *        The duration in milliseconds an OCSP response without next update
+   *        date is cached. Must be &ge; 0.
+   * @param nOCSPMaxAgeMS
+   *        The maximum age in milliseconds of the "this update" date of an
+   *        accepted OCSP response. Must be &gt; 0.
+   * @param nOCSPCacheMaxSize
+   *        The maximum number of cached OCSP responses. Must be &gt; 0.
+   */
+  public AS4RevocationChecker (@Nonnull final ERevocationCheckMode eMode,
+                               @Nullable final AS4CRLStore aCRLStore,
+                               @Nullable final IOCSPTransport aOCSPTransport,
+                               @Nonnegative final long nDefaultOCSPTTLMS,
+                               @Nonnegative final long nOCSPMaxAgeMS,
+                               @Nonnegative final int nOCSPCacheMaxSize)
+  {
+    ValueEnforcer.notNull (eMode, "Mode");
+    ValueEnforcer.isGE0 (nDefaultOCSPTTLMS, "DefaultOCSPTTLMS");
+    ValueEnforcer.isGT0 (nOCSPMaxAgeMS, "OCSPMaxAgeMS");
+    ValueEnforcer.isGT0 (nOCSPCacheMaxSize, "OCSPCacheMaxSize");
+    m_eMode = eMode;
+    m_aCRLStore = aCRLStore;
+    m_aOCSPTransport = aOCSPTransport;
+    m_nDefaultOCSPTTLMS = nDefaultOCSPTTLMS;
+    m_nOCSPMaxAgeMS = nOCSPMaxAgeMS;
+    m_nOCSPCacheMaxSize = nOCSPCacheMaxSize;
+    m_aOCSPCache = new LinkedHashMap <String, OCSPEntry> ()
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, OCSPEntry> aEldest)
+      {
+        return size () > m_nOCSPCacheMaxSize;
+      }
+    };
+    final ThreadPoolExecutor aTPE = new ThreadPoolExecutor (1,
+                                                            1,
+                                                            60,
+                                                            TimeUnit.SECONDS,
+                                                            new LinkedBlockingQueue <> (),
+                                                            new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                             .setNamingPattern ("as4-ocsp-refresh-%d")
+                                                                                             .build ());
+    aTPE.allowCoreThreadTimeOut (true);
+    m_aRefreshExecutor = aTPE;
+  }
+
+  /**
+   * Create a new revocation checker from the crypto properties.
+   *
+   * @param aCryptoProps
+   *        The properties to use. May not be <code>null</code>.
+   * @return <code>null</code> if revocation checking is disabled.
+   */
+  @Nullable
+  public static AS4RevocationChecker create (@Nonnull final CryptoProperties aCryptoProps)
+  {
+    ValueEnforcer.notNull (aCryptoProps, "CryptoProps");
+    final ERevocationCheckMode eMode = aCryptoProps.getRevocationCheckMode ();
+    if (!eMode.isEnabled ())
+      return null;
+
+    AS4CRLStore aCRLStore = null;
+    final ICommonsList <String> aCRLPaths = aCryptoProps.getRevocationCRLPaths ();
+    if (aCRLPaths.isNotEmpty ())
+    {
+      aCRLStore = new AS4CRLStore (aCRLPaths.getAllMapped (File::new));
+      aCRLStore.reload ();
+      final long nRefreshSeconds = aCryptoProps.getRevocationCRLRefreshSeconds ();
+      if (nRefreshSeconds > 0)
+        aCRLStore.startBackgroundRefresh (TimeUnit.SECONDS.toMillis (nRefreshSeconds));
+    }
+    final IOCSPTransport aOCSPTransport = aCryptoProps.isRevocationOCSPEnabled () ? new AS4HttpOCSPTransport () : null;
+    return new AS4RevocationChecker (eMode,
+                                     aCRLStore,
+                                     aOCSPTransport,
+                                     DEFAULT_OCSP_TTL_MS,
+                                     TimeUnit.SECONDS.toMillis (aCryptoProps.getRevocationOCSPMaxAgeSeconds ()),
+                                     DEFAULT_OCSP_CACHE_MAX_SIZE);
+  }
+
+  @Nonnull
+  public final ERevocationCheckMode getMode ()
+  {
+    return m_eMode;
+  }
+
+  @Nullable
+  public final AS4CRLStore getCRLStore ()
+  {
+    return m_aCRLStore;
+  }
+
+  public final boolean isOCSPEnabled ()
+  {
+    return m_aOCSPTransport != null;
+  }
+
+  /**
+   * @return The maximum age in milliseconds of the "this update" date of an
+   *         accepted OCSP response. Always &gt; 0.
+   */
+  @Nonnegative
+  public final long getOCSPMaxAgeMS ()
+  {
+    return m_nOCSPMaxAgeMS;
+  }
+
+  /**
+   * @return The maximum number of cached OCSP responses. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getOCSPCacheMaxSize ()
+  {
+    return m_nOCSPCacheMaxSize;
+  }
+
+  /**
+   * @return The number of OCSP requests sent, including failed ones. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public long getOCSPRequestCount ()
+  {
+    return m_aOCSPRequestCount.get ();
+  }
+
+  /**
+   * @return The number of cached OCSP results, including outdated ones. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public int getOCSPCacheSize ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aOCSPCache.size ());
+  }
+
+  /**
+   * Remove all cached OCSP results.
+   */
+  public void clearCache ()
+  {
+    m_aRWLock.writeLocked ( () -> m_aOCSPCache.clear ());
+  }
+
+  /**
+   * Stop the background threads, including the CRL refresh.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aRefreshExecutor);
+    if (m_aCRLStore != null)
+      m_aCRLStore.close ();
+  }
+
+  /**
+   * @param eStatus
+   *        The status to check. May not be <code>null</code>.
+   * @return <code>true</code> if a certificate with the provided status may be
+   *         used in the current mode.
+   */
+  public boolean isAccepted (@Nonnull final ERevocationStatus eStatus)
+  {
+    switch (eStatus)
+    {
+      case GOOD:
+        return true;
+      case UNKNOWN:
+        return m_eMode != ERevocationCheckMode.HARD_FAIL;
+      default:
+        return false;
+    }
+  }
+
+  @Nonnull
+  private static String _getCacheKey (@Nonnull final X509Certificate aCert)
+  {
+    return aCert.getIssuerX500Principal ().getName (X500Principal.CANONICAL) +
+           '#' +
+           aCert.getSerialNumber ().toString (16);
+  }
+
+  private static boolean _isSelfSigned (@Nonnull final X509Certificate aCert)
+  {
+    if (!aCert.getSubjectX500Principal ().equals (aCert.getIssuerX500Principal ()))
+      return false;
+    return _isIssuedBy (aCert, aCert);
+  }
+
+  private static boolean _isIssuedBy (@Nonnull final X509Certificate aCert, @Nonnull final X509Certificate aIssuer)
+  {
+    try
+    {
+      aCert.verify (aIssuer.getPublicKey ());
+      return true;
+    }
+    catch (final Exception ex)
+    {
+      return false;
+    }
+  }
+
+  /**
+   * Determine the OCSP responder URL from the authority information access
+   * extension.
+   *
+   * @param aCert
+   *        The certificate to use. May not be <code>null</code>.
+   * @return <code>null</code> if the certificate contains no OCSP URL.
+   */
+  @Nullable
+  public static String getOCSPResponderURL (@Nonnull final X509Certificate aCert)
+  {
+    final byte [] aExtValue = aCert.getExtensionValue (Extension.authorityInfoAccess.getId ());
+    if (aExtValue == null)
+      return null;
+    try
+    {
+      final AuthorityInformationAccess aAIA = AuthorityInformationAccess.getInstance (JcaX509ExtensionUtils.parseExtensionValue (aExtValue));
+      for (final AccessDescription aAD : aAIA.getAccessDescriptions ())
+      {
+        final GeneralName aLocation = aAD.getAccessLocation ();
+        if (AccessDescription.id_ad_ocsp.equals (aAD.getAccessMethod ()) &&
+            aLocation.getTagNo () == GeneralName.uniformResourceIdentifier)
+          return DERIA5String.getInstance (aLocation.getName ()).getString ();
+      }
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.warn ("Failed to parse the authority information access of '" + aCert.getSubjectX500Principal () + "'",
+                   ex);
+    }
+    return null;
+  }
+
+  /**
+   * Get the revocation status of a certificate, resolving the issuer from the
+   * provided crypto.
+   *
+   * @param aCert
+   *        The certificate to check. May not be <code>null</code>.
+   * @param aCrypto
+   *        The crypto containing the issuer certificate. May not be
+   *        <code>null</code>.
+   * @return The status and never <code>null</code>. Self-signed certificates
+   *         are always {@link ERevocationStatus#GOOD}, certificates without
+   *         known issuer are {@link ERevocationStatus#UNKNOWN}.
+   */
+  @Nonnull
+  public ERevocationStatus getRevocationStatus (@Nonnull final X509Certificate aCert, @Nonnull final Crypto aCrypto)
+  {
+    ValueEnforcer.notNull (aCert, "Cert");
+    ValueEnforcer.notNull (aCrypto, "Crypto");
+
+    if (_isSelfSigned (aCert))
+      return ERevocationStatus.GOOD;
+
+    final CryptoType aCT = new CryptoType (CryptoType.TYPE.SUBJECT_DN);
+    aCT.setSubjectDN (aCert.getIssuerX500Principal ().getName ());
+    X509Certificate [] aCandidates;
+    try
+    {
+      aCandidates = aCrypto.getX509Certificates (aCT);
+    }
+    catch (final WSSecurityException ex)
+    {
+      LOGGER.warn ("Failed to resolve the issuer of '" + aCert.getSubjectX500Principal () + "'", ex);
+      aCandidates = null;
+    }
+    if (aCandidates != null)
+      for (final X509Certificate aCandidate : aCandidates)
+        if (_isIssuedBy (aCert, aCandidate))
+          return getRevocationStatus (aCert, aCandidate);
+
+    LOGGER.warn ("The issuer of '" + aCert.getSubjectX500Principal () + "' is unknown - revocation cannot be checked");
+    return ERevocationStatus.UNKNOWN;
+  }
+
+  /**
+   * Get the revocation status of a certificate.
+   *
+   * @param aCert
+   *        The certificate to check. May not be <code>null</code>.
+   * @param aIssuer
+   *        The issuer of the certificate. May not be <code>null</code>.
+   * @return The status and never <code>null</code>.
+   */
+  @Nonnull
+  public ERevocationStatus getRevocationStatus (@Nonnull final X509Certificate aCert,
+                                                @Nonnull final X509Certificate aIssuer)
+  {
+    ValueEnforcer.notNull (aCert, "Cert");
+    ValueEnforcer.notNull (aIssuer, "Issuer");
+
+    // The best outdated status - only used in soft-fail mode
+    ERevocationStatus eStaleStatus = null;
+
+    // Local CRLs first - no I/O at all
+    if (m_aCRLStore != null)
+    {
+      final X509CRL aCRL = m_aCRLStore.getCRL (aCert.getIssuerX500Principal ());
+      if (aCRL != null)
+      {
+        if (_isCRLSignatureValid (aCRL, aIssuer))
+        {
+          final ERevocationStatus eStatus = aCRL.isRevoked (aCert) ? ERevocationStatus.REVOKED
+                                                                   : ERevocationStatus.GOOD;
+          if (AS4CRLStore.isCurrent (aCRL, new Date ()))
+          {
+            s_aStatsCRL.increment ();
+            return eStatus;
+          }
+          eStaleStatus = eStatus;
+        }
+        else
+          LOGGER.warn ("The signature of the CRL of '" + aCRL.getIssuerX500Principal () + "' is invalid");
+      }
+    }
+
+    // OCSP second
+    if (m_aOCSPTransport != null)
+    {
+      final String sURL = getOCSPResponderURL (aCert);
+      if (sURL != null)
+      {
+        final String sKey = _getCacheKey (aCert);
+        final OCSPEntry aCached = m_aRWLock.readLocked ( () -> m_aOCSPCache.get (sKey));
+        if (aCached != null)
+        {
+          if (aCached.isCurrent (System.currentTimeMillis ()))
+          {
+            s_aStatsOCSPHit.increment ();
+            return aCached.m_eStatus;
+          }
+          if (m_eMode == ERevocationCheckMode.SOFT_FAIL)
+          {
+            // Don't wait for the responder
+            s_aStatsOCSPStale.increment ();
+            _refreshAsync (sKey, sURL, aCert, aIssuer);
+            return aCached.m_eStatus;
+          }
+        }
+
+        final OCSPEntry aEntry = _queryOCSP (sKey, sURL, aCert, aIssuer);
+        if (aEntry != null)
+          return aEntry.m_eStatus;
+        if (aCached != null && eStaleStatus == null)
+          eStaleStatus = aCached.m_eStatus;
+      }
+    }
+
+    if (eStaleStatus != null && m_eMode == ERevocationCheckMode.SOFT_FAIL)
+      return eStaleStatus;
+    return ERevocationStatus.UNKNOWN;
+  }
+
+  private static boolean _isCRLSignatureValid (@Nonnull final X509CRL aCRL, @Nonnull final X509Certificate aIssuer)
+  {
+    try
+    {
+      aCRL.verify (aIssuer.getPublicKey ());
+      return true;
+    }
+    catch (final Exception ex)
+    {
+      return false;
+    }
+  }
+
+  private void _refreshAsync (@Nonnull final String sKey,
+                              @Nonnull final String sURL,
+                              @Nonnull final X509Certificate aCert,
+                              @Nonnull final X509Certificate aIssuer)
+  {
+    // Only one refresh per certificate at a time
+    if (m_aPendingRefreshs.add (sKey))
+      try
+      {
+        m_aRefreshExecutor.execute ( () -> {
+          try
+          {
+            _queryOCSP (sKey, sURL, aCert, aIssuer);
+          }
+          finally
+          {
+            m_aPendingRefreshs.remove (sKey);
+          }
+        });
+      }
+      catch (final RuntimeException ex)
+      {
+        // Executor was shut down
+        m_aPendingRefreshs.remove (sKey);
+      }
+  }
+
+  /**
+   * Send an OCSP request and cache the result.
+   *
+   * @return <code>null</code> if no valid response was received.
+   */
+  @Nullable
+  private OCSPEntry _queryOCSP (@Nonnull final String sKey,
+                                @Nonnull final String sURL,
+                                @Nonnull final X509Certificate aCert,
+                                @Nonnull final X509Certificate aIssuer)
+  {
+    m_aOCSPRequestCount.incrementAndGet ();
+    s_aStatsOCSPFetch.increment ();
+    try
+    {
+      final CertificateID aCertID = new CertificateID (new JcaDigestCalculatorProviderBuilder ().build ()
+                                                                                                .get (CertificateID.HASH_SHA1),
+                                                       new JcaX509CertificateHolder (aIssuer),
+                                                       aCert.getSerialNumber ());
+      final OCSPReq aRequest = new OCSPReqBuilder ().addRequest (aCertID).build ();
+      final OCSPResp aResponse = new OCSPResp (m_aOCSPTransport.sendOCSPRequest (sURL, aRequest.getEncoded ()));
+      if (aResponse.getStatus () != OCSPResp.SUCCESSFUL)
+        throw new IllegalStateException ("OCSP responder returned status " + aResponse.getStatus ());
+
+      final BasicOCSPResp aBasicResponse = (BasicOCSPResp) aResponse.getResponseObject ();
+      if (aBasicResponse == null || !aBasicResponse.isSignatureValid (_getResponderVerifier (aBasicResponse, aIssuer)))
+        throw new IllegalStateException ("The OCSP response signature is invalid");
+
+      for (final SingleResp aSingle : aBasicResponse.getResponses ())
+        if (aCertID.equals (aSingle.getCertID ()))
+        {
+          final CertificateStatus aStatus = aSingle.getCertStatus ();
+          final ERevocationStatus eStatus;
+          if (aStatus == CertificateStatus.GOOD)
+            eStatus = ERevocationStatus.GOOD;
+          else
+            if (aStatus instanceof RevokedStatus)
+              eStatus = ERevocationStatus.REVOKED;
+            else
+              eStatus = ERevocationStatus.UNKNOWN;
+
+          // Reject outdated or replayed responses
+          final long nNow = System.currentTimeMillis ();
+          final Date aThisUpdate = aSingle.getThisUpdate ();
+          if (aThisUpdate.getTime () > nNow + OCSP_CLOCK_SKEW_MS)
+            throw new IllegalStateException ("The OCSP response is from the future (" + aThisUpdate + ")");
+          if (aThisUpdate.getTime () < nNow - m_nOCSPMaxAgeMS)
+            throw new IllegalStateException ("The OCSP response is too old (" + aThisUpdate + ")");
+          final Date aNextUpdate = aSingle.getNextUpdate ();
+          if (aNextUpdate != null && aNextUpdate.getTime () < nNow)
+            throw new IllegalStateException ("The OCSP response is outdated (" + aNextUpdate + ")");
+
+          final long nExpirationTime = aNextUpdate != null ? aNextUpdate.getTime () : nNow + m_nDefaultOCSPTTLMS;
+          final OCSPEntry aEntry = new OCSPEntry (eStatus, nExpirationTime);
+          m_aRWLock.writeLocked ( () -> m_aOCSPCache.put (sKey, aEntry));
+          return aEntry;
+        }
+      throw new IllegalStateException ("The OCSP response does not contain the requested certificate");
+    }
+    catch (final Exception ex)
+    {
+      s_aStatsOCSPError.increment ();
+      LOGGER.warn ("Failed to get the OCSP status of '" +
+                   aCert.getSubjectX500Principal () +
+                   "' from '" +
+                   sURL +
+                   "': " +
+                   ex.getMessage ());
+      return null;
+    }
+  }
+
+  @Nonnull
+  private static ContentVerifierProvider _getResponderVerifier (@Nonnull final BasicOCSPResp aResponse,
+                                                                @Nonnull final X509Certificate aIssuer) throws Exception
+  {
+    final JcaContentVerifierProviderBuilder aBuilder = new JcaContentVerifierProviderBuilder ();
+    final X509CertificateHolder [] aCerts = aResponse.getCerts ();
+    if (aCerts != null && aCerts.length > 0)
+    {
+      final X509CertificateHolder aResponderCert = aCerts[0];
+      if (!aResponderCert.equals (new JcaX509CertificateHolder (aIssuer)))
+      {
+        // Delegated responder - must be issued by the CA for OCSP signing
+        if (!aResponderCert.isSignatureValid (aBuilder.build (aIssuer.getPublicKey ())))
+          throw new IllegalStateException ("The OCSP responder certificate is not issued by the CA");
+        if (!aResponderCert.isValidOn (new Date ()))
+          throw new IllegalStateException ("The OCSP responder certificate is not valid (" +
+                                           aResponderCert.getNotBefore () +
+                                           " - " +
+                                           aResponderCert.getNotAfter () +
+                                           ")");
+        final ExtendedKeyUsage aEKU = ExtendedKeyUsage.fromExtensions (aResponderCert.getExtensions ());
+        if (aEKU == null || !aEKU.hasKeyPurposeId (KeyPurposeId.id_kp_OCSPSigning))
+          throw new IllegalStateException ("The OCSP responder certificate is not authorized for OCSP signing");
+        return aBuilder.build (aResponderCert);
+      }
+    }
+    return aBuilder.build (aIssuer.getPublicKey ());
+  }
+
+  /**
+   * Check all provided certificates.
+   *
+   * @param aCerts
+   *        The certificates to check. May not be <code>null</code>.
+   * @param aCrypto
+   *        The crypto containing the issuer certificates. May not be
+   *        <code>null</code>.
+   * @return The certificates that are not accepted in the current mode. Never
+   *         <code>null</code> but maybe empty.
+   */
+  @Nonnull
+  public ICommonsList <X509Certificate> getAllRejectedCertificates (@Nonnull final Iterable <X509Certificate> aCerts,
+                                                                    @Nonnull final Crypto aCrypto)
+  {
+    ValueEnforcer.notNull (aCerts, "Certs");
+    final ICommonsList <X509Certificate> ret = new CommonsArrayList <> ();
+    for (final X509Certificate aCert : aCerts)
+    {
+      final ERevocationStatus eStatus = getRevocationStatus (aCert, aCrypto);
+      if (!isAccepted (eStatus))
+      {
+        LOGGER.info ("Rejecting certificate '" +
+                     aCert.getSubjectX500Principal () +
+                     "' with serial " +
+                     aCert.getSerialNumber () +
+                     " because of revocation status " +
+                     eStatus);
+        ret.add (aCert);
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Mode", m_eMode)
+                                       .append ("CRLStore", m_aCRLStore)
+                                       .append ("OCSPEnabled", isOCSPEnabled ())
+                                       .append ("DefaultOCSPTTLMS", m_nDefaultOCSPTTLMS)
+                                       .append ("OCSPMaxAgeMS", m_nOCSPMaxAgeMS)
+                                       .append ("OCSPCacheMaxSize", m_nOCSPCacheMaxSize)
+                                       .append ("OCSPCacheSize", getOCSPCacheSize ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how certificate revocation is checked.
+ *
+ * @author Philip Helger
+ */
+public enum ERevocationCheckMode implements IHasID <String>
+{
+  /** No revocation checking at all */
+  NONE ("none"),
+  /**
+   * Only certificates that are known to be revoked are rejected. If no current
+   * revocation information is available, a stale cached result is used and
+   * refreshed in the background; if there is no result at all, the certificate
+   * is accepted.
+   */
+  SOFT_FAIL ("softfail"),
+  /**
+   * Certificates are only accepted if current revocation information proves
+   * that they are not revoked.
+   */
+  HARD_FAIL ("hardfail");
+
+  private final String m_sID;
+
+  private ERevocationCheckMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  public boolean isEnabled ()
+  {
+    return this != NONE;
+  }
+
+  @Nullable
+  public static ERevocationCheckMode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (ERevocationCheckMode.class, sID);
+  }
+
+  @Nullable
+  public static ERevocationCheckMode getFromIDOrDefault (@Nullable final String sID,
+                                                         @Nullable final ERevocationCheckMode eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (ERevocationCheckMode.class, sID, eDefault);
+  }
+}
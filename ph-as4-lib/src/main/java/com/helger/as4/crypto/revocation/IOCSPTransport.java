@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Sends an encoded OCSP request to an OCSP responder. The default
+ * implementation is {@link AS4HttpOCSPTransport}. Tests may use an in-process
+ * responder instead.
+ *
+ * @author Philip Helger
+ */
+@FunctionalInterface
+public interface IOCSPTransport
+{
+  /**
+   * Send an OCSP request and return the response.
+   *
+   * @param sURL
+   *        The OCSP responder URL from the certificate. Never <code>null</code>.
+   * @param aRequest
+   *        The DER encoded OCSP request. Never <code>null</code>.
+   * @return The DER encoded OCSP response. May not be <code>null</code>.
+   * @throws IOException
+   *         In case the responder cannot be reached
+   */
+  @Nonnull
+  byte [] sendOCSPRequest (@Nonnull String sURL, @Nonnull byte [] aRequest) throws IOException;
+}
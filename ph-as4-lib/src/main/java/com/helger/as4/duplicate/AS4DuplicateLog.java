@@ -0,0 +1,579 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Compact append-only binary log for duplicate items. Appends are collected by
+ * a single writer thread and written and forced to disk in groups, so that
+ * concurrent callers share one disk sync ("group commit"). A caller of
+ * {@link #append(IAS4DuplicateItem)} returns only after its record is on disk.
+ * <br>
+ * File layout: a 4 byte magic number and a 1 byte version, followed by records
+ * of the form <code>int length, long creation millis, UTF message ID, boolean
+ * has profile ID, [UTF profile ID], boolean has PMode ID, [UTF PMode ID]</code>.
+ * An incomplete trailing record (e.g. after a crash) is ignored and truncated
+ * on startup.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4DuplicateLog implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DuplicateLog.class);
+
+  private static final int MAGIC = 0x41533444;
+  private static final byte VERSION = 1;
+  private static final int HEADER_SIZE = 5;
+  /** The maximum number of requests handled in one group commit */
+  private static final int MAX_BATCH_SIZE = 1024;
+  /** The maximum time a caller waits for its request to be written */
+  public static final long DEFAULT_AWAIT_TIMEOUT_MS = 30_000;
+
+  private static final class Request
+  {
+    // Either record or action is set
+    private final byte [] m_aRecord;
+    private final Supplier <? extends Iterable <? extends IAS4DuplicateItem>> m_aRewriteSupplier;
+    private final CompletableFuture <Void> m_aDone = new CompletableFuture <> ();
+
+    Request (@Nullable final byte [] aRecord,
+             @Nullable final Supplier <? extends Iterable <? extends IAS4DuplicateItem>> aRewriteSupplier)
+    {
+      m_aRecord = aRecord;
+      m_aRewriteSupplier = aRewriteSupplier;
+    }
+  }
+
+  private static final Request STOP = new Request (null, null);
+
+  private final File m_aFile;
+  private final LinkedBlockingQueue <Request> m_aQueue = new LinkedBlockingQueue <> ();
+  private final AtomicLong m_aRecordCount = new AtomicLong (0);
+  private final AtomicLong m_aCommitCount = new AtomicLong (0);
+  private final Thread m_aWriterThread;
+  // Guarded by "this"
+  private FileChannel m_aChannel;
+  // Guards the closed check and the enqueueing of requests
+  private final Object m_aQueueLock = new Object ();
+  private boolean m_bClosed = false;
+  private volatile long m_nAwaitTimeoutMS = DEFAULT_AWAIT_TIMEOUT_MS;
+
+  /**
+   * Constructor. Opens or creates the log file, but does not read the existing
+   * content. Call {@link #readAll()} for this.
+   *
+   * @param aFile
+   *        The log file to use. May not be <code>null</code>.
+   * @throws IOException
+   *         If the file cannot be opened
+   */
+  public AS4DuplicateLog (@Nonnull final File aFile) throws IOException
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    m_aFile = aFile;
+    final File aParent = aFile.getAbsoluteFile ().getParentFile ();
+    if (aParent != null)
+      Files.createDirectories (aParent.toPath ());
+    m_aChannel = _openChannel (aFile);
+    m_aWriterThread = new BasicThreadFactory.Builder ().setDaemon (true)
+                                                       .setNamingPattern ("as4-duplicate-log-%d")
+                                                       .build ()
+                                                       .newThread (this::_writerLoop);
+    m_aWriterThread.start ();
+  }
+
+  @Nonnull
+  private static FileChannel _openChannel (@Nonnull final File aFile) throws IOException
+  {
+    final FileChannel aChannel = FileChannel.open (aFile.toPath (),
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE);
+    if (aChannel.size () < HEADER_SIZE)
+    {
+      // New (or broken) file
+      aChannel.truncate (0);
+      aChannel.write (_createHeader (), 0);
+      aChannel.force (true);
+    }
+    aChannel.position (aChannel.size ());
+    return aChannel;
+  }
+
+  @Nonnull
+  private static ByteBuffer _createHeader ()
+  {
+    final ByteBuffer aHeader = ByteBuffer.allocate (HEADER_SIZE);
+    aHeader.putInt (MAGIC).put (VERSION);
+    aHeader.flip ();
+    return aHeader;
+  }
+
+  @Nonnull
+  private static byte [] _getAsRecord (@Nonnull final IAS4DuplicateItem aItem) throws IOException
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+         final DataOutputStream aDOS = new DataOutputStream (aBAOS))
+    {
+      // Placeholder for the length
+      aDOS.writeInt (0);
+      aDOS.writeLong (aItem.getDateTime ().toInstant (ZoneOffset.UTC).toEpochMilli ());
+      aDOS.writeUTF (aItem.getMessageID ());
+      aDOS.writeBoolean (aItem.getProfileID () != null);
+      if (aItem.getProfileID () != null)
+        aDOS.writeUTF (aItem.getProfileID ());
+      aDOS.writeBoolean (aItem.getPModeID () != null);
+      if (aItem.getPModeID () != null)
+        aDOS.writeUTF (aItem.getPModeID ());
+      aDOS.flush ();
+
+      final byte [] ret = aBAOS.toByteArray ();
+      final int nLength = ret.length - 4;
+      ret[0] = (byte) (nLength >>> 24);
+      ret[1] = (byte) (nLength >>> 16);
+      ret[2] = (byte) (nLength >>> 8);
+      ret[3] = (byte) nLength;
+      return ret;
+    }
+  }
+
+  @Nonnull
+  private static AS4DuplicateItem _readRecord (@Nonnull final byte [] aRecord) throws IOException
+  {
+    try (final DataInputStream aDIS = new DataInputStream (new NonBlockingByteArrayInputStream (aRecord)))
+    {
+      final LocalDateTime aDT = LocalDateTime.ofInstant (Instant.ofEpochMilli (aDIS.readLong ()), ZoneOffset.UTC);
+      final String sMessageID = aDIS.readUTF ();
+      final String sProfileID = aDIS.readBoolean () ? aDIS.readUTF () : null;
+      final String sPModeID = aDIS.readBoolean () ? aDIS.readUTF () : null;
+      return new AS4DuplicateItem (aDT, sMessageID, sProfileID, sPModeID);
+    }
+  }
+
+  /**
+   * Read all records contained in the log. Must be called before the first
+   * append. An incomplete trailing record is truncated.
+   *
+   * @return All read items in the order they were written. Later items with
+   *         the same message ID supersede former ones. Never <code>null</code>.
+   * @throws IOException
+   *         On read error or if the file is not a duplicate log
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS4DuplicateItem> readAll () throws IOException
+  {
+    final ICommonsList <AS4DuplicateItem> ret = new CommonsArrayList <> ();
+    long nValidLength = HEADER_SIZE;
+    try (final InputStream aIS = Files.newInputStream (m_aFile.toPath ());
+         final DataInputStream aDIS = new DataInputStream (new BufferedInputStream (aIS)))
+    {
+      if (aDIS.readInt () != MAGIC || aDIS.readByte () != VERSION)
+        throw new IOException ("The file " + m_aFile.getAbsolutePath () + " is not a duplicate log");
+
+      while (true)
+      {
+        try
+        {
+          final int nLength = aDIS.readInt ();
+          if (nLength <= 0)
+            break;
+          final byte [] aRecord = new byte [nLength];
+          aDIS.readFully (aRecord);
+          ret.add (_readRecord (aRecord));
+          nValidLength += 4 + nLength;
+        }
+        catch (final EOFException ex)
+        {
+          break;
+        }
+      }
+    }
+
+    synchronized (this)
+    {
+      if (m_aChannel.size () > nValidLength)
+      {
+        LOGGER.warn ("Truncating incomplete trailing record of duplicate log " +
+                     m_aFile.getAbsolutePath () +
+                     " at position " +
+                     nValidLength);
+        m_aChannel.truncate (nValidLength);
+        m_aChannel.position (nValidLength);
+      }
+    }
+    m_aRecordCount.set (ret.size ());
+    return ret;
+  }
+
+  private void _writerLoop ()
+  {
+    final ICommonsList <Request> aBatch = new CommonsArrayList <> ();
+    final ICommonsList <Request> aPending = new CommonsArrayList <> ();
+    final NonBlockingByteArrayOutputStream aBuffer = new NonBlockingByteArrayOutputStream ();
+    boolean bStop = false;
+    while (!bStop)
+    {
+      aBatch.clear ();
+      try
+      {
+        aBatch.add (m_aQueue.take ());
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+      m_aQueue.drainTo (aBatch, MAX_BATCH_SIZE - 1);
+
+      for (final Request aRequest : aBatch)
+      {
+        if (aRequest == STOP || bStop)
+        {
+          // Requests after the stop request are failed below
+          if (aRequest != STOP)
+            m_aQueue.add (aRequest);
+          bStop = true;
+          continue;
+        }
+        if (aRequest.m_aDone.isDone ())
+        {
+          // The caller gave up waiting
+          continue;
+        }
+        if (aRequest.m_aRecord != null)
+        {
+          aBuffer.write (aRequest.m_aRecord, 0, aRequest.m_aRecord.length);
+          aPending.add (aRequest);
+        }
+        else
+        {
+          // Write all records before the rewrite
+          _commit (aBuffer, aPending);
+          try
+          {
+            _rewrite (aRequest.m_aRewriteSupplier.get ());
+            aRequest.m_aDone.complete (null);
+          }
+          catch (final IOException | RuntimeException ex)
+          {
+            aRequest.m_aDone.completeExceptionally (ex);
+          }
+        }
+      }
+      _commit (aBuffer, aPending);
+    }
+
+    _failOutstandingRequests ();
+  }
+
+  private void _failOutstandingRequests ()
+  {
+    Request aRequest;
+    while ((aRequest = m_aQueue.poll ()) != null)
+      aRequest.m_aDone.completeExceptionally (new IOException ("The duplicate log " +
+                                                               m_aFile.getAbsolutePath () +
+                                                               " was closed"));
+  }
+
+  private void _commit (@Nonnull final NonBlockingByteArrayOutputStream aBuffer,
+                        @Nonnull final ICommonsList <Request> aPending)
+  {
+    if (aPending.isEmpty ())
+      return;
+
+    try
+    {
+      synchronized (this)
+      {
+        final ByteBuffer aBB = ByteBuffer.wrap (aBuffer.toByteArray ());
+        while (aBB.hasRemaining ())
+          m_aChannel.write (aBB);
+        // One sync for all records of this group
+        m_aChannel.force (false);
+      }
+      m_aRecordCount.addAndGet (aPending.size ());
+      m_aCommitCount.incrementAndGet ();
+      for (final Request aRequest : aPending)
+        aRequest.m_aDone.complete (null);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to write " + aPending.size () + " records to duplicate log " + m_aFile.getAbsolutePath (),
+                    ex);
+      for (final Request aRequest : aPending)
+        aRequest.m_aDone.completeExceptionally (ex);
+    }
+    finally
+    {
+      aBuffer.reset ();
+      aPending.clear ();
+    }
+  }
+
+  private void _rewrite (@Nonnull final Iterable <? extends IAS4DuplicateItem> aItems) throws IOException
+  {
+    final File aTmpFile = new File (m_aFile.getAbsolutePath () + ".tmp");
+    long nCount = 0;
+    try (final FileChannel aTmpChannel = FileChannel.open (aTmpFile.toPath (),
+                                                            StandardOpenOption.CREATE,
+                                                            StandardOpenOption.TRUNCATE_EXISTING,
+                                                            StandardOpenOption.WRITE))
+    {
+      aTmpChannel.write (_createHeader ());
+      for (final IAS4DuplicateItem aItem : aItems)
+      {
+        final ByteBuffer aBB = ByteBuffer.wrap (_getAsRecord (aItem));
+        while (aBB.hasRemaining ())
+          aTmpChannel.write (aBB);
+        nCount++;
+      }
+      aTmpChannel.force (true);
+    }
+
+    synchronized (this)
+    {
+      m_aChannel.close ();
+      Files.move (aTmpFile.toPath (),
+                  m_aFile.toPath (),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+      m_aChannel = _openChannel (m_aFile);
+    }
+    m_aRecordCount.set (nCount);
+  }
+
+  private void _await (@Nonnull final Request aRequest)
+  {
+    final long nTimeoutMS = m_nAwaitTimeoutMS;
+    try
+    {
+      aRequest.m_aDone.get (nTimeoutMS, TimeUnit.MILLISECONDS);
+    }
+    catch (final ExecutionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof IOException)
+        throw new UncheckedIOException ((IOException) aCause);
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      throw new IllegalStateException (aCause);
+    }
+    catch (final TimeoutException ex)
+    {
+      // If the writer did not pick it up yet, it is skipped
+      aRequest.m_aDone.completeExceptionally (ex);
+      throw new UncheckedIOException (new IOException ("Timeout after " +
+                                                       nTimeoutMS +
+                                                       "ms waiting for the duplicate log " +
+                                                       m_aFile.getAbsolutePath (),
+                                                       ex));
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+      aRequest.m_aDone.completeExceptionally (ex);
+      throw new UncheckedIOException (new InterruptedIOException ("Interrupted while waiting for the duplicate log " +
+                                                                  m_aFile.getAbsolutePath ()));
+    }
+  }
+
+  private void _enqueue (@Nonnull final Request aRequest)
+  {
+    synchronized (m_aQueueLock)
+    {
+      if (m_bClosed)
+        throw new IllegalStateException ("The duplicate log " + m_aFile.getAbsolutePath () + " is already closed");
+      m_aQueue.add (aRequest);
+    }
+  }
+
+  /**
+   * Append a single item and wait until it is written to disk.
+   *
+   * @param aItem
+   *        The item to append. May not be <code>null</code>.
+   * @throws UncheckedIOException
+   *         If writing failed
+   */
+  public void append (@Nonnull final IAS4DuplicateItem aItem)
+  {
+    ValueEnforcer.notNull (aItem, "Item");
+    final Request aRequest;
+    try
+    {
+      aRequest = new Request (_getAsRecord (aItem), null);
+    }
+    catch (final IOException ex)
+    {
+      throw new UncheckedIOException (ex);
+    }
+    _enqueue (aRequest);
+    _await (aRequest);
+  }
+
+  /**
+   * Replace the whole log with the items provided by the supplier. The
+   * supplier is invoked on the writer thread after all previously appended
+   * items were written, so that no concurrently registered item gets lost.
+   *
+   * @param aItemSupplier
+   *        The supplier of all items to be contained. May not be
+   *        <code>null</code>.
+   * @throws UncheckedIOException
+   *         If writing failed
+   */
+  public void rewrite (@Nonnull final Supplier <? extends Iterable <? extends IAS4DuplicateItem>> aItemSupplier)
+  {
+    ValueEnforcer.notNull (aItemSupplier, "ItemSupplier");
+    final Request aRequest = new Request (null, aItemSupplier);
+    _enqueue (aRequest);
+    _await (aRequest);
+  }
+
+  /**
+   * @return The log file. Never <code>null</code>.
+   */
+  @Nonnull
+  public File getFile ()
+  {
+    return m_aFile;
+  }
+
+  /**
+   * @return The number of records contained in the log, including superseded
+   *         ones. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getRecordCount ()
+  {
+    return m_aRecordCount.get ();
+  }
+
+  /**
+   * @return The number of group commits (disk syncs) since startup. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public long getCommitCount ()
+  {
+    return m_aCommitCount.get ();
+  }
+
+  /**
+   * @return The maximum time in milliseconds a caller of
+   *         {@link #append(IAS4DuplicateItem)} or {@link #rewrite(Supplier)}
+   *         waits for the writer. Always &gt; 0.
+   */
+  @Nonnegative
+  public long getAwaitTimeoutMS ()
+  {
+    return m_nAwaitTimeoutMS;
+  }
+
+  /**
+   * Set the maximum time a caller waits for the writer. If a request times
+   * out, an {@link UncheckedIOException} is thrown and the request is skipped
+   * if it was not yet picked up by the writer.
+   *
+   * @param nAwaitTimeoutMS
+   *        The timeout in milliseconds. Must be &gt; 0.
+   */
+  public void setAwaitTimeoutMS (@Nonnegative final long nAwaitTimeoutMS)
+  {
+    ValueEnforcer.isGT0 (nAwaitTimeoutMS, "AwaitTimeoutMS");
+    m_nAwaitTimeoutMS = nAwaitTimeoutMS;
+  }
+
+  public void close () throws IOException
+  {
+    synchronized (m_aQueueLock)
+    {
+      if (m_bClosed)
+        return;
+      m_bClosed = true;
+      // Nothing can be enqueued after this
+      m_aQueue.add (STOP);
+    }
+    try
+    {
+      m_aWriterThread.join ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    // In case the writer was interrupted
+    _failOutstandingRequests ();
+    synchronized (this)
+    {
+      m_aChannel.close ();
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("File", m_aFile)
+                                       .append ("RecordCount", m_aRecordCount.get ())
+                                       .append ("CommitCount", m_aCommitCount.get ())
+                                       .getToString ();
+  }
+}
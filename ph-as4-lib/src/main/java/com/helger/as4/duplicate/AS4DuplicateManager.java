@@ -35,25 +35,16 @@ import com.helger.photon.basic.app.dao.AbstractPhotonMapBasedWALDAO;
  * @author Philip Helger
  */
 public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS4DuplicateItem, AS4DuplicateItem>
+                                       implements
+                                       IAS4DuplicateManager
 {
   public AS4DuplicateManager (@Nullable final String sFilename) throws DAOException
   {
     super (AS4DuplicateItem.class, sFilename);
   }
 
-  /**
-   * Check if the passed message ID was already handled.
-   *
-   * @param sMessageID
-   *        Message ID to check. May be <code>null</code>.
-   * @param sProfileID
-   *        Active AS4 profile ID. May be used to define the PMode further. May
-   *        be <code>null</code>.
-   * @param sPModeID
-   *        Active AS4 PMode ID. May be <code>null</code>.
-   * @return {@link EContinue#CONTINUE} to continue
-   */
   @Nonnull
+  @Override
   public EContinue registerAndCheck (@Nullable final String sMessageID,
                                      @Nullable final String sProfileID,
                                      @Nullable final String sPModeID)
@@ -79,26 +70,22 @@ public final class AS4DuplicateManager extends AbstractPhotonMapBasedWALDAO <IAS
     return EContinue.CONTINUE;
   }
 
-  /**
-   * Remove all entries in the cache.
-   *
-   * @return {@link EChange}
-   */
+  @Override
+  public boolean containsMessageID (@Nullable final String sMessageID)
+  {
+    return StringHelper.hasText (sMessageID) && containsWithID (sMessageID);
+  }
+
   @Nonnull
+  @Override
   public EChange clearCache ()
   {
     return m_aRWLock.writeLocked ( () -> internalRemoveAllItemsNoCallback ());
   }
 
-  /**
-   * Delete all duplicate items that were created before the provided time.
-   *
-   * @param aRefDT
-   *        The reference date time to compare to. May not be <code>null</code>.
-   * @return A non-<code>null</code> list of all evicted message IDs.
-   */
   @Nonnull
   @ReturnsMutableCopy
+  @Override
   public ICommonsList <String> evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
   {
     // Get all message IDs to be removed
@@ -0,0 +1,309 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.state.EChange;
+import com.helger.commons.state.EContinue;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Duplicate checker optimized for high throughput. The message IDs are kept in
+ * a concurrent hash map (which is internally striped), so that registrations
+ * of different message IDs do not block each other. Additionally each item is
+ * put into a time bucket, so that eviction only needs to drop whole buckets
+ * instead of scanning all items. Because of this, eviction has the granularity
+ * of the bucket duration: items are evicted once the whole bucket they are
+ * contained in lies before the reference date time.<br>
+ * Optionally all registrations are persisted in an {@link AS4DuplicateLog},
+ * which is compacted after eviction if it contains too many evicted records.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4DuplicateStore implements IAS4DuplicateManager, Closeable
+{
+  public static final Duration DEFAULT_BUCKET_DURATION = Duration.ofMinutes (1);
+  /** Compact the log if it contains more than this factor of live items */
+  private static final int COMPACTION_FACTOR = 2;
+  /** Never compact logs with less records than this */
+  private static final int COMPACTION_MIN_RECORDS = 10_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4DuplicateStore.class);
+
+  private final AS4DuplicateLog m_aLog;
+  private final long m_nBucketSeconds;
+  private final ConcurrentHashMap <String, AS4DuplicateItem> m_aIndex = new ConcurrentHashMap <> ();
+  private final ConcurrentSkipListMap <Long, Queue <AS4DuplicateItem>> m_aBuckets = new ConcurrentSkipListMap <> ();
+
+  /**
+   * Constructor for a pure in-memory store.
+   */
+  public AS4DuplicateStore ()
+  {
+    this (null, DEFAULT_BUCKET_DURATION);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aLog
+   *        The log to persist the items to. All items contained in the log are
+   *        read upon construction. May be <code>null</code> for a pure
+   *        in-memory store.
+   * @param aBucketDuration
+   *        The duration of a single eviction time bucket. May not be
+   *        <code>null</code> and must be at least one second.
+   * @throws UncheckedIOException
+   *         If the log could not be read
+   */
+  public AS4DuplicateStore (@Nullable final AS4DuplicateLog aLog, @Nonnull final Duration aBucketDuration)
+  {
+    ValueEnforcer.notNull (aBucketDuration, "BucketDuration");
+    ValueEnforcer.isTrue (aBucketDuration.getSeconds () > 0, "BucketDuration must be at least one second");
+    m_aLog = aLog;
+    m_nBucketSeconds = aBucketDuration.getSeconds ();
+
+    if (aLog != null)
+    {
+      final ICommonsList <AS4DuplicateItem> aItems;
+      try
+      {
+        aItems = aLog.readAll ();
+      }
+      catch (final IOException ex)
+      {
+        throw new UncheckedIOException ("Failed to read duplicate log " + aLog.getFile ().getAbsolutePath (), ex);
+      }
+      // Later records supersede former ones
+      for (final AS4DuplicateItem aItem : aItems)
+      {
+        m_aIndex.put (aItem.getMessageID (), aItem);
+        _addToBucket (aItem);
+      }
+      LOGGER.info ("Read " + m_aIndex.size () + " duplicate items from " + aLog.getFile ().getAbsolutePath ());
+    }
+  }
+
+  private long _getBucket (@Nonnull final LocalDateTime aDT)
+  {
+    return aDT.toEpochSecond (ZoneOffset.UTC) / m_nBucketSeconds;
+  }
+
+  private void _addToBucket (@Nonnull final AS4DuplicateItem aItem)
+  {
+    m_aBuckets.computeIfAbsent (Long.valueOf (_getBucket (aItem.getDateTime ())), k -> new ConcurrentLinkedQueue <> ())
+              .add (aItem);
+  }
+
+  private void _removeFromBucket (@Nonnull final AS4DuplicateItem aItem)
+  {
+    final Queue <AS4DuplicateItem> aBucket = m_aBuckets.get (Long.valueOf (_getBucket (aItem.getDateTime ())));
+    if (aBucket != null)
+      aBucket.removeIf (x -> x == aItem);
+  }
+
+  /**
+   * @return The underlying log. May be <code>null</code>.
+   */
+  @Nullable
+  public AS4DuplicateLog getLog ()
+  {
+    return m_aLog;
+  }
+
+  /**
+   * @return The number of currently used time buckets. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getBucketCount ()
+  {
+    return m_aBuckets.size ();
+  }
+
+  @Nonnull
+  @Override
+  public EContinue registerAndCheck (@Nullable final String sMessageID,
+                                     @Nullable final String sProfileID,
+                                     @Nullable final String sPModeID)
+  {
+    if (StringHelper.hasNoText (sMessageID))
+    {
+      // No message ID present - don't check for duplication
+      return EContinue.CONTINUE;
+    }
+
+    final AS4DuplicateItem aItem = new AS4DuplicateItem (sMessageID, sProfileID, sPModeID);
+    if (m_aIndex.putIfAbsent (sMessageID, aItem) != null)
+    {
+      // ID already in use
+      return EContinue.BREAK;
+    }
+    _addToBucket (aItem);
+
+    // Returns after the item was written to disk
+    if (m_aLog != null)
+      try
+      {
+        m_aLog.append (aItem);
+      }
+      catch (final RuntimeException ex)
+      {
+        // Not persisted - forget it, so that a retry is not a duplicate
+        m_aIndex.remove (sMessageID, aItem);
+        _removeFromBucket (aItem);
+        throw ex;
+      }
+    return EContinue.CONTINUE;
+  }
+
+  @Override
+  public boolean containsMessageID (@Nullable final String sMessageID)
+  {
+    return StringHelper.hasText (sMessageID) && m_aIndex.containsKey (sMessageID);
+  }
+
+  @Nonnull
+  @Override
+  public EChange clearCache ()
+  {
+    if (m_aIndex.isEmpty ())
+      return EChange.UNCHANGED;
+
+    m_aIndex.clear ();
+    m_aBuckets.clear ();
+    if (m_aLog != null)
+      m_aLog.rewrite ( () -> m_aIndex.values ());
+    return EChange.CHANGED;
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  @Override
+  public ICommonsList <String> evictAllItemsBefore (@Nonnull final LocalDateTime aRefDT)
+  {
+    ValueEnforcer.notNull (aRefDT, "RefDT");
+
+    final ICommonsList <String> ret = new CommonsArrayList <> ();
+    // Only buckets that are completely before the reference date time
+    final long nRefBucket = _getBucket (aRefDT);
+    Map.Entry <Long, Queue <AS4DuplicateItem>> aEntry;
+    while ((aEntry = m_aBuckets.firstEntry ()) != null && aEntry.getKey ().longValue () < nRefBucket)
+    {
+      m_aBuckets.remove (aEntry.getKey ());
+      for (final AS4DuplicateItem aItem : aEntry.getValue ())
+      {
+        // Only remove if it was not superseded by a later record of the log
+        final String sMessageID = aItem.getMessageID ();
+        if (m_aIndex.get (sMessageID) == aItem && m_aIndex.remove (sMessageID, aItem))
+          ret.add (sMessageID);
+      }
+    }
+
+    if (m_aLog != null && ret.isNotEmpty ())
+    {
+      final long nLiveCount = m_aIndex.size ();
+      if (m_aLog.getRecordCount () > COMPACTION_MIN_RECORDS &&
+          m_aLog.getRecordCount () > nLiveCount * COMPACTION_FACTOR)
+      {
+        LOGGER.info ("Compacting duplicate log " +
+                     m_aLog.getFile ().getAbsolutePath () +
+                     " from " +
+                     m_aLog.getRecordCount () +
+                     " to " +
+                     nLiveCount +
+                     " records");
+        // Evaluated on the writer thread, so nothing gets lost
+        m_aLog.rewrite ( () -> m_aIndex.values ());
+      }
+    }
+    return ret;
+  }
+
+  @Nonnegative
+  @Override
+  public int size ()
+  {
+    return m_aIndex.size ();
+  }
+
+  @Override
+  public boolean isEmpty ()
+  {
+    return m_aIndex.isEmpty ();
+  }
+
+  @Nonnull
+  @ReturnsMutableCopy
+  @Override
+  public ICommonsList <IAS4DuplicateItem> getAll ()
+  {
+    return new CommonsArrayList <> (m_aIndex.values ());
+  }
+
+  @Nullable
+  @Override
+  public IAS4DuplicateItem findFirst (@Nullable final Predicate <? super IAS4DuplicateItem> aFilter)
+  {
+    for (final AS4DuplicateItem aItem : m_aIndex.values ())
+      if (aFilter == null || aFilter.test (aItem))
+        return aItem;
+    return null;
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    if (m_aLog != null)
+      m_aLog.close ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).appendIfNotNull ("Log", m_aLog)
+                                       .append ("BucketSeconds", m_nBucketSeconds)
+                                       .append ("Size", m_aIndex.size ())
+                                       .append ("Buckets", m_aBuckets.size ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import java.time.LocalDateTime;
+import java.util.function.Predicate;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.state.EChange;
+import com.helger.commons.state.EContinue;
+
+/**
+ * Base interface for the duplicate checker for avoiding duplicate messages.
+ *
+ * @author Philip Helger
+ */
+public interface IAS4DuplicateManager
+{
+  /**
+   * Check if the passed message ID was already handled.
+   *
+   * @param sMessageID
+   *        Message ID to check. May be <code>null</code>.
+   * @param sProfileID
+   *        Active AS4 profile ID. May be used to define the PMode further. May
+   *        be <code>null</code>.
+   * @param sPModeID
+   *        Active AS4 PMode ID. May be <code>null</code>.
+   * @return {@link EContinue#CONTINUE} to continue
+   */
+  @Nonnull
+  EContinue registerAndCheck (@Nullable String sMessageID, @Nullable String sProfileID, @Nullable String sPModeID);
+
+  /**
+   * Check if the passed message ID was already handled, without registering
+   * it. This allows to reject retransmissions before the message is processed
+   * at all.
+   *
+   * @param sMessageID
+   *        Message ID to check. May be <code>null</code>.
+   * @return <code>true</code> if the message ID is contained,
+   *         <code>false</code> if not or if no message ID is provided.
+   */
+  boolean containsMessageID (@Nullable String sMessageID);
+
+  /**
+   * Remove all entries in the cache.
+   *
+   * @return {@link EChange}
+   */
+  @Nonnull
+  EChange clearCache ();
+
+  /**
+   * Delete all duplicate items that were created before the provided time.
+   *
+   * @param aRefDT
+   *        The reference date time to compare to. May not be <code>null</code>.
+   * @return A non-<code>null</code> list of all evicted message IDs.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsList <String> evictAllItemsBefore (@Nonnull LocalDateTime aRefDT);
+
+  /**
+   * @return The number of contained items. Always &ge; 0.
+   */
+  @Nonnegative
+  int size ();
+
+  /**
+   * @return <code>true</code> if no item is contained, <code>false</code> if
+   *         at least one item is contained.
+   */
+  boolean isEmpty ();
+
+  /**
+   * Find the first item matching the provided filter.
+   *
+   * @param aFilter
+   *        The filter to use. May be <code>null</code>.
+   * @return <code>null</code> if no such item is contained.
+   */
+  @Nullable
+  IAS4DuplicateItem findFirst (@Nullable Predicate <? super IAS4DuplicateItem> aFilter);
+
+  /**
+   * @return A list of all contained items. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsList <IAS4DuplicateItem> getAll ();
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.http;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+import org.apache.http.HttpMessage;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.w3c.dom.Document;
+
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.util.AS4XMLHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.mail.cte.EContentTransferEncoding;
+
+/**
+ * Special HTTP entity that writes a SOAP message with attachments as
+ * "multipart/related" directly to the output stream, without creating a
+ * JavaMail MimeMessage. The SOAP part is serialized once upon construction,
+ * the attachments are streamed upon writing. File based attachments are
+ * transferred with {@link FileChannel#transferTo(long, long,
+ * WritableByteChannel)}. If the sizes of all attachments are known and no
+ * content transfer encoding needs to be applied, the exact content length is
+ * calculated upfront so that no chunked transfer encoding is needed.
+ *
+ * @author Philip Helger
+ */
+public class HttpMultipartRelatedEntity extends AbstractHttpEntity
+{
+  /** The MIME version header name */
+  public static final String HEADER_MIME_VERSION = "MIME-Version";
+
+  private static final Charset HEADER_CHARSET = StandardCharsets.ISO_8859_1;
+  private static final byte [] CRLF = { '\r', '\n' };
+
+  private final String m_sBoundary;
+  private final byte [] m_aSOAPHeader;
+  private final byte [] m_aSOAPContent;
+  private final ICommonsList <WSS4JAttachment> m_aAttachments;
+  private final ICommonsList <byte []> m_aAttachmentHeaders = new CommonsArrayList <> ();
+  private final byte [] m_aEnd;
+  private final long m_nContentLength;
+
+  public HttpMultipartRelatedEntity (@Nonnull final ESOAPVersion eSOAPVersion,
+                                     @Nonnull final Document aSOAPEnvelope,
+                                     @Nullable final ICommonsList <WSS4JAttachment> aAttachments)
+  {
+    ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
+    ValueEnforcer.notNull (aSOAPEnvelope, "SOAPEnvelope");
+
+    final Charset aCharset = AS4XMLHelper.XWS.getCharset ();
+    m_sBoundary = "----=_Part_" + UUID.randomUUID ().toString ();
+    m_aAttachments = aAttachments == null ? new CommonsArrayList <> () : aAttachments.getClone ();
+
+    // type parameter is essential for Axis to work!
+    setContentType ("multipart/related; boundary=\"" +
+                    m_sBoundary +
+                    "\"; type=\"" +
+                    eSOAPVersion.getMimeType ().getAsString () +
+                    "\"; charset=" +
+                    aCharset.name ());
+
+    // Message itself
+    m_aSOAPHeader = _getPartHeader (null,
+                                    eSOAPVersion.getMimeType (aCharset).getAsString (),
+                                    EContentTransferEncoding.BINARY);
+    m_aSOAPContent = AS4XMLHelper.serializeXMLToBytes (aSOAPEnvelope);
+
+    long nContentLength = m_aSOAPHeader.length + m_aSOAPContent.length + CRLF.length;
+    for (final WSS4JAttachment aAttachment : m_aAttachments)
+    {
+      final byte [] aHeader = _getPartHeader (aAttachment.getId (),
+                                              aAttachment.getMimeType (),
+                                              aAttachment.getContentTransferEncoding ());
+      m_aAttachmentHeaders.add (aHeader);
+
+      final long nSourceLength = aAttachment.getSourceLength ();
+      if (nContentLength >= 0 && nSourceLength >= 0 && _isIdentity (aAttachment.getContentTransferEncoding ()))
+        nContentLength += aHeader.length + nSourceLength + CRLF.length;
+      else
+        nContentLength = -1;
+    }
+
+    m_aEnd = ("--" + m_sBoundary + "--\r\n").getBytes (HEADER_CHARSET);
+    m_nContentLength = nContentLength < 0 ? -1 : nContentLength + m_aEnd.length;
+  }
+
+  @Nonnull
+  private byte [] _getPartHeader (@Nullable final String sContentID,
+                                  @Nullable final String sContentType,
+                                  @Nonnull final EContentTransferEncoding eCTE)
+  {
+    final StringBuilder aSB = new StringBuilder ();
+    aSB.append ("--").append (m_sBoundary).append ("\r\n");
+    if (sContentID != null)
+      aSB.append (CHttpHeader.CONTENT_ID).append (": ").append (sContentID).append ("\r\n");
+    if (sContentType != null)
+      aSB.append (CHttpHeader.CONTENT_TYPE).append (": ").append (sContentType).append ("\r\n");
+    aSB.append (CHttpHeader.CONTENT_TRANSFER_ENCODING).append (": ").append (eCTE.getID ()).append ("\r\n");
+    aSB.append ("\r\n");
+    return aSB.toString ().getBytes (HEADER_CHARSET);
+  }
+
+  private static boolean _isIdentity (@Nonnull final EContentTransferEncoding eCTE)
+  {
+    // No transformation of the content is needed
+    final String sID = eCTE.getID ();
+    return "binary".equalsIgnoreCase (sID) || "8bit".equalsIgnoreCase (sID) || "7bit".equalsIgnoreCase (sID);
+  }
+
+  /**
+   * @return The MIME boundary used. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  public String getBoundary ()
+  {
+    return m_sBoundary;
+  }
+
+  /**
+   * @return A copy of all attachments contained. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <WSS4JAttachment> getAllAttachments ()
+  {
+    return m_aAttachments.getClone ();
+  }
+
+  /**
+   * Add the HTTP headers required for this entity to the provided HTTP
+   * message. This is the equivalent to
+   * <code>MessageHelperMethods.moveMIMEHeadersToHTTPHeader</code>.
+   *
+   * @param aHttpMsg
+   *        The HTTP message to modify. May not be <code>null</code>.
+   */
+  public void addHttpHeaders (@Nonnull final HttpMessage aHttpMsg)
+  {
+    ValueEnforcer.notNull (aHttpMsg, "HttpMsg");
+    aHttpMsg.addHeader (HEADER_MIME_VERSION, "1.0");
+    aHttpMsg.addHeader (getContentType ());
+  }
+
+  public boolean isRepeatable ()
+  {
+    for (final WSS4JAttachment aAttachment : m_aAttachments)
+    {
+      final IHasInputStream aISP = aAttachment.getInputStreamProvider ();
+      if (aISP != null && !aISP.isReadMultiple ())
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return The exact content length, if the length of all attachments is
+   *         known and no content transfer encoding needs to be applied. -1
+   *         otherwise.
+   */
+  public long getContentLength ()
+  {
+    return m_nContentLength;
+  }
+
+  public boolean isStreaming ()
+  {
+    return !isRepeatable ();
+  }
+
+  public InputStream getContent () throws IOException
+  {
+    final ICommonsList <InputStream> aStreams = new CommonsArrayList <> ();
+    aStreams.add (new NonBlockingByteArrayInputStream (m_aSOAPHeader));
+    aStreams.add (new NonBlockingByteArrayInputStream (m_aSOAPContent));
+    aStreams.add (new NonBlockingByteArrayInputStream (CRLF));
+    for (int i = 0; i < m_aAttachments.size (); ++i)
+    {
+      final WSS4JAttachment aAttachment = m_aAttachments.get (i);
+      aStreams.add (new NonBlockingByteArrayInputStream (m_aAttachmentHeaders.get (i)));
+      if (_isIdentity (aAttachment.getContentTransferEncoding ()))
+        aStreams.add (aAttachment.getSourceStream ());
+      else
+      {
+        // Encode in memory
+        try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+        {
+          _writeAttachment (aAttachment, aBAOS);
+          aStreams.add (aBAOS.getAsInputStream ());
+        }
+      }
+      aStreams.add (new NonBlockingByteArrayInputStream (CRLF));
+    }
+    aStreams.add (new NonBlockingByteArrayInputStream (m_aEnd));
+    return new SequenceInputStream (Collections.enumeration (aStreams));
+  }
+
+  private static void _writeAttachment (@Nonnull final WSS4JAttachment aAttachment,
+                                        @Nonnull final OutputStream aOS) throws IOException
+  {
+    final EContentTransferEncoding eCTE = aAttachment.getContentTransferEncoding ();
+    if (_isIdentity (eCTE))
+    {
+      final File aSourceFile = aAttachment.getSourceFile ();
+      if (aSourceFile != null)
+      {
+        // Let the OS copy the file content
+        try (final FileChannel aFC = FileChannel.open (aSourceFile.toPath (), StandardOpenOption.READ))
+        {
+          final WritableByteChannel aTarget = Channels.newChannel (aOS);
+          final long nSize = aFC.size ();
+          long nPos = 0;
+          while (nPos < nSize)
+            nPos += aFC.transferTo (nPos, nSize - nPos, aTarget);
+        }
+      }
+      else
+      {
+        final InputStream aIS = aAttachment.getSourceStream ();
+        try
+        {
+          StreamHelper.copyInputStreamToOutputStream (aIS, aOS);
+        }
+        finally
+        {
+          StreamHelper.close (aIS);
+        }
+      }
+    }
+    else
+    {
+      final InputStream aIS = aAttachment.getSourceStream ();
+      try
+      {
+        // Don't close the passed stream
+        final OutputStream aEncodedOS = MimeUtility.encode (new FilterOutputStream (aOS)
+        {
+          @Override
+          public void write (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+          {
+            out.write (aBuf, nOfs, nLen);
+          }
+
+          @Override
+          public void close () throws IOException
+          {
+            flush ();
+          }
+        }, eCTE.getID ());
+        StreamHelper.copyInputStreamToOutputStream (aIS, aEncodedOS);
+        aEncodedOS.close ();
+      }
+      catch (final MessagingException ex)
+      {
+        throw new IOException ("Unsupported content transfer encoding " + eCTE, ex);
+      }
+      finally
+      {
+        StreamHelper.close (aIS);
+      }
+    }
+  }
+
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    aOS.write (m_aSOAPHeader);
+    aOS.write (m_aSOAPContent);
+    aOS.write (CRLF);
+    for (int i = 0; i < m_aAttachments.size (); ++i)
+    {
+      aOS.write (m_aAttachmentHeaders.get (i));
+      _writeAttachment (m_aAttachments.get (i), aOS);
+      aOS.write (CRLF);
+    }
+    aOS.write (m_aEnd);
+    aOS.flush ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return ToStringGenerator.getDerived (super.toString ())
+                            .append ("Boundary", m_sBoundary)
+                            .append ("Attachments", m_aAttachments)
+                            .append ("ContentLength", m_nContentLength)
+                            .getToString ();
+  }
+}
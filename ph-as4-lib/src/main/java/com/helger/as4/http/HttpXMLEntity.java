@@ -16,25 +16,190 @@
  */
 package com.helger.as4.http;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.w3c.dom.Node;
 
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4XMLHelper;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
 
 /**
- * Special HTTP POST entity that contains a DOM Node as a serialized String.
- * 
+ * Special HTTP POST entity that contains a DOM Node. The node is serialized
+ * directly to the output stream when the entity is written, without an
+ * intermediate String. The entity is repeatable, as the node is serialized
+ * again on every write.<br>
+ * The content length is always reported, because some implementations (like
+ * AS4.NET) don't support chunked encoding: upon the first call to
+ * {@link #getContentLength()} the node is serialized once. Documents up to the
+ * buffer threshold are kept as bytes and written from memory. For larger
+ * documents only the length is remembered and the node is serialized again
+ * while writing, so that no large buffer is needed.
+ *
  * @author Philip Helger
  */
-public class HttpXMLEntity extends StringEntity
+public class HttpXMLEntity extends AbstractHttpEntity
 {
-  public HttpXMLEntity (@Nonnull final Node Node, @Nonnull final ESOAPVersion eSoapVersion)
+  /** The default maximum number of serialized bytes kept in memory */
+  public static final int DEFAULT_BUFFER_THRESHOLD = 1024 * 1024;
+
+  /**
+   * Buffers the first bytes up to a threshold and only counts the remaining
+   * ones.
+   */
+  private static final class BufferingCountingOutputStream extends OutputStream
+  {
+    private final int m_nThreshold;
+    private NonBlockingByteArrayOutputStream m_aBuffer = new NonBlockingByteArrayOutputStream ();
+    private long m_nCount = 0;
+
+    BufferingCountingOutputStream (final int nThreshold)
+    {
+      m_nThreshold = nThreshold;
+    }
+
+    @Override
+    public void write (final int b)
+    {
+      write (new byte [] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen)
+    {
+      m_nCount += nLen;
+      if (m_aBuffer != null)
+      {
+        if (m_nCount > m_nThreshold)
+        {
+          // Too large - only count from now on
+          m_aBuffer = null;
+        }
+        else
+          m_aBuffer.write (aBuf, nOfs, nLen);
+      }
+    }
+  }
+
+  private final Node m_aNode;
+  private final int m_nBufferThreshold;
+  // Status vars
+  private volatile byte [] m_aBytes;
+  private volatile long m_nContentLength = -1;
+
+  public HttpXMLEntity (@Nonnull final Node aNode, @Nonnull final ESOAPVersion eSoapVersion)
   {
-    super (AS4XMLHelper.serializeXML (Node), AS4XMLHelper.XWS.getCharset ());
+    this (aNode, eSoapVersion, DEFAULT_BUFFER_THRESHOLD);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aNode
+   *        The node to be sent. May not be <code>null</code>.
+   * @param eSoapVersion
+   *        The SOAP version to use for the content type. May not be
+   *        <code>null</code>.
+   * @param nBufferThreshold
+   *        The maximum number of serialized bytes to keep in memory. Must be
+   *        &ge; 0.
+   */
+  public HttpXMLEntity (@Nonnull final Node aNode,
+                        @Nonnull final ESOAPVersion eSoapVersion,
+                        @Nonnegative final int nBufferThreshold)
+  {
+    ValueEnforcer.isGE0 (nBufferThreshold, "BufferThreshold");
+    m_aNode = ValueEnforcer.notNull (aNode, "Node");
+    m_nBufferThreshold = nBufferThreshold;
     // Required for AS4.NET
     setContentType (eSoapVersion.getMimeType ().getAsString ());
   }
+
+  /**
+   * @return The node passed in the constructor. Never <code>null</code>.
+   */
+  @Nonnull
+  public Node getNode ()
+  {
+    return m_aNode;
+  }
+
+  /**
+   * @return The maximum number of serialized bytes kept in memory. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public int getBufferThreshold ()
+  {
+    return m_nBufferThreshold;
+  }
+
+  public boolean isRepeatable ()
+  {
+    return true;
+  }
+
+  public long getContentLength ()
+  {
+    long nLength = m_nContentLength;
+    if (nLength < 0)
+    {
+      // Serialize once to determine the length
+      final BufferingCountingOutputStream aBCOS = new BufferingCountingOutputStream (m_nBufferThreshold);
+      AS4XMLHelper.serializeXML (m_aNode, aBCOS);
+      if (aBCOS.m_aBuffer != null)
+        m_aBytes = aBCOS.m_aBuffer.toByteArray ();
+      nLength = aBCOS.m_nCount;
+      m_nContentLength = nLength;
+    }
+    return nLength;
+  }
+
+  public boolean isStreaming ()
+  {
+    return false;
+  }
+
+  public InputStream getContent ()
+  {
+    byte [] aBytes = m_aBytes;
+    if (aBytes == null)
+    {
+      // Only used for debugging - keep it, independent of the threshold
+      aBytes = AS4XMLHelper.serializeXMLToBytes (m_aNode);
+      m_aBytes = aBytes;
+      m_nContentLength = aBytes.length;
+    }
+    return new NonBlockingByteArrayInputStream (aBytes);
+  }
+
+  public void writeTo (@Nonnull final OutputStream aOS) throws IOException
+  {
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    final byte [] aBytes = m_aBytes;
+    if (aBytes != null)
+      aOS.write (aBytes);
+    else
+      AS4XMLHelper.serializeXML (m_aNode, aOS);
+    aOS.flush ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return ToStringGenerator.getDerived (super.toString ())
+                            .append ("Node", m_aNode)
+                            .append ("BufferThreshold", m_nBufferThreshold)
+                            .getToString ();
+  }
 }
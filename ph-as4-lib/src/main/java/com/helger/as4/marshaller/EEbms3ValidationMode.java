@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how Ebms3 documents are validated while reading and writing with
+ * {@link Ebms3MarshallerPool}.
+ *
+ * @author Philip Helger
+ */
+public enum EEbms3ValidationMode implements IHasID <String>
+{
+  /** Full XML Schema validation */
+  FULL ("full"),
+  /**
+   * Structural checks only - the document must be well-formed and must match
+   * the JAXB binding, but no XML Schema validation is performed
+   */
+  STRUCTURE ("structure");
+
+  private final String m_sID;
+
+  private EEbms3ValidationMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  /**
+   * @return <code>true</code> if XML Schema validation is performed,
+   *         <code>false</code> if not.
+   */
+  public boolean isUseSchema ()
+  {
+    return this == FULL;
+  }
+
+  @Nullable
+  public static EEbms3ValidationMode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EEbms3ValidationMode.class, sID);
+  }
+
+  @Nullable
+  public static EEbms3ValidationMode getFromIDOrDefault (@Nullable final String sID,
+                                                        @Nullable final EEbms3ValidationMode eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EEbms3ValidationMode.class, sID, eDefault);
+  }
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.namespace.QName;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.validation.Schema;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.state.ESuccess;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.jaxb.JAXBContextCache;
+import com.helger.jaxb.JAXBMarshallerHelper;
+import com.helger.xml.XMLFactory;
+
+/**
+ * A thread-safe, reusable marshalling layer for the Ebms3 document types.
+ * Compared to {@link Ebms3ReaderBuilder} and {@link Ebms3WriterBuilder} the
+ * {@link JAXBContext} is resolved only once, the XML Schema is compiled only
+ * once and {@link Marshaller} and {@link Unmarshaller} objects are pooled and
+ * reused. Schema validation can be switched on and off per call via
+ * {@link EEbms3ValidationMode}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public final class Ebms3MarshallerPool
+{
+  /** The maximum number of idle (un)marshallers kept per document type */
+  public static final int DEFAULT_MAX_POOL_SIZE = Math.max (8, Runtime.getRuntime ().availableProcessors () * 2);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (Ebms3MarshallerPool.class);
+  private static final Map <EEbms3DocumentType, Ebms3MarshallerPool> s_aInstances = new EnumMap <> (EEbms3DocumentType.class);
+  private static volatile EEbms3ValidationMode s_eDefaultValidationMode = EEbms3ValidationMode.FULL;
+
+  private final EEbms3DocumentType m_eDocType;
+  private final QName m_aQName;
+  private final JAXBContext m_aJAXBContext;
+  private final BlockingQueue <Marshaller> m_aMarshallers = new ArrayBlockingQueue <> (DEFAULT_MAX_POOL_SIZE);
+  private final BlockingQueue <Unmarshaller> m_aUnmarshallers = new ArrayBlockingQueue <> (DEFAULT_MAX_POOL_SIZE);
+  // Compiled on demand
+  private volatile Schema m_aSchema;
+
+  private Ebms3MarshallerPool (@Nonnull final EEbms3DocumentType eDocType)
+  {
+    m_eDocType = eDocType;
+    m_aQName = new QName (eDocType.getNamespaceURI (), eDocType.getLocalName ());
+    m_aJAXBContext = JAXBContextCache.getInstance ().getFromCache (eDocType.getImplementationClass ());
+    if (m_aJAXBContext == null)
+      throw new IllegalStateException ("Failed to create JAXB context for " + eDocType.getImplementationClass ());
+  }
+
+  /**
+   * @return The document type handled by this pool. Never <code>null</code>.
+   */
+  @Nonnull
+  public EEbms3DocumentType getDocumentType ()
+  {
+    return m_eDocType;
+  }
+
+  @Nonnull
+  private Schema _getSchema ()
+  {
+    Schema ret = m_aSchema;
+    if (ret == null)
+    {
+      // Compiling twice in a race is harmless
+      ret = m_eDocType.getSchema ((ClassLoader) null);
+      m_aSchema = ret;
+    }
+    return ret;
+  }
+
+  /**
+   * @return The number of currently idle marshallers. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPooledMarshallerCount ()
+  {
+    return m_aMarshallers.size ();
+  }
+
+  /**
+   * @return The number of currently idle unmarshallers. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPooledUnmarshallerCount ()
+  {
+    return m_aUnmarshallers.size ();
+  }
+
+  @Nonnull
+  private Marshaller _createMarshaller () throws JAXBException
+  {
+    final Marshaller aMarshaller = m_aJAXBContext.createMarshaller ();
+    JAXBMarshallerHelper.setFormattedOutput (aMarshaller, false);
+    try
+    {
+      JAXBMarshallerHelper.setSunNamespacePrefixMapper (aMarshaller, new Ebms3NamespaceHandler ());
+    }
+    catch (final Exception ex)
+    {
+      // Non-Sun JAXB implementation - default prefixes are used
+      LOGGER.warn ("Failed to set namespace prefix mapper: " + ex.getMessage ());
+    }
+    return aMarshaller;
+  }
+
+  /**
+   * Read the provided node.
+   *
+   * @param aNode
+   *        The node to read. May not be <code>null</code>.
+   * @param aImplClass
+   *        The implementation class to read. May not be <code>null</code>.
+   * @param eValidationMode
+   *        The validation mode to use. May not be <code>null</code>.
+   * @param aEventHandler
+   *        The validation event handler to use. May be <code>null</code> to
+   *        use the JAXB default.
+   * @return <code>null</code> if reading failed.
+   * @param <T>
+   *        The implementation type
+   */
+  @Nullable
+  public <T> T read (@Nonnull final Node aNode,
+                     @Nonnull final Class <T> aImplClass,
+                     @Nonnull final EEbms3ValidationMode eValidationMode,
+                     @Nullable final ValidationEventHandler aEventHandler)
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (aImplClass, "ImplClass");
+    ValueEnforcer.notNull (eValidationMode, "ValidationMode");
+
+    try
+    {
+      Unmarshaller aUnmarshaller = m_aUnmarshallers.poll ();
+      if (aUnmarshaller == null)
+        aUnmarshaller = m_aJAXBContext.createUnmarshaller ();
+
+      aUnmarshaller.setSchema (eValidationMode.isUseSchema () ? _getSchema () : null);
+      aUnmarshaller.setEventHandler (aEventHandler);
+      final T ret = aUnmarshaller.unmarshal (aNode, aImplClass).getValue ();
+
+      // Only successfully used unmarshallers are returned to the pool
+      aUnmarshaller.setEventHandler (null);
+      m_aUnmarshallers.offer (aUnmarshaller);
+      return ret;
+    }
+    catch (final JAXBException ex)
+    {
+      LOGGER.warn ("Failed to read " + m_eDocType + ": " + ex.getMessage ());
+      return null;
+    }
+  }
+
+  /**
+   * Read the provided node using the default validation mode.
+   *
+   * @param aNode
+   *        The node to read. May not be <code>null</code>.
+   * @param aImplClass
+   *        The implementation class to read. May not be <code>null</code>.
+   * @param aEventHandler
+   *        The validation event handler to use. May be <code>null</code> to
+   *        use the JAXB default.
+   * @return <code>null</code> if reading failed.
+   * @param <T>
+   *        The implementation type
+   * @see #getDefaultValidationMode()
+   */
+  @Nullable
+  public <T> T read (@Nonnull final Node aNode,
+                     @Nonnull final Class <T> aImplClass,
+                     @Nullable final ValidationEventHandler aEventHandler)
+  {
+    return read (aNode, aImplClass, s_eDefaultValidationMode, aEventHandler);
+  }
+
+  /**
+   * Write the provided object as the last child of the provided node. This
+   * allows to build a larger DOM tree without an intermediate document.
+   *
+   * @param aObject
+   *        The object to write. Must be an instance of the implementation
+   *        class of the document type. May not be <code>null</code>.
+   * @param aParent
+   *        The node to append to. Must be a document or an element. May not be
+   *        <code>null</code>.
+   * @param eValidationMode
+   *        The validation mode to use. May not be <code>null</code>.
+   * @return {@link ESuccess}
+   */
+  @Nonnull
+  @SuppressWarnings ("unchecked")
+  public ESuccess writeTo (@Nonnull final Object aObject,
+                           @Nonnull final Node aParent,
+                           @Nonnull final EEbms3ValidationMode eValidationMode)
+  {
+    ValueEnforcer.isInstanceOf (aObject, m_eDocType.getImplementationClass (), "Object");
+    ValueEnforcer.notNull (aParent, "Parent");
+    ValueEnforcer.notNull (eValidationMode, "ValidationMode");
+
+    try
+    {
+      Marshaller aMarshaller = m_aMarshallers.poll ();
+      if (aMarshaller == null)
+        aMarshaller = _createMarshaller ();
+
+      aMarshaller.setSchema (eValidationMode.isUseSchema () ? _getSchema () : null);
+      aMarshaller.marshal (new JAXBElement <> (m_aQName,
+                                               (Class <Object>) m_eDocType.getImplementationClass (),
+                                               aObject),
+                           new DOMResult (aParent));
+
+      m_aMarshallers.offer (aMarshaller);
+      return ESuccess.SUCCESS;
+    }
+    catch (final JAXBException ex)
+    {
+      LOGGER.error ("Failed to write " + m_eDocType, ex);
+      return ESuccess.FAILURE;
+    }
+  }
+
+  /**
+   * Write the provided object to a new DOM document.
+   *
+   * @param aObject
+   *        The object to write. Must be an instance of the implementation
+   *        class of the document type. May not be <code>null</code>.
+   * @param eValidationMode
+   *        The validation mode to use. May not be <code>null</code>.
+   * @return <code>null</code> if writing failed.
+   */
+  @Nullable
+  public Document write (@Nonnull final Object aObject, @Nonnull final EEbms3ValidationMode eValidationMode)
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    return writeTo (aObject, aDoc, eValidationMode).isSuccess () ? aDoc : null;
+  }
+
+  /**
+   * Write the provided object to a new DOM document using the default
+   * validation mode.
+   *
+   * @param aObject
+   *        The object to write. May not be <code>null</code>.
+   * @return <code>null</code> if writing failed.
+   * @see #getDefaultValidationMode()
+   */
+  @Nullable
+  public Document write (@Nonnull final Object aObject)
+  {
+    return write (aObject, s_eDefaultValidationMode);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("DocType", m_eDocType)
+                                       .append ("PooledMarshallers", m_aMarshallers.size ())
+                                       .append ("PooledUnmarshallers", m_aUnmarshallers.size ())
+                                       .getToString ();
+  }
+
+  /**
+   * Get the shared pool for the provided document type.
+   *
+   * @param eDocType
+   *        Document type. May not be <code>null</code>.
+   * @return The pool and never <code>null</code>.
+   */
+  @Nonnull
+  public static Ebms3MarshallerPool getInstance (@Nonnull final EEbms3DocumentType eDocType)
+  {
+    ValueEnforcer.notNull (eDocType, "DocType");
+    synchronized (s_aInstances)
+    {
+      return s_aInstances.computeIfAbsent (eDocType, Ebms3MarshallerPool::new);
+    }
+  }
+
+  /**
+   * @return The validation mode used if none is explicitly provided. Defaults
+   *         to {@link EEbms3ValidationMode#FULL}. Never <code>null</code>.
+   */
+  @Nonnull
+  public static EEbms3ValidationMode getDefaultValidationMode ()
+  {
+    return s_eDefaultValidationMode;
+  }
+
+  /**
+   * Set the validation mode to be used if none is explicitly provided.
+   *
+   * @param eValidationMode
+   *        The new default validation mode. May not be <code>null</code>.
+   */
+  public static void setDefaultValidationMode (@Nonnull final EEbms3ValidationMode eValidationMode)
+  {
+    ValueEnforcer.notNull (eValidationMode, "ValidationMode");
+    s_eDefaultValidationMode = eValidationMode;
+  }
+}
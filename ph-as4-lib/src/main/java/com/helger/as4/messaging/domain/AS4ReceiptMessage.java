@@ -22,10 +22,13 @@ import javax.annotation.Nullable;
 import org.w3c.dom.Node;
 
 import com.helger.as4.CAS4;
-import com.helger.as4.marshaller.Ebms3WriterBuilder;
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
 import com.helger.as4.marshaller.XMLDSigReaderBuilder;
 import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.soap.SOAPEnvelopeBuilder;
 import com.helger.as4lib.ebms3header.Ebms3MessageInfo;
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.as4lib.ebms3header.Ebms3Receipt;
 import com.helger.as4lib.ebms3header.Ebms3SignalMessage;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
@@ -151,17 +154,19 @@ public class AS4ReceiptMessage extends AbstractAS4Message <AS4ReceiptMessage>
         aNonRepudiationInformation.addMessagePartNRInformation (aMessagePartNRInformation);
       }
 
-      aEbms3Receipt.addAny (Ebms3WriterBuilder.nonRepudiationInformation ()
-                                              .getAsDocument (aNonRepudiationInformation)
-                                              .getDocumentElement ());
+      aEbms3Receipt.addAny (Ebms3MarshallerPool.getInstance (EEbms3DocumentType.NON_REPUDIATION_INFORMATION)
+                                               .write (aNonRepudiationInformation)
+                                               .getDocumentElement ());
     }
     else
     {
       // If the original usermessage is not signed, the receipt will contain the
       // original message part with out wss4j security
-      aEbms3Receipt.addAny (AS4UserMessage.create (eSOAPVersion, aEbms3UserMessage)
-                                          .getAsSOAPDocument ()
-                                          .getDocumentElement ());
+      ValueEnforcer.notNull (aEbms3UserMessage, "Ebms3UserMessage");
+      final Ebms3Messaging aUserMessaging = new Ebms3Messaging ();
+      aUserMessaging.addUserMessage (aEbms3UserMessage);
+      aEbms3Receipt.addAny (SOAPEnvelopeBuilder.createSOAPDocument (eSOAPVersion, aUserMessaging, null)
+                                               .getDocumentElement ());
     }
     aSignalMessage.setReceipt (aEbms3Receipt);
 
@@ -22,15 +22,9 @@ import javax.annotation.Nullable;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
-import com.helger.as4.marshaller.Ebms3WriterBuilder;
 import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.soap.SOAPEnvelopeBuilder;
 import com.helger.as4lib.ebms3header.Ebms3Messaging;
-import com.helger.as4lib.soap11.Soap11Body;
-import com.helger.as4lib.soap11.Soap11Envelope;
-import com.helger.as4lib.soap11.Soap11Header;
-import com.helger.as4lib.soap12.Soap12Body;
-import com.helger.as4lib.soap12.Soap12Envelope;
-import com.helger.as4lib.soap12.Soap12Header;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.string.ToStringGenerator;
 import com.helger.commons.traits.IGenericImplTrait;
@@ -81,40 +75,8 @@ public abstract class AbstractAS4Message <IMPLTYPE extends AbstractAS4Message <I
   @Nonnull
   public final Document getAsSOAPDocument (@Nullable final Node aPayload)
   {
-    // Convert to DOM Node
-    final Document aEbms3Document = Ebms3WriterBuilder.ebms3Messaging ().getAsDocument (m_aMessaging);
-    if (aEbms3Document == null)
-      throw new IllegalStateException ("Failed to write EBMS3 Messaging to XML");
-
-    final Node aRealPayload = aPayload instanceof Document ? ((Document) aPayload).getDocumentElement () : aPayload;
-
-    switch (m_eSOAPVersion)
-    {
-      case SOAP_11:
-      {
-        // Creating SOAP 11 Envelope
-        final Soap11Envelope aSoapEnv = new Soap11Envelope ();
-        aSoapEnv.setHeader (new Soap11Header ());
-        aSoapEnv.setBody (new Soap11Body ());
-        aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
-        if (aRealPayload != null)
-          aSoapEnv.getBody ().addAny (aRealPayload);
-        return Ebms3WriterBuilder.soap11 ().getAsDocument (aSoapEnv);
-      }
-      case SOAP_12:
-      {
-        // Creating SOAP 12 Envelope
-        final Soap12Envelope aSoapEnv = new Soap12Envelope ();
-        aSoapEnv.setHeader (new Soap12Header ());
-        aSoapEnv.setBody (new Soap12Body ());
-        aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
-        if (aRealPayload != null)
-          aSoapEnv.getBody ().addAny (aRealPayload);
-        return Ebms3WriterBuilder.soap12 ().getAsDocument (aSoapEnv);
-      }
-      default:
-        throw new IllegalStateException ("Unsupported SOAP version " + m_eSOAPVersion);
-    }
+    // Header and payload are written into the target document in one pass
+    return SOAPEnvelopeBuilder.createSOAPDocument (m_eSOAPVersion, m_aMessaging, aPayload);
   }
 
   @Override
@@ -34,12 +34,14 @@ import com.helger.as4.attachment.WSS4JAttachmentCallbackHandler;
 import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.crypto.CryptoProperties;
 import com.helger.as4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.as4.http.HttpMultipartRelatedEntity;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.messaging.mime.MimeMessageCreator;
 import com.helger.as4.soap.ESOAPVersion;
 import com.helger.as4.util.AS4ResourceManager;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.CollectionHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.mime.CMimeType;
 import com.helger.mail.cte.EContentTransferEncoding;
@@ -89,6 +91,69 @@ public class EncryptionCreator
                                          @Nonnull final AS4ResourceManager aResMgr,
                                          @Nonnull final ECryptoAlgorithmCrypt eCryptAlgo) throws WSSecurityException,
                                                                                           MessagingException
+  {
+    final ICommonsList <WSS4JAttachment> aEncryptedAttachments = new CommonsArrayList <> ();
+    final Document aEncryptedDoc = _encryptWithAttachments (eSOAPVersion,
+                                                            aDoc,
+                                                            bMustUnderstand,
+                                                            aAttachments,
+                                                            aResMgr,
+                                                            eCryptAlgo,
+                                                            aEncryptedAttachments);
+    // Use the encrypted attachments!
+    return MimeMessageCreator.generateMimeMessage (eSOAPVersion, aEncryptedDoc, aEncryptedAttachments);
+  }
+
+  /**
+   * Encrypt the attachments and create a streaming multipart entity. Only the
+   * SOAP part is encrypted upfront - the attachments are encrypted while the
+   * entity is written, so the encrypted bytes are directly passed to the HTTP
+   * connection and the resulting entity is not repeatable.
+   *
+   * @param eSOAPVersion
+   *        SOAP version to use. May not be <code>null</code>.
+   * @param aDoc
+   *        The SOAP document. May not be <code>null</code>.
+   * @param bMustUnderstand
+   *        Must understand value of the security header
+   * @param aAttachments
+   *        The attachments to be encrypted. May be <code>null</code>.
+   * @param aResMgr
+   *        The resource manager to use. May not be <code>null</code>.
+   * @param eCryptAlgo
+   *        The encryption algorithm to use. May not be <code>null</code>.
+   * @return The entity with the encrypted attachments. Never
+   *         <code>null</code>.
+   * @throws WSSecurityException
+   *         In case encryption fails
+   */
+  @Nonnull
+  public HttpMultipartRelatedEntity encryptMultipartEntity (@Nonnull final ESOAPVersion eSOAPVersion,
+                                                            @Nonnull final Document aDoc,
+                                                            final boolean bMustUnderstand,
+                                                            @Nullable final ICommonsList <WSS4JAttachment> aAttachments,
+                                                            @Nonnull final AS4ResourceManager aResMgr,
+                                                            @Nonnull final ECryptoAlgorithmCrypt eCryptAlgo) throws WSSecurityException
+  {
+    final ICommonsList <WSS4JAttachment> aEncryptedAttachments = new CommonsArrayList <> ();
+    final Document aEncryptedDoc = _encryptWithAttachments (eSOAPVersion,
+                                                            aDoc,
+                                                            bMustUnderstand,
+                                                            aAttachments,
+                                                            aResMgr,
+                                                            eCryptAlgo,
+                                                            aEncryptedAttachments);
+    return new HttpMultipartRelatedEntity (eSOAPVersion, aEncryptedDoc, aEncryptedAttachments);
+  }
+
+  @Nonnull
+  private Document _encryptWithAttachments (@Nonnull final ESOAPVersion eSOAPVersion,
+                                            @Nonnull final Document aDoc,
+                                            final boolean bMustUnderstand,
+                                            @Nullable final ICommonsList <WSS4JAttachment> aAttachments,
+                                            @Nonnull final AS4ResourceManager aResMgr,
+                                            @Nonnull final ECryptoAlgorithmCrypt eCryptAlgo,
+                                            @Nonnull final ICommonsList <WSS4JAttachment> aEncryptedAttachments) throws WSSecurityException
   {
     ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
     ValueEnforcer.notNull (aDoc, "XMLDoc");
@@ -122,18 +187,15 @@ public class EncryptionCreator
 
     // The attachment callback handler contains the encrypted attachments
     // Important: read the attachment stream only once!
-    ICommonsList <WSS4JAttachment> aEncryptedAttachments = null;
     if (aAttachmentCallbackHandler != null)
     {
-      aEncryptedAttachments = aAttachmentCallbackHandler.getAllResponseAttachments ();
+      aEncryptedAttachments.addAll (aAttachmentCallbackHandler.getAllResponseAttachments ());
       // MIME Type and CTE must be set for encrypted attachments!
       aEncryptedAttachments.forEach (x -> {
         x.overwriteMimeType (CMimeType.APPLICATION_OCTET_STREAM.getAsString ());
         x.setContentTransferEncoding (EContentTransferEncoding.BINARY);
       });
     }
-
-    // Use the encrypted attachments!
-    return MimeMessageCreator.generateMimeMessage (eSOAPVersion, aEncryptedDoc, aEncryptedAttachments);
+    return aEncryptedDoc;
   }
 }
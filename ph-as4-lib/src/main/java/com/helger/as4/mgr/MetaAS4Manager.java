@@ -16,18 +16,29 @@
  */
 package com.helger.as4.mgr;
 
+import java.io.Closeable;
+import java.io.IOException;
+
 import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.duplicate.AS4DuplicateLog;
 import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.AS4DuplicateStore;
+import com.helger.as4.duplicate.EAS4DuplicateStoreType;
+import com.helger.as4.duplicate.IAS4DuplicateManager;
 import com.helger.as4.model.mpc.MPCManager;
 import com.helger.as4.model.pmode.PModeManager;
 import com.helger.as4.profile.AS4ProfileManager;
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.UsedViaReflection;
 import com.helger.commons.exception.InitializationException;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.lang.ClassHelper;
+import com.helger.dao.DAOException;
+import com.helger.photon.basic.app.io.WebFileIO;
 import com.helger.scope.IScope;
 import com.helger.scope.singleton.AbstractGlobalSingleton;
 
@@ -36,22 +47,63 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
   private static final String MPC_XML = "as4-mpc.xml";
   private static final String PMODE_XML = "as4-pmode.xml";
   private static final String INCOMING_DUPLICATE_XML = "as4-duplicate-incoming.xml";
+  private static final String INCOMING_DUPLICATE_BIN = "as4-duplicate-incoming.bin";
 
   private static final Logger LOGGER = LoggerFactory.getLogger (MetaAS4Manager.class);
 
   private MPCManager m_aMPCMgr;
   private PModeManager m_aPModeMgr;
   private AS4ProfileManager m_aProfileMgr;
-  private AS4DuplicateManager m_aIncomingDuplicateMgr;
+  private IAS4DuplicateManager m_aIncomingDuplicateMgr;
+
+  private static EAS4DuplicateStoreType s_eIncomingDuplicateStoreType = EAS4DuplicateStoreType.XML;
 
   @Deprecated
   @UsedViaReflection
   public MetaAS4Manager ()
   {}
 
+  /**
+   * @return The type of store used for incoming duplicate message IDs. Never
+   *         <code>null</code>. Defaults to {@link EAS4DuplicateStoreType#XML}.
+   */
+  @Nonnull
+  public static EAS4DuplicateStoreType getIncomingDuplicateStoreType ()
+  {
+    return s_eIncomingDuplicateStoreType;
+  }
+
+  /**
+   * Set the type of store used for incoming duplicate message IDs. This must
+   * be called before this singleton is instantiated to be effective.
+   *
+   * @param eStoreType
+   *        The store type to use. May not be <code>null</code>.
+   */
+  public static void setIncomingDuplicateStoreType (@Nonnull final EAS4DuplicateStoreType eStoreType)
+  {
+    ValueEnforcer.notNull (eStoreType, "StoreType");
+    s_eIncomingDuplicateStoreType = eStoreType;
+  }
+
   private void _initCallbacks ()
   {}
 
+  @Nonnull
+  private static IAS4DuplicateManager _createIncomingDuplicateMgr () throws DAOException, IOException
+  {
+    switch (s_eIncomingDuplicateStoreType)
+    {
+      case BINARY_LOG:
+        return new AS4DuplicateStore (new AS4DuplicateLog (WebFileIO.getDataIO ().getFile (INCOMING_DUPLICATE_BIN)),
+                                      AS4DuplicateStore.DEFAULT_BUCKET_DURATION);
+      case MEMORY:
+        return new AS4DuplicateStore ();
+      default:
+        return new AS4DuplicateManager (INCOMING_DUPLICATE_XML);
+    }
+  }
+
   @Override
   protected void onAfterInstantiation (@Nonnull final IScope aScope)
   {
@@ -61,7 +113,7 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
       m_aMPCMgr = new MPCManager (MPC_XML);
       m_aPModeMgr = new PModeManager (PMODE_XML);
       m_aProfileMgr = new AS4ProfileManager ();
-      m_aIncomingDuplicateMgr = new AS4DuplicateManager (INCOMING_DUPLICATE_XML);
+      m_aIncomingDuplicateMgr = _createIncomingDuplicateMgr ();
 
       _initCallbacks ();
 
@@ -78,7 +130,10 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
 
   @Override
   protected void onBeforeDestroy (@Nonnull final IScope aScopeToBeDestroyed) throws Exception
-  {}
+  {
+    if (m_aIncomingDuplicateMgr instanceof Closeable)
+      StreamHelper.close ((Closeable) m_aIncomingDuplicateMgr);
+  }
 
   @Nonnull
   public static MetaAS4Manager getInstance ()
@@ -105,7 +160,7 @@ public final class MetaAS4Manager extends AbstractGlobalSingleton
   }
 
   @Nonnull
-  public static AS4DuplicateManager getIncomingDuplicateMgr ()
+  public static IAS4DuplicateManager getIncomingDuplicateMgr ()
   {
     return getInstance ().m_aIncomingDuplicateMgr;
   }
@@ -29,9 +29,13 @@ import com.helger.as4.model.pmode.leg.PModeLeg;
 import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
 import com.helger.commons.equals.EqualsHelper;
 import com.helger.commons.functional.IPredicate;
+import com.helger.commons.hashcode.HashCodeGenerator;
 import com.helger.commons.state.EChange;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
@@ -50,9 +54,92 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (PModeManager.class);
 
+  /**
+   * Key of the service and action index - a pair of nullable strings.
+   */
+  private static final class IndexKey
+  {
+    private final String m_sFirst;
+    private final String m_sSecond;
+
+    IndexKey (@Nullable final String sFirst, @Nullable final String sSecond)
+    {
+      m_sFirst = sFirst;
+      m_sSecond = sSecond;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final IndexKey rhs = (IndexKey) o;
+      return EqualsHelper.equals (m_sFirst, rhs.m_sFirst) && EqualsHelper.equals (m_sSecond, rhs.m_sSecond);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_sFirst).append (m_sSecond).getHashCode ();
+    }
+  }
+
+  // Secondary index, guarded by m_aRWLock. The ID index is the DAO map
+  // itself.
+  private final ICommonsMap <IndexKey, ICommonsList <IPMode>> m_aServiceActionIndex = new CommonsHashMap <> ();
+  // Version per PMode ID, guarded by m_aRWLock
+  private final ICommonsMap <String, Long> m_aVersions = new CommonsHashMap <> ();
+  private long m_nLastVersion = 0;
+
   public PModeManager (@Nullable final String sFilename) throws DAOException
   {
     super (PMode.class, sFilename);
+    // All PModes were read in the super constructor
+    for (final IPMode aPMode : getAll ())
+      _addToIndex (aPMode);
+  }
+
+  @Nullable
+  private static IndexKey _getServiceActionKey (@Nonnull final IPMode aPMode)
+  {
+    final PModeLeg aLeg = aPMode.getLeg1 ();
+    if (aLeg != null)
+    {
+      final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
+      if (aBI != null)
+        return new IndexKey (aBI.getService (), aBI.getAction ());
+    }
+    return null;
+  }
+
+  private void _updateVersion (@Nonnull final IPMode aPMode)
+  {
+    m_aVersions.put (aPMode.getID (), Long.valueOf (++m_nLastVersion));
+  }
+
+  private void _addToIndex (@Nonnull final IPMode aPMode)
+  {
+    _updateVersion (aPMode);
+    final IndexKey aSAKey = _getServiceActionKey (aPMode);
+    if (aSAKey != null)
+      m_aServiceActionIndex.computeIfAbsent (aSAKey, k -> new CommonsArrayList <> ()).add (aPMode);
+  }
+
+  private void _removeFromIndex (@Nonnull final IPMode aPMode)
+  {
+    final IndexKey aSAKey = _getServiceActionKey (aPMode);
+    if (aSAKey != null)
+    {
+      final ICommonsList <IPMode> aList = m_aServiceActionIndex.get (aSAKey);
+      if (aList != null)
+      {
+        aList.removeIf (x -> x == aPMode);
+        if (aList.isEmpty ())
+          m_aServiceActionIndex.remove (aSAKey);
+      }
+    }
   }
 
   @Nonnull
@@ -65,6 +152,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
 
     m_aRWLock.writeLocked ( () -> {
       internalCreateItem (aPMode);
+      _addToIndex (aPMode);
     });
     AuditHelper.onAuditCreateSuccess (PMode.OT, aPMode.getID ());
     LOGGER.info ("Created PMode with ID '" + aPMode.getID () + "'");
@@ -91,6 +179,8 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
     m_aRWLock.writeLock ().lock ();
     try
     {
+      // The indexed values may change
+      _removeFromIndex (aRealPMode);
       aRealPMode.setInitiator (aPMode.getInitiator ());
       aRealPMode.setResponder (aPMode.getResponder ());
       aRealPMode.setAgreement (aPMode.getAgreement ());
@@ -100,6 +190,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
       aRealPMode.setLeg2 (aPMode.getLeg2 ());
       aRealPMode.setPayloadService (aPMode.getPayloadService ());
       aRealPMode.setReceptionAwareness (aPMode.getReceptionAwareness ());
+      _addToIndex (aRealPMode);
 
       BusinessObjectHelper.setLastModificationNow (aRealPMode);
       internalUpdateItem (aRealPMode);
@@ -133,6 +224,7 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
         return EChange.UNCHANGED;
       }
       internalMarkItemDeleted (aDeletedPMode);
+      _updateVersion (aDeletedPMode);
     }
     finally
     {
@@ -157,6 +249,8 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
     m_aRWLock.writeLock ().lock ();
     try
     {
+      _removeFromIndex (aDeletedPMode);
+      m_aVersions.remove (aDeletedPMode.getID ());
       internalDeleteItem (sPModeID);
     }
     finally
@@ -179,26 +273,37 @@ public class PModeManager extends AbstractPhotonMapBasedWALDAO <IPMode, PMode>
   @Nullable
   public IPMode getPModeOfServiceAndAction (@Nullable final String sService, @Nullable final String sAction)
   {
-    return findFirst (x -> {
-      final PModeLeg aLeg = x.getLeg1 ();
-      if (aLeg != null)
-      {
-        final PModeLegBusinessInformation aBI = aLeg.getBusinessInfo ();
-        if (aBI != null)
-        {
-          return EqualsHelper.equals (aBI.getService (), sService) && EqualsHelper.equals (aBI.getAction (), sAction);
-        }
-      }
-      return false;
+    final IndexKey aKey = new IndexKey (sService, sAction);
+    return m_aRWLock.readLocked ( () -> {
+      final ICommonsList <IPMode> aList = m_aServiceActionIndex.get (aKey);
+      return aList == null ? null : aList.getFirst ();
+    });
+  }
+
+  /**
+   * Get the version of the PMode with the provided ID. The version changes
+   * upon every creation, update and deletion of the PMode, so that data
+   * derived from a PMode can be checked for being up to date.
+   *
+   * @param sID
+   *        The PMode ID to check. May be <code>null</code>.
+   * @return -1 if no such PMode exists, a positive value otherwise.
+   */
+  public long getPModeVersion (@Nullable final String sID)
+  {
+    return m_aRWLock.readLocked ( () -> {
+      final Long aVersion = m_aVersions.get (sID);
+      return aVersion == null ? -1 : aVersion.longValue ();
     });
   }
 
   @Nonnull
   public IPMode createOrUpdatePMode (@Nonnull final PMode aPMode)
   {
-    PMode ret = (PMode) findFirst (getPModeFilter (aPMode.getID (),
-                                                   aPMode.getInitiatorID (),
-                                                   aPMode.getResponderID ()));
+    // Lookup by ID first
+    PMode ret = getOfID (aPMode.getID ());
+    if (ret != null && !getPModeFilter (aPMode.getID (), aPMode.getInitiatorID (), aPMode.getResponderID ()).test (ret))
+      ret = null;
     if (ret == null)
     {
       createPMode (aPMode);
@@ -16,30 +16,145 @@
  */
 package com.helger.as4.model.pmode.resolve;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
 
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.model.pmode.DefaultPMode;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.PModeManager;
+import com.helger.as4.profile.AS4ProfileManager;
 import com.helger.as4.profile.IAS4Profile;
+import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleReadWriteLock;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.hashcode.HashCodeGenerator;
 import com.helger.commons.string.StringHelper;
 
 /**
  * Default implementation of {@link IPModeResolver} using the fixed ID only. If
- * no ID is provided the default pmode is used.
+ * no ID is provided the default pmode is used.<br>
+ * Template PModes created from the default profile and default PModes are
+ * cached, so that the same initiator, responder and address combination does
+ * not create and persist a new PMode for every message. A default PMode is
+ * only persisted if the {@link PModeManager} does not contain it yet. A
+ * cached template is only used as
+ * long as it is unchanged in the {@link PModeManager} - if it was updated or
+ * deleted in the meantime, it is created again. The cache is bounded and the
+ * oldest entry is evicted first.
  *
  * @author bayerlma
  */
+@ThreadSafe
 public class DefaultPModeResolver implements IPModeResolver
 {
+  /** The default maximum number of cached template PModes */
+  public static final int DEFAULT_MAX_CACHE_SIZE = 1000;
+
+  private static final class TemplateKey
+  {
+    private final String m_sProfileID;
+    private final String m_sInitiatorID;
+    private final String m_sResponderID;
+    private final String m_sAddress;
+
+    TemplateKey (@Nullable final String sProfileID,
+                 @Nonnull final String sInitiatorID,
+                 @Nonnull final String sResponderID,
+                 @Nullable final String sAddress)
+    {
+      m_sProfileID = sProfileID;
+      m_sInitiatorID = sInitiatorID;
+      m_sResponderID = sResponderID;
+      m_sAddress = sAddress;
+    }
+
+    @Override
+    public boolean equals (final Object o)
+    {
+      if (o == this)
+        return true;
+      if (o == null || !getClass ().equals (o.getClass ()))
+        return false;
+      final TemplateKey rhs = (TemplateKey) o;
+      return EqualsHelper.equals (m_sProfileID, rhs.m_sProfileID) &&
+             m_sInitiatorID.equals (rhs.m_sInitiatorID) &&
+             m_sResponderID.equals (rhs.m_sResponderID) &&
+             EqualsHelper.equals (m_sAddress, rhs.m_sAddress);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+      return new HashCodeGenerator (this).append (m_sProfileID)
+                                         .append (m_sInitiatorID)
+                                         .append (m_sResponderID)
+                                         .append (m_sAddress)
+                                         .getHashCode ();
+    }
+  }
+
+  /**
+   * A template PMode as contained in the PMode manager, together with its
+   * version at the time it was cached.
+   */
+  private static final class CachedTemplate
+  {
+    private final IPMode m_aPMode;
+    private final long m_nVersion;
+
+    CachedTemplate (@Nonnull final IPMode aPMode, final long nVersion)
+    {
+      m_aPMode = aPMode;
+      m_nVersion = nVersion;
+    }
+
+    boolean isUpToDate (@Nonnull final PModeManager aPModeMgr)
+    {
+      // Must not have been updated or deleted in the meantime
+      return aPModeMgr.getPModeVersion (m_aPMode.getID ()) == m_nVersion && !m_aPMode.isDeleted ();
+    }
+  }
+
   private final boolean m_bUseDefaultAsFallback;
+  private final int m_nMaxCacheSize;
+  private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
+  private final Map <TemplateKey, CachedTemplate> m_aTemplateCache;
 
   public DefaultPModeResolver (final boolean bUseDefaultAsFallback)
   {
+    this (bUseDefaultAsFallback, DEFAULT_MAX_CACHE_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param bUseDefaultAsFallback
+   *        <code>true</code> to use the default PMode if no profile is present
+   * @param nMaxCacheSize
+   *        The maximum number of template PModes to cache. Use 0 to disable
+   *        caching.
+   */
+  public DefaultPModeResolver (final boolean bUseDefaultAsFallback, @Nonnegative final int nMaxCacheSize)
+  {
+    ValueEnforcer.isGE0 (nMaxCacheSize, "MaxCacheSize");
     m_bUseDefaultAsFallback = bUseDefaultAsFallback;
+    m_nMaxCacheSize = nMaxCacheSize;
+    m_aTemplateCache = new LinkedHashMap <TemplateKey, CachedTemplate> ()
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <TemplateKey, CachedTemplate> aEldest)
+      {
+        return size () > m_nMaxCacheSize;
+      }
+    };
   }
 
   public final boolean isUseDefaultAsFallback ()
@@ -47,6 +162,80 @@ public class DefaultPModeResolver implements IPModeResolver
     return m_bUseDefaultAsFallback;
   }
 
+  /**
+   * @return The maximum number of cached template PModes. 0 means caching is
+   *         disabled.
+   */
+  @Nonnegative
+  public final int getMaxCacheSize ()
+  {
+    return m_nMaxCacheSize;
+  }
+
+  /**
+   * @return The number of currently cached template PModes. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getCacheSize ()
+  {
+    return m_aRWLock.readLocked ( () -> m_aTemplateCache.size ());
+  }
+
+  /**
+   * Remove all cached template PModes.
+   */
+  public void clearCache ()
+  {
+    m_aRWLock.writeLocked ( () -> m_aTemplateCache.clear ());
+  }
+
+  @Nullable
+  private IPMode _getOrCreateTemplate (@Nonnull final PModeManager aPModeMgr,
+                                       @Nonnull final TemplateKey aKey,
+                                       @Nonnull final Supplier <? extends IPMode> aCreator)
+  {
+    if (m_nMaxCacheSize == 0)
+      return aCreator.get ();
+
+    final CachedTemplate aCached = m_aRWLock.readLocked ( () -> m_aTemplateCache.get (aKey));
+    if (aCached != null && aCached.isUpToDate (aPModeMgr))
+      return aCached.m_aPMode;
+
+    // Create (and persist) outside of the lock - creating the same template
+    // twice concurrently is harmless
+    final IPMode ret = aCreator.get ();
+    if (ret != null)
+    {
+      // Only templates contained in the PMode manager can be checked for
+      // modifications later on
+      final long nVersion = aPModeMgr.getPModeVersion (ret.getID ());
+      final IPMode aStored = aPModeMgr.getPModeOfID (ret.getID ());
+      if (aStored != null && nVersion > 0)
+      {
+        final CachedTemplate aNew = new CachedTemplate (aStored, nVersion);
+        m_aRWLock.writeLocked ( () -> m_aTemplateCache.put (aKey, aNew));
+        return aStored;
+      }
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static IPMode _getOrCreateDefaultPMode (@Nonnull final PModeManager aPModeMgr,
+                                                  @Nonnull @Nonempty final String sInitiatorID,
+                                                  @Nonnull @Nonempty final String sResponderID,
+                                                  @Nullable final String sAddress)
+  {
+    final IPMode aDefaultPMode = DefaultPMode.getOrCreateDefaultPMode (sInitiatorID, sResponderID, sAddress, false);
+    final IPMode aStored = aPModeMgr.getPModeOfID (aDefaultPMode.getID ());
+    if (aStored != null && !aStored.isDeleted ())
+    {
+      // Already persisted - don't write again
+      return aStored;
+    }
+    return DefaultPMode.getOrCreateDefaultPMode (sInitiatorID, sResponderID, sAddress, true);
+  }
+
   @Nullable
   public IPMode getPModeOfID (@Nullable final String sPModeID,
                               @Nonnull final String sService,
@@ -74,9 +263,12 @@ public class DefaultPModeResolver implements IPModeResolver
     // Use default pmode
     // 1. Based on profile
     // 2. Default default
-    final IAS4Profile aProfile = MetaAS4Manager.getProfileMgr ().getDefaultProfile ();
+    final AS4ProfileManager aProfileMgr = MetaAS4Manager.getProfileMgr ();
+    final IAS4Profile aProfile = aProfileMgr.getProfileCount () > 0 ? aProfileMgr.getDefaultProfile () : null;
     if (aProfile != null)
-      return aProfile.createPModeTemplate (sInitiatorID, sResponderID, sAddress);
+      return _getOrCreateTemplate (aPModeMgr,
+                                   new TemplateKey (aProfile.getID (), sInitiatorID, sResponderID, sAddress),
+                                   () -> aProfile.createPModeTemplate (sInitiatorID, sResponderID, sAddress));
 
     if (!m_bUseDefaultAsFallback)
     {
@@ -84,6 +276,8 @@ public class DefaultPModeResolver implements IPModeResolver
       return null;
     }
 
-    return DefaultPMode.getOrCreateDefaultPMode (sInitiatorID, sResponderID, sAddress, true);
+    return _getOrCreateTemplate (aPModeMgr,
+                                 new TemplateKey (null, sInitiatorID, sResponderID, sAddress),
+                                 () -> _getOrCreateDefaultPMode (aPModeMgr, sInitiatorID, sResponderID, sAddress));
   }
 }
@@ -20,8 +20,10 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
+import com.helger.as4.marshaller.EEbms3ValidationMode;
 import com.helger.as4.model.pmode.IPModeIDProvider;
 import com.helger.as4.model.pmode.PMode;
+import com.helger.as4.wss.EWSSProcessingMode;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.functional.ISupplier;
@@ -40,18 +42,33 @@ public class AS4Profile implements IAS4Profile
   private final ISupplier <? extends IAS4ProfileValidator> m_aProfileValidatorProvider;
   private final IAS4ProfilePModeProvider m_aDefaultPModeProvider;
   private final IPModeIDProvider m_aPModeIDProvider;
+  private final EEbms3ValidationMode m_eEbms3ValidationMode;
+  private final EWSSProcessingMode m_eWSSProcessingMode;
 
   public AS4Profile (@Nonnull @Nonempty final String sID,
                      @Nonnull @Nonempty final String sDisplayName,
                      @Nonnull final ISupplier <? extends IAS4ProfileValidator> aProfileValidatorProvider,
                      @Nonnull final IAS4ProfilePModeProvider aDefaultPModeProvider,
                      @Nonnull final IPModeIDProvider aPModeIDProvider)
+  {
+    this (sID, sDisplayName, aProfileValidatorProvider, aDefaultPModeProvider, aPModeIDProvider, null, null);
+  }
+
+  public AS4Profile (@Nonnull @Nonempty final String sID,
+                     @Nonnull @Nonempty final String sDisplayName,
+                     @Nonnull final ISupplier <? extends IAS4ProfileValidator> aProfileValidatorProvider,
+                     @Nonnull final IAS4ProfilePModeProvider aDefaultPModeProvider,
+                     @Nonnull final IPModeIDProvider aPModeIDProvider,
+                     @Nullable final EEbms3ValidationMode eEbms3ValidationMode,
+                     @Nullable final EWSSProcessingMode eWSSProcessingMode)
   {
     m_sID = ValueEnforcer.notEmpty (sID, "ID");
     m_sDisplayName = ValueEnforcer.notEmpty (sDisplayName, "DisplayName");
     m_aProfileValidatorProvider = ValueEnforcer.notNull (aProfileValidatorProvider, "ProfileValidatorProvider");
     m_aDefaultPModeProvider = ValueEnforcer.notNull (aDefaultPModeProvider, "aDefaultPModeProvider");
     m_aPModeIDProvider = ValueEnforcer.notNull (aPModeIDProvider, "PModeIDProvider");
+    m_eEbms3ValidationMode = eEbms3ValidationMode;
+    m_eWSSProcessingMode = eWSSProcessingMode;
   }
 
   @Nonnull
@@ -88,6 +105,20 @@ public class AS4Profile implements IAS4Profile
     return m_aPModeIDProvider;
   }
 
+  @Override
+  @Nullable
+  public EEbms3ValidationMode getEbms3ValidationMode ()
+  {
+    return m_eEbms3ValidationMode;
+  }
+
+  @Override
+  @Nullable
+  public EWSSProcessingMode getWSSProcessingMode ()
+  {
+    return m_eWSSProcessingMode;
+  }
+
   @Override
   public String toString ()
   {
@@ -96,6 +127,8 @@ public class AS4Profile implements IAS4Profile
                                        .append ("ProfileValidatorProvider", m_aProfileValidatorProvider)
                                        .append ("DefaultPModeProvider", m_aDefaultPModeProvider)
                                        .append ("PModeIDProvider", m_aPModeIDProvider)
+                                       .append ("Ebms3ValidationMode", m_eEbms3ValidationMode)
+                                       .append ("WSSProcessingMode", m_eWSSProcessingMode)
                                        .getToString ();
   }
 }
@@ -21,8 +21,10 @@ import java.io.Serializable;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import com.helger.as4.marshaller.EEbms3ValidationMode;
 import com.helger.as4.model.pmode.IPModeIDProvider;
 import com.helger.as4.model.pmode.PMode;
+import com.helger.as4.wss.EWSSProcessingMode;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.id.IHasID;
 import com.helger.commons.name.IHasDisplayName;
@@ -60,4 +62,26 @@ public interface IAS4Profile extends IHasID <String>, IHasDisplayName, Serializa
 
   @Nonnull
   IPModeIDProvider getPModeIDProvider ();
+
+  /**
+   * @return The validation mode for the Ebms3 headers of incoming messages of
+   *         this profile. May be <code>null</code> to use the global default.
+   * @see com.helger.as4.marshaller.Ebms3MarshallerPool#getDefaultValidationMode()
+   */
+  @Nullable
+  default EEbms3ValidationMode getEbms3ValidationMode ()
+  {
+    return null;
+  }
+
+  /**
+   * @return The processing mode for the WS-Security header of incoming
+   *         messages of this profile. May be <code>null</code> to use the
+   *         global default.
+   */
+  @Nullable
+  default EWSSProcessingMode getWSSProcessingMode ()
+  {
+    return null;
+  }
 }
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.soap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.XMLConstants;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.marshaller.EEbms3ValidationMode;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.commons.ValueEnforcer;
+import com.helger.xml.XMLFactory;
+
+/**
+ * Builds SOAP envelopes directly in DOM. The SOAP Envelope, Header and Body
+ * elements are created manually, the Ebms3 Messaging header is marshalled
+ * directly into the SOAP Header and the payload is imported into the SOAP
+ * Body. So the resulting document is created in a single pass, without an
+ * intermediate Messaging document and without marshalling the SOAP envelope
+ * via JAXB.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SOAPEnvelopeBuilder
+{
+  private SOAPEnvelopeBuilder ()
+  {}
+
+  /**
+   * Create a new SOAP document.
+   *
+   * @param eSOAPVersion
+   *        SOAP version to use. May not be <code>null</code>.
+   * @param aMessaging
+   *        The Ebms3 Messaging header to be contained in the SOAP Header. May
+   *        not be <code>null</code>.
+   * @param aPayload
+   *        The optional payload to be contained in the SOAP Body. If it is a
+   *        document, the document element is used. May be <code>null</code>.
+   * @param eValidationMode
+   *        The validation mode for the Messaging header. May not be
+   *        <code>null</code>.
+   * @return The created document. Never <code>null</code>.
+   * @throws IllegalStateException
+   *         If the Messaging header cannot be written
+   */
+  @Nonnull
+  public static Document createSOAPDocument (@Nonnull final ESOAPVersion eSOAPVersion,
+                                             @Nonnull final Ebms3Messaging aMessaging,
+                                             @Nullable final Node aPayload,
+                                             @Nonnull final EEbms3ValidationMode eValidationMode)
+  {
+    ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
+    ValueEnforcer.notNull (aMessaging, "Messaging");
+    ValueEnforcer.notNull (eValidationMode, "ValidationMode");
+
+    final String sNamespaceURI = eSOAPVersion.getNamespaceURI ();
+    final String sPrefix = eSOAPVersion.getNamespacePrefix () + ":";
+
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element eEnvelope = aDoc.createElementNS (sNamespaceURI, sPrefix + "Envelope");
+    aDoc.appendChild (eEnvelope);
+    eEnvelope.setAttributeNS (XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                              XMLConstants.XMLNS_ATTRIBUTE + ":" + eSOAPVersion.getNamespacePrefix (),
+                              sNamespaceURI);
+    final Element eHeader = aDoc.createElementNS (sNamespaceURI, sPrefix + eSOAPVersion.getHeaderElementName ());
+    eEnvelope.appendChild (eHeader);
+    final Element eBody = aDoc.createElementNS (sNamespaceURI, sPrefix + eSOAPVersion.getBodyElementName ());
+    eEnvelope.appendChild (eBody);
+
+    // Marshal the header directly into the SOAP Header
+    if (Ebms3MarshallerPool.getInstance (EEbms3DocumentType.MESSAGING)
+                           .writeTo (aMessaging, eHeader, eValidationMode)
+                           .isFailure ())
+      throw new IllegalStateException ("Failed to write EBMS3 Messaging to XML");
+
+    if (aPayload != null)
+    {
+      final Node aRealPayload = aPayload instanceof Document ? ((Document) aPayload).getDocumentElement () : aPayload;
+      eBody.appendChild (aDoc.importNode (aRealPayload, true));
+    }
+    return aDoc;
+  }
+
+  /**
+   * Create a new SOAP document using the default validation mode of
+   * {@link Ebms3MarshallerPool}.
+   *
+   * @param eSOAPVersion
+   *        SOAP version to use. May not be <code>null</code>.
+   * @param aMessaging
+   *        The Ebms3 Messaging header to be contained in the SOAP Header. May
+   *        not be <code>null</code>.
+   * @param aPayload
+   *        The optional payload to be contained in the SOAP Body. May be
+   *        <code>null</code>.
+   * @return The created document. Never <code>null</code>.
+   */
+  @Nonnull
+  public static Document createSOAPDocument (@Nonnull final ESOAPVersion eSOAPVersion,
+                                             @Nonnull final Ebms3Messaging aMessaging,
+                                             @Nullable final Node aPayload)
+  {
+    return createSOAPDocument (eSOAPVersion, aMessaging, aPayload, Ebms3MarshallerPool.getDefaultValidationMode ());
+  }
+}
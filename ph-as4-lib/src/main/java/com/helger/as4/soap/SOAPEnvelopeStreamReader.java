@@ -0,0 +1,397 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SpoolOutputStream;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.io.stream.NonBlockingBufferedWriter;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.xml.XMLFactory;
+
+/**
+ * StAX based reader for SOAP envelopes. Only the SOAP Envelope and the SOAP
+ * Header are converted to DOM. The content of the SOAP Body is spooled to
+ * memory or to a temporary file (depending on the size) and is only converted
+ * to DOM on demand. This keeps the heap usage per request proportional to the
+ * header size and not to the payload size.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class SOAPEnvelopeStreamReader
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (SOAPEnvelopeStreamReader.class);
+  private static final XMLInputFactory XIF;
+
+  static
+  {
+    XIF = XMLInputFactory.newInstance ();
+    XIF.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    XIF.setProperty (XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+    // Security - no DTDs and no external entities
+    XIF.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XIF.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private SOAPEnvelopeStreamReader ()
+  {}
+
+  @Nonnull
+  private static String _getQName (@Nullable final String sPrefix, @Nonnull final String sLocalName)
+  {
+    return StringHelper.hasText (sPrefix) ? sPrefix + ":" + sLocalName : sLocalName;
+  }
+
+  @Nonnull
+  private static Element _createElement (@Nonnull final Document aDoc, @Nonnull final XMLStreamReader aReader)
+  {
+    final String sNamespaceURI = aReader.getNamespaceURI ();
+    final Element ret = aDoc.createElementNS (StringHelper.hasText (sNamespaceURI) ? sNamespaceURI : null,
+                                              _getQName (aReader.getPrefix (), aReader.getLocalName ()));
+
+    // Namespace declarations
+    for (int i = 0; i < aReader.getNamespaceCount (); ++i)
+    {
+      final String sPrefix = aReader.getNamespacePrefix (i);
+      ret.setAttributeNS (XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                          StringHelper.hasText (sPrefix) ? XMLConstants.XMLNS_ATTRIBUTE + ":" + sPrefix
+                                                         : XMLConstants.XMLNS_ATTRIBUTE,
+                          StringHelper.getNotNull (aReader.getNamespaceURI (i)));
+    }
+
+    // Attributes
+    for (int i = 0; i < aReader.getAttributeCount (); ++i)
+    {
+      final String sAttrNamespaceURI = aReader.getAttributeNamespace (i);
+      ret.setAttributeNS (StringHelper.hasText (sAttrNamespaceURI) ? sAttrNamespaceURI : null,
+                          _getQName (aReader.getAttributePrefix (i), aReader.getAttributeLocalName (i)),
+                          aReader.getAttributeValue (i));
+    }
+    return ret;
+  }
+
+  private static void _collectNamespaces (@Nonnull final XMLStreamReader aReader,
+                                          @Nonnull final Map <String, String> aTarget)
+  {
+    for (int i = 0; i < aReader.getNamespaceCount (); ++i)
+      aTarget.put (StringHelper.getNotNull (aReader.getNamespacePrefix (i)),
+                   StringHelper.getNotNull (aReader.getNamespaceURI (i)));
+  }
+
+  private static void _writeEscaped (@Nonnull final Writer aWriter,
+                                     @Nonnull final String sText,
+                                     final boolean bAttribute) throws IOException
+  {
+    for (final char c : sText.toCharArray ())
+      switch (c)
+      {
+        case '&':
+          aWriter.write ("&amp;");
+          break;
+        case '<':
+          aWriter.write ("&lt;");
+          break;
+        case '>':
+          aWriter.write ("&gt;");
+          break;
+        case '"':
+          aWriter.write (bAttribute ? "&quot;" : "\"");
+          break;
+        case '\r':
+          // Must be escaped so that it survives re-parsing
+          aWriter.write ("&#xD;");
+          break;
+        case '\n':
+          aWriter.write (bAttribute ? "&#xA;" : "\n");
+          break;
+        case '\t':
+          aWriter.write (bAttribute ? "&#x9;" : "\t");
+          break;
+        default:
+          aWriter.write (c);
+      }
+  }
+
+  private static void _writeNamespace (@Nonnull final Writer aWriter,
+                                       @Nullable final String sPrefix,
+                                       @Nullable final String sNamespaceURI) throws IOException
+  {
+    aWriter.write (' ');
+    aWriter.write (StringHelper.hasText (sPrefix) ? XMLConstants.XMLNS_ATTRIBUTE + ":" + sPrefix
+                                                  : XMLConstants.XMLNS_ATTRIBUTE);
+    aWriter.write ("=\"");
+    _writeEscaped (aWriter, StringHelper.getNotNull (sNamespaceURI), true);
+    aWriter.write ('"');
+  }
+
+  private static void _writeStartElement (@Nonnull final XMLStreamReader aReader,
+                                          @Nonnull final Writer aWriter,
+                                          @Nullable final Map <String, String> aNamespaces) throws IOException
+  {
+    aWriter.write ('<');
+    aWriter.write (_getQName (aReader.getPrefix (), aReader.getLocalName ()));
+
+    if (aNamespaces != null)
+    {
+      // All namespaces in scope
+      for (final Map.Entry <String, String> aEntry : aNamespaces.entrySet ())
+        _writeNamespace (aWriter, aEntry.getKey (), aEntry.getValue ());
+    }
+    else
+    {
+      // Only the namespaces declared on this element
+      for (int i = 0; i < aReader.getNamespaceCount (); ++i)
+        _writeNamespace (aWriter, aReader.getNamespacePrefix (i), aReader.getNamespaceURI (i));
+    }
+
+    for (int i = 0; i < aReader.getAttributeCount (); ++i)
+    {
+      aWriter.write (' ');
+      aWriter.write (_getQName (aReader.getAttributePrefix (i), aReader.getAttributeLocalName (i)));
+      aWriter.write ("=\"");
+      _writeEscaped (aWriter, aReader.getAttributeValue (i), true);
+      aWriter.write ('"');
+    }
+    aWriter.write ('>');
+  }
+
+  /**
+   * Serialize the SOAP Body element the reader is currently positioned on
+   * including all children. After this method the reader is positioned on the
+   * end element of the SOAP Body.
+   *
+   * @return <code>true</code> if the SOAP Body has at least one child node.
+   */
+  private static boolean _spoolBody (@Nonnull final XMLStreamReader aReader,
+                                     @Nonnull final Map <String, String> aInScopeNamespaces,
+                                     @Nonnull final Writer aWriter) throws XMLStreamException, IOException
+  {
+    final String sBodyQName = _getQName (aReader.getPrefix (), aReader.getLocalName ());
+    aWriter.write (StreamedSOAPDocument.BODY_XML_DECLARATION);
+    // Declare all namespaces in scope on the Body, so that the spooled content
+    // can be parsed standalone
+    _writeStartElement (aReader, aWriter, aInScopeNamespaces);
+
+    boolean bHasContent = false;
+    int nDepth = 0;
+    while (aReader.hasNext ())
+    {
+      final int nEvent = aReader.next ();
+      switch (nEvent)
+      {
+        case XMLStreamConstants.START_ELEMENT:
+          bHasContent = true;
+          nDepth++;
+          _writeStartElement (aReader, aWriter, null);
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          if (nDepth == 0)
+          {
+            // End of Body
+            aWriter.write ("</" + sBodyQName + ">");
+            return bHasContent;
+          }
+          nDepth--;
+          aWriter.write ("</" + _getQName (aReader.getPrefix (), aReader.getLocalName ()) + ">");
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          bHasContent = true;
+          _writeEscaped (aWriter, aReader.getText (), false);
+          break;
+        case XMLStreamConstants.CDATA:
+          bHasContent = true;
+          aWriter.write ("<![CDATA[" + aReader.getText () + "]]>");
+          break;
+        case XMLStreamConstants.COMMENT:
+          bHasContent = true;
+          aWriter.write ("<!--" + aReader.getText () + "-->");
+          break;
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          bHasContent = true;
+          aWriter.write ("<?" + aReader.getPITarget () + " " + StringHelper.getNotNull (aReader.getPIData ()) + "?>");
+          break;
+        default:
+          // ignore
+          break;
+      }
+    }
+    throw new XMLStreamException ("Unexpected end of document inside SOAP Body");
+  }
+
+  @Nonnull
+  private static StreamedSOAPDocument _read (@Nonnull final XMLStreamReader aReader,
+                                             @Nonnull final AS4ResourceManager aResMgr) throws XMLStreamException,
+                                                                                        IOException
+  {
+    final Document aDoc = XMLFactory.newDocument ();
+    final ICommonsOrderedMap <String, String> aInScopeNamespaces = new CommonsLinkedHashMap <> ();
+    ESOAPVersion eSOAPVersion = null;
+    Element aBodyElement = null;
+    AS4SpoolOutputStream aBodySpool = null;
+    boolean bBodyHasContent = false;
+    Node aCurParent = aDoc;
+    int nDepth = 0;
+
+    while (aReader.hasNext ())
+    {
+      final int nEvent = aReader.next ();
+      switch (nEvent)
+      {
+        case XMLStreamConstants.START_ELEMENT:
+        {
+          final Element aElement = _createElement (aDoc, aReader);
+          aCurParent.appendChild (aElement);
+          nDepth++;
+          if (nDepth == 1)
+          {
+            // SOAP Envelope
+            eSOAPVersion = ESOAPVersion.getFromNamespaceURIOrNull (aReader.getNamespaceURI ());
+            _collectNamespaces (aReader, aInScopeNamespaces);
+          }
+
+          if (nDepth == 2 &&
+              aBodyElement == null &&
+              eSOAPVersion != null &&
+              eSOAPVersion.getNamespaceURI ().equals (aReader.getNamespaceURI ()) &&
+              eSOAPVersion.getBodyElementName ().equals (aReader.getLocalName ()))
+          {
+            // SOAP Body - spool the content instead of building DOM
+            aBodyElement = aElement;
+            _collectNamespaces (aReader, aInScopeNamespaces);
+            aBodySpool = new AS4SpoolOutputStream (aResMgr);
+            final Writer aBodyWriter = new OutputStreamWriter (aBodySpool, StreamedSOAPDocument.BODY_CHARSET);
+            try (final Writer aWriter = new NonBlockingBufferedWriter (aBodyWriter))
+            {
+              bBodyHasContent = _spoolBody (aReader, aInScopeNamespaces, aWriter);
+            }
+            nDepth--;
+          }
+          else
+            aCurParent = aElement;
+          break;
+        }
+        case XMLStreamConstants.END_ELEMENT:
+          aCurParent = aCurParent.getParentNode ();
+          nDepth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.SPACE:
+          // Text is not allowed on document level
+          if (nDepth > 0)
+            aCurParent.appendChild (aDoc.createTextNode (aReader.getText ()));
+          break;
+        case XMLStreamConstants.CDATA:
+          if (nDepth > 0)
+            aCurParent.appendChild (aDoc.createCDATASection (aReader.getText ()));
+          break;
+        case XMLStreamConstants.COMMENT:
+          aCurParent.appendChild (aDoc.createComment (aReader.getText ()));
+          break;
+        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+          aCurParent.appendChild (aDoc.createProcessingInstruction (aReader.getPITarget (),
+                                                                    StringHelper.getNotNull (aReader.getPIData ())));
+          break;
+        default:
+          // ignore
+          break;
+      }
+    }
+
+    if (aDoc.getDocumentElement () == null)
+      throw new XMLStreamException ("No document element found");
+
+    return new StreamedSOAPDocument (aDoc,
+                                     eSOAPVersion,
+                                     aBodyElement,
+                                     aBodySpool == null ? null : aBodySpool.getAsInputStreamProvider (),
+                                     bBodyHasContent);
+  }
+
+  /**
+   * Read a SOAP document from the passed input stream. The SOAP Body content is
+   * spooled (in memory or to a temporary file managed by the passed resource
+   * manager) and not converted to DOM.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>. Is
+   *        closed after reading.
+   * @param aResMgr
+   *        The resource manager for temporary files. May not be
+   *        <code>null</code>.
+   * @return <code>null</code> if the content could not be parsed as XML.
+   * @throws IOException
+   *         In case spooling fails
+   */
+  @Nullable
+  public static StreamedSOAPDocument readSOAPDocument (@Nonnull final InputStream aIS,
+                                                       @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+
+    XMLStreamReader aReader = null;
+    try
+    {
+      aReader = XIF.createXMLStreamReader (aIS);
+      return _read (aReader, aResMgr);
+    }
+    catch (final XMLStreamException ex)
+    {
+      LOGGER.warn ("Failed to parse SOAP document: " + ex.getMessage ());
+      return null;
+    }
+    finally
+    {
+      if (aReader != null)
+        try
+        {
+          aReader.close ();
+        }
+        catch (final XMLStreamException ex)
+        {
+          // ignore
+        }
+      StreamHelper.close (aIS);
+    }
+  }
+}
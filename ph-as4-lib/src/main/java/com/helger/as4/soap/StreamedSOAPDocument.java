@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * A SOAP document read by {@link SOAPEnvelopeStreamReader}. The SOAP Envelope
+ * and the SOAP Header are always available as DOM, whereas the content of the
+ * SOAP Body is spooled and only parsed into the DOM upon
+ * {@link #materializeBody()}.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class StreamedSOAPDocument
+{
+  /** The charset of the spooled SOAP Body */
+  public static final Charset BODY_CHARSET = StandardCharsets.UTF_8;
+  /** The XML declaration the spooled SOAP Body starts with */
+  public static final String BODY_XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"" + BODY_CHARSET.name () + "\"?>";
+
+  private final Document m_aDoc;
+  private final ESOAPVersion m_eSOAPVersion;
+  private final Element m_aBodyElement;
+  private final IHasInputStream m_aBodyISP;
+  private final boolean m_bBodyHasContent;
+  private boolean m_bBodyMaterialized;
+
+  /**
+   * Constructor
+   *
+   * @param aDoc
+   *        The DOM document with Envelope and Header. May not be
+   *        <code>null</code>.
+   * @param eSOAPVersion
+   *        The SOAP version of the envelope. May be <code>null</code> if the
+   *        document is no SOAP document.
+   * @param aBodyElement
+   *        The SOAP Body element inside the DOM without the content. May be
+   *        <code>null</code> if no Body is present.
+   * @param aBodyISP
+   *        The input stream provider for the serialized SOAP Body element
+   *        incl. content. May only be <code>null</code> if no Body is
+   *        present.
+   * @param bBodyHasContent
+   *        <code>true</code> if the SOAP Body had child nodes
+   */
+  public StreamedSOAPDocument (@Nonnull final Document aDoc,
+                               @Nullable final ESOAPVersion eSOAPVersion,
+                               @Nullable final Element aBodyElement,
+                               @Nullable final IHasInputStream aBodyISP,
+                               final boolean bBodyHasContent)
+  {
+    ValueEnforcer.notNull (aDoc, "Doc");
+    ValueEnforcer.isTrue (aBodyElement == null || aBodyISP != null, "Body content provider is missing");
+    m_aDoc = aDoc;
+    m_eSOAPVersion = eSOAPVersion;
+    m_aBodyElement = aBodyElement;
+    m_aBodyISP = aBodyISP;
+    m_bBodyHasContent = bBodyHasContent;
+    // Nothing to materialize if the body is empty
+    m_bBodyMaterialized = !bBodyHasContent;
+  }
+
+  /**
+   * @return The DOM document. The SOAP Body is only filled after
+   *         {@link #materializeBody()} was called. Never <code>null</code>.
+   */
+  @Nonnull
+  public Document getDocument ()
+  {
+    return m_aDoc;
+  }
+
+  /**
+   * @return The SOAP version determined from the envelope namespace URI. May
+   *         be <code>null</code>.
+   */
+  @Nullable
+  public ESOAPVersion getSOAPVersion ()
+  {
+    return m_eSOAPVersion;
+  }
+
+  /**
+   * @return <code>true</code> if the SOAP Body has child nodes (no matter if
+   *         they are materialized or not).
+   */
+  public boolean isBodyHasContent ()
+  {
+    return m_bBodyHasContent;
+  }
+
+  /**
+   * @return <code>true</code> if the SOAP Body content is part of the DOM
+   *         document.
+   */
+  public boolean isBodyMaterialized ()
+  {
+    return m_bBodyMaterialized;
+  }
+
+  /**
+   * @return The input stream provider for the serialized SOAP Body (the Body
+   *         element incl. all in-scope namespace declarations). The content is
+   *         encoded with {@link #BODY_CHARSET} and starts with
+   *         {@link #BODY_XML_DECLARATION}. May be <code>null</code> if the
+   *         document has no SOAP Body.
+   */
+  @Nullable
+  public IHasInputStream getBodyInputStreamProvider ()
+  {
+    return m_aBodyISP;
+  }
+
+  /**
+   * Parse the spooled SOAP Body content and add it to the DOM document. Calling
+   * this method more than once has no effect.
+   *
+   * @return The DOM document containing the full SOAP Body. Never
+   *         <code>null</code>.
+   * @throws IllegalStateException
+   *         If the spooled SOAP Body cannot be parsed
+   */
+  @Nonnull
+  public Document materializeBody ()
+  {
+    if (!m_bBodyMaterialized)
+    {
+      final Document aBodyDoc;
+      try (final InputStream aIS = m_aBodyISP.getInputStream ())
+      {
+        aBodyDoc = DOMReader.readXMLDOM (aIS);
+      }
+      catch (final SAXException | IOException ex)
+      {
+        throw new IllegalStateException ("Failed to parse spooled SOAP Body", ex);
+      }
+      if (aBodyDoc == null)
+        throw new IllegalStateException ("Failed to parse spooled SOAP Body");
+
+      final Element aSpooledBody = aBodyDoc.getDocumentElement ();
+      Node aChild = aSpooledBody.getFirstChild ();
+      while (aChild != null)
+      {
+        m_aBodyElement.appendChild (m_aDoc.importNode (aChild, true));
+        aChild = aChild.getNextSibling ();
+      }
+      m_bBodyMaterialized = true;
+    }
+    return m_aDoc;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("SOAPVersion", m_eSOAPVersion)
+                                       .append ("BodyHasContent", m_bBodyHasContent)
+                                       .append ("BodyMaterialized", m_bBodyMaterialized)
+                                       .getToString ();
+  }
+}
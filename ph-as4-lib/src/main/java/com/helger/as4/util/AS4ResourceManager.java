@@ -20,30 +20,196 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.concurrent.SimpleReadWriteLock;
-import com.helger.commons.io.file.FileIOError;
 import com.helger.commons.io.stream.StreamHelper;
 
+/**
+ * Manages the temporary files and open streams of a single message exchange,
+ * that are all released upon {@link #close()}.<br>
+ * Additionally all instances share a process-wide memory budget for
+ * attachments and other content kept in memory. Content may only be kept in
+ * memory if the memory can be reserved via {@link #tryReserveMemory(long)} -
+ * otherwise it must be spilled to disk. Reserved memory is released when the
+ * owning resource manager is closed.
+ *
+ * @author Philip Helger
+ */
 public class AS4ResourceManager implements Closeable
 {
+  /** The default process-wide memory budget in bytes */
+  public static final long DEFAULT_MEMORY_BUDGET = 64 * CGlobal.BYTES_PER_MEGABYTE;
+
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4ResourceManager.class);
 
+  private static volatile long s_nMemoryBudget = DEFAULT_MEMORY_BUDGET;
+  private static final AtomicLong s_aMemoryInUse = new AtomicLong (0);
+  private static final AtomicLong s_aSpilledBytes = new AtomicLong (0);
+  private static final AtomicLong s_aSpillCount = new AtomicLong (0);
+
   private final SimpleReadWriteLock m_aRWLock = new SimpleReadWriteLock ();
   private final AtomicBoolean m_aInClose = new AtomicBoolean (false);
   private final ICommonsList <File> m_aTempFiles = new CommonsArrayList<> ();
   private final ICommonsList <Closeable> m_aCloseables = new CommonsArrayList<> ();
+  private final AtomicLong m_aReservedMemory = new AtomicLong (0);
+  private final AS4TempFileArena m_aArena;
+  // Created on demand
+  private File m_aTempDir;
 
   public AS4ResourceManager ()
-  {}
+  {
+    this (AS4TempFileArena.getDefaultInstance ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aArena
+   *        The arena in which the temporary files are created. May not be
+   *        <code>null</code>.
+   */
+  public AS4ResourceManager (@Nonnull final AS4TempFileArena aArena)
+  {
+    m_aArena = ValueEnforcer.notNull (aArena, "Arena");
+  }
+
+  /**
+   * @return The process-wide memory budget in bytes for content kept in
+   *         memory. Always &ge; 0.
+   */
+  @Nonnegative
+  public static long getMemoryBudget ()
+  {
+    return s_nMemoryBudget;
+  }
+
+  /**
+   * Set the process-wide memory budget. Changing the budget does not affect
+   * memory that is already reserved.
+   *
+   * @param nMemoryBudget
+   *        The number of bytes that may be kept in memory by all resource
+   *        managers together. Must be &ge; 0. 0 means that everything is
+   *        spilled to disk.
+   */
+  public static void setMemoryBudget (@Nonnegative final long nMemoryBudget)
+  {
+    ValueEnforcer.isGE0 (nMemoryBudget, "MemoryBudget");
+    s_nMemoryBudget = nMemoryBudget;
+  }
+
+  /**
+   * @return The number of bytes currently reserved in memory by all resource
+   *         managers. Always &ge; 0.
+   */
+  @Nonnegative
+  public static long getMemoryInUse ()
+  {
+    return s_aMemoryInUse.get ();
+  }
+
+  /**
+   * @return The total number of bytes written to disk because they could not
+   *         be kept in memory. Always &ge; 0.
+   */
+  @Nonnegative
+  public static long getSpilledBytes ()
+  {
+    return s_aSpilledBytes.get ();
+  }
+
+  /**
+   * @return The number of times content was spilled to disk instead of being
+   *         kept in memory. Always &ge; 0.
+   */
+  @Nonnegative
+  public static long getSpillCount ()
+  {
+    return s_aSpillCount.get ();
+  }
+
+  /**
+   * Try to reserve memory from the process-wide memory budget.
+   *
+   * @param nBytes
+   *        The number of bytes to reserve. Must be &ge; 0.
+   * @return <code>true</code> if the memory was reserved and the content may
+   *         be kept in memory, <code>false</code> if the budget is exhausted.
+   */
+  public boolean tryReserveMemory (@Nonnegative final long nBytes)
+  {
+    ValueEnforcer.isGE0 (nBytes, "Bytes");
+    final long nBudget = s_nMemoryBudget;
+    long nInUse;
+    do
+    {
+      nInUse = s_aMemoryInUse.get ();
+      if (nInUse + nBytes > nBudget)
+        return false;
+    } while (!s_aMemoryInUse.compareAndSet (nInUse, nInUse + nBytes));
+    m_aReservedMemory.addAndGet (nBytes);
+    return true;
+  }
+
+  /**
+   * Release memory previously reserved by this resource manager, e.g. because
+   * the content was spilled to disk. All remaining reserved memory is released
+   * upon {@link #close()}.
+   *
+   * @param nBytes
+   *        The number of bytes to release. Must be &ge; 0.
+   */
+  public void releaseMemory (@Nonnegative final long nBytes)
+  {
+    ValueEnforcer.isGE0 (nBytes, "Bytes");
+    // Never release more than reserved
+    long nReserved;
+    long nRelease;
+    do
+    {
+      nReserved = m_aReservedMemory.get ();
+      nRelease = Math.min (nReserved, nBytes);
+    } while (!m_aReservedMemory.compareAndSet (nReserved, nReserved - nRelease));
+    s_aMemoryInUse.addAndGet (-nRelease);
+  }
+
+  /**
+   * @return The number of bytes currently reserved by this resource manager.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public long getReservedMemory ()
+  {
+    return m_aReservedMemory.get ();
+  }
+
+  /**
+   * Remember that content was spilled to disk.
+   *
+   * @param nBytes
+   *        The number of bytes that were written to disk. Must be &ge; 0.
+   * @param bNewSpill
+   *        <code>true</code> if this is the first spill of a content,
+   *        <code>false</code> if more bytes of a content that was already
+   *        spilled were written.
+   */
+  public void onSpilled (@Nonnegative final long nBytes, final boolean bNewSpill)
+  {
+    s_aSpilledBytes.addAndGet (nBytes);
+    if (bNewSpill)
+      s_aSpillCount.incrementAndGet ();
+  }
 
   @Nonnull
   public File createTempFile () throws IOException
@@ -51,11 +217,17 @@ public class AS4ResourceManager implements Closeable
     if (m_aInClose.get ())
       throw new IllegalStateException ("ResourceManager is already closing/closed!");
 
-    // Create
-    final File ret = File.createTempFile ("as4-res-", ".tmp");
-    // And remember
-    m_aRWLock.writeLocked ( () -> m_aTempFiles.add (ret));
-    return ret;
+    return m_aRWLock.writeLockedThrowing ( () -> {
+      // All files of this resource manager are in the same directory
+      if (m_aTempDir == null)
+        m_aTempDir = m_aArena.createDirectory ();
+
+      // Create
+      final File ret = File.createTempFile ("as4-res-", ".tmp", m_aTempDir);
+      // And remember
+      m_aTempFiles.add (ret);
+      return ret;
+    });
   }
 
   public void addCloseable (@Nonnull final Closeable aCloseable)
@@ -65,7 +237,9 @@ public class AS4ResourceManager implements Closeable
     if (m_aInClose.get ())
       throw new IllegalStateException ("ResourceManager is already closing/closed!");
 
-    m_aCloseables.add (aCloseable);
+    // May be called from different threads, e.g. when attachments are
+    // processed in parallel
+    m_aRWLock.writeLocked ( () -> m_aCloseables.add (aCloseable));
   }
 
   public void close ()
@@ -86,23 +260,25 @@ public class AS4ResourceManager implements Closeable
         StreamHelper.close (aCloseable);
     }
 
-    // Get and delete all temp files
+    // The memory is no longer referenced
+    releaseMemory (m_aReservedMemory.get ());
+
+    // Delete the directory with all temp files in the background
     final ICommonsList <File> aFiles = m_aRWLock.writeLocked ( () -> {
       final ICommonsList <File> ret = m_aTempFiles.getClone ();
       m_aTempFiles.clear ();
       return ret;
     });
-    if (aFiles.isNotEmpty ())
+    final File aTempDir = m_aRWLock.writeLocked ( () -> {
+      final File ret = m_aTempDir;
+      m_aTempDir = null;
+      return ret;
+    });
+    if (aTempDir != null)
     {
-      LOGGER.info ("Deleting " + aFiles.size () + " temporary files");
-      for (final File aFile : aFiles)
-      {
-        if (LOGGER.isDebugEnabled ())
-          LOGGER.debug ("Deleting temporary file " + aFile.getAbsolutePath ());
-        final FileIOError aError = AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aFile);
-        if (aError.isFailure ())
-          LOGGER.warn ("  Failed to delete " + aFile.getAbsolutePath () + ": " + aError.toString ());
-      }
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Scheduling the deletion of " + aFiles.size () + " temporary files");
+      m_aArena.deleteDirectoryAsync (aTempDir);
     }
   }
 }
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * An {@link OutputStream} that keeps the written content in memory as long as
+ * the total size is below a threshold, and transparently switches to a
+ * temporary file (managed by an {@link AS4ResourceManager}) as soon as the
+ * threshold is exceeded or the process-wide memory budget of the
+ * {@link AS4ResourceManager} is exhausted. Each byte is written exactly once -
+ * there is no intermediate full in-memory copy of large content.
+ *
+ * @author Philip Helger
+ */
+@NotThreadSafe
+public class AS4SpoolOutputStream extends OutputStream
+{
+  /** Default number of bytes that may be kept in memory */
+  public static final long DEFAULT_MEMORY_THRESHOLD = 64 * CGlobal.BYTES_PER_KILOBYTE;
+
+  private final AS4ResourceManager m_aResMgr;
+  private final long m_nMemoryThreshold;
+  private NonBlockingByteArrayOutputStream m_aMemOS = new NonBlockingByteArrayOutputStream ();
+  private File m_aTempFile;
+  private OutputStream m_aFileOS;
+  private long m_nSize = 0;
+  private boolean m_bClosed = false;
+
+  public AS4SpoolOutputStream (@Nonnull final AS4ResourceManager aResMgr)
+  {
+    this (aResMgr, DEFAULT_MEMORY_THRESHOLD);
+  }
+
+  public AS4SpoolOutputStream (@Nonnull final AS4ResourceManager aResMgr, @Nonnegative final long nMemoryThreshold)
+  {
+    ValueEnforcer.notNull (aResMgr, "ResMgr");
+    ValueEnforcer.isGE0 (nMemoryThreshold, "MemoryThreshold");
+    m_aResMgr = aResMgr;
+    m_nMemoryThreshold = nMemoryThreshold;
+  }
+
+  private void _ensureOpen () throws IOException
+  {
+    if (m_bClosed)
+      throw new IOException ("Spool stream is already closed");
+  }
+
+  @Nonnull
+  private OutputStream _getTargetOS (@Nonnegative final int nBytesToWrite) throws IOException
+  {
+    if (m_aFileOS == null)
+    {
+      // Stay in memory as long as the threshold is not exceeded and the
+      // global memory budget allows it
+      if (m_nSize + nBytesToWrite <= m_nMemoryThreshold && m_aResMgr.tryReserveMemory (nBytesToWrite))
+        return m_aMemOS;
+
+      // Switch to a temporary file and flush what we have
+      m_aTempFile = m_aResMgr.createTempFile ();
+      m_aFileOS = FileHelper.getBufferedOutputStream (m_aTempFile);
+      if (m_aFileOS == null)
+        throw new IOException ("Failed to open temporary file " + m_aTempFile.getAbsolutePath ());
+      m_aMemOS.writeTo (m_aFileOS);
+      m_aMemOS = null;
+      m_aResMgr.releaseMemory (m_nSize);
+      m_aResMgr.onSpilled (m_nSize + nBytesToWrite, true);
+    }
+    else
+      m_aResMgr.onSpilled (nBytesToWrite, false);
+    return m_aFileOS;
+  }
+
+  @Override
+  public void write (final int nByte) throws IOException
+  {
+    _ensureOpen ();
+    _getTargetOS (1).write (nByte);
+    m_nSize++;
+  }
+
+  @Override
+  public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+  {
+    _ensureOpen ();
+    _getTargetOS (nLen).write (aBuf, nOfs, nLen);
+    m_nSize += nLen;
+  }
+
+  @Override
+  public void flush () throws IOException
+  {
+    if (m_aFileOS != null)
+      m_aFileOS.flush ();
+  }
+
+  @Override
+  public void close () throws IOException
+  {
+    if (!m_bClosed)
+    {
+      m_bClosed = true;
+      if (m_aFileOS != null)
+        m_aFileOS.close ();
+    }
+  }
+
+  /**
+   * @return The number of bytes written so far.
+   */
+  @Nonnegative
+  public long getSize ()
+  {
+    return m_nSize;
+  }
+
+  /**
+   * @return <code>true</code> if the content was spooled to a temporary file,
+   *         <code>false</code> if it is kept in memory.
+   */
+  public boolean isSpooledToFile ()
+  {
+    return m_aTempFile != null;
+  }
+
+  /**
+   * @return The temporary file the content was spooled to. Only
+   *         non-<code>null</code> if {@link #isSpooledToFile()} is
+   *         <code>true</code>.
+   */
+  @Nullable
+  public File getTempFile ()
+  {
+    return m_aTempFile;
+  }
+
+  /**
+   * Get the written content as an input stream provider that can be read
+   * multiple times. May only be called after the stream was closed.
+   *
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  public IHasInputStream getAsInputStreamProvider ()
+  {
+    if (!m_bClosed)
+      throw new IllegalStateException ("Spool stream must be closed first");
+
+    if (m_aTempFile != null)
+    {
+      final File aTempFile = m_aTempFile;
+      return HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile));
+    }
+
+    final byte [] aBytes = m_aMemOS.toByteArray ();
+    return HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aBytes));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MemoryThreshold", m_nMemoryThreshold)
+                                       .append ("Size", m_nSize)
+                                       .append ("TempFile", m_aTempFile)
+                                       .append ("Closed", m_bClosed)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.io.file.FileIOError;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The location of all temporary files created by {@link AS4ResourceManager}.
+ * Each resource manager gets its own sub directory (created on demand), that
+ * is deleted as a whole by a background thread after the resource manager was
+ * closed. So the file system operations for the cleanup are not part of the
+ * request processing time.<br>
+ * All sub directories of one arena are located in a per process directory.
+ * Next to it, a lock file is held locked as long as the process is alive.
+ * Call {@link #sweep()} upon startup to remove left-overs of previous runs
+ * (e.g. after a crash): only the directories of processes that no longer hold
+ * their lock are deleted, so the base directory may be shared by several
+ * processes. Note: file locks may not work reliably on network file systems.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4TempFileArena
+{
+  /** The prefix of all sub directories */
+  public static final String DIRECTORY_PREFIX = "as4-req-";
+  /** The prefix of the per process directories */
+  public static final String PROCESS_DIRECTORY_PREFIX = "as4-proc-";
+  /** The suffix of the lock file next to each per process directory */
+  public static final String LOCK_FILE_SUFFIX = ".lock";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4TempFileArena.class);
+  private static final Object s_aDefaultLock = new Object ();
+  private static AS4TempFileArena s_aDefaultInstance;
+  // The lock files held by this process. They must never be opened again,
+  // because closing another channel on the same file may release the lock.
+  private static final Set <File> s_aOwnLockFiles = ConcurrentHashMap.newKeySet ();
+
+  private final File m_aBaseDir;
+  private final ExecutorService m_aCleaner;
+  private final AtomicInteger m_aPendingDeletions = new AtomicInteger (0);
+  // Created on demand
+  private File m_aProcessDir;
+  // Held until the process ends
+  private FileLock m_aProcessLock;
+
+  /**
+   * Constructor
+   *
+   * @param aBaseDir
+   *        The base directory to use, e.g. on a tmpfs or a fast local disk. Is
+   *        created if it does not exist. May not be <code>null</code>.
+   */
+  public AS4TempFileArena (@Nonnull final File aBaseDir)
+  {
+    ValueEnforcer.notNull (aBaseDir, "BaseDir");
+    m_aBaseDir = aBaseDir.getAbsoluteFile ();
+    final ThreadPoolExecutor aTPE = new ThreadPoolExecutor (1,
+                                                            1,
+                                                            60,
+                                                            TimeUnit.SECONDS,
+                                                            new LinkedBlockingQueue <> (),
+                                                            new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                                             .setNamingPattern ("as4-tempfile-cleaner-%d")
+                                                                                             .build ());
+    aTPE.allowCoreThreadTimeOut (true);
+    m_aCleaner = aTPE;
+  }
+
+  /**
+   * @return The base directory of all sub directories. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public File getBaseDirectory ()
+  {
+    return m_aBaseDir;
+  }
+
+  /**
+   * @return The number of directories waiting for deletion. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getPendingDeletionCount ()
+  {
+    return m_aPendingDeletions.get ();
+  }
+
+  /**
+   * Create the per process directory upon first usage. The lock file is
+   * created and locked first, so that the directory is never visible without
+   * a locked lock file.
+   */
+  @Nonnull
+  private synchronized File _getProcessDirectory () throws IOException
+  {
+    if (m_aProcessDir == null)
+    {
+      if (AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (m_aBaseDir).isFailure ())
+        throw new IOException ("Failed to create temporary directory " + m_aBaseDir.getAbsolutePath ());
+
+      final String sName = PROCESS_DIRECTORY_PREFIX + UUID.randomUUID ().toString ();
+      final File aLockFile = new File (m_aBaseDir, sName + LOCK_FILE_SUFFIX);
+      final FileChannel aChannel = FileChannel.open (aLockFile.toPath (),
+                                                     StandardOpenOption.CREATE_NEW,
+                                                     StandardOpenOption.WRITE);
+      final FileLock aLock;
+      try
+      {
+        aLock = aChannel.lock ();
+      }
+      catch (final IOException ex)
+      {
+        StreamHelper.close (aChannel);
+        throw ex;
+      }
+
+      final File aDir = new File (m_aBaseDir, sName);
+      // The lock file may have been swept by another process before it was
+      // locked
+      if (!aLockFile.exists () || AS4IOHelper.getFileOperationManager ().createDirIfNotExisting (aDir).isFailure ())
+      {
+        StreamHelper.close (aChannel);
+        throw new IOException ("Failed to create temporary directory " + aDir.getAbsolutePath ());
+      }
+      s_aOwnLockFiles.add (aLockFile);
+      m_aProcessLock = aLock;
+      m_aProcessDir = aDir;
+    }
+    return m_aProcessDir;
+  }
+
+  /**
+   * Create a new, empty sub directory.
+   *
+   * @return The created directory. Never <code>null</code>.
+   * @throws IOException
+   *         If the directory cannot be created
+   */
+  @Nonnull
+  public File createDirectory () throws IOException
+  {
+    final File ret = new File (_getProcessDirectory (), DIRECTORY_PREFIX + UUID.randomUUID ().toString ());
+    if (AS4IOHelper.getFileOperationManager ().createDirIfNotExisting (ret).isFailure ())
+      throw new IOException ("Failed to create temporary directory " + ret.getAbsolutePath ());
+    return ret;
+  }
+
+  private static void _deleteDirectory (@Nonnull final File aDir)
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Deleting temporary directory " + aDir.getAbsolutePath ());
+    final FileIOError aError = AS4IOHelper.getFileOperationManager ().deleteDirRecursiveIfExisting (aDir);
+    if (aError.isFailure ())
+      LOGGER.warn ("Failed to delete " + aDir.getAbsolutePath () + ": " + aError.toString ());
+  }
+
+  /**
+   * Delete the provided sub directory with all contained files in the
+   * background. If the background cleaner is no longer available, the
+   * directory is deleted synchronously.
+   *
+   * @param aDir
+   *        The directory previously created by {@link #createDirectory()}.
+   *        May not be <code>null</code>.
+   */
+  public void deleteDirectoryAsync (@Nonnull final File aDir)
+  {
+    ValueEnforcer.notNull (aDir, "Dir");
+    m_aPendingDeletions.incrementAndGet ();
+    try
+    {
+      m_aCleaner.execute ( () -> {
+        try
+        {
+          _deleteDirectory (aDir);
+        }
+        finally
+        {
+          m_aPendingDeletions.decrementAndGet ();
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      m_aPendingDeletions.decrementAndGet ();
+      _deleteDirectory (aDir);
+    }
+  }
+
+  /**
+   * Delete the per process directory belonging to the passed lock file, if the
+   * owning process no longer holds the lock.
+   *
+   * @return <code>true</code> if the owner is gone and the directory was
+   *         deleted.
+   */
+  private static boolean _sweepIfOwnerIsGone (@Nonnull final File aLockFile)
+  {
+    if (s_aOwnLockFiles.contains (aLockFile))
+      return false;
+
+    final String sName = aLockFile.getName ();
+    final File aDir = new File (aLockFile.getParentFile (),
+                                sName.substring (0, sName.length () - LOCK_FILE_SUFFIX.length ()));
+    try (final FileChannel aChannel = FileChannel.open (aLockFile.toPath (), StandardOpenOption.WRITE))
+    {
+      final FileLock aLock;
+      try
+      {
+        aLock = aChannel.tryLock ();
+      }
+      catch (final OverlappingFileLockException ex)
+      {
+        // Swept concurrently in this process
+        return false;
+      }
+      if (aLock == null)
+      {
+        // Owned by another running process
+        return false;
+      }
+      try
+      {
+        _deleteDirectory (aDir);
+      }
+      finally
+      {
+        aLock.release ();
+      }
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to check the owner of " + aDir.getAbsolutePath () + ": " + ex.getMessage ());
+      return false;
+    }
+    AS4IOHelper.getFileOperationManager ().deleteFileIfExisting (aLockFile);
+    return true;
+  }
+
+  /**
+   * Delete the per process directories of all processes that ended, e.g.
+   * left-overs of a previous run. The directories of running processes
+   * (including this one) are not touched.
+   *
+   * @return The number of deleted per process directories. Always &ge; 0.
+   */
+  @Nonnegative
+  public int sweep ()
+  {
+    int ret = 0;
+    final File [] aLockFiles = m_aBaseDir.listFiles (x -> x.isFile () &&
+                                                          x.getName ().startsWith (PROCESS_DIRECTORY_PREFIX) &&
+                                                          x.getName ().endsWith (LOCK_FILE_SUFFIX));
+    if (aLockFiles != null)
+      for (final File aLockFile : aLockFiles)
+        if (_sweepIfOwnerIsGone (aLockFile))
+          ret++;
+    if (ret > 0)
+      LOGGER.info ("Deleted the temporary directories of " +
+                   ret +
+                   " previous processes in " +
+                   m_aBaseDir.getAbsolutePath ());
+    return ret;
+  }
+
+  /**
+   * Wait until all pending deletions are finished and stop the background
+   * cleaner. Afterwards directories are deleted synchronously.
+   */
+  public void shutdown ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aCleaner);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BaseDir", m_aBaseDir)
+                                       .append ("PendingDeletions", m_aPendingDeletions.get ())
+                                       .getToString ();
+  }
+
+  /**
+   * @return The default instance used by all {@link AS4ResourceManager}
+   *         instances. By default it uses the sub directory "ph-as4" of the
+   *         JVM temporary directory. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS4TempFileArena getDefaultInstance ()
+  {
+    synchronized (s_aDefaultLock)
+    {
+      if (s_aDefaultInstance == null)
+        s_aDefaultInstance = new AS4TempFileArena (new File (System.getProperty ("java.io.tmpdir"), "ph-as4"));
+      return s_aDefaultInstance;
+    }
+  }
+
+  /**
+   * Set a different default instance, e.g. with a different base directory.
+   * The previous default instance is shut down after all pending deletions
+   * finished.
+   *
+   * @param aArena
+   *        The new default instance. May be <code>null</code> to create a new
+   *        one on demand.
+   */
+  public static void setDefaultInstance (@Nullable final AS4TempFileArena aArena)
+  {
+    final AS4TempFileArena aOld;
+    synchronized (s_aDefaultLock)
+    {
+      aOld = s_aDefaultInstance;
+      s_aDefaultInstance = aArena;
+    }
+    if (aOld != null && aOld != aArena)
+      aOld.shutdown ();
+  }
+}
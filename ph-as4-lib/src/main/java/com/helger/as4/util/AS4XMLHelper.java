@@ -16,11 +16,15 @@
  */
 package com.helger.as4.util;
 
+import java.io.OutputStream;
 import java.util.Locale;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
@@ -34,6 +38,7 @@ import com.helger.commons.annotation.ReturnsMutableCopy;
 import com.helger.commons.collection.attr.StringMap;
 import com.helger.commons.collection.impl.CommonsLinkedHashMap;
 import com.helger.commons.collection.impl.ICommonsOrderedMap;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.io.stream.NonBlockingStringWriter;
 import com.helger.xml.microdom.IMicroElement;
 import com.helger.xml.serialize.write.EXMLSerializeIndent;
@@ -50,6 +55,22 @@ public final class AS4XMLHelper
     XWS.setIndent (EXMLSerializeIndent.NONE);
   }
 
+  /**
+   * Transformers are not thread-safe but reusable, so each thread keeps its own
+   * one. This avoids the expensive lookup of the TransformerFactory
+   * implementation for every message.
+   */
+  private static final ThreadLocal <Transformer> s_aTransformer = ThreadLocal.withInitial ( () -> {
+    try
+    {
+      return TransformerFactory.newInstance ().newTransformer ();
+    }
+    catch (final TransformerConfigurationException ex)
+    {
+      throw new IllegalStateException ("Failed to create XML transformer", ex);
+    }
+  });
+
   private AS4XMLHelper ()
   {}
 
@@ -59,20 +80,31 @@ public final class AS4XMLHelper
     return XMLWriter.getNodeAsString (aNode, XWS);
   }
 
-  @Nonnull
-  private static String _serializeRT (@Nonnull final Node aNode)
+  private static void _serializeRT (@Nonnull final Source aSource, @Nonnull final StreamResult aResult)
   {
+    final Transformer aTransformer = s_aTransformer.get ();
     try
     {
-      final Transformer aTransformer = TransformerFactory.newInstance ().newTransformer ();
-      final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
-      aTransformer.transform (new DOMSource (aNode), new StreamResult (aSW));
-      return aSW.getAsString ();
+      aTransformer.setOutputProperty (OutputKeys.ENCODING, XWS.getCharset ().name ());
+      aTransformer.transform (aSource, aResult);
     }
     catch (final TransformerException ex)
     {
       throw new IllegalStateException ("Failed to serialize XML", ex);
     }
+    finally
+    {
+      // Don't keep references to the last document
+      aTransformer.reset ();
+    }
+  }
+
+  @Nonnull
+  private static String _serializeRT (@Nonnull final Node aNode)
+  {
+    final NonBlockingStringWriter aSW = new NonBlockingStringWriter ();
+    _serializeRT (new DOMSource (aNode), new StreamResult (aSW));
+    return aSW.getAsString ();
   }
 
   @Nonnull
@@ -82,6 +114,61 @@ public final class AS4XMLHelper
     return true ? _serializeRT (aNode) : _serializePh (aNode);
   }
 
+  /**
+   * Serialize the passed node directly to the passed output stream, using the
+   * charset of {@link #XWS}. No intermediate String is created.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>. Is not
+   *        closed.
+   */
+  public static void serializeXML (@Nonnull final Node aNode, @Nonnull final OutputStream aOS)
+  {
+    ValueEnforcer.notNull (aNode, "Node");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    _serializeRT (new DOMSource (aNode), new StreamResult (aOS));
+  }
+
+  /**
+   * Serialize the passed source (e.g. a StAX source) directly to the passed
+   * output stream, using the charset of {@link #XWS}.
+   *
+   * @param aSource
+   *        The source to be serialized. May not be <code>null</code>.
+   * @param aOS
+   *        The output stream to write to. May not be <code>null</code>. Is not
+   *        closed.
+   */
+  public static void serializeXML (@Nonnull final Source aSource, @Nonnull final OutputStream aOS)
+  {
+    ValueEnforcer.notNull (aSource, "Source");
+    ValueEnforcer.notNull (aOS, "OutputStream");
+
+    _serializeRT (aSource, new StreamResult (aOS));
+  }
+
+  /**
+   * Serialize the passed node to a byte array, using the charset of
+   * {@link #XWS}.
+   *
+   * @param aNode
+   *        The node to be serialized. May not be <code>null</code>.
+   * @return The serialized bytes. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public static byte [] serializeXMLToBytes (@Nonnull final Node aNode)
+  {
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+    {
+      serializeXML (aNode, aBAOS);
+      return aBAOS.toByteArray ();
+    }
+  }
+
   /**
    * Get all attributes of the passed element as a map with a lowercase
    * attribute name.
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.wss;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.id.IHasID;
+import com.helger.commons.lang.EnumHelper;
+
+/**
+ * Defines how the WS-Security header of incoming messages is processed.
+ *
+ * @author Philip Helger
+ */
+public enum EWSSProcessingMode implements IHasID <String>
+{
+  /** DOM based processing of the whole SOAP document */
+  DOM ("dom"),
+  /**
+   * StAX based streaming processing - the memory usage depends on the size of
+   * the SOAP header and not on the size of the SOAP body
+   */
+  STREAMING ("streaming");
+
+  private final String m_sID;
+
+  private EWSSProcessingMode (@Nonnull @Nonempty final String sID)
+  {
+    m_sID = sID;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getID ()
+  {
+    return m_sID;
+  }
+
+  @Nullable
+  public static EWSSProcessingMode getFromIDOrNull (@Nullable final String sID)
+  {
+    return EnumHelper.getFromIDOrNull (EWSSProcessingMode.class, sID);
+  }
+
+  @Nullable
+  public static EWSSProcessingMode getFromIDOrDefault (@Nullable final String sID,
+                                                      @Nullable final EWSSProcessingMode eDefault)
+  {
+    return EnumHelper.getFromIDOrDefault (EWSSProcessingMode.class, sID, eDefault);
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+
+/**
+ * Test class for class {@link AS4CompressingInputStream}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CompressingInputStreamTest
+{
+  @Nonnull
+  private static byte [] _createSource ()
+  {
+    final byte [] ret = new byte [200_000];
+    for (int i = 0; i < ret.length; ++i)
+      ret[i] = (byte) ((i % 251) ^ (i / 1000));
+    return ret;
+  }
+
+  @Nonnull
+  private static byte [] _decompress (@Nonnull final EAS4CompressionMode eMode,
+                                      @Nonnull final byte [] aCompressed) throws IOException
+  {
+    return StreamHelper.getAllBytes (eMode.getDecompressStream (new NonBlockingByteArrayInputStream (aCompressed)));
+  }
+
+  @Test
+  public void testRoundTrip () throws IOException
+  {
+    final byte [] aSrc = _createSource ();
+    for (final EAS4CompressionMode eMode : EAS4CompressionMode.values ())
+    {
+      final byte [] aCompressed = StreamHelper.getAllBytes (eMode.getCompressingInputStream (new NonBlockingByteArrayInputStream (aSrc)));
+      assertTrue (aCompressed.length < aSrc.length);
+      assertArrayEquals (aSrc, _decompress (eMode, aCompressed));
+
+      // Empty source
+      final byte [] aEmpty = StreamHelper.getAllBytes (eMode.getCompressingInputStream (new NonBlockingByteArrayInputStream (new byte [0])));
+      assertEquals (0, _decompress (eMode, aEmpty).length);
+    }
+  }
+
+  @Test
+  public void testDeterministic () throws IOException
+  {
+    final byte [] aSrc = _createSource ();
+    for (final EAS4CompressionMode eMode : EAS4CompressionMode.values ())
+    {
+      final byte [] aCompressed = StreamHelper.getAllBytes (eMode.getCompressingInputStream (new NonBlockingByteArrayInputStream (aSrc)));
+
+      // Source delivering only a few bytes per read call
+      final InputStream aSlowIS = new FilterInputStream (new NonBlockingByteArrayInputStream (aSrc))
+      {
+        @Override
+        public int read (final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+        {
+          return super.read (aBuf, nOfs, Math.min (nLen, 777));
+        }
+      };
+
+      // Read byte by byte
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+      try (final InputStream aIS = new AS4CompressingInputStream (aSlowIS, eMode))
+      {
+        int n;
+        while ((n = aIS.read ()) >= 0)
+          aBAOS.write (n);
+      }
+      assertArrayEquals (aCompressed, aBAOS.toByteArray ());
+    }
+  }
+
+  @Test
+  public void testOutgoingAttachment () throws IOException
+  {
+    final byte [] aSrc = _createSource ();
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createOutgoingFileAttachment (aSrc,
+                                                                                       "data.bin",
+                                                                                       CMimeType.APPLICATION_OCTET_STREAM,
+                                                                                       EAS4CompressionMode.GZIP,
+                                                                                       aResMgr);
+      // Nothing was compressed so far
+      assertNull (aAttachment.getSourceFile ());
+      assertEquals (-1, aAttachment.getSourceLength ());
+      assertTrue (aAttachment.getInputStreamProvider ().isReadMultiple ());
+
+      // Reading twice (e.g. for signing and for sending) results in the same
+      // bytes
+      final byte [] aFirst = StreamHelper.getAllBytes (aAttachment.getSourceStream ());
+      final byte [] aSecond = StreamHelper.getAllBytes (aAttachment.getSourceStream ());
+      assertArrayEquals (aFirst, aSecond);
+      assertArrayEquals (aSrc, _decompress (EAS4CompressionMode.GZIP, aFirst));
+    }
+  }
+}
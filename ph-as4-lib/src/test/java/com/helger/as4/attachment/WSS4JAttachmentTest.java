@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.attachment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.mime.CMimeType;
+
+/**
+ * Test class for class {@link WSS4JAttachment}.
+ *
+ * @author Philip Helger
+ */
+public final class WSS4JAttachmentTest
+{
+  @Test
+  public void testCanBeKeptInMemory ()
+  {
+    assertTrue (WSS4JAttachment.canBeKeptInMemory (0));
+    assertTrue (WSS4JAttachment.canBeKeptInMemory (1024));
+    // Unknown size
+    assertFalse (WSS4JAttachment.canBeKeptInMemory (-1));
+    assertFalse (WSS4JAttachment.canBeKeptInMemory (Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testIncomingUnknownSizeIsSpilled () throws Exception
+  {
+    final MimeBodyPart aBodyPart = new MimeBodyPart ();
+    aBodyPart.setContent ("Hello world", CMimeType.TEXT_PLAIN.getAsString ());
+    aBodyPart.setContentID ("<test>");
+    // Content is only available via the DataHandler
+    assertEquals (-1, aBodyPart.getSize ());
+
+    final long nSpillCount = AS4ResourceManager.getSpillCount ();
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final WSS4JAttachment aAttachment = WSS4JAttachment.createIncomingFileAttachment (aBodyPart, aResMgr);
+      assertNotNull (aAttachment.getSourceFile ());
+      assertEquals (0, aResMgr.getReservedMemory ());
+      assertEquals (nSpillCount + 1, AS4ResourceManager.getSpillCount ());
+    }
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.stream.StreamHelper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class for class {@link AS4AsyncHttpClientPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncHttpClientPoolTest
+{
+  private static final int MAX_IN_FLIGHT = 50;
+  private static final int MESSAGES = 200;
+
+  private final AtomicInteger m_aConcurrent = new AtomicInteger (0);
+  private final AtomicInteger m_aMaxConcurrent = new AtomicInteger (0);
+  private CountDownLatch m_aBlock;
+  private ExecutorService m_aServerES;
+  private HttpServer m_aServer;
+  private String m_sURL;
+
+  private void _handle (@Nonnull final HttpExchange aExchange) throws IOException
+  {
+    final int nConcurrent = m_aConcurrent.incrementAndGet ();
+    m_aMaxConcurrent.accumulateAndGet (nConcurrent, Math::max);
+    try
+    {
+      final byte [] aRequest = StreamHelper.getAllBytes (aExchange.getRequestBody ());
+      m_aBlock.await (30, TimeUnit.SECONDS);
+      aExchange.sendResponseHeaders (200, aRequest.length);
+      try (final OutputStream aOS = aExchange.getResponseBody ())
+      {
+        aOS.write (aRequest);
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    finally
+    {
+      m_aConcurrent.decrementAndGet ();
+      aExchange.close ();
+    }
+  }
+
+  @Before
+  public void before () throws IOException
+  {
+    m_aBlock = new CountDownLatch (1);
+    m_aServerES = Executors.newCachedThreadPool ();
+    m_aServer = HttpServer.create (new InetSocketAddress ("localhost", 0), MESSAGES);
+    m_aServer.createContext ("/as4", this::_handle);
+    m_aServer.setExecutor (m_aServerES);
+    m_aServer.start ();
+    m_sURL = "http://localhost:" + m_aServer.getAddress ().getPort () + "/as4";
+  }
+
+  @After
+  public void after ()
+  {
+    m_aBlock.countDown ();
+    m_aServer.stop (0);
+    m_aServerES.shutdownNow ();
+  }
+
+  @Nonnull
+  private static AS4AsyncHttpClientPool _createPool (final int nMaxInFlightPerEndpoint)
+  {
+    // Only 2 I/O threads and 1 callback thread for all messages
+    return new AS4AsyncHttpClientPool (null, 2, 1, 1000, nMaxInFlightPerEndpoint, null, null, false);
+  }
+
+  @Nonnull
+  private HttpPost _createPost (@Nonnull final String sBody)
+  {
+    final HttpPost aPost = new HttpPost (m_sURL);
+    aPost.setEntity (new StringEntity (sBody, StandardCharsets.UTF_8));
+    return aPost;
+  }
+
+  private static void _awaitInFlight (@Nonnull final AS4AsyncHttpClientPool aPool,
+                                      @Nonnull final String sURL,
+                                      final int nExpected) throws InterruptedException
+  {
+    final long nEnd = System.currentTimeMillis () + 10_000;
+    while (aPool.getInFlightCount (sURL) != nExpected && System.currentTimeMillis () < nEnd)
+      Thread.sleep (10);
+    assertEquals (nExpected, aPool.getInFlightCount (sURL));
+  }
+
+  @Test
+  public void testManyMessagesInFlight () throws Exception
+  {
+    try (final AS4AsyncHttpClientPool aPool = _createPool (MAX_IN_FLIGHT))
+    {
+      final ICommonsList <CompletableFuture <String>> aFutures = new CommonsArrayList <> ();
+      for (int i = 0; i < MESSAGES; ++i)
+        aFutures.add (aPool.execute (_createPost ("msg" + i),
+                                     x -> EntityUtils.toString (x.getEntity (), StandardCharsets.UTF_8)));
+
+      // Far more requests in flight than there are threads
+      _awaitInFlight (aPool, m_sURL, MAX_IN_FLIGHT);
+      assertEquals (MESSAGES - MAX_IN_FLIGHT, aPool.getPendingCount (m_sURL));
+      final long nEnd = System.currentTimeMillis () + 10_000;
+      while (m_aConcurrent.get () < MAX_IN_FLIGHT && System.currentTimeMillis () < nEnd)
+        Thread.sleep (10);
+      assertEquals (MAX_IN_FLIGHT, m_aConcurrent.get ());
+
+      m_aBlock.countDown ();
+      for (int i = 0; i < MESSAGES; ++i)
+        assertEquals ("msg" + i, aFutures.get (i).get (30, TimeUnit.SECONDS));
+
+      // The limit per endpoint was never exceeded
+      assertEquals (MAX_IN_FLIGHT, m_aMaxConcurrent.get ());
+      assertEquals (0, aPool.getPendingCount (m_sURL));
+      _awaitInFlight (aPool, m_sURL, 0);
+    }
+  }
+
+  @Test
+  public void testResponseHandlerException () throws Exception
+  {
+    m_aBlock.countDown ();
+    try (final AS4AsyncHttpClientPool aPool = _createPool (1))
+    {
+      final CompletableFuture <String> aFuture = aPool.execute (_createPost ("a"), x -> {
+        throw new IllegalStateException ("oops");
+      });
+      try
+      {
+        aFuture.get (10, TimeUnit.SECONDS);
+        fail ();
+      }
+      catch (final ExecutionException ex)
+      {
+        assertTrue (ex.getCause () instanceof IllegalStateException);
+      }
+      // The slot was released
+      assertEquals ("b",
+                    aPool.execute (_createPost ("b"), x -> EntityUtils.toString (x.getEntity ()))
+                         .get (10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testCancelPending () throws Exception
+  {
+    try (final AS4AsyncHttpClientPool aPool = _createPool (1))
+    {
+      final CompletableFuture <String> aRunning = aPool.execute (_createPost ("a"),
+                                                                 x -> EntityUtils.toString (x.getEntity ()));
+      final CompletableFuture <String> aCancelled = aPool.execute (_createPost ("b"),
+                                                                   x -> EntityUtils.toString (x.getEntity ()));
+      final CompletableFuture <String> aPending = aPool.execute (_createPost ("c"),
+                                                                 x -> EntityUtils.toString (x.getEntity ()));
+      assertEquals (2, aPool.getPendingCount (m_sURL));
+      assertTrue (aCancelled.cancel (true));
+
+      m_aBlock.countDown ();
+      assertEquals ("a", aRunning.get (10, TimeUnit.SECONDS));
+      // The cancelled request is skipped
+      assertEquals ("c", aPending.get (10, TimeUnit.SECONDS));
+      _awaitInFlight (aPool, m_sURL, 0);
+    }
+  }
+
+  @Test
+  public void testClose () throws Exception
+  {
+    final AS4AsyncHttpClientPool aPool = _createPool (1);
+    final CompletableFuture <String> aRunning = aPool.execute (_createPost ("a"),
+                                                               x -> EntityUtils.toString (x.getEntity ()));
+    final ICommonsList <CompletableFuture <String>> aPending = new CommonsArrayList <> ();
+    for (int i = 0; i < 3; ++i)
+      aPending.add (aPool.execute (_createPost ("pending"), x -> EntityUtils.toString (x.getEntity ())));
+    assertEquals (3, aPool.getPendingCount (m_sURL));
+
+    aPool.close ();
+    assertTrue (aPool.isClosed ());
+
+    // Nothing hangs: the running and all pending requests failed
+    _assertFailed (aRunning);
+    for (final CompletableFuture <String> aFuture : aPending)
+      _assertFailed (aFuture);
+    assertEquals (0, aPool.getPendingCount (m_sURL));
+    assertEquals (0, aPool.getInFlightCount (m_sURL));
+
+    // Sending after close fails without occupying a slot
+    final CompletableFuture <String> aLate = aPool.execute (_createPost ("late"),
+                                                            x -> EntityUtils.toString (x.getEntity ()));
+    assertTrue (_assertFailed (aLate) instanceof RejectedExecutionException);
+    assertEquals (0, aPool.getInFlightCount (m_sURL));
+  }
+
+  @Nonnull
+  private static Throwable _assertFailed (@Nonnull final CompletableFuture <String> aFuture) throws Exception
+  {
+    try
+    {
+      aFuture.get (10, TimeUnit.SECONDS);
+      fail ();
+      return null;
+    }
+    catch (final ExecutionException ex)
+    {
+      // Either rejected by the pool or aborted by the closed client
+      return ex.getCause ();
+    }
+  }
+
+  @Test
+  public void testDefaultInstance ()
+  {
+    final BasicHttpPoster aPoster = new BasicHttpPoster ();
+    assertSame (AS4AsyncHttpClientPool.getDefaultInstance (), aPoster.getAsyncHttpClientPool ());
+  }
+}
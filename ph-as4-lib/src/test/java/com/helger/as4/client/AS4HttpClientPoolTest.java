@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Test;
+
+import com.helger.httpclient.HttpClientFactory;
+
+/**
+ * Test class for class {@link AS4HttpClientPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4HttpClientPoolTest
+{
+  @Test
+  public void testRoute ()
+  {
+    HttpRoute aRoute = AS4HttpClientPool.getRoute ("https://as4.example.org/as4");
+    assertEquals ("as4.example.org", aRoute.getTargetHost ().getHostName ());
+    assertEquals (443, aRoute.getTargetHost ().getPort ());
+    assertTrue (aRoute.isSecure ());
+
+    aRoute = AS4HttpClientPool.getRoute ("http://localhost:8080/as4");
+    assertEquals (8080, aRoute.getTargetHost ().getPort ());
+    assertFalse (aRoute.isSecure ());
+  }
+
+  @Test
+  public void testBasic () throws Exception
+  {
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool (null, 10, 2, 30, 0))
+    {
+      assertNotNull (aPool.getHttpClient ());
+      aPool.setMaxConnectionsPerRoute ("http://localhost:8080/as4", 5);
+      assertEquals (0, aPool.getTotalStats ().getLeased ());
+      assertEquals (10, aPool.getTotalStats ().getMax ());
+      assertTrue (aPool.getAllRouteStats ().isEmpty ());
+      aPool.closeIdleConnections ();
+    }
+  }
+
+  @Test
+  public void testDefaultInstance ()
+  {
+    final BasicHttpPoster aPoster = new BasicHttpPoster ();
+    assertSame (AS4HttpClientPool.getDefaultInstance (), aPoster.getHttpClientPool ());
+    assertSame (AS4HttpClientPool.getDefaultInstance (), AS4HttpClientPool.getDefaultInstance ());
+  }
+
+  @Test
+  public void testAsProvider () throws Exception
+  {
+    try (final AS4HttpClientPool aPool = new AS4HttpClientPool (null,
+                                                                10,
+                                                                2,
+                                                                30,
+                                                                0,
+                                                                RequestConfig.custom ().setSocketTimeout (1000).build (),
+                                                                new HttpHost ("proxy.example.org", 8080),
+                                                                false))
+    {
+      final BasicHttpPoster aPoster = new BasicHttpPoster ().setHttpClientPool (aPool);
+      assertSame (aPool, aPoster.getHttpClientProvider ());
+
+      // Closing the provided client does not close the pool
+      final CloseableHttpClient aClient = aPool.createHttpClient ();
+      assertNotNull (aClient);
+      aClient.close ();
+      assertSame (aClient, aPool.createHttpClient ());
+      assertEquals (10, aPool.getTotalStats ().getMax ());
+
+      // A custom provider takes precedence
+      final HttpClientFactory aFactory = new HttpClientFactory ();
+      aPoster.setHttpClientProvider (aFactory);
+      assertSame (aFactory, aPoster.getHttpClientProvider ());
+      aPoster.setHttpClientProvider (null);
+      assertSame (aPool, aPoster.getHttpClientProvider ());
+    }
+  }
+}
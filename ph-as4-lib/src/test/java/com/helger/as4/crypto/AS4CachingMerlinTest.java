@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.annotation.Nonnull;
+import javax.security.auth.callback.CallbackHandler;
+
+import org.apache.wss4j.common.crypto.CryptoType;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.apache.wss4j.common.ext.WSPasswordCallback;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Test;
+
+import com.helger.security.keystore.EKeyStoreType;
+
+/**
+ * Test class for class {@link AS4CachingMerlin}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CachingMerlinTest
+{
+  private static final String ALIAS = "key";
+  private static final String PASSWORD = "test";
+
+  @Nonnull
+  private static X509Certificate _createCertificate (@Nonnull final KeyPair aKeyPair,
+                                                     @Nonnull final String sDN,
+                                                     @Nonnull final BigInteger aSerial) throws Exception
+  {
+    final X500Name aName = new X500Name (sDN);
+    final Date aNotBefore = new Date ();
+    final Date aNotAfter = new Date (aNotBefore.getTime () + 60_000);
+    final ContentSigner aSigner = new JcaContentSignerBuilder ("SHA256withRSA").build (aKeyPair.getPrivate ());
+    return new JcaX509CertificateConverter ().getCertificate (new JcaX509v3CertificateBuilder (aName,
+                                                                                                aSerial,
+                                                                                                aNotBefore,
+                                                                                                aNotAfter,
+                                                                                                aName,
+                                                                                                aKeyPair.getPublic ()).build (aSigner));
+  }
+
+  @Nonnull
+  private static KeyPair _createKeyPair () throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (2048);
+    return aKPG.generateKeyPair ();
+  }
+
+  @Test
+  public void testCaching () throws Exception
+  {
+    final KeyPair aKeyPair = _createKeyPair ();
+    final X509Certificate aCert = _createCertificate (aKeyPair, "CN=AS4CachingMerlinTest", BigInteger.ONE);
+
+    final KeyStore aKS = KeyStore.getInstance (EKeyStoreType.JKS.getID ());
+    aKS.load (null, null);
+    aKS.setKeyEntry (ALIAS, aKeyPair.getPrivate (), PASSWORD.toCharArray (), new Certificate [] { aCert });
+
+    final AS4CachingMerlin aCrypto = new AS4CachingMerlin (true, false);
+    aCrypto.setKeyStore (aKS);
+    assertEquals (0, aCrypto.getCachedKeyCount ());
+
+    // By alias
+    final PrivateKey aKey = aCrypto.getPrivateKey (ALIAS, PASSWORD);
+    assertNotNull (aKey);
+    assertEquals (1, aCrypto.getCachedKeyCount ());
+    assertSame (aKey, aCrypto.getPrivateKey (ALIAS, PASSWORD));
+
+    // A cached key is not returned for a different password
+    try
+    {
+      aCrypto.getPrivateKey (ALIAS, "wrong");
+      fail ();
+    }
+    catch (final WSSecurityException ex)
+    {
+      // expected
+    }
+
+    // By certificate - the password is only requested once
+    final int [] aCallbackCount = new int [1];
+    final CallbackHandler aCBH = aCallbacks -> {
+      aCallbackCount[0]++;
+      ((WSPasswordCallback) aCallbacks[0]).setPassword (PASSWORD);
+    };
+    final PrivateKey aKey2 = aCrypto.getPrivateKey (aCert, aCBH);
+    assertNotNull (aKey2);
+    assertSame (aKey2, aCrypto.getPrivateKey (aCert, aCBH));
+    assertSame (aKey2, aCrypto.getPrivateKey (aCert.getPublicKey (), aCBH));
+    assertEquals (1, aCallbackCount[0]);
+    assertEquals (2, aCrypto.getCachedKeyCount ());
+
+    aCrypto.clearCache ();
+    assertEquals (0, aCrypto.getCachedKeyCount ());
+  }
+
+  @Test
+  public void testCertificateIndex () throws Exception
+  {
+    final KeyPair aKeyPair = _createKeyPair ();
+    final KeyStore aTS = KeyStore.getInstance (EKeyStoreType.JKS.getID ());
+    aTS.load (null, null);
+    final X509Certificate [] aCerts = new X509Certificate [20];
+    for (int i = 0; i < aCerts.length; ++i)
+    {
+      aCerts[i] = _createCertificate (aKeyPair, "CN=Partner " + i + ",O=Test", BigInteger.valueOf (100 + i));
+      aTS.setCertificateEntry ("partner" + i, aCerts[i]);
+    }
+
+    final Merlin aPlain = new Merlin ();
+    aPlain.setTrustStore (aTS);
+    final AS4CachingMerlin aIndexed = new AS4CachingMerlin (false, true);
+    aIndexed.setTrustStore (aTS);
+    assertNotNull (aIndexed.getCertificateIndex ());
+    assertEquals (aCerts.length, aIndexed.getCertificateIndex ().getCertificateCount ());
+
+    final MessageDigest aSHA1 = MessageDigest.getInstance ("SHA-1");
+    for (final X509Certificate aCert : aCerts)
+    {
+      final CryptoType aIssuerSerial = new CryptoType (CryptoType.TYPE.ISSUER_SERIAL);
+      aIssuerSerial.setIssuerSerial (aCert.getIssuerX500Principal ().getName (), aCert.getSerialNumber ());
+      assertArrayEquals (aPlain.getX509Certificates (aIssuerSerial), aIndexed.getX509Certificates (aIssuerSerial));
+
+      final CryptoType aSKI = new CryptoType (CryptoType.TYPE.SKI_BYTES);
+      aSKI.setBytes (aIndexed.getSKIBytesFromCert (aCert));
+      assertArrayEquals (aPlain.getX509Certificates (aSKI), aIndexed.getX509Certificates (aSKI));
+
+      final CryptoType aThumbprint = new CryptoType (CryptoType.TYPE.THUMBPRINT_SHA1);
+      aThumbprint.setBytes (aSHA1.digest (aCert.getEncoded ()));
+      assertArrayEquals (aPlain.getX509Certificates (aThumbprint), aIndexed.getX509Certificates (aThumbprint));
+
+      final CryptoType aSubject = new CryptoType (CryptoType.TYPE.SUBJECT_DN);
+      aSubject.setSubjectDN (aCert.getSubjectX500Principal ().getName ());
+      assertArrayEquals (aPlain.getX509Certificates (aSubject), aIndexed.getX509Certificates (aSubject));
+
+      assertEquals (aPlain.getX509Identifier (aCert), aIndexed.getX509Identifier (aCert));
+    }
+
+    // Unknown certificate
+    final CryptoType aUnknown = new CryptoType (CryptoType.TYPE.ISSUER_SERIAL);
+    aUnknown.setIssuerSerial ("CN=Unknown", BigInteger.TEN);
+    assertNull (aIndexed.getX509Certificates (aUnknown));
+
+    // Exchanging the trust store rebuilds the index
+    aTS.deleteEntry ("partner0");
+    aIndexed.setTrustStore (aTS);
+    assertEquals (aCerts.length - 1, aIndexed.getCertificateIndex ().getCertificateCount ());
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+
+import javax.annotation.Nonnull;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.junit.Test;
+
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.SimpleFileIO;
+import com.helger.security.keystore.EKeyStoreType;
+
+/**
+ * Test class for class {@link AS4CryptoRegistry}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CryptoRegistryTest
+{
+  private static final String PASSWORD = "test";
+
+  private static void _writeEmptyKeyStore (@Nonnull final File aFile) throws Exception
+  {
+    final KeyStore aKS = KeyStore.getInstance (EKeyStoreType.JKS.getID ());
+    aKS.load (null, null);
+    try (final OutputStream aOS = FileHelper.getOutputStream (aFile))
+    {
+      aKS.store (aOS, PASSWORD.toCharArray ());
+    }
+  }
+
+  @Nonnull
+  private static CryptoProperties _createProps (@Nonnull final File aFile, @Nonnull final String sAlias)
+  {
+    final ICommonsMap <String, String> aProps = new CommonsHashMap <> ();
+    aProps.put ("org.apache.wss4j.crypto.provider", org.apache.wss4j.common.crypto.Merlin.class.getName ());
+    aProps.put ("org.apache.wss4j.crypto.merlin.keystore.file", aFile.getAbsolutePath ());
+    aProps.put ("org.apache.wss4j.crypto.merlin.keystore.type", EKeyStoreType.JKS.getID ());
+    aProps.put ("org.apache.wss4j.crypto.merlin.keystore.password", PASSWORD);
+    aProps.put ("org.apache.wss4j.crypto.merlin.keystore.alias", sAlias);
+    return new CryptoProperties (aProps);
+  }
+
+  @Test
+  public void testCachingAndReload () throws Exception
+  {
+    final File aDir = new File ("target/crypto-registry-test");
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aDir);
+    final File aFile = new File (aDir, "test.jks");
+    _writeEmptyKeyStore (aFile);
+
+    // Check on every access
+    final AS4CryptoRegistry aRegistry = new AS4CryptoRegistry (0);
+    final Crypto aCrypto = aRegistry.getCrypto (_createProps (aFile, "a"));
+    assertNotNull (aCrypto);
+    assertEquals (1, aRegistry.getLoadCount ());
+
+    // Same properties -> same instance
+    for (int i = 0; i < 10; ++i)
+      assertSame (aCrypto, aRegistry.getCrypto (_createProps (aFile, "a")));
+    assertEquals (1, aRegistry.getLoadCount ());
+
+    // Different properties -> different instance
+    assertNotSame (aCrypto, aRegistry.getCrypto (_createProps (aFile, "b")));
+    assertEquals (2, aRegistry.getLoadCount ());
+    assertEquals (2, aRegistry.getCachedCount ());
+
+    // Modified key store -> reloaded once
+    _writeEmptyKeyStore (aFile);
+    aFile.setLastModified (aFile.lastModified () + 10_000);
+    final Crypto aCrypto2 = aRegistry.getCrypto (_createProps (aFile, "a"));
+    assertNotSame (aCrypto, aCrypto2);
+    assertSame (aCrypto2, aRegistry.getCrypto (_createProps (aFile, "a")));
+    assertEquals (3, aRegistry.getLoadCount ());
+
+    aRegistry.clearCache ();
+    assertEquals (0, aRegistry.getCachedCount ());
+  }
+
+  @Test
+  public void testReloadFailureKeepsPrevious () throws Exception
+  {
+    final File aDir = new File ("target/crypto-registry-test");
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aDir);
+    final File aFile = new File (aDir, "test-broken.jks");
+    _writeEmptyKeyStore (aFile);
+
+    final AS4CryptoRegistry aRegistry = new AS4CryptoRegistry (0);
+    final Crypto aCrypto = aRegistry.getCrypto (_createProps (aFile, "a"));
+    assertEquals (1, aRegistry.getLoadCount ());
+
+    // Modified but unreadable key store -> previous instance is kept
+    SimpleFileIO.writeFile (aFile, "no key store".getBytes (StandardCharsets.ISO_8859_1));
+    aFile.setLastModified (aFile.lastModified () + 10_000);
+    assertSame (aCrypto, aRegistry.getCrypto (_createProps (aFile, "a")));
+    assertEquals (1, aRegistry.getLoadCount ());
+    assertEquals (1, aRegistry.getCachedCount ());
+
+    // Fixed key store -> reloaded
+    _writeEmptyKeyStore (aFile);
+    aFile.setLastModified (aFile.lastModified () + 20_000);
+    assertNotSame (aCrypto, aRegistry.getCrypto (_createProps (aFile, "a")));
+    assertEquals (2, aRegistry.getLoadCount ());
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.wss4j.common.crypto.Crypto;
+import org.apache.wss4j.common.crypto.Merlin;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4TrustValidationCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4TrustValidationCacheTest
+{
+  @Nonnull
+  private static X509Certificate [] _createCertificates (final int nCount) throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (2048);
+    final KeyPair aKeyPair = aKPG.generateKeyPair ();
+    final Date aNotBefore = new Date ();
+    final Date aNotAfter = new Date (aNotBefore.getTime () + 60_000);
+    final ContentSigner aSigner = new JcaContentSignerBuilder ("SHA256withRSA").build (aKeyPair.getPrivate ());
+    final X509Certificate [] ret = new X509Certificate [nCount];
+    for (int i = 0; i < nCount; ++i)
+    {
+      final X500Name aName = new X500Name ("CN=Cert " + i);
+      ret[i] = new JcaX509CertificateConverter ().getCertificate (new JcaX509v3CertificateBuilder (aName,
+                                                                                                    BigInteger.valueOf (i),
+                                                                                                    aNotBefore,
+                                                                                                    aNotAfter,
+                                                                                                    aName,
+                                                                                                    aKeyPair.getPublic ()).build (aSigner));
+    }
+    return ret;
+  }
+
+  @Test
+  public void testCaching () throws Exception
+  {
+    final X509Certificate [] aCerts = _createCertificates (3);
+    final Crypto aCrypto = new Merlin ();
+    final AS4TrustValidationCache aCache = new AS4TrustValidationCache (2, 60_000, 60_000);
+    final AtomicInteger aCalls = new AtomicInteger (0);
+
+    // Positive result
+    for (int i = 0; i < 5; ++i)
+      aCache.verifyTrust (new X509Certificate [] { aCerts[0] }, aCrypto, false, null, aCalls::incrementAndGet);
+    assertEquals (1, aCalls.get ());
+    assertEquals (1, aCache.getMissCount ());
+    assertEquals (4, aCache.getHitCount ());
+
+    // Different trust store - validated again
+    aCache.verifyTrust (new X509Certificate [] { aCerts[0] }, new Merlin (), false, null, aCalls::incrementAndGet);
+    assertEquals (2, aCalls.get ());
+
+    // Negative result - the cache throws new exceptions wrapping the first one
+    final WSSecurityException aEx = new WSSecurityException (WSSecurityException.ErrorCode.FAILED_AUTHENTICATION);
+    for (int i = 0; i < 3; ++i)
+      try
+      {
+        aCache.verifyTrust (new X509Certificate [] { aCerts[1] }, aCrypto, false, null, () -> {
+          aCalls.incrementAndGet ();
+          throw aEx;
+        });
+        fail ();
+      }
+      catch (final WSSecurityException ex)
+      {
+        if (i == 0)
+          assertSame (aEx, ex);
+        else
+        {
+          assertNotSame (aEx, ex);
+          assertSame (aEx, ex.getCause ());
+          assertEquals (aEx.getErrorCode (), ex.getErrorCode ());
+        }
+      }
+    assertEquals (3, aCalls.get ());
+
+    // Bounded size
+    aCache.verifyTrust (new X509Certificate [] { aCerts[2] }, aCrypto, false, null, aCalls::incrementAndGet);
+    assertEquals (2, aCache.getCacheSize ());
+
+    aCache.clearCache ();
+    assertEquals (0, aCache.getCacheSize ());
+  }
+
+  @Test
+  public void testNoNegativeCaching () throws Exception
+  {
+    final X509Certificate [] aCerts = _createCertificates (1);
+    final Crypto aCrypto = new Merlin ();
+    final AS4TrustValidationCache aCache = new AS4TrustValidationCache (10, 60_000, 0);
+    final AtomicInteger aCalls = new AtomicInteger (0);
+    for (int i = 0; i < 3; ++i)
+      try
+      {
+        aCache.verifyTrust (aCerts, aCrypto, true, "constraints", () -> {
+          aCalls.incrementAndGet ();
+          throw new WSSecurityException (WSSecurityException.ErrorCode.FAILED_AUTHENTICATION);
+        });
+        fail ();
+      }
+      catch (final WSSecurityException ex)
+      {
+        // expected
+      }
+    assertEquals (3, aCalls.get ());
+    assertEquals (0, aCache.getCacheSize ());
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.helger.as4.util.AS4IOHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+
+/**
+ * Test class for class {@link AS4CRLStore}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4CRLStoreTest
+{
+  private static void _writeCRL (final File aFile, final X509CRL aCRL) throws Exception
+  {
+    Files.write (aFile.toPath (), aCRL.getEncoded ());
+  }
+
+  @Test
+  public void testReloadAndCheck () throws Exception
+  {
+    final File aDir = new File ("target/crl-store-test");
+    AS4IOHelper.getFileOperationManager ().createDirRecursiveIfNotExisting (aDir);
+    final File aFile = new File (aDir, "ca.crl");
+
+    final LocalOCSPResponder aCA = new LocalOCSPResponder ();
+    final X509Certificate aCACert = aCA.getCACertificate ();
+    final X509Certificate aCert2 = aCA.createCertificate (2, false);
+    final X509Certificate aCert3 = aCA.createCertificate (3, false);
+    aCA.revoke (3);
+    _writeCRL (aFile, aCA.createCRL (new Date (System.currentTimeMillis () + 60_000)));
+
+    final AS4CRLStore aStore = new AS4CRLStore (new CommonsArrayList <> (aDir));
+    aStore.reload ();
+    assertEquals (1, aStore.getCRLCount ());
+    assertEquals (1, aStore.getLoadCount ());
+    assertNotNull (aStore.getCRL (aCACert.getSubjectX500Principal ()));
+
+    // Unmodified - not read again
+    aStore.reload ();
+    assertEquals (1, aStore.getLoadCount ());
+
+    try (final AS4RevocationChecker aChecker = new AS4RevocationChecker (ERevocationCheckMode.HARD_FAIL,
+                                                                         aStore,
+                                                                         null,
+                                                                         AS4RevocationChecker.DEFAULT_OCSP_TTL_MS))
+    {
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aCert2, aCACert));
+      assertEquals (ERevocationStatus.REVOKED, aChecker.getRevocationStatus (aCert3, aCACert));
+
+      // Modified - read again
+      aCA.revoke (2);
+      _writeCRL (aFile, aCA.createCRL (new Date (System.currentTimeMillis () + 60_000)));
+      aFile.setLastModified (aFile.lastModified () + 10_000);
+      aStore.reload ();
+      assertEquals (2, aStore.getLoadCount ());
+      assertEquals (ERevocationStatus.REVOKED, aChecker.getRevocationStatus (aCert2, aCACert));
+
+      // Outdated CRL is only used in soft-fail mode
+      _writeCRL (aFile, aCA.createCRL (new Date (System.currentTimeMillis () - 60_000)));
+      aFile.setLastModified (aFile.lastModified () + 20_000);
+      aStore.reload ();
+      assertEquals (ERevocationStatus.UNKNOWN, aChecker.getRevocationStatus (aCert2, aCACert));
+      try (final AS4RevocationChecker aSoftFail = new AS4RevocationChecker (ERevocationCheckMode.SOFT_FAIL,
+                                                                            aStore,
+                                                                            null,
+                                                                            AS4RevocationChecker.DEFAULT_OCSP_TTL_MS))
+      {
+        assertEquals (ERevocationStatus.REVOKED, aSoftFail.getRevocationStatus (aCert2, aCACert));
+      }
+    }
+  }
+}
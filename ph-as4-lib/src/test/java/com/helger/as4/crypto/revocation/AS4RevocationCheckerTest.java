@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import org.apache.wss4j.common.crypto.Merlin;
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+
+/**
+ * Test class for class {@link AS4RevocationChecker}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4RevocationCheckerTest
+{
+  @Test
+  public void testOCSP () throws Exception
+  {
+    final LocalOCSPResponder aResponder = new LocalOCSPResponder ();
+    final X509Certificate aCA = aResponder.getCACertificate ();
+    final X509Certificate aGood = aResponder.createCertificate (2, true);
+    final X509Certificate aRevoked = aResponder.createCertificate (3, true);
+    final X509Certificate aNoOCSP = aResponder.createCertificate (4, false);
+    aResponder.revoke (3);
+
+    assertEquals (LocalOCSPResponder.OCSP_URL, AS4RevocationChecker.getOCSPResponderURL (aGood));
+    assertNull (AS4RevocationChecker.getOCSPResponderURL (aNoOCSP));
+
+    try (final AS4RevocationChecker aChecker = new AS4RevocationChecker (ERevocationCheckMode.HARD_FAIL,
+                                                                         null,
+                                                                         aResponder,
+                                                                         AS4RevocationChecker.DEFAULT_OCSP_TTL_MS))
+    {
+      // Cached until next update
+      for (int i = 0; i < 5; ++i)
+        assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aGood, aCA));
+      assertEquals (1, aResponder.getRequestCount ());
+      assertEquals (1, aChecker.getOCSPRequestCount ());
+
+      assertEquals (ERevocationStatus.REVOKED, aChecker.getRevocationStatus (aRevoked, aCA));
+      assertFalse (aChecker.isAccepted (ERevocationStatus.REVOKED));
+      assertEquals (2, aChecker.getOCSPCacheSize ());
+
+      // No revocation information at all
+      assertEquals (ERevocationStatus.UNKNOWN, aChecker.getRevocationStatus (aNoOCSP, aCA));
+      assertFalse (aChecker.isAccepted (ERevocationStatus.UNKNOWN));
+
+      // Issuer resolved from the crypto
+      final KeyStore aTrustStore = KeyStore.getInstance ("JKS");
+      aTrustStore.load (null, null);
+      aTrustStore.setCertificateEntry ("ca", aCA);
+      final Merlin aCrypto = new Merlin ();
+      aCrypto.setTrustStore (aTrustStore);
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aGood, aCrypto));
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aCA, aCrypto));
+      assertEquals (ERevocationStatus.UNKNOWN, aChecker.getRevocationStatus (aGood, new Merlin ()));
+      assertEquals (2,
+                    aChecker.getAllRejectedCertificates (new CommonsArrayList <> (aGood, aRevoked, aNoOCSP), aCrypto)
+                            .size ());
+      // Everything else was answered from the cache
+      assertEquals (2, aResponder.getRequestCount ());
+    }
+  }
+
+  @Test
+  public void testStaleOCSPResponse () throws Exception
+  {
+    final LocalOCSPResponder aResponder = new LocalOCSPResponder ();
+    // Outdated shortly after it was received
+    aResponder.setNextUpdateMS (500);
+    final X509Certificate aCA = aResponder.getCACertificate ();
+    final X509Certificate aCert = aResponder.createCertificate (2, true);
+    final X509Certificate aOther = aResponder.createCertificate (3, true);
+
+    try (final AS4RevocationChecker aSoftFail = new AS4RevocationChecker (ERevocationCheckMode.SOFT_FAIL,
+                                                                          null,
+                                                                          aResponder,
+                                                                          AS4RevocationChecker.DEFAULT_OCSP_TTL_MS);
+         final AS4RevocationChecker aHardFail = new AS4RevocationChecker (ERevocationCheckMode.HARD_FAIL,
+                                                                          null,
+                                                                          aResponder,
+                                                                          AS4RevocationChecker.DEFAULT_OCSP_TTL_MS))
+    {
+      assertEquals (ERevocationStatus.GOOD, aSoftFail.getRevocationStatus (aCert, aCA));
+      assertEquals (ERevocationStatus.GOOD, aHardFail.getRevocationStatus (aCert, aCA));
+
+      aResponder.setAvailable (false);
+      Thread.sleep (1000);
+
+      // Soft-fail: the outdated result is used
+      assertEquals (ERevocationStatus.GOOD, aSoftFail.getRevocationStatus (aCert, aCA));
+      // No result at all - accepted in soft-fail mode only
+      assertEquals (ERevocationStatus.UNKNOWN, aSoftFail.getRevocationStatus (aOther, aCA));
+      assertTrue (aSoftFail.isAccepted (ERevocationStatus.UNKNOWN));
+
+      // Hard-fail: outdated results are never used
+      assertEquals (ERevocationStatus.UNKNOWN, aHardFail.getRevocationStatus (aCert, aCA));
+      assertFalse (aHardFail.isAccepted (ERevocationStatus.UNKNOWN));
+    }
+  }
+
+  @Test
+  public void testInvalidOCSPResponses () throws Exception
+  {
+    final LocalOCSPResponder aResponder = new LocalOCSPResponder ();
+    final X509Certificate aCA = aResponder.getCACertificate ();
+    final X509Certificate aCert = aResponder.createCertificate (2, true);
+
+    try (final AS4RevocationChecker aChecker = new AS4RevocationChecker (ERevocationCheckMode.HARD_FAIL,
+                                                                         null,
+                                                                         aResponder,
+                                                                         AS4RevocationChecker.DEFAULT_OCSP_TTL_MS,
+                                                                         60_000,
+                                                                         AS4RevocationChecker.DEFAULT_OCSP_CACHE_MAX_SIZE))
+    {
+      // Already outdated
+      aResponder.setNextUpdateMS (-1000);
+      assertEquals (ERevocationStatus.UNKNOWN, aChecker.getRevocationStatus (aCert, aCA));
+      aResponder.setNextUpdateMS (60_000);
+
+      // From the future
+      aResponder.setThisUpdateOffsetMS (3_600_000);
+      assertEquals (ERevocationStatus.UNKNOWN, aChecker.getRevocationStatus (aCert, aCA));
+
+      // Older than the maximum age
+      aResponder.setThisUpdateOffsetMS (-120_000);
+      assertEquals (ERevocationStatus.UNKNOWN, aChecker.getRevocationStatus (aCert, aCA));
+      assertEquals (0, aChecker.getOCSPCacheSize ());
+      aResponder.setThisUpdateOffsetMS (0);
+
+      // Expired delegated responder
+      aResponder.useDelegatedResponder (false);
+      assertEquals (ERevocationStatus.UNKNOWN, aChecker.getRevocationStatus (aCert, aCA));
+      assertEquals (0, aChecker.getOCSPCacheSize ());
+
+      // Valid delegated responder
+      aResponder.useDelegatedResponder (true);
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aCert, aCA));
+      assertEquals (5, aResponder.getRequestCount ());
+    }
+  }
+
+  @Test
+  public void testOCSPCacheMaxSize () throws Exception
+  {
+    final LocalOCSPResponder aResponder = new LocalOCSPResponder ();
+    final X509Certificate aCA = aResponder.getCACertificate ();
+    final X509Certificate aCert1 = aResponder.createCertificate (2, true);
+    final X509Certificate aCert2 = aResponder.createCertificate (3, true);
+
+    try (final AS4RevocationChecker aChecker = new AS4RevocationChecker (ERevocationCheckMode.HARD_FAIL,
+                                                                         null,
+                                                                         aResponder,
+                                                                         AS4RevocationChecker.DEFAULT_OCSP_TTL_MS,
+                                                                         AS4RevocationChecker.DEFAULT_OCSP_MAX_AGE_MS,
+                                                                         1))
+    {
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aCert1, aCA));
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aCert2, aCA));
+      assertEquals (1, aChecker.getOCSPCacheSize ());
+
+      // The oldest entry was evicted
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aCert2, aCA));
+      assertEquals (2, aResponder.getRequestCount ());
+      assertEquals (ERevocationStatus.GOOD, aChecker.getRevocationStatus (aCert1, aCA));
+      assertEquals (3, aResponder.getRequestCount ());
+    }
+  }
+}
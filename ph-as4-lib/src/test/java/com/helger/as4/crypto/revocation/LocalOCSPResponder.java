@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.crypto.revocation;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.jcajce.JcaBasicOCSPRespBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * An in-process test CA with an OCSP responder, so that revocation checks can
+ * be tested without network access.
+ *
+ * @author Philip Helger
+ */
+public final class LocalOCSPResponder implements IOCSPTransport
+{
+  public static final String OCSP_URL = "http://localhost/ocsp";
+
+  private final KeyPair m_aCAKeyPair;
+  private final X509Certificate m_aCACert;
+  private final Set <BigInteger> m_aRevoked = ConcurrentHashMap.newKeySet ();
+  private final AtomicInteger m_aRequestCount = new AtomicInteger (0);
+  private volatile long m_nNextUpdateMS = 60_000;
+  private volatile long m_nThisUpdateOffsetMS = 0;
+  private volatile KeyPair m_aResponderKeyPair;
+  private volatile X509Certificate m_aResponderCert;
+  private volatile boolean m_bAvailable = true;
+
+  public LocalOCSPResponder () throws Exception
+  {
+    m_aCAKeyPair = _createKeyPair ();
+    final X500Name aName = new X500Name ("CN=Test CA");
+    m_aCACert = _sign (new JcaX509v3CertificateBuilder (aName,
+                                                         BigInteger.ONE,
+                                                         new Date (),
+                                                         new Date (System.currentTimeMillis () + 600_000),
+                                                         aName,
+                                                         m_aCAKeyPair.getPublic ()));
+  }
+
+  @Nonnull
+  private static KeyPair _createKeyPair () throws Exception
+  {
+    final KeyPairGenerator aKPG = KeyPairGenerator.getInstance ("RSA");
+    aKPG.initialize (2048);
+    return aKPG.generateKeyPair ();
+  }
+
+  @Nonnull
+  private ContentSigner _getSigner () throws Exception
+  {
+    return _getSigner (m_aCAKeyPair);
+  }
+
+  @Nonnull
+  private static ContentSigner _getSigner (@Nonnull final KeyPair aKeyPair) throws Exception
+  {
+    return new JcaContentSignerBuilder ("SHA256withRSA").build (aKeyPair.getPrivate ());
+  }
+
+  @Nonnull
+  private X509Certificate _sign (@Nonnull final X509v3CertificateBuilder aBuilder) throws Exception
+  {
+    return new JcaX509CertificateConverter ().getCertificate (aBuilder.build (_getSigner ()));
+  }
+
+  @Nonnull
+  public X509Certificate getCACertificate ()
+  {
+    return m_aCACert;
+  }
+
+  /**
+   * Create a new end entity certificate issued by this CA.
+   *
+   * @param nSerial
+   *        Serial number
+   * @param bWithOCSP
+   *        <code>true</code> to reference this responder in the certificate
+   * @return The new certificate
+   * @throws Exception
+   *         on error
+   */
+  @Nonnull
+  public X509Certificate createCertificate (final long nSerial, final boolean bWithOCSP) throws Exception
+  {
+    final X509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (m_aCACert,
+                                                                                BigInteger.valueOf (nSerial),
+                                                                                new Date (),
+                                                                                new Date (System.currentTimeMillis () +
+                                                                                          600_000),
+                                                                                new X500Name ("CN=Partner " + nSerial),
+                                                                                _createKeyPair ().getPublic ());
+    if (bWithOCSP)
+      aBuilder.addExtension (Extension.authorityInfoAccess,
+                             false,
+                             new AuthorityInformationAccess (AccessDescription.id_ad_ocsp,
+                                                             new GeneralName (GeneralName.uniformResourceIdentifier,
+                                                                              OCSP_URL)));
+    return _sign (aBuilder);
+  }
+
+  /**
+   * Create a CRL containing all revoked serial numbers.
+   *
+   * @param aNextUpdate
+   *        Next update date. May be <code>null</code>.
+   * @return The new CRL
+   * @throws Exception
+   *         on error
+   */
+  @Nonnull
+  public X509CRL createCRL (@Nullable final Date aNextUpdate) throws Exception
+  {
+    final X509v2CRLBuilder aBuilder = new X509v2CRLBuilder (new X500Name (m_aCACert.getSubjectX500Principal ()
+                                                                                   .getName ()),
+                                                            new Date ());
+    if (aNextUpdate != null)
+      aBuilder.setNextUpdate (aNextUpdate);
+    for (final BigInteger aSerial : m_aRevoked)
+      aBuilder.addCRLEntry (aSerial, new Date (), CRLReason.keyCompromise);
+    return new JcaX509CRLConverter ().getCRL (aBuilder.build (_getSigner ()));
+  }
+
+  public void revoke (final long nSerial)
+  {
+    m_aRevoked.add (BigInteger.valueOf (nSerial));
+  }
+
+  public void setNextUpdateMS (final long nNextUpdateMS)
+  {
+    m_nNextUpdateMS = nNextUpdateMS;
+  }
+
+  public void setThisUpdateOffsetMS (final long nThisUpdateOffsetMS)
+  {
+    m_nThisUpdateOffsetMS = nThisUpdateOffsetMS;
+  }
+
+  /**
+   * Sign the responses with a delegated responder certificate issued by this
+   * CA instead of the CA key.
+   *
+   * @param bValid
+   *        <code>true</code> for a currently valid responder certificate,
+   *        <code>false</code> for an expired one
+   * @throws Exception
+   *         on error
+   */
+  public void useDelegatedResponder (final boolean bValid) throws Exception
+  {
+    final long nNow = System.currentTimeMillis ();
+    final KeyPair aKeyPair = _createKeyPair ();
+    final X509v3CertificateBuilder aBuilder = new JcaX509v3CertificateBuilder (m_aCACert,
+                                                                                BigInteger.valueOf (nNow),
+                                                                                new Date (bValid ? nNow - 60_000
+                                                                                                 : nNow - 7_200_000),
+                                                                                new Date (bValid ? nNow + 600_000
+                                                                                                 : nNow - 3_600_000),
+                                                                                new X500Name ("CN=Test OCSP Responder"),
+                                                                                aKeyPair.getPublic ());
+    aBuilder.addExtension (Extension.extendedKeyUsage, false, new ExtendedKeyUsage (KeyPurposeId.id_kp_OCSPSigning));
+    m_aResponderCert = _sign (aBuilder);
+    m_aResponderKeyPair = aKeyPair;
+  }
+
+  public void setAvailable (final boolean bAvailable)
+  {
+    m_bAvailable = bAvailable;
+  }
+
+  public int getRequestCount ()
+  {
+    return m_aRequestCount.get ();
+  }
+
+  @Nonnull
+  public byte [] sendOCSPRequest (@Nonnull final String sURL, @Nonnull final byte [] aRequest) throws IOException
+  {
+    m_aRequestCount.incrementAndGet ();
+    if (!m_bAvailable)
+      throw new IOException ("OCSP responder is not available");
+
+    try
+    {
+      final OCSPReq aReq = new OCSPReq (aRequest);
+      final X509Certificate aResponderCert = m_aResponderCert;
+      final KeyPair aResponderKeyPair = aResponderCert != null ? m_aResponderKeyPair : m_aCAKeyPair;
+      final BasicOCSPRespBuilder aBuilder = new JcaBasicOCSPRespBuilder (aResponderKeyPair.getPublic (),
+                                                                         new JcaDigestCalculatorProviderBuilder ().build ()
+                                                                                                                  .get (CertificateID.HASH_SHA1));
+      final Date aNow = new Date ();
+      final Date aThisUpdate = new Date (aNow.getTime () + m_nThisUpdateOffsetMS);
+      final Date aNextUpdate = new Date (aNow.getTime () + m_nNextUpdateMS);
+      for (final Req aSingleReq : aReq.getRequestList ())
+      {
+        final CertificateID aCertID = aSingleReq.getCertID ();
+        final CertificateStatus aStatus = m_aRevoked.contains (aCertID.getSerialNumber ()) ? new RevokedStatus (aNow,
+                                                                                                                  CRLReason.keyCompromise)
+                                                                                            : CertificateStatus.GOOD;
+        aBuilder.addResponse (aCertID, aStatus, aThisUpdate, aNextUpdate);
+      }
+      X509CertificateHolder [] aChain = null;
+      if (aResponderCert != null)
+        aChain = new X509CertificateHolder [] { new JcaX509CertificateHolder (aResponderCert) };
+      final BasicOCSPResp aResp = aBuilder.build (_getSigner (aResponderKeyPair), aChain, aNow);
+      return new OCSPRespBuilder ().build (OCSPRespBuilder.SUCCESSFUL, aResp).getEncoded ();
+    }
+    catch (final IOException ex)
+    {
+      throw ex;
+    }
+    catch (final Exception ex)
+    {
+      throw new IOException ("Failed to create OCSP response", ex);
+    }
+  }
+}
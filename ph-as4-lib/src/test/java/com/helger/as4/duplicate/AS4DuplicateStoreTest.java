@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.duplicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.file.FileOperations;
+import com.helger.commons.state.EContinue;
+
+/**
+ * Test class for class {@link AS4DuplicateStore}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4DuplicateStoreTest
+{
+  @Test
+  public void testInMemory ()
+  {
+    final AS4DuplicateStore aStore = new AS4DuplicateStore ();
+    assertTrue (aStore.isEmpty ());
+    assertEquals (EContinue.CONTINUE, aStore.registerAndCheck (null, "profile", "pmode"));
+    assertEquals (EContinue.CONTINUE, aStore.registerAndCheck ("", "profile", "pmode"));
+    assertTrue (aStore.isEmpty ());
+
+    assertEquals (EContinue.CONTINUE, aStore.registerAndCheck ("a", "profile", "pmode"));
+    assertEquals (EContinue.BREAK, aStore.registerAndCheck ("a", "profile", "pmode"));
+    assertEquals (EContinue.BREAK, aStore.registerAndCheck ("a", null, null));
+    assertEquals (EContinue.CONTINUE, aStore.registerAndCheck ("b", null, null));
+    assertEquals (2, aStore.size ());
+    assertEquals (2, aStore.getAll ().size ());
+    assertNotNull (aStore.findFirst (x -> x.getMessageID ().equals ("a")));
+    assertNull (aStore.findFirst (x -> x.getMessageID ().equals ("c")));
+    assertTrue (aStore.containsMessageID ("a"));
+    assertFalse (aStore.containsMessageID ("c"));
+    assertFalse (aStore.containsMessageID (null));
+    assertEquals (2, aStore.size ());
+
+    // Nothing is old enough
+    final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+    assertTrue (aStore.evictAllItemsBefore (aNow.minusMinutes (5)).isEmpty ());
+    assertEquals (2, aStore.size ());
+
+    // All buckets are before
+    final ICommonsList <String> aEvicted = aStore.evictAllItemsBefore (aNow.plusMinutes (5));
+    assertEquals (2, aEvicted.size ());
+    assertTrue (aEvicted.contains ("a"));
+    assertTrue (aEvicted.contains ("b"));
+    assertTrue (aStore.isEmpty ());
+    assertEquals (0, aStore.getBucketCount ());
+
+    // Can be registered again
+    assertEquals (EContinue.CONTINUE, aStore.registerAndCheck ("a", "profile", "pmode"));
+    aStore.clearCache ();
+    assertTrue (aStore.isEmpty ());
+  }
+
+  @Test
+  public void testWithLog () throws Exception
+  {
+    final File aFile = File.createTempFile ("as4-duplicate", ".bin");
+    try
+    {
+      try (final AS4DuplicateStore aStore = new AS4DuplicateStore (new AS4DuplicateLog (aFile),
+                                                                   Duration.ofSeconds (10)))
+      {
+        assertTrue (aStore.isEmpty ());
+        for (int i = 0; i < 100; ++i)
+          assertEquals (EContinue.CONTINUE, aStore.registerAndCheck ("id" + i, i % 2 == 0 ? "profile" : null, "pmode"));
+        assertEquals (100, aStore.getLog ().getRecordCount ());
+      }
+
+      // Simulate a crash while writing the last record
+      try (final RandomAccessFile aRAF = new RandomAccessFile (aFile, "rw"))
+      {
+        aRAF.seek (aRAF.length ());
+        aRAF.writeInt (100);
+        aRAF.writeLong (0);
+      }
+
+      try (final AS4DuplicateStore aStore = new AS4DuplicateStore (new AS4DuplicateLog (aFile),
+                                                                   Duration.ofSeconds (10)))
+      {
+        assertEquals (100, aStore.size ());
+        final IAS4DuplicateItem aItem = aStore.findFirst (x -> x.getMessageID ().equals ("id2"));
+        assertNotNull (aItem);
+        assertEquals ("profile", aItem.getProfileID ());
+        assertEquals ("pmode", aItem.getPModeID ());
+        assertNull (aStore.findFirst (x -> x.getMessageID ().equals ("id3")).getProfileID ());
+        assertEquals (EContinue.BREAK, aStore.registerAndCheck ("id5", null, null));
+        assertEquals (EContinue.CONTINUE, aStore.registerAndCheck ("id100", null, null));
+
+        // Clearing rewrites the log
+        aStore.clearCache ();
+        assertEquals (0, aStore.getLog ().getRecordCount ());
+      }
+
+      try (final AS4DuplicateStore aStore = new AS4DuplicateStore (new AS4DuplicateLog (aFile),
+                                                                   Duration.ofSeconds (10)))
+      {
+        assertTrue (aStore.isEmpty ());
+      }
+    }
+    finally
+    {
+      FileOperations.deleteFileIfExisting (aFile);
+    }
+  }
+
+  @Test
+  public void testRollbackIfLogFails () throws Exception
+  {
+    final File aFile = File.createTempFile ("as4-duplicate", ".bin");
+    try
+    {
+      try (final AS4DuplicateStore aStore = new AS4DuplicateStore (new AS4DuplicateLog (aFile),
+                                                                   Duration.ofSeconds (10)))
+      {
+        assertEquals (EContinue.CONTINUE, aStore.registerAndCheck ("a", null, null));
+
+        // Appending fails afterwards
+        aStore.getLog ().close ();
+        try
+        {
+          aStore.registerAndCheck ("b", null, null);
+          fail ();
+        }
+        catch (final IllegalStateException ex)
+        {
+          // expected
+        }
+
+        // Not remembered
+        assertFalse (aStore.containsMessageID ("b"));
+        assertEquals (1, aStore.size ());
+        final ICommonsList <String> aEvicted = aStore.evictAllItemsBefore (PDTFactory.getCurrentLocalDateTime ()
+                                                                                     .plusMinutes (5));
+        assertEquals (1, aEvicted.size ());
+        assertTrue (aEvicted.contains ("a"));
+      }
+    }
+    finally
+    {
+      FileOperations.deleteFileIfExisting (aFile);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.mail.BodyPart;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link HttpMultipartRelatedEntity}.
+ *
+ * @author Philip Helger
+ */
+public final class HttpMultipartRelatedEntityTest
+{
+  private static final String SOAP = "<S12:Envelope xmlns:S12=\"http://www.w3.org/2003/05/soap-envelope\">" +
+                                     "<S12:Body/>" +
+                                     "</S12:Envelope>";
+
+  @Test
+  public void testWrite () throws Exception
+  {
+    final Document aDoc = DOMReader.readXMLDOM (SOAP);
+    final byte [] aMemData = "in-memory attachment".getBytes (StandardCharsets.UTF_8);
+    final byte [] aFileData = new byte [100_000];
+    for (int i = 0; i < aFileData.length; ++i)
+      aFileData[i] = (byte) i;
+
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final File aFile = aResMgr.createTempFile ();
+      try (final OutputStream aOS = FileHelper.getOutputStream (aFile))
+      {
+        aOS.write (aFileData);
+      }
+
+      final WSS4JAttachment aMemAttachment = WSS4JAttachment.createOutgoingFileAttachment (aMemData,
+                                                                                           "mem.txt",
+                                                                                           CMimeType.TEXT_PLAIN,
+                                                                                           null,
+                                                                                           aResMgr);
+      final WSS4JAttachment aFileAttachment = WSS4JAttachment.createOutgoingFileAttachment (aFile,
+                                                                                            CMimeType.APPLICATION_OCTET_STREAM,
+                                                                                            null,
+                                                                                            aResMgr);
+      assertEquals (aFileData.length, aFileAttachment.getSourceLength ());
+
+      final HttpMultipartRelatedEntity aEntity = new HttpMultipartRelatedEntity (ESOAPVersion.SOAP_12,
+                                                                                 aDoc,
+                                                                                 new CommonsArrayList <> (aMemAttachment,
+                                                                                                          aFileAttachment));
+      assertTrue (aEntity.isRepeatable ());
+      assertTrue (aEntity.getContentLength () > aFileData.length);
+
+      final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ();
+      aEntity.writeTo (aBAOS);
+      final byte [] aBytes = aBAOS.toByteArray ();
+      assertEquals (aEntity.getContentLength (), aBytes.length);
+
+      // Same content when read as stream
+      assertArrayEquals (aBytes, StreamHelper.getAllBytes (aEntity.getContent ()));
+
+      // Parse with JavaMail
+      final MimeMultipart aMultipart = new MimeMultipart (new ByteArrayDataSource (aBytes,
+                                                                                   aEntity.getContentType ()
+                                                                                          .getValue ()));
+      assertEquals (3, aMultipart.getCount ());
+      final BodyPart aMemPart = aMultipart.getBodyPart (1);
+      assertEquals (aMemAttachment.getId (), aMemPart.getHeader ("Content-ID")[0]);
+      assertArrayEquals (aMemData, StreamHelper.getAllBytes (aMemPart.getInputStream ()));
+      assertArrayEquals (aFileData, StreamHelper.getAllBytes (aMultipart.getBodyPart (2).getInputStream ()));
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.marshaller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.soap11.Soap11Envelope;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.jaxb.validation.CollectingValidationEventHandler;
+
+/**
+ * Test class for class {@link Ebms3MarshallerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class Ebms3MarshallerPoolTest
+{
+  static
+  {
+    Locale.setDefault (Locale.US);
+  }
+
+  @Nonnull
+  private static Element _readMessagingElement (@Nonnull final String sPath)
+  {
+    final Soap11Envelope aEnv = Ebms3ReaderBuilder.soap11 ().read (new ClassPathResource (sPath));
+    assertNotNull (aEnv);
+    return (Element) aEnv.getHeader ().getAnyAtIndex (0);
+  }
+
+  @Test
+  public void testInstance ()
+  {
+    final Ebms3MarshallerPool aPool = Ebms3MarshallerPool.getInstance (EEbms3DocumentType.MESSAGING);
+    assertNotNull (aPool);
+    assertSame (aPool, Ebms3MarshallerPool.getInstance (EEbms3DocumentType.MESSAGING));
+    assertSame (EEbms3DocumentType.MESSAGING, aPool.getDocumentType ());
+    assertSame (EEbms3ValidationMode.FULL, Ebms3MarshallerPool.getDefaultValidationMode ());
+  }
+
+  @Test
+  public void testReadWrite ()
+  {
+    final Ebms3MarshallerPool aPool = Ebms3MarshallerPool.getInstance (EEbms3DocumentType.MESSAGING);
+    final Element aElement = _readMessagingElement ("/soap11test/UserMessage.xml");
+
+    for (final EEbms3ValidationMode eMode : EEbms3ValidationMode.values ())
+    {
+      final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+      final Ebms3Messaging aMessaging = aPool.read (aElement, Ebms3Messaging.class, eMode, aCVEH);
+      assertNotNull (aMessaging);
+      assertTrue (aCVEH.getErrorList ().isEmpty ());
+      assertEquals (1, aMessaging.getUserMessageCount ());
+
+      final Document aDoc = aPool.write (aMessaging, eMode);
+      assertNotNull (aDoc);
+      assertEquals ("Messaging", aDoc.getDocumentElement ().getLocalName ());
+      assertEquals (aMessaging, aPool.read (aDoc.getDocumentElement (), Ebms3Messaging.class, eMode, null));
+    }
+    // Successfully used objects are returned to the pool
+    assertTrue (aPool.getPooledMarshallerCount () > 0);
+    assertTrue (aPool.getPooledUnmarshallerCount () > 0);
+  }
+
+  @Test
+  public void testValidationMode ()
+  {
+    final Ebms3MarshallerPool aPool = Ebms3MarshallerPool.getInstance (EEbms3DocumentType.MESSAGING);
+    final Element aElement = _readMessagingElement ("/soap11test/MessageInfoMissing.xml");
+
+    // Rejected by the XML Schema
+    CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
+    assertNull (aPool.read (aElement, Ebms3Messaging.class, EEbms3ValidationMode.FULL, aCVEH));
+    assertTrue (aCVEH.getErrorList ().containsAtLeastOneError ());
+
+    // Structurally fine
+    aCVEH = new CollectingValidationEventHandler ();
+    final Ebms3Messaging aMessaging = aPool.read (aElement, Ebms3Messaging.class, EEbms3ValidationMode.STRUCTURE, aCVEH);
+    assertNotNull (aMessaging);
+    assertTrue (aCVEH.getErrorList ().isEmpty ());
+    assertNull (aMessaging.getUserMessageAtIndex (0).getMessageInfo ());
+  }
+}
@@ -17,6 +17,8 @@
 package com.helger.as4.model.pmode;
 
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -24,6 +26,11 @@ import org.junit.rules.TestRule;
 
 import com.helger.as4.AS4TestRule;
 import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.EMEP;
+import com.helger.as4.model.EMEPBinding;
+import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.model.pmode.leg.PModeLegBusinessInformation;
+import com.helger.as4.model.pmode.leg.PModeLegProtocol;
 
 /**
  * Test class for class {@link PModeManager}.
@@ -41,4 +48,62 @@ public final class PModeManagerTest
     final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
     assertNotNull (aPModeMgr);
   }
+
+  @Test
+  public void testIndices ()
+  {
+    final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
+    final PMode aPMode = new PMode ( (i, r) -> "pm-indextest",
+                                    PModeParty.createSimple ("idxinit", "role"),
+                                    PModeParty.createSimple ("idxresp", "role"),
+                                    "agreement",
+                                    EMEP.ONE_WAY,
+                                    EMEPBinding.PUSH,
+                                    new PModeLeg (PModeLegProtocol.createForDefaultSOAPVersion (null),
+                                                  new PModeLegBusinessInformation ("idxservice",
+                                                                                   "idxaction",
+                                                                                   null,
+                                                                                   null),
+                                                  null,
+                                                  null,
+                                                  null),
+                                    null,
+                                    null,
+                                    null);
+    aPModeMgr.createOrUpdatePMode (aPMode);
+    try
+    {
+      assertSame (aPMode, aPModeMgr.getPModeOfID ("pm-indextest"));
+      assertSame (aPMode, aPModeMgr.getPModeOfServiceAndAction ("idxservice", "idxaction"));
+      assertNull (aPModeMgr.getPModeOfServiceAndAction ("idxservice", null));
+
+      // Update changes the indices
+      final PMode aUpdate = new PMode ( (i, r) -> "pm-indextest",
+                                       PModeParty.createSimple ("idxinit", "role"),
+                                       PModeParty.createSimple ("idxresp", "role"),
+                                       "agreement",
+                                       EMEP.ONE_WAY,
+                                       EMEPBinding.PUSH,
+                                       new PModeLeg (PModeLegProtocol.createForDefaultSOAPVersion (null),
+                                                     new PModeLegBusinessInformation ("idxservice2",
+                                                                                      "idxaction",
+                                                                                      null,
+                                                                                      null),
+                                                     null,
+                                                     null,
+                                                     null),
+                                       null,
+                                       null,
+                                       null);
+      aPModeMgr.createOrUpdatePMode (aUpdate);
+      assertNull (aPModeMgr.getPModeOfServiceAndAction ("idxservice", "idxaction"));
+      assertSame (aPMode, aPModeMgr.getPModeOfServiceAndAction ("idxservice2", "idxaction"));
+    }
+    finally
+    {
+      aPModeMgr.deletePMode ("pm-indextest");
+    }
+    assertNull (aPModeMgr.getPModeOfID ("pm-indextest"));
+    assertNull (aPModeMgr.getPModeOfServiceAndAction ("idxservice2", "idxaction"));
+  }
 }
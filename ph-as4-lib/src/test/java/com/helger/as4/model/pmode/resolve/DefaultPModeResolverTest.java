@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.model.pmode.resolve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.AS4TestRule;
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.model.pmode.DefaultPMode;
+import com.helger.as4.model.pmode.IPMode;
+import com.helger.as4.model.pmode.IPModeIDProvider;
+import com.helger.as4.model.pmode.PModeManager;
+import com.helger.as4.profile.AS4Profile;
+import com.helger.as4.profile.IAS4ProfileValidator;
+
+/**
+ * Test class for class {@link DefaultPModeResolver}.
+ *
+ * @author Philip Helger
+ */
+public final class DefaultPModeResolverTest
+{
+  @Rule
+  public final TestRule m_aTestRule = new AS4TestRule ();
+
+  private static void _registerProfile ()
+  {
+    // The only profile is the default profile
+    MetaAS4Manager.getProfileMgr ()
+                  .registerProfile (new AS4Profile ("resolvertest",
+                                                    "Resolver test",
+                                                    () -> new IAS4ProfileValidator ()
+                                                    {},
+                                                    (i, r, a) -> DefaultPMode.getOrCreateDefaultPMode (i, r, a, true),
+                                                    IPModeIDProvider.DEFAULT_DYNAMIC));
+  }
+
+  @Nonnull
+  private static String _getAddress (@Nonnull final IPMode aPMode)
+  {
+    return aPMode.getLeg1 ().getProtocol ().getAddress ();
+  }
+
+  @Test
+  public void testTemplateCache ()
+  {
+    _registerProfile ();
+    final DefaultPModeResolver aResolver = new DefaultPModeResolver (true, 2);
+    final IPMode aPMode = aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4");
+    assertNotNull (aPMode);
+    assertEquals (1, aResolver.getCacheSize ());
+
+    // Cached
+    assertSame (aPMode, aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4"));
+    assertEquals (1, aResolver.getCacheSize ());
+
+    // Different address updates the same PMode
+    assertEquals ("http://localhost/as4b",
+                  _getAddress (aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4b")));
+    assertEquals (2, aResolver.getCacheSize ());
+
+    // The first entry is outdated and must be re-created
+    assertEquals ("http://localhost/as4",
+                  _getAddress (aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4")));
+
+    // Eldest entry is evicted
+    aResolver.getPModeOfID (null, "svc", "act", "init2", "resp", null);
+    assertEquals (2, aResolver.getCacheSize ());
+
+    aResolver.clearCache ();
+    assertEquals (0, aResolver.getCacheSize ());
+  }
+
+  @Test
+  public void testInvalidatedByPModeManager ()
+  {
+    _registerProfile ();
+    final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
+    final DefaultPModeResolver aResolver = new DefaultPModeResolver (true, 10);
+    final IPMode aPMode = aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4");
+    assertNotNull (aPMode);
+    final long nVersion = aPModeMgr.getPModeVersion (aPMode.getID ());
+    assertTrue (nVersion > 0);
+    assertSame (aPMode, aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4"));
+    assertEquals (nVersion, aPModeMgr.getPModeVersion (aPMode.getID ()));
+
+    // Deleted externally
+    aPModeMgr.deletePMode (aPMode.getID ());
+    assertEquals (-1, aPModeMgr.getPModeVersion (aPMode.getID ()));
+    final IPMode aPMode2 = aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4");
+    assertNotSame (aPMode, aPMode2);
+    assertSame (aPMode2, aPModeMgr.getPModeOfID (aPMode.getID ()));
+
+    // Updated externally
+    aPModeMgr.updatePMode (aPMode2);
+    assertTrue (aPModeMgr.getPModeVersion (aPMode.getID ()) > nVersion);
+    final long nVersion2 = aPModeMgr.getPModeVersion (aPMode.getID ());
+    aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4");
+    // Re-created from the template
+    assertTrue (aPModeMgr.getPModeVersion (aPMode.getID ()) > nVersion2);
+  }
+
+  @Test
+  public void testNoCache ()
+  {
+    _registerProfile ();
+    final DefaultPModeResolver aResolver = new DefaultPModeResolver (true, 0);
+    final IPMode aPMode = aResolver.getPModeOfID (null, "svc", "act", "init", "resp", null);
+    assertNotNull (aPMode);
+    assertNotSame (aPMode, aResolver.getPModeOfID (null, "svc", "act", "init", "resp", null));
+    assertEquals (0, aResolver.getCacheSize ());
+  }
+
+  @Test
+  public void testDefaultPModeFallback ()
+  {
+    // No profile - the default PMode is used
+    final PModeManager aPModeMgr = MetaAS4Manager.getPModeMgr ();
+    final DefaultPModeResolver aResolver = new DefaultPModeResolver (true, 10);
+    final IPMode aPMode = aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4");
+    assertNotNull (aPMode);
+    assertTrue (aPMode.getID ().startsWith ("default-"));
+    final long nVersion = aPModeMgr.getPModeVersion (aPMode.getID ());
+    assertTrue (nVersion > 0);
+    assertEquals (1, aResolver.getCacheSize ());
+
+    // The second unmatched message neither creates nor writes the PMode again
+    assertSame (aPMode, aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4"));
+    assertEquals (nVersion, aPModeMgr.getPModeVersion (aPMode.getID ()));
+
+    // Not even without a cache, as it is already persisted
+    final DefaultPModeResolver aNoCache = new DefaultPModeResolver (true, 0);
+    assertSame (aPMode, aNoCache.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4"));
+    assertEquals (nVersion, aPModeMgr.getPModeVersion (aPMode.getID ()));
+
+    // Deleted externally - persisted again
+    aPModeMgr.deletePMode (aPMode.getID ());
+    final IPMode aPMode2 = aResolver.getPModeOfID (null, "svc", "act", "init", "resp", "http://localhost/as4");
+    assertNotSame (aPMode, aPMode2);
+    assertTrue (aPModeMgr.getPModeVersion (aPMode.getID ()) > 0);
+
+    // No fallback
+    assertNull (new DefaultPModeResolver (false).getPModeOfID (null, "svc", "act", "init", "resp", null));
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.soap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.timing.StopWatch;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Compares the time needed to create SOAP documents with
+ * {@link SOAPEnvelopeBuilder} and with the previous JAXB based approach. Not
+ * run as part of the unit tests, because the timing depends on the machine.
+ *
+ * @author Philip Helger
+ */
+public final class MainSOAPEnvelopeBuilderTiming
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (MainSOAPEnvelopeBuilderTiming.class);
+
+  private MainSOAPEnvelopeBuilderTiming ()
+  {}
+
+  public static void main (final String [] args)
+  {
+    final int nRuns = 500;
+    final Ebms3Messaging aMessaging = SOAPEnvelopeBuilderTest.readMessaging ();
+    final Document aPayload = DOMReader.readXMLDOM (new ClassPathResource ("/SOAPBodyPayload.xml"));
+
+    // Warm up both variants
+    for (int i = 0; i < nRuns; ++i)
+    {
+      SOAPEnvelopeBuilderTest.createViaJAXB (ESOAPVersion.AS4_DEFAULT, aMessaging, aPayload.getDocumentElement ());
+      SOAPEnvelopeBuilder.createSOAPDocument (ESOAPVersion.AS4_DEFAULT, aMessaging, aPayload);
+    }
+
+    StopWatch aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < nRuns; ++i)
+      SOAPEnvelopeBuilderTest.createViaJAXB (ESOAPVersion.AS4_DEFAULT, aMessaging, aPayload.getDocumentElement ());
+    final long nJAXBMillis = aSW.stopAndGetMillis ();
+
+    aSW = StopWatch.createdStarted ();
+    for (int i = 0; i < nRuns; ++i)
+      SOAPEnvelopeBuilder.createSOAPDocument (ESOAPVersion.AS4_DEFAULT, aMessaging, aPayload);
+    final long nDirectMillis = aSW.stopAndGetMillis ();
+
+    LOGGER.info (nRuns + " SOAP documents: JAXB envelope " + nJAXBMillis + "ms; direct DOM " + nDirectMillis + "ms");
+  }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.soap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.marshaller.EEbms3ValidationMode;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
+import com.helger.as4.marshaller.Ebms3ReaderBuilder;
+import com.helger.as4.marshaller.Ebms3WriterBuilder;
+import com.helger.as4lib.ebms3header.Ebms3Messaging;
+import com.helger.as4lib.soap11.Soap11Body;
+import com.helger.as4lib.soap11.Soap11Envelope;
+import com.helger.as4lib.soap11.Soap11Header;
+import com.helger.as4lib.soap12.Soap12Body;
+import com.helger.as4lib.soap12.Soap12Envelope;
+import com.helger.as4lib.soap12.Soap12Header;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.xml.XMLHelper;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Test class for class {@link SOAPEnvelopeBuilder}.
+ *
+ * @author Philip Helger
+ */
+public final class SOAPEnvelopeBuilderTest
+{
+  @Nonnull
+  static Ebms3Messaging readMessaging ()
+  {
+    final Ebms3Messaging ret = Ebms3ReaderBuilder.ebms3Messaging ()
+                                                 .read (new ClassPathResource ("/soap11test/UserMessage-no-soap.xml"));
+    assertNotNull (ret);
+    return ret;
+  }
+
+  /**
+   * The previous approach: write Messaging to a separate document and write
+   * the JAXB SOAP envelope with the Messaging element to another document.
+   */
+  @Nonnull
+  static Document createViaJAXB (@Nonnull final ESOAPVersion eSOAPVersion,
+                                 @Nonnull final Ebms3Messaging aMessaging,
+                                 @Nonnull final Node aPayload)
+  {
+    final Document aEbms3Document = Ebms3WriterBuilder.ebms3Messaging ().getAsDocument (aMessaging);
+    if (eSOAPVersion == ESOAPVersion.SOAP_11)
+    {
+      final Soap11Envelope aSoapEnv = new Soap11Envelope ();
+      aSoapEnv.setHeader (new Soap11Header ());
+      aSoapEnv.setBody (new Soap11Body ());
+      aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
+      aSoapEnv.getBody ().addAny (aPayload);
+      return Ebms3WriterBuilder.soap11 ().getAsDocument (aSoapEnv);
+    }
+    final Soap12Envelope aSoapEnv = new Soap12Envelope ();
+    aSoapEnv.setHeader (new Soap12Header ());
+    aSoapEnv.setBody (new Soap12Body ());
+    aSoapEnv.getHeader ().addAny (aEbms3Document.getDocumentElement ());
+    aSoapEnv.getBody ().addAny (aPayload);
+    return Ebms3WriterBuilder.soap12 ().getAsDocument (aSoapEnv);
+  }
+
+  @Test
+  public void testSameAsJAXB ()
+  {
+    final Ebms3Messaging aMessaging = readMessaging ();
+    final Document aPayload = DOMReader.readXMLDOM (new ClassPathResource ("/SOAPBodyPayload.xml"));
+    assertNotNull (aPayload);
+
+    for (final ESOAPVersion eSOAPVersion : ESOAPVersion.values ())
+    {
+      final Document aExpected = createViaJAXB (eSOAPVersion, aMessaging, aPayload.getDocumentElement ());
+      final Document aDoc = SOAPEnvelopeBuilder.createSOAPDocument (eSOAPVersion, aMessaging, aPayload);
+      assertNotNull (aExpected);
+      assertNotNull (aDoc);
+
+      final Element eEnvelope = aDoc.getDocumentElement ();
+      assertEquals (eSOAPVersion.getNamespaceURI (), eEnvelope.getNamespaceURI ());
+      assertEquals ("Envelope", eEnvelope.getLocalName ());
+      assertEquals (aExpected.getDocumentElement ().getLocalName (), eEnvelope.getLocalName ());
+
+      // Same header content
+      final Element eHeader = XMLHelper.getFirstChildElementOfName (eEnvelope,
+                                                                    eSOAPVersion.getNamespaceURI (),
+                                                                    eSOAPVersion.getHeaderElementName ());
+      assertNotNull (eHeader);
+      assertEquals (aMessaging,
+                    Ebms3MarshallerPool.getInstance (EEbms3DocumentType.MESSAGING)
+                                       .read (XMLHelper.getFirstChildElement (eHeader),
+                                              Ebms3Messaging.class,
+                                              EEbms3ValidationMode.FULL,
+                                              null));
+
+      // Same body content
+      final Element eBody = XMLHelper.getFirstChildElementOfName (eEnvelope,
+                                                                  eSOAPVersion.getNamespaceURI (),
+                                                                  eSOAPVersion.getBodyElementName ());
+      assertNotNull (eBody);
+      assertEquals (XMLWriter.getNodeAsString (aPayload.getDocumentElement ()),
+                    XMLWriter.getNodeAsString (XMLHelper.getFirstChildElement (eBody)));
+
+      // Must be valid according to the SOAP XML Schema
+      assertNotNull (eSOAPVersion == ESOAPVersion.SOAP_11 ? Ebms3ReaderBuilder.soap11 ().read (aDoc)
+                                                          : Ebms3ReaderBuilder.soap12 ().read (aDoc));
+    }
+  }
+}
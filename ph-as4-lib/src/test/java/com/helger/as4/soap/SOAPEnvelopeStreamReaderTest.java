@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.soap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.xml.serialize.read.DOMReader;
+import com.helger.xml.serialize.write.XMLWriter;
+
+/**
+ * Test class for class {@link SOAPEnvelopeStreamReader}.
+ *
+ * @author Philip Helger
+ */
+public final class SOAPEnvelopeStreamReaderTest
+{
+  private static void _testRoundtrip (final String sPath) throws Exception
+  {
+    final ClassPathResource aRes = new ClassPathResource (sPath);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final Document aExpected = DOMReader.readXMLDOM (aRes);
+      assertNotNull (aExpected);
+
+      final StreamedSOAPDocument aStreamed = SOAPEnvelopeStreamReader.readSOAPDocument (aRes.getInputStream (),
+                                                                                        aResMgr);
+      assertNotNull (aStreamed);
+      assertNotNull (aStreamed.getSOAPVersion ());
+      assertEquals (XMLWriter.getNodeAsString (aExpected),
+                    XMLWriter.getNodeAsString (aStreamed.materializeBody ()));
+      assertTrue (aStreamed.isBodyMaterialized ());
+    }
+  }
+
+  @Test
+  public void testRoundtrip () throws Exception
+  {
+    _testRoundtrip ("/soap11test/UserMessage.xml");
+    _testRoundtrip ("/soap12test/UserMessage12.xml");
+    _testRoundtrip ("/soap12test/PullRequest12.xml");
+  }
+
+  @Test
+  public void testLazyBody () throws Exception
+  {
+    final String sXML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                        "<S12:Envelope xmlns:S12=\"http://www.w3.org/2003/05/soap-envelope\" xmlns:p=\"urn:payload\">" +
+                        "<S12:Header><p:h>header</p:h></S12:Header>" +
+                        "<S12:Body><p:payload a=\"x&#x9;y\">a &amp; b&#xD;</p:payload></S12:Body>" +
+                        "</S12:Envelope>";
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final StreamedSOAPDocument aStreamed = SOAPEnvelopeStreamReader.readSOAPDocument (new NonBlockingByteArrayInputStream (sXML.getBytes (StandardCharsets.UTF_8)),
+                                                                                        aResMgr);
+      assertNotNull (aStreamed);
+      assertEquals (ESOAPVersion.SOAP_12, aStreamed.getSOAPVersion ());
+      assertTrue (aStreamed.isBodyHasContent ());
+      assertFalse (aStreamed.isBodyMaterialized ());
+
+      // Body is still empty
+      final Document aDoc = aStreamed.getDocument ();
+      assertNull (aDoc.getDocumentElement ().getLastChild ().getFirstChild ());
+
+      aStreamed.materializeBody ();
+      assertEquals (XMLWriter.getNodeAsString (DOMReader.readXMLDOM (sXML)), XMLWriter.getNodeAsString (aDoc));
+    }
+  }
+
+  @Test
+  public void testInvalid () throws Exception
+  {
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      assertNull (SOAPEnvelopeStreamReader.readSOAPDocument (new NonBlockingByteArrayInputStream ("<a><b></a>".getBytes (StandardCharsets.UTF_8)),
+                                                             aResMgr));
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4ResourceManager}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4ResourceManagerTest
+{
+  @Test
+  public void testMemoryBudget () throws IOException
+  {
+    final long nOldBudget = AS4ResourceManager.getMemoryBudget ();
+    final long nInUse = AS4ResourceManager.getMemoryInUse ();
+    AS4ResourceManager.setMemoryBudget (nInUse + 1000);
+    try
+    {
+      try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+      {
+        assertTrue (aResMgr.tryReserveMemory (600));
+        assertEquals (600, aResMgr.getReservedMemory ());
+        assertEquals (nInUse + 600, AS4ResourceManager.getMemoryInUse ());
+
+        try (final AS4ResourceManager aResMgr2 = new AS4ResourceManager ())
+        {
+          // Budget exceeded
+          assertFalse (aResMgr2.tryReserveMemory (600));
+          assertTrue (aResMgr2.tryReserveMemory (400));
+          assertFalse (aResMgr2.tryReserveMemory (1));
+        }
+        // Released upon close
+        assertEquals (nInUse + 600, AS4ResourceManager.getMemoryInUse ());
+
+        // Spool stream that must spill because of the budget
+        final long nSpillCount = AS4ResourceManager.getSpillCount ();
+        final long nSpilledBytes = AS4ResourceManager.getSpilledBytes ();
+        final AS4SpoolOutputStream aSpoolOS = new AS4SpoolOutputStream (aResMgr, 10_000);
+        aSpoolOS.write (new byte [300]);
+        assertFalse (aSpoolOS.isSpooledToFile ());
+        aSpoolOS.write (new byte [300]);
+        aSpoolOS.close ();
+        assertTrue (aSpoolOS.isSpooledToFile ());
+        assertEquals (nSpillCount + 1, AS4ResourceManager.getSpillCount ());
+        assertEquals (nSpilledBytes + 600, AS4ResourceManager.getSpilledBytes ());
+        // The memory of the spilled stream was released
+        assertEquals (600, aResMgr.getReservedMemory ());
+      }
+      assertEquals (nInUse, AS4ResourceManager.getMemoryInUse ());
+    }
+    finally
+    {
+      AS4ResourceManager.setMemoryBudget (nOldBudget);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4TempFileArena}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4TempFileArenaTest
+{
+  @Test
+  public void testBasic () throws IOException
+  {
+    final File aBaseDir = new File ("target/as4-arena-test");
+    final AS4TempFileArena aArena = new AS4TempFileArena (aBaseDir);
+    try
+    {
+      final File aFile1;
+      final File aFile2;
+      try (final AS4ResourceManager aResMgr = new AS4ResourceManager (aArena))
+      {
+        aFile1 = aResMgr.createTempFile ();
+        aFile2 = aResMgr.createTempFile ();
+        assertTrue (aFile1.exists ());
+        // Same per-request directory
+        assertEquals (aFile1.getParentFile (), aFile2.getParentFile ());
+        // Inside the per process directory
+        final File aProcessDir = aFile1.getParentFile ().getParentFile ();
+        assertTrue (aProcessDir.getName ().startsWith (AS4TempFileArena.PROCESS_DIRECTORY_PREFIX));
+        assertEquals (aArena.getBaseDirectory (), aProcessDir.getParentFile ());
+      }
+
+      // Wait for the background deletion
+      aArena.shutdown ();
+      assertEquals (0, aArena.getPendingDeletionCount ());
+      assertFalse (aFile1.exists ());
+      assertFalse (aFile1.getParentFile ().exists ());
+    }
+    finally
+    {
+      aArena.shutdown ();
+    }
+  }
+
+  @Test
+  public void testSweep () throws IOException
+  {
+    final File aBaseDir = new File ("target/as4-arena-sweep-test");
+    final AS4TempFileArena aArena = new AS4TempFileArena (aBaseDir);
+    final AS4TempFileArena aOtherArena = new AS4TempFileArena (aBaseDir);
+    try
+    {
+      // Remove left-overs of previous test runs
+      aArena.sweep ();
+
+      // Used by this process
+      final File aOwn = aArena.createDirectory ();
+      final File aOther = aOtherArena.createDirectory ();
+
+      // Left-over of a process that ended - the lock file is not locked
+      final File aDeadDir = new File (aBaseDir, AS4TempFileArena.PROCESS_DIRECTORY_PREFIX + "dead");
+      final File aDeadReqDir = new File (aDeadDir, AS4TempFileArena.DIRECTORY_PREFIX + "1");
+      assertTrue (aDeadReqDir.mkdirs ());
+      final File aDeadLockFile = new File (aBaseDir,
+                                           AS4TempFileArena.PROCESS_DIRECTORY_PREFIX +
+                                                     "dead" +
+                                                     AS4TempFileArena.LOCK_FILE_SUFFIX);
+      assertTrue (aDeadLockFile.createNewFile ());
+
+      assertEquals (1, aArena.sweep ());
+      assertFalse (aDeadDir.exists ());
+      assertFalse (aDeadLockFile.exists ());
+      assertTrue (aOwn.isDirectory ());
+      assertTrue (aOther.isDirectory ());
+
+      assertEquals (0, aOtherArena.sweep ());
+      assertTrue (aOwn.isDirectory ());
+    }
+    finally
+    {
+      aArena.shutdown ();
+      aOtherArena.shutdown ();
+    }
+  }
+}
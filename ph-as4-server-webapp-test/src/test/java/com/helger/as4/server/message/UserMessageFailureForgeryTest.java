@@ -48,6 +48,8 @@ import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
 import com.helger.as4.error.EEbmsError;
 import com.helger.as4.http.HttpMimeMessageEntity;
 import com.helger.as4.http.HttpXMLEntity;
+import com.helger.as4.marshaller.EEbms3ValidationMode;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.messaging.encrypt.EncryptionCreator;
 import com.helger.as4.messaging.mime.MimeMessageCreator;
@@ -127,6 +129,29 @@ public final class UserMessageFailureForgeryTest extends AbstractUserMessageTest
     sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion), false, EEbmsError.EBMS_INVALID_HEADER.getErrorCode ());
   }
 
+  @Test
+  public void testUserMessageWithNoPartyIDStructureValidationShouldFail () throws Exception
+  {
+    final DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance ();
+    domFactory.setNamespaceAware (true); // never forget this!
+    final DocumentBuilder builder = domFactory.newDocumentBuilder ();
+    final Document aDoc = builder.parse (new ClassPathResource ("testfiles/UserMessageNoPartyID.xml").getInputStream ());
+
+    // Without the XML Schema the missing PartyId must be detected explicitly
+    final EEbms3ValidationMode eOld = Ebms3MarshallerPool.getDefaultValidationMode ();
+    Ebms3MarshallerPool.setDefaultValidationMode (EEbms3ValidationMode.STRUCTURE);
+    try
+    {
+      sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion),
+                        false,
+                        EEbmsError.EBMS_INVALID_HEADER.getErrorCode ());
+    }
+    finally
+    {
+      Ebms3MarshallerPool.setDefaultValidationMode (eOld);
+    }
+  }
+
   // Tinkering with the signature
 
   @Test
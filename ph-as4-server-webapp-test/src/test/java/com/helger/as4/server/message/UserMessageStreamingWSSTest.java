@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.server.message;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+import com.helger.as4.AS4TestConstants;
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.ECryptoAlgorithmCrypt;
+import com.helger.as4.error.EEbmsError;
+import com.helger.as4.http.HttpXMLEntity;
+import com.helger.as4.messaging.encrypt.EncryptionCreator;
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.wss.EWSSProcessingMode;
+import com.helger.commons.collection.CollectionHelper;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.io.resource.ClassPathResource;
+import com.helger.commons.string.StringHelper;
+import com.helger.xml.XMLHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Tests the streaming WS-Security processing of messages with a SOAP Body
+ * payload.
+ *
+ * @author Philip Helger
+ */
+@RunWith (Parameterized.class)
+public final class UserMessageStreamingWSSTest extends AbstractUserMessageTestSetUp
+{
+  private static final String SETTINGS_WSS_PROCESSING = "server.wss.processing";
+
+  @Parameters (name = "{index}: {0}")
+  public static Collection <Object []> data ()
+  {
+    return CollectionHelper.newListMapped (ESOAPVersion.values (), x -> new Object [] { x });
+  }
+
+  private final ESOAPVersion m_eSOAPVersion;
+
+  public UserMessageStreamingWSSTest (@Nonnull final ESOAPVersion eSOAPVersion)
+  {
+    m_eSOAPVersion = eSOAPVersion;
+  }
+
+  @BeforeClass
+  public static void enableStreaming ()
+  {
+    AS4ServerConfiguration.getMutableSettings ().putIn (SETTINGS_WSS_PROCESSING, EWSSProcessingMode.STREAMING.getID ());
+  }
+
+  @AfterClass
+  public static void disableStreaming ()
+  {
+    AS4ServerConfiguration.getMutableSettings ().putIn (SETTINGS_WSS_PROCESSING, EWSSProcessingMode.DOM.getID ());
+  }
+
+  @Nonnull
+  private static Node _readPayload ()
+  {
+    return DOMReader.readXMLDOM (new ClassPathResource (AS4TestConstants.TEST_SOAP_BODY_PAYLOAD_XML));
+  }
+
+  @Nonnull
+  private Document _encrypt (@Nonnull final Document aDoc) throws Exception
+  {
+    final EncryptionCreator aCreator = new EncryptionCreator (AS4CryptoFactory.DEFAULT_INSTANCE);
+    return aCreator.encryptSoapBodyPayload (m_eSOAPVersion,
+                                            aDoc,
+                                            false,
+                                            ECryptoAlgorithmCrypt.ENCRPYTION_ALGORITHM_DEFAULT);
+  }
+
+  @Nullable
+  private static Text _getFirstText (@Nonnull final Node aNode)
+  {
+    if (aNode instanceof Text && StringHelper.hasText (aNode.getNodeValue ().trim ()))
+      return (Text) aNode;
+    for (Node aChild = aNode.getFirstChild (); aChild != null; aChild = aChild.getNextSibling ())
+    {
+      final Text ret = _getFirstText (aChild);
+      if (ret != null)
+        return ret;
+    }
+    return null;
+  }
+
+  /**
+   * Change the first character of the first text inside the SOAP Body, which
+   * is either the payload or the cipher value.
+   */
+  private void _tamperBody (@Nonnull final Document aDoc)
+  {
+    final Element aBody = XMLHelper.getFirstChildElementOfName (aDoc.getDocumentElement (),
+                                                                m_eSOAPVersion.getNamespaceURI (),
+                                                                m_eSOAPVersion.getBodyElementName ());
+    assertNotNull (aBody);
+    final Text aText = _getFirstText (aBody);
+    assertNotNull (aText);
+    final String sValue = aText.getData ().trim ();
+    aText.setData ((sValue.charAt (0) == 'A' ? "B" : "A") + sValue.substring (1));
+  }
+
+  @Test
+  public void testSigned () throws Exception
+  {
+    final Document aDoc = MockMessages.testSignedUserMessage (m_eSOAPVersion,
+                                                              _readPayload (),
+                                                              new CommonsArrayList <> (),
+                                                              s_aResMgr);
+    final String sResponse = sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion), true, null);
+
+    assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+    assertTrue (sResponse.contains (AS4TestConstants.NON_REPUDIATION_INFORMATION));
+  }
+
+  @Test
+  public void testEncrypted () throws Exception
+  {
+    final Document aDoc = _encrypt (MockMessages.testUserMessageSoapNotSigned (m_eSOAPVersion,
+                                                                               _readPayload (),
+                                                                               new CommonsArrayList <> ()));
+    final String sResponse = sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion), true, null);
+
+    assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+  }
+
+  @Test
+  public void testSignedAndEncrypted () throws Exception
+  {
+    final Document aDoc = _encrypt (MockMessages.testSignedUserMessage (m_eSOAPVersion,
+                                                                        _readPayload (),
+                                                                        new CommonsArrayList <> (),
+                                                                        s_aResMgr));
+    final String sResponse = sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion), true, null);
+
+    assertTrue (sResponse.contains (AS4TestConstants.RECEIPT_ASSERTCHECK));
+    assertTrue (sResponse.contains (AS4TestConstants.NON_REPUDIATION_INFORMATION));
+  }
+
+  @Test
+  public void testSignedPayloadChangedShouldFail () throws Exception
+  {
+    final Document aDoc = MockMessages.testSignedUserMessage (m_eSOAPVersion,
+                                                              _readPayload (),
+                                                              new CommonsArrayList <> (),
+                                                              s_aResMgr);
+    _tamperBody (aDoc);
+    sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion),
+                      false,
+                      EEbmsError.EBMS_FAILED_DECRYPTION.getErrorCode ());
+  }
+
+  @Test
+  public void testEncryptedCipherValueChangedShouldFail () throws Exception
+  {
+    final Document aDoc = _encrypt (MockMessages.testUserMessageSoapNotSigned (m_eSOAPVersion,
+                                                                               _readPayload (),
+                                                                               new CommonsArrayList <> ()));
+    _tamperBody (aDoc);
+    sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion),
+                      false,
+                      EEbmsError.EBMS_FAILED_DECRYPTION.getErrorCode ());
+  }
+
+  @Test
+  public void testSignedAndEncryptedCipherValueChangedShouldFail () throws Exception
+  {
+    final Document aDoc = _encrypt (MockMessages.testSignedUserMessage (m_eSOAPVersion,
+                                                                        _readPayload (),
+                                                                        new CommonsArrayList <> (),
+                                                                        s_aResMgr));
+    _tamperBody (aDoc);
+    sendPlainMessage (new HttpXMLEntity (aDoc, m_eSOAPVersion),
+                      false,
+                      EEbmsError.EBMS_FAILED_DECRYPTION.getErrorCode ());
+  }
+}
@@ -28,7 +28,7 @@ import org.w3c.dom.NodeList;
 
 import com.helger.as4.AS4TestConstants;
 import com.helger.as4.CAS4;
-import com.helger.as4.duplicate.AS4DuplicateManager;
+import com.helger.as4.duplicate.IAS4DuplicateManager;
 import com.helger.as4.esens.ESENSPMode;
 import com.helger.as4.http.HttpXMLEntity;
 import com.helger.as4.messaging.domain.AS4PullRequestMessage;
@@ -106,7 +106,7 @@ public class TwoWayAsyncPullPush extends AbstractUserMessageTestSetUpExt
   {
     // Needs to be cleared so we can exactly see if two messages are contained
     // in the duplicate manager
-    final AS4DuplicateManager aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
+    final IAS4DuplicateManager aIncomingDuplicateMgr = MetaAS4Manager.getIncomingDuplicateMgr ();
     aIncomingDuplicateMgr.clearCache ();
     assertTrue (aIncomingDuplicateMgr.isEmpty ());
 
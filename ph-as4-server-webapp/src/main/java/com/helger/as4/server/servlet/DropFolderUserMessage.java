@@ -23,7 +23,6 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 
 import javax.annotation.Nonnull;
@@ -31,6 +30,7 @@ import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
 
+import org.apache.wss4j.common.crypto.CryptoType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
@@ -38,6 +38,7 @@ import org.unece.cefact.namespaces.sbdh.StandardBusinessDocument;
 import com.helger.as4.CAS4;
 import com.helger.as4.client.AS4ClientUserMessage;
 import com.helger.as4.client.AbstractAS4Client.SentMessage;
+import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.crypto.CryptoProperties;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
 import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
@@ -45,6 +46,7 @@ import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
 import com.helger.as4.servlet.mgr.AS4ServerSettings;
 import com.helger.as4.soap.ESOAPVersion;
+import com.helger.commons.collection.ArrayHelper;
 import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.io.file.FilenameHelper;
 import com.helger.commons.io.file.SimpleFileIO;
@@ -71,7 +73,6 @@ import com.helger.peppol.utils.W3CEndpointReferenceHelper;
 import com.helger.sbdh.builder.SBDHReader;
 import com.helger.sbdh.builder.SBDHWriter;
 import com.helger.security.certificate.CertificateHelper;
-import com.helger.security.keystore.KeyStoreHelper;
 import com.helger.settings.ISettings;
 
 public final class DropFolderUserMessage
@@ -135,17 +136,14 @@ public final class DropFolderUserMessage
           }
           else
           {
-            final CryptoProperties aCP = AS4ServerSettings.getAS4CryptoFactory ().getCryptoProperties ();
-            final KeyStore aOurKS = KeyStoreHelper.loadKeyStore (aCP.getKeyStoreType (),
-                                                                 aCP.getKeyStorePath (),
-                                                                 aCP.getKeyStorePassword ())
-                                                  .getKeyStore ();
-            final KeyStore.PrivateKeyEntry aOurCert = KeyStoreHelper.loadPrivateKey (aOurKS,
-                                                                                     aCP.getKeyStorePath (),
-                                                                                     aCP.getKeyAlias (),
-                                                                                     aCP.getKeyPassword ()
-                                                                                        .toCharArray ())
-                                                                    .getKeyEntry ();
+            final AS4CryptoFactory aCryptoFactory = AS4ServerSettings.getAS4CryptoFactory ();
+            final CryptoProperties aCP = aCryptoFactory.getCryptoProperties ();
+            // Use the shared key store instead of loading it for every file
+            final CryptoType aCryptoType = new CryptoType (CryptoType.TYPE.ALIAS);
+            aCryptoType.setAlias (aCP.getKeyAlias ());
+            final X509Certificate [] aOurCerts = aCryptoFactory.getCrypto ().getX509Certificates (aCryptoType);
+            if (ArrayHelper.isEmpty (aOurCerts))
+              throw new IllegalStateException ("Found no certificate for key alias '" + aCP.getKeyAlias () + "'");
             final X509Certificate aTheirCert = CertificateHelper.convertStringToCertficate (aEndpoint.getCertificate ());
 
             final AS4ClientUserMessage aClient = new AS4ClientUserMessage ();
@@ -173,8 +171,7 @@ public final class DropFolderUserMessage
             aClient.setAgreementRefValue ("xxx");
 
             aClient.setFromRole (CAS4.DEFAULT_ROLE);
-            aClient.setFromPartyID (_getCN (((X509Certificate) aOurCert.getCertificate ()).getSubjectX500Principal ()
-                                                                                          .getName ()));
+            aClient.setFromPartyID (_getCN (aOurCerts[0].getSubjectX500Principal ().getName ()));
             aClient.setToRole (CAS4.DEFAULT_ROLE);
             aClient.setToPartyID (_getCN (aTheirCert.getSubjectX500Principal ().getName ()));
             aClient.setEbms3Properties (new CommonsArrayList <> (MessageHelperMethods.createEbms3Property (CAS4.ORIGINAL_SENDER,
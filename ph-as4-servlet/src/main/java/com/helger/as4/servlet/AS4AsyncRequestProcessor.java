@@ -0,0 +1,496 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SpoolOutputStream;
+import com.helger.commons.CGlobal;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.functional.IThrowingConsumer;
+import com.helger.commons.http.EHttpMethod;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.http.EHttpVersion;
+import com.helger.servlet.request.RequestHelper;
+import com.helger.web.scope.IRequestWebScope;
+import com.helger.web.scope.mgr.WebScopeManager;
+
+/**
+ * Handles a single request of {@link AS4AsyncServlet}. The request body is
+ * spooled while it arrives (non-blocking read), afterwards the AS4 processing
+ * runs in the {@link AS4RequestWorkerPool} and writes the response into a spool as
+ * well. Finally the spooled response is written to the client whenever it is
+ * ready to accept more data (non-blocking write). See
+ * {@link AS4AsyncRequestState} for how a timeout or a client disconnect is
+ * coordinated with the worker.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class AS4AsyncRequestProcessor implements ReadListener, WriteListener, AsyncListener
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncRequestProcessor.class);
+  private static final int BUFFER_SIZE = 16 * CGlobal.BYTES_PER_KILOBYTE;
+
+  private final HttpServletRequest m_aHttpRequest;
+  private final HttpServletResponse m_aHttpResponse;
+  private final AsyncContext m_aAsyncCtx;
+  private final AS4ResourceManager m_aResMgr = new AS4ResourceManager ();
+  private final AS4SpoolOutputStream m_aRequestBody;
+  // Used sequentially for reading and writing
+  private final byte [] m_aBuffer = new byte [BUFFER_SIZE];
+  private final AS4AsyncRequestState m_aState = new AS4AsyncRequestState (this::_releaseResources);
+  private volatile InputStream m_aResponseBodyIS;
+
+  AS4AsyncRequestProcessor (@Nonnull final HttpServletRequest aHttpRequest,
+                            @Nonnull final HttpServletResponse aHttpResponse,
+                            @Nonnull final AsyncContext aAsyncCtx)
+  {
+    ValueEnforcer.notNull (aHttpRequest, "HttpRequest");
+    ValueEnforcer.notNull (aHttpResponse, "HttpResponse");
+    ValueEnforcer.notNull (aAsyncCtx, "AsyncCtx");
+    m_aHttpRequest = aHttpRequest;
+    m_aHttpResponse = aHttpResponse;
+    m_aAsyncCtx = aAsyncCtx;
+    m_aRequestBody = new AS4SpoolOutputStream (m_aResMgr);
+  }
+
+  @Nonnull
+  private static AS4Response _createResponse (@Nonnull final HttpServletRequest aHttpRequest)
+  {
+    EHttpVersion eHttpVersion = RequestHelper.getHttpVersion (aHttpRequest);
+    if (eHttpVersion == null)
+      eHttpVersion = EHttpVersion.HTTP_11;
+    return new AS4Response (eHttpVersion, EHttpMethod.POST, aHttpRequest);
+  }
+
+  /**
+   * Run the AS4 processing within a request scope and pass the result to the
+   * provided handler.
+   */
+  private static void _handleRequest (@Nonnull final HttpServletRequest aHttpRequest,
+                                      @Nonnull final HttpServletResponse aHttpResponse,
+                                      @Nonnull final IThrowingConsumer <AS4Response, IOException> aResultHandler) throws IOException
+  {
+    final IRequestWebScope aRequestScope = WebScopeManager.onRequestBegin (aHttpRequest, aHttpResponse);
+    try
+    {
+      final AS4Response aResponse = _createResponse (aHttpRequest);
+      try
+      {
+        new AS4XServletHandler ().handleRequest (aRequestScope, aResponse);
+      }
+      catch (final Exception ex)
+      {
+        aResponse.setResponseError (HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                    "Internal error processing AS4 request",
+                                    ex);
+      }
+      aResultHandler.accept (aResponse);
+    }
+    finally
+    {
+      WebScopeManager.onRequestEnd ();
+    }
+  }
+
+  /**
+   * Handle the request in the calling thread with blocking IO. Used if the
+   * container does not support asynchronous processing for the request.
+   *
+   * @param aHttpRequest
+   *        HTTP request. May not be <code>null</code>.
+   * @param aHttpResponse
+   *        HTTP response. May not be <code>null</code>.
+   * @throws IOException
+   *         In case of IO error
+   */
+  static void processSynchronously (@Nonnull final HttpServletRequest aHttpRequest,
+                                    @Nonnull final HttpServletResponse aHttpResponse) throws IOException
+  {
+    _handleRequest (aHttpRequest, aHttpResponse, x -> x.applyToResponse (aHttpResponse));
+  }
+
+  /**
+   * Called by the last user of the resources - either the worker or
+   * {@link #onComplete(AsyncEvent)}.
+   */
+  private void _releaseResources ()
+  {
+    StreamHelper.close (m_aResponseBodyIS);
+    StreamHelper.close (m_aRequestBody);
+    m_aResMgr.close ();
+  }
+
+  /**
+   * Abort the request, e.g. upon a timeout or an error. The status code is
+   * only set if the worker did not yet apply its result.
+   */
+  private void _abort (final int nStatusCode)
+  {
+    if (m_aState.tryAbortWhileProcessing ())
+    {
+      // The worker will not touch the response anymore
+      if (!m_aHttpResponse.isCommitted ())
+      {
+        try
+        {
+          m_aHttpResponse.reset ();
+          m_aHttpResponse.setStatus (nStatusCode);
+        }
+        catch (final IllegalStateException ex)
+        {
+          // Committed in the meantime
+        }
+      }
+      m_aAsyncCtx.complete ();
+    }
+    else
+      if (m_aState.tryAbort ())
+      {
+        // Already writing - the status cannot be changed anymore
+        m_aAsyncCtx.complete ();
+      }
+  }
+
+  /**
+   * Apply the AS4 result to the response and start writing the spooled body,
+   * unless the request was aborted in the meantime.
+   */
+  private void _applyAndStartWriting (@Nonnull final AS4Response aAS4Response) throws IOException
+  {
+    if (!m_aState.tryStartWriting ())
+    {
+      // E.g. timed out in the meantime - the response belongs to the container
+      LOGGER.info ("Discarding the result of an aborted asynchronous AS4 request");
+      return;
+    }
+    final SpoolingHttpServletResponse aResponse = new SpoolingHttpServletResponse (m_aHttpResponse,
+                                                                                   new AS4SpoolOutputStream (m_aResMgr));
+    aAS4Response.applyToResponse (aResponse);
+    m_aResponseBodyIS = aResponse.closeBody ().getInputStream ();
+    // Triggers onWritePossible
+    m_aHttpResponse.getOutputStream ().setWriteListener (this);
+  }
+
+  private void _process ()
+  {
+    try
+    {
+      // The AS4 processing only fills the AS4Response - the HTTP response is
+      // only touched in _applyAndStartWriting
+      _handleRequest (new SpooledHttpServletRequest (m_aHttpRequest, m_aRequestBody.getAsInputStreamProvider ()),
+                      m_aHttpResponse,
+                      this::_applyAndStartWriting);
+    }
+    catch (final Exception ex)
+    {
+      LOGGER.error ("Error processing asynchronous AS4 request", ex);
+      _abort (HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+    finally
+    {
+      m_aState.release ();
+    }
+  }
+
+  private void _reject (@Nonnull final RejectedExecutionException ex)
+  {
+    try
+    {
+      final AS4Response aAS4Response = _createResponse (m_aHttpRequest);
+      aAS4Response.setResponseError (HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                     "Service Unavailable: " + ex.getMessage (),
+                                     null);
+      _applyAndStartWriting (aAS4Response);
+    }
+    catch (final IOException ex2)
+    {
+      LOGGER.error ("Error creating the AS4 response", ex2);
+      _abort (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+  }
+
+  public void onDataAvailable () throws IOException
+  {
+    final ServletInputStream aIS = m_aHttpRequest.getInputStream ();
+    while (aIS.isReady () && !aIS.isFinished ())
+    {
+      final int nRead = aIS.read (m_aBuffer);
+      if (nRead > 0)
+        m_aRequestBody.write (m_aBuffer, 0, nRead);
+    }
+  }
+
+  public void onAllDataRead () throws IOException
+  {
+    m_aRequestBody.close ();
+    // The worker releases the resources when it is done
+    m_aState.acquire ();
+    try
+    {
+      AS4RequestWorkerPool.getInstance ().run (this::_process);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      m_aState.release ();
+      _reject (ex);
+    }
+  }
+
+  public void onWritePossible () throws IOException
+  {
+    final ServletOutputStream aOS = m_aHttpResponse.getOutputStream ();
+    while (aOS.isReady ())
+    {
+      final int nRead = m_aResponseBodyIS.read (m_aBuffer);
+      if (nRead < 0)
+      {
+        if (m_aState.tryComplete ())
+          m_aAsyncCtx.complete ();
+        return;
+      }
+      aOS.write (m_aBuffer, 0, nRead);
+    }
+  }
+
+  public void onError (@Nonnull final Throwable t)
+  {
+    // E.g. the client closed the connection - the response cannot be sent
+    // anymore, so it is not touched
+    LOGGER.warn ("IO error on asynchronous AS4 request: " + t.getMessage ());
+    if (m_aState.tryAbort ())
+      m_aAsyncCtx.complete ();
+  }
+
+  public void onStartAsync (@Nonnull final AsyncEvent aEvent)
+  {}
+
+  public void onTimeout (@Nonnull final AsyncEvent aEvent)
+  {
+    LOGGER.warn ("Asynchronous AS4 request timed out after " + m_aAsyncCtx.getTimeout () + " ms");
+    _abort (HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
+  public void onError (@Nonnull final AsyncEvent aEvent)
+  {
+    onError (aEvent.getThrowable ());
+  }
+
+  public void onComplete (@Nonnull final AsyncEvent aEvent)
+  {
+    // E.g. completed by the container - a running worker must discard its
+    // result
+    m_aState.tryAbort ();
+    // The resources may still be used by the worker
+    m_aState.release ();
+  }
+
+  /**
+   * Request with the already spooled body.
+   */
+  private static final class SpooledHttpServletRequest extends HttpServletRequestWrapper
+  {
+    private final IHasInputStream m_aBody;
+
+    SpooledHttpServletRequest (@Nonnull final HttpServletRequest aHttpRequest, @Nonnull final IHasInputStream aBody)
+    {
+      super (aHttpRequest);
+      m_aBody = aBody;
+    }
+
+    @Override
+    public ServletInputStream getInputStream () throws IOException
+    {
+      return new StreamServletInputStream (m_aBody.getInputStream ());
+    }
+  }
+
+  private static final class StreamServletInputStream extends ServletInputStream
+  {
+    private final InputStream m_aIS;
+    private boolean m_bFinished = false;
+
+    StreamServletInputStream (@Nonnull final InputStream aIS)
+    {
+      m_aIS = aIS;
+    }
+
+    @Override
+    public int read () throws IOException
+    {
+      final int ret = m_aIS.read ();
+      if (ret < 0)
+        m_bFinished = true;
+      return ret;
+    }
+
+    @Override
+    public int read (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      final int ret = m_aIS.read (aBuf, nOfs, nLen);
+      if (ret < 0)
+        m_bFinished = true;
+      return ret;
+    }
+
+    @Override
+    public boolean isFinished ()
+    {
+      return m_bFinished;
+    }
+
+    @Override
+    public boolean isReady ()
+    {
+      return true;
+    }
+
+    @Override
+    public void setReadListener (final ReadListener aReadListener)
+    {
+      throw new IllegalStateException ("The request body was already read");
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      m_aIS.close ();
+    }
+  }
+
+  /**
+   * Response that passes status and headers to the original response but
+   * spools the body.
+   */
+  private static final class SpoolingHttpServletResponse extends HttpServletResponseWrapper
+  {
+    private final AS4SpoolOutputStream m_aBody;
+    private final ServletOutputStream m_aOS;
+    private PrintWriter m_aWriter;
+
+    SpoolingHttpServletResponse (@Nonnull final HttpServletResponse aHttpResponse,
+                                 @Nonnull final AS4SpoolOutputStream aBody)
+    {
+      super (aHttpResponse);
+      m_aBody = aBody;
+      m_aOS = new StreamServletOutputStream (aBody);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream ()
+    {
+      return m_aOS;
+    }
+
+    @Override
+    public PrintWriter getWriter () throws IOException
+    {
+      if (m_aWriter == null)
+        m_aWriter = new PrintWriter (new OutputStreamWriter (m_aOS, getCharacterEncoding ()));
+      return m_aWriter;
+    }
+
+    @Override
+    public void flushBuffer () throws IOException
+    {
+      // Nothing is sent before the processing is finished
+      if (m_aWriter != null)
+        m_aWriter.flush ();
+      m_aOS.flush ();
+    }
+
+    @Nonnull
+    IHasInputStream closeBody () throws IOException
+    {
+      if (m_aWriter != null)
+        m_aWriter.close ();
+      m_aBody.close ();
+      return m_aBody.getAsInputStreamProvider ();
+    }
+  }
+
+  private static final class StreamServletOutputStream extends ServletOutputStream
+  {
+    private final OutputStream m_aOS;
+
+    StreamServletOutputStream (@Nonnull final OutputStream aOS)
+    {
+      m_aOS = aOS;
+    }
+
+    @Override
+    public void write (final int nByte) throws IOException
+    {
+      m_aOS.write (nByte);
+    }
+
+    @Override
+    public void write (@Nonnull final byte [] aBuf, final int nOfs, final int nLen) throws IOException
+    {
+      m_aOS.write (aBuf, nOfs, nLen);
+    }
+
+    @Override
+    public void flush () throws IOException
+    {
+      m_aOS.flush ();
+    }
+
+    @Override
+    public void close () throws IOException
+    {
+      m_aOS.close ();
+    }
+
+    @Override
+    public boolean isReady ()
+    {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener (final WriteListener aWriteListener)
+    {
+      throw new IllegalStateException ("The response body is written asynchronously afterwards");
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The life cycle of a single request handled by
+ * {@link AS4AsyncRequestProcessor}. The HTTP response is owned by exactly one
+ * party: the worker may only apply its result after
+ * {@link #tryStartWriting()} succeeded, whereas a timeout or an error may only
+ * reset the response after {@link #tryAbortWhileProcessing()} succeeded.<br>
+ * The resources of the request are shared by the container callbacks and the
+ * worker. They are released after the last user called {@link #release()}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+final class AS4AsyncRequestState
+{
+  enum EState
+  {
+    /** The request is read or processed by the worker */
+    PROCESSING,
+    /** The worker applied the response and it is written */
+    WRITING,
+    /** The response was written completely */
+    COMPLETED,
+    /** Timed out, failed or the client disconnected */
+    ABORTED;
+  }
+
+  private final AtomicReference <EState> m_aState = new AtomicReference <> (EState.PROCESSING);
+  // The container is always a user
+  private final AtomicInteger m_aUsers = new AtomicInteger (1);
+  private final Runnable m_aReleaseAction;
+
+  AS4AsyncRequestState (@Nonnull final Runnable aReleaseAction)
+  {
+    ValueEnforcer.notNull (aReleaseAction, "ReleaseAction");
+    m_aReleaseAction = aReleaseAction;
+  }
+
+  @Nonnull
+  EState getState ()
+  {
+    return m_aState.get ();
+  }
+
+  /**
+   * @return <code>true</code> if the caller may now apply the result to the
+   *         HTTP response, <code>false</code> if the request was aborted in the
+   *         meantime.
+   */
+  boolean tryStartWriting ()
+  {
+    return m_aState.compareAndSet (EState.PROCESSING, EState.WRITING);
+  }
+
+  /**
+   * @return <code>true</code> if the response was written completely and the
+   *         caller must complete the request.
+   */
+  boolean tryComplete ()
+  {
+    return m_aState.compareAndSet (EState.WRITING, EState.COMPLETED);
+  }
+
+  /**
+   * @return <code>true</code> if the request was aborted before the worker
+   *         applied its result. Only in this case the caller may reset the HTTP
+   *         response.
+   */
+  boolean tryAbortWhileProcessing ()
+  {
+    return m_aState.compareAndSet (EState.PROCESSING, EState.ABORTED);
+  }
+
+  /**
+   * @return <code>true</code> if the request was aborted while processing or
+   *         writing and the caller must complete the request.
+   *         <code>false</code> if it was already completed or aborted.
+   */
+  boolean tryAbort ()
+  {
+    return tryAbortWhileProcessing () || m_aState.compareAndSet (EState.WRITING, EState.ABORTED);
+  }
+
+  /**
+   * Register an additional user of the resources, e.g. the worker.
+   */
+  void acquire ()
+  {
+    m_aUsers.incrementAndGet ();
+  }
+
+  /**
+   * Unregister a user of the resources. The last user releases them.
+   */
+  void release ()
+  {
+    final int nUsers = m_aUsers.decrementAndGet ();
+    if (nUsers == 0)
+      m_aReleaseAction.run ();
+    else
+      if (nUsers < 0)
+        throw new IllegalStateException ("The resources were already released");
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("State", m_aState.get ())
+                                       .append ("Users", m_aUsers.get ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+
+/**
+ * AS4 receiving servlet that uses the asynchronous, non-blocking Servlet 3.1
+ * API. The request body is read as it arrives, the AS4 processing runs in the
+ * {@link AS4RequestWorkerPool} and the response is written as the client accepts it.
+ * So no container thread is blocked by slow clients or slow message
+ * processors. The processing itself is identical to {@link AS4Servlet}.<br>
+ * Use a configuration like the following in your <code>WEB-INF/web.xml</code>
+ * file:
+ *
+ * <pre>
+&lt;servlet&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;servlet-class&gt;com.helger.as4.servlet.AS4AsyncServlet&lt;/servlet-class&gt;
+  &lt;async-supported&gt;true&lt;/async-supported&gt;
+&lt;/servlet&gt;
+&lt;servlet-mapping&gt;
+  &lt;servlet-name&gt;AS4Servlet&lt;/servlet-name&gt;
+  &lt;url-pattern&gt;/as4&lt;/url-pattern&gt;
+&lt;/servlet-mapping&gt;
+ * </pre>
+ *
+ * If asynchronous processing is not enabled for the servlet (and all filters
+ * in front of it), the request is handled synchronously.
+ *
+ * @author Philip Helger
+ */
+public class AS4AsyncServlet extends HttpServlet
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AsyncServlet.class);
+
+  public AS4AsyncServlet ()
+  {}
+
+  @Override
+  protected void doPost (final HttpServletRequest aHttpRequest,
+                         final HttpServletResponse aHttpResponse) throws IOException
+  {
+    if (!aHttpRequest.isAsyncSupported ())
+    {
+      LOGGER.warn ("Asynchronous processing is not enabled for this servlet - handling request synchronously");
+      AS4AsyncRequestProcessor.processSynchronously (aHttpRequest, aHttpResponse);
+      return;
+    }
+
+    final AsyncContext aAsyncCtx = aHttpRequest.startAsync (aHttpRequest, aHttpResponse);
+    aAsyncCtx.setTimeout (AS4ServerConfiguration.getAsyncTimeoutMS ());
+
+    final AS4AsyncRequestProcessor aProcessor = new AS4AsyncRequestProcessor (aHttpRequest, aHttpResponse, aAsyncCtx);
+    aAsyncCtx.addListener (aProcessor);
+    // Starts reading as soon as data is available
+    aHttpRequest.getInputStream ().setReadListener (aProcessor);
+  }
+}
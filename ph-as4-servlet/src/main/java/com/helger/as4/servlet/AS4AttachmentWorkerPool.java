@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.timing.StopWatch;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * Bounded worker pool that processes the attachments of a single incoming
+ * message in parallel (e.g. decryption and spooling). It is shared by all
+ * requests. If all threads are busy and the queue is full, the task is run in
+ * the calling thread, so the pool can never be exhausted and nested usage
+ * cannot dead lock.<br>
+ * The overall processing time per message is available via the
+ * {@link StatisticsManager}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AttachmentWorkerPool extends AbstractGlobalSingleton
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4AttachmentWorkerPool.class);
+
+  private static final IMutableStatisticsHandlerTimer s_aStatsRunTime = StatisticsManager.getTimerHandler (AS4AttachmentWorkerPool.class.getName () +
+                                                                                                           "$runtime");
+
+  /**
+   * Wraps a task so that the caller can wait until it is really finished, even
+   * if its future was cancelled while it was running.
+   */
+  private static final class TrackedTask implements Callable <Object>
+  {
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+
+    private final Callable <?> m_aTask;
+    private final CountDownLatch m_aDoneLatch;
+    private final AtomicInteger m_aState = new AtomicInteger (PENDING);
+
+    TrackedTask (@Nonnull final Callable <?> aTask, @Nonnull final CountDownLatch aDoneLatch)
+    {
+      m_aTask = aTask;
+      m_aDoneLatch = aDoneLatch;
+    }
+
+    public Object call () throws Exception
+    {
+      if (!m_aState.compareAndSet (PENDING, RUNNING))
+      {
+        // Cancelled before it was started
+        return null;
+      }
+      try
+      {
+        return m_aTask.call ();
+      }
+      finally
+      {
+        m_aState.set (DONE);
+        m_aDoneLatch.countDown ();
+      }
+    }
+
+    /**
+     * Ensure the task is never started, if it was not started yet.
+     */
+    void cancelIfPending ()
+    {
+      if (m_aState.compareAndSet (PENDING, DONE))
+        m_aDoneLatch.countDown ();
+    }
+  }
+
+  private final ThreadPoolExecutor m_aES;
+  private final int m_nThreadCount;
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4AttachmentWorkerPool ()
+  {
+    this (AS4ServerConfiguration.getAttachmentWorkerCount ());
+  }
+
+  AS4AttachmentWorkerPool (final int nThreadCount)
+  {
+    m_nThreadCount = Math.max (nThreadCount, 1);
+    m_aES = new ThreadPoolExecutor (m_nThreadCount,
+                                    m_nThreadCount,
+                                    60,
+                                    TimeUnit.SECONDS,
+                                    new ArrayBlockingQueue <> (m_nThreadCount * 4),
+                                    new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                     .setNamingPattern ("as4-attachment-%d")
+                                                                     .build (),
+                                    new ThreadPoolExecutor.CallerRunsPolicy ());
+    m_aES.allowCoreThreadTimeOut (true);
+    LOGGER.info ("Global AS4 attachment worker pool uses " + m_nThreadCount + " threads");
+  }
+
+  @Nonnull
+  public static AS4AttachmentWorkerPool getInstance ()
+  {
+    return getGlobalSingleton (AS4AttachmentWorkerPool.class);
+  }
+
+  @Override
+  protected void onDestroy (@Nonnull final IScope aScopeInDestruction) throws Exception
+  {
+    shutdown ();
+  }
+
+  void shutdown ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+  }
+
+  /**
+   * @return The maximum number of threads of this pool. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getThreadCount ()
+  {
+    return m_nThreadCount;
+  }
+
+  /**
+   * Run all provided tasks and wait until all of them are finished. The first
+   * task is run in the calling thread, all others are run in parallel in this
+   * pool. Even if a task fails, all other tasks are waited for, so that no
+   * task is still running when this method returns. If the calling thread is
+   * interrupted while waiting, the tasks that were not started yet are
+   * skipped, the running tasks are interrupted and waited for, and the
+   * interrupted state of the calling thread is restored.
+   *
+   * @param aTasks
+   *        The tasks to run. May not be <code>null</code> but may be empty.
+   * @throws Exception
+   *         The exception of the first failed task or the
+   *         {@link InterruptedException}
+   */
+  public void runAll (@Nonnull final ICommonsList <? extends Callable <?>> aTasks) throws Exception
+  {
+    ValueEnforcer.notNull (aTasks, "Tasks");
+    if (aTasks.isEmpty ())
+      return;
+
+    final StopWatch aSW = StopWatch.createdStarted ();
+    if (aTasks.size () == 1 || m_nThreadCount == 1)
+    {
+      // Nothing to parallelize
+      for (final Callable <?> aTask : aTasks)
+        aTask.call ();
+    }
+    else
+    {
+      final CountDownLatch aDoneLatch = new CountDownLatch (aTasks.size () - 1);
+      final ICommonsList <TrackedTask> aTrackedTasks = new CommonsArrayList <> (aTasks.size () - 1);
+      final ICommonsList <Future <?>> aFutures = new CommonsArrayList <> (aTasks.size () - 1);
+      for (int i = 1; i < aTasks.size (); ++i)
+      {
+        final TrackedTask aTrackedTask = new TrackedTask (aTasks.get (i), aDoneLatch);
+        aTrackedTasks.add (aTrackedTask);
+        aFutures.add (m_aES.submit (aTrackedTask));
+      }
+
+      Exception aFirstEx = null;
+      try
+      {
+        aTasks.getFirst ().call ();
+      }
+      catch (final Exception ex)
+      {
+        aFirstEx = ex;
+      }
+
+      try
+      {
+        for (final Future <?> aFuture : aFutures)
+        {
+          try
+          {
+            aFuture.get ();
+          }
+          catch (final ExecutionException ex)
+          {
+            if (aFirstEx == null)
+              aFirstEx = ex.getCause () instanceof Exception ? (Exception) ex.getCause () : ex;
+          }
+        }
+      }
+      catch (final InterruptedException ex)
+      {
+        if (aFirstEx == null)
+          aFirstEx = ex;
+
+        // Skip the pending tasks and interrupt the running ones
+        for (final TrackedTask aTrackedTask : aTrackedTasks)
+          aTrackedTask.cancelIfPending ();
+        for (final Future <?> aFuture : aFutures)
+          aFuture.cancel (true);
+
+        // Wait until the running tasks are really finished
+        while (true)
+        {
+          try
+          {
+            aDoneLatch.await ();
+            break;
+          }
+          catch (final InterruptedException ex2)
+          {
+            // Keep waiting
+          }
+        }
+        Thread.currentThread ().interrupt ();
+      }
+      if (aFirstEx != null)
+        throw aFirstEx;
+    }
+    s_aStatsRunTime.addTime (aSW.stopAndGetMillis ());
+  }
+}
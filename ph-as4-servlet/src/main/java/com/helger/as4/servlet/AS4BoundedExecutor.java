@@ -0,0 +1,418 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.commons.concurrent.BasicThreadFactory;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.statistics.IMutableStatisticsHandlerCounter;
+import com.helger.commons.statistics.IMutableStatisticsHandlerTimer;
+import com.helger.commons.statistics.StatisticsManager;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.commons.timing.StopWatch;
+
+/**
+ * A bounded executor: at most "maximum pool size + queue size" tasks are
+ * queued or executed at the same time, further tasks are rejected with a
+ * {@link RejectedExecutionException}. Optionally each task can be run in a
+ * virtual thread, if the runtime supports it.<br>
+ * Capacity can be reserved upfront via {@link #tryReserve()}. A task started
+ * with a {@link Reservation} is never rejected, so callers can reserve before
+ * performing side effects (like remembering a message ID) that must not
+ * happen for rejected tasks.<br>
+ * The wait time and the run time of the tasks as well as the number of
+ * rejected tasks are available via the {@link StatisticsManager}.
+ *
+ * @author Philip Helger
+ */
+@ThreadSafe
+public class AS4BoundedExecutor implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4BoundedExecutor.class);
+
+  /**
+   * Capacity for exactly one task that was reserved upfront. Either
+   * {@link #run(IThrowingRunnable)} or {@link #close()} must be called to use
+   * or to release the capacity. Closing a used reservation has no effect.
+   *
+   * @author Philip Helger
+   */
+  public final class Reservation implements Closeable
+  {
+    private final AtomicBoolean m_aUsed = new AtomicBoolean (false);
+
+    Reservation ()
+    {}
+
+    /**
+     * Run the provided runnable asynchronously with the reserved capacity.
+     *
+     * @param aRunnable
+     *        The runnable to run. May not be <code>null</code>.
+     * @return The future for the result. Never <code>null</code>.
+     * @throws IllegalStateException
+     *         If this reservation was already used or closed
+     */
+    @Nonnull
+    public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+    {
+      ValueEnforcer.notNull (aRunnable, "Runnable");
+      if (!m_aUsed.compareAndSet (false, true))
+        throw new IllegalStateException ("The reservation was already used");
+      return _run (aRunnable, true);
+    }
+
+    /**
+     * Release the capacity if it was not used.
+     */
+    public void close ()
+    {
+      if (m_aUsed.compareAndSet (false, true))
+        m_aPermits.release ();
+    }
+  }
+
+  private final String m_sName;
+  private final IMutableStatisticsHandlerTimer m_aStatsWaitTime;
+  private final IMutableStatisticsHandlerTimer m_aStatsRunTime;
+  private final IMutableStatisticsHandlerCounter m_aStatsRejected;
+  private final ExecutorService m_aES;
+  private final int m_nMaxTasks;
+  private final boolean m_bVirtualThreads;
+  // One permit per task that is queued or executing
+  private final Semaphore m_aPermits;
+  private final AtomicInteger m_aQueuedTasks = new AtomicInteger (0);
+  private final AtomicInteger m_aActiveTasks = new AtomicInteger (0);
+
+  @Nullable
+  private static ExecutorService _createVirtualThreadExecutor ()
+  {
+    try
+    {
+      // Java 21+ only
+      final Method aMethod = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) aMethod.invoke (null);
+    }
+    catch (final ReflectiveOperationException | RuntimeException ex)
+    {
+      LOGGER.warn ("Virtual threads are not supported by this runtime - using platform threads instead");
+      return null;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param sName
+   *        The name of the executor. Used for the thread names and the
+   *        statistics. May neither be <code>null</code> nor empty.
+   * @param nCoreSize
+   *        Core pool size. Must be &gt; 0.
+   * @param nMaxSize
+   *        Maximum pool size. Must be &ge; core size.
+   * @param nQueueSize
+   *        Number of tasks that may wait for execution. Must be &ge; 0.
+   * @param bUseVirtualThreads
+   *        <code>true</code> to run each task in a virtual thread, if
+   *        supported by the runtime
+   */
+  public AS4BoundedExecutor (@Nonnull @Nonempty final String sName,
+                             @Nonnegative final int nCoreSize,
+                             @Nonnegative final int nMaxSize,
+                             @Nonnegative final int nQueueSize,
+                             final boolean bUseVirtualThreads)
+  {
+    ValueEnforcer.notEmpty (sName, "Name");
+    ValueEnforcer.isGT0 (nCoreSize, "CoreSize");
+    ValueEnforcer.isTrue (nMaxSize >= nCoreSize, "MaxSize must be >= CoreSize");
+    ValueEnforcer.isGE0 (nQueueSize, "QueueSize");
+    m_sName = sName;
+    m_aStatsWaitTime = StatisticsManager.getTimerHandler (sName + "$waittime");
+    m_aStatsRunTime = StatisticsManager.getTimerHandler (sName + "$runtime");
+    m_aStatsRejected = StatisticsManager.getCounterHandler (sName + "$rejected");
+    m_nMaxTasks = nMaxSize + nQueueSize;
+    m_aPermits = new Semaphore (m_nMaxTasks);
+
+    final ExecutorService aVirtualES = bUseVirtualThreads ? _createVirtualThreadExecutor () : null;
+    if (aVirtualES != null)
+    {
+      m_aES = aVirtualES;
+      m_bVirtualThreads = true;
+    }
+    else
+    {
+      final BlockingQueue <Runnable> aQueue = nQueueSize == 0 ? new SynchronousQueue <> ()
+                                                              : new ArrayBlockingQueue <> (nQueueSize);
+      // The permits ensure that there is always room for an accepted task.
+      // The executor may still reject it for a moment, if a worker thread
+      // finished its task but did not yet fetch the next one - so wait for it.
+      final RejectedExecutionHandler aWaitPolicy = (aRunnable, aExecutor) -> {
+        if (aExecutor.isShutdown ())
+          throw new RejectedExecutionException ("The executor " + sName + " is shut down");
+        try
+        {
+          aExecutor.getQueue ().put (aRunnable);
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+          throw new RejectedExecutionException ("Interrupted while waiting for the executor " + sName, ex);
+        }
+      };
+      m_aES = new ThreadPoolExecutor (nCoreSize,
+                                      nMaxSize,
+                                      60,
+                                      TimeUnit.SECONDS,
+                                      aQueue,
+                                      new BasicThreadFactory.Builder ().setDaemon (true)
+                                                                       .setNamingPattern ("as4-worker-%d")
+                                                                       .build (),
+                                      aWaitPolicy);
+      m_bVirtualThreads = false;
+    }
+  }
+
+  /**
+   * @return The name of the executor as provided in the constructor.
+   */
+  @Nonnull
+  @Nonempty
+  public String getName ()
+  {
+    return m_sName;
+  }
+
+  /**
+   * @return <code>true</code> if the tasks are run in virtual threads,
+   *         <code>false</code> if a platform thread pool is used.
+   */
+  public boolean isUsingVirtualThreads ()
+  {
+    return m_bVirtualThreads;
+  }
+
+  /**
+   * @return The maximum number of tasks that can be queued or executed at the
+   *         same time. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxTaskCount ()
+  {
+    return m_nMaxTasks;
+  }
+
+  /**
+   * @return The number of tasks waiting for execution. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getQueuedTaskCount ()
+  {
+    return m_aQueuedTasks.get ();
+  }
+
+  /**
+   * @return The number of tasks currently executing. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getActiveTaskCount ()
+  {
+    return m_aActiveTasks.get ();
+  }
+
+  /**
+   * @return The number of tasks rejected since startup. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getRejectedTaskCount ()
+  {
+    return m_aStatsRejected.getCount ();
+  }
+
+  /**
+   * Check if a new task would currently be accepted. As this is only a
+   * snapshot, {@link #run(IThrowingRunnable)} and {@link #supply(Supplier)} may
+   * still reject the task afterwards. Use {@link #tryReserve()} to be sure.
+   *
+   * @return <code>true</code> if there is capacity for at least one more task.
+   */
+  public boolean canAcceptTask ()
+  {
+    return m_aPermits.availablePermits () > 0;
+  }
+
+  /**
+   * Reserve the capacity for one task.
+   *
+   * @return <code>null</code> if the executor is exhausted. Otherwise the
+   *         reservation that must either be used or closed.
+   */
+  @Nullable
+  public Reservation tryReserve ()
+  {
+    if (!m_aPermits.tryAcquire ())
+    {
+      m_aStatsRejected.increment ();
+      return null;
+    }
+    return new Reservation ();
+  }
+
+  private void _execute (@Nonnull final Runnable aRunnable, final boolean bReserved)
+  {
+    if (!bReserved && !m_aPermits.tryAcquire ())
+    {
+      m_aStatsRejected.increment ();
+      throw new RejectedExecutionException ("The executor " + m_sName + " is exhausted (" + m_nMaxTasks + " tasks)");
+    }
+
+    final StopWatch aSWWait = StopWatch.createdStarted ();
+    m_aQueuedTasks.incrementAndGet ();
+    try
+    {
+      m_aES.execute ( () -> {
+        m_aQueuedTasks.decrementAndGet ();
+        m_aActiveTasks.incrementAndGet ();
+        m_aStatsWaitTime.addTime (aSWWait.stopAndGetMillis ());
+        final StopWatch aSWRun = StopWatch.createdStarted ();
+        try
+        {
+          aRunnable.run ();
+        }
+        finally
+        {
+          m_aStatsRunTime.addTime (aSWRun.stopAndGetMillis ());
+          m_aActiveTasks.decrementAndGet ();
+          m_aPermits.release ();
+        }
+      });
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      // Only if shut down or interrupted
+      m_aQueuedTasks.decrementAndGet ();
+      m_aPermits.release ();
+      m_aStatsRejected.increment ();
+      throw ex;
+    }
+  }
+
+  @Nonnull
+  private CompletableFuture <Void> _run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable,
+                                         final boolean bReserved)
+  {
+    return CompletableFuture.runAsync ( () -> {
+      try
+      {
+        aRunnable.run ();
+      }
+      catch (final Throwable t)
+      {
+        LOGGER.error ("Error running AS4 runner " + aRunnable, t);
+      }
+    }, x -> _execute (x, bReserved));
+  }
+
+  /**
+   * Run the provided runnable asynchronously.
+   *
+   * @param aRunnable
+   *        The runnable to run. May not be <code>null</code>.
+   * @return The future for the result. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the executor is exhausted
+   */
+  @Nonnull
+  public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+    return _run (aRunnable, false);
+  }
+
+  /**
+   * Run the provided supplier asynchronously.
+   *
+   * @param aSupplier
+   *        The supplier to run. May not be <code>null</code>.
+   * @return The future for the result. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the executor is exhausted
+   * @param <T>
+   *        Result type
+   */
+  @Nonnull
+  public <T> CompletableFuture <T> supply (@Nonnull final Supplier <T> aSupplier)
+  {
+    ValueEnforcer.notNull (aSupplier, "Supplier");
+    return CompletableFuture.supplyAsync ( () -> {
+      try
+      {
+        return aSupplier.get ();
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Error running AS4 supplier " + aSupplier, ex);
+        return null;
+      }
+    }, x -> _execute (x, false));
+  }
+
+  /**
+   * Shutdown the executor and wait until all tasks are finished.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Name", m_sName)
+                                       .append ("MaxTasks", m_nMaxTasks)
+                                       .append ("VirtualThreads", m_bVirtualThreads)
+                                       .append ("QueuedTasks", m_aQueuedTasks.get ())
+                                       .append ("ActiveTasks", m_aActiveTasks.get ())
+                                       .getToString ();
+  }
+}
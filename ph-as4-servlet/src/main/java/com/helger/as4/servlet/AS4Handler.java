@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -30,10 +29,9 @@ import java.util.zip.ZipException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.mail.Header;
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMessage;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeUtility;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
@@ -55,7 +53,7 @@ import com.helger.as4.client.BasicHttpPoster;
 import com.helger.as4.crypto.AS4CryptoFactory;
 import com.helger.as4.error.EEbmsError;
 import com.helger.as4.http.AS4HttpDebug;
-import com.helger.as4.http.HttpMimeMessageEntity;
+import com.helger.as4.http.HttpMultipartRelatedEntity;
 import com.helger.as4.http.HttpXMLEntity;
 import com.helger.as4.messaging.domain.AS4ErrorMessage;
 import com.helger.as4.messaging.domain.AS4ReceiptMessage;
@@ -63,7 +61,6 @@ import com.helger.as4.messaging.domain.AS4UserMessage;
 import com.helger.as4.messaging.domain.EAS4MessageType;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.messaging.encrypt.EncryptionCreator;
-import com.helger.as4.messaging.mime.MimeMessageCreator;
 import com.helger.as4.messaging.sign.SignedMessageCreator;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.model.EMEPBinding;
@@ -84,6 +81,8 @@ import com.helger.as4.servlet.spi.AS4MessageProcessorResult;
 import com.helger.as4.servlet.spi.AS4SignalMessageProcessorResult;
 import com.helger.as4.servlet.spi.IAS4ServletMessageProcessorSPI;
 import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.soap.SOAPEnvelopeStreamReader;
+import com.helger.as4.soap.StreamedSOAPDocument;
 import com.helger.as4.util.AS4ResourceManager;
 import com.helger.as4.util.AS4XMLHelper;
 import com.helger.as4lib.ebms3header.Ebms3CollaborationInfo;
@@ -106,14 +105,17 @@ import com.helger.commons.collection.impl.CommonsArrayList;
 import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.error.IError;
 import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.http.CHttpHeader;
 import com.helger.commons.http.HttpHeaderMap;
 import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.EMimeContentType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.mime.MimeType;
 import com.helger.commons.mime.MimeTypeParser;
+import com.helger.commons.state.EContinue;
 import com.helger.commons.state.ISuccessIndicator;
 import com.helger.commons.string.StringHelper;
 import com.helger.httpclient.response.ResponseHandlerXml;
@@ -155,8 +157,9 @@ public final class AS4Handler implements AutoCloseable
 
     public void applyToResponse (@Nonnull final ESOAPVersion eSOAPVersion, @Nonnull final AS4Response aHttpResponse)
     {
-      final String sXML = AS4XMLHelper.serializeXML (m_aDoc);
-      aHttpResponse.setContentAndCharset (sXML, AS4XMLHelper.XWS.getCharset ())
+      // Serialize directly to bytes, without an intermediate String
+      aHttpResponse.setContent (AS4XMLHelper.serializeXMLToBytes (m_aDoc))
+                   .setCharset (AS4XMLHelper.XWS.getCharset ())
                    .setMimeType (eSOAPVersion.getMimeType ());
     }
 
@@ -169,36 +172,25 @@ public final class AS4Handler implements AutoCloseable
 
   private static final class AS4ResponseFactoryMIME implements IAS4ResponseFactory
   {
-    private final MimeMessage m_aMimeMsg;
-    private final HttpHeaderMap m_aHeaders = new HttpHeaderMap ();
+    private final HttpMultipartRelatedEntity m_aEntity;
 
-    public AS4ResponseFactoryMIME (@Nonnull final MimeMessage aMimeMsg) throws MessagingException
+    public AS4ResponseFactoryMIME (@Nonnull final HttpMultipartRelatedEntity aEntity)
     {
-      m_aMimeMsg = aMimeMsg;
-      // Move all mime headers to the HTTP request
-      final Enumeration <Header> aEnum = m_aMimeMsg.getAllHeaders ();
-      while (aEnum.hasMoreElements ())
-      {
-        final Header aHeader = aEnum.nextElement ();
-        // Make a single-line HTTP header value!
-        m_aHeaders.addHeader (aHeader.getName (), HttpHeaderMap.getUnifiedValue (aHeader.getValue ()));
-      }
-
-      // Remove all headers from MIME message
-      // Do it after the copy loop, in case a header has more than one value!
-      for (final Header aHeader : CollectionHelper.newList (m_aMimeMsg.getAllHeaders ()))
-        m_aMimeMsg.removeHeader (aHeader.getName ());
+      m_aEntity = aEntity;
     }
 
     public void applyToResponse (@Nonnull final ESOAPVersion eSOAPVersion, @Nonnull final AS4Response aHttpResponse)
     {
-      aHttpResponse.addCustomResponseHeaders (m_aHeaders);
+      final HttpHeaderMap aHeaders = new HttpHeaderMap ();
+      aHeaders.addHeader (HttpMultipartRelatedEntity.HEADER_MIME_VERSION, "1.0");
+      aHeaders.addHeader (CHttpHeader.CONTENT_TYPE, m_aEntity.getContentType ().getValue ());
+      aHttpResponse.addCustomResponseHeaders (aHeaders);
       aHttpResponse.setContent (HasInputStream.multiple ( () -> {
         try
         {
-          return m_aMimeMsg.getInputStream ();
+          return m_aEntity.getContent ();
         }
-        catch (final IOException | MessagingException ex)
+        catch (final IOException ex)
         {
           throw new IllegalStateException ("Failed to get MIME input stream", ex);
         }
@@ -207,9 +199,9 @@ public final class AS4Handler implements AutoCloseable
     }
 
     @Nonnull
-    public HttpMimeMessageEntity getHttpEntity (@Nonnull final ESOAPVersion eSOAPVersion)
+    public HttpMultipartRelatedEntity getHttpEntity (@Nonnull final ESOAPVersion eSOAPVersion)
     {
-      return new HttpMimeMessageEntity (m_aMimeMsg);
+      return m_aEntity;
     }
   }
 
@@ -221,6 +213,10 @@ public final class AS4Handler implements AutoCloseable
   private final AS4ResourceManager m_aResMgr = new AS4ResourceManager ();
   private Locale m_aLocale = CGlobal.DEFAULT_LOCALE;
   private final AS4CryptoFactory m_aCryptoFactory = AS4CryptoFactory.DEFAULT_INSTANCE;
+  // The result of the pre-check - reused by the Ebms3 header processor
+  private AS4IncomingMessageInfo m_aPreCheckInfo;
+  private IPMode m_aPreCheckPMode;
+  private PModeLeg m_aPreCheckLeg;
 
   public AS4Handler ()
   {}
@@ -354,6 +350,9 @@ public final class AS4Handler implements AutoCloseable
       if (isDebug ())
         LOGGER.info ("Processing SOAP header element " + aQName.toString () + " with processor " + aProcessor);
 
+      if (aProcessor.isRequiringSOAPBody () && _materializeSOAPBody (aState.getStreamedSOAPDocument ()))
+        aState.setSoapBodyDeferred (false);
+
       // Process element
       final ErrorList aErrorList = new ErrorList ();
       if (aProcessor.processHeaderElement (aSOAPDocument,
@@ -413,6 +412,26 @@ public final class AS4Handler implements AutoCloseable
     }
   }
 
+  /**
+   * Ensure the SOAP Body content of a lazily read SOAP document is part of the
+   * DOM.
+   *
+   * @param aStreamedSOAP
+   *        The streamed SOAP document. May be <code>null</code>.
+   * @return <code>true</code> if the SOAP Body was materialized in this call,
+   *         <code>false</code> otherwise.
+   */
+  private static boolean _materializeSOAPBody (@Nullable final StreamedSOAPDocument aStreamedSOAP)
+  {
+    if (aStreamedSOAP == null || aStreamedSOAP.isBodyMaterialized ())
+      return false;
+
+    if (isDebug ())
+      LOGGER.info ("Materializing spooled SOAP Body");
+    aStreamedSOAP.materializeBody ();
+    return true;
+  }
+
   private static final class SPIInvocationResult implements ISuccessIndicator
   {
     private boolean m_bSuccess = false;
@@ -654,7 +673,8 @@ public final class AS4Handler implements AutoCloseable
   @Nullable
   private IAS4ResponseFactory _handleSOAPMessage (@Nonnull final Document aSOAPDocument,
                                                   @Nonnull final ESOAPVersion eSOAPVersion,
-                                                  @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments) throws WSSecurityException,
+                                                  @Nonnull final ICommonsList <WSS4JAttachment> aIncomingAttachments,
+                                                  @Nullable final StreamedSOAPDocument aStreamedSOAP) throws WSSecurityException,
                                                                                                                       MessagingException
   {
     ValueEnforcer.notNull (aSOAPDocument, "SOAPDocument");
@@ -674,13 +694,20 @@ public final class AS4Handler implements AutoCloseable
 
     // All further operations should only operate on the interface
     IAS4MessageState aState;
+    final StreamedSOAPDocument aEffectiveStreamedSOAP;
     {
       // This is where all data from the SOAP headers is stored to
       final AS4MessageState aStateImpl = new AS4MessageState (eSOAPVersion, m_aResMgr);
+      aStateImpl.setSoapBodyDeferred (aStreamedSOAP != null && !aStreamedSOAP.isBodyMaterialized ());
+      aStateImpl.setStreamedSOAPDocument (aStreamedSOAP);
+      if (m_aPreCheckPMode != null)
+        aStateImpl.setPreCheckResult (m_aPreCheckInfo, m_aPreCheckPMode, m_aPreCheckLeg);
 
       // Handle all headers - the only place where the AS4MessageState values
       _processSOAPHeaderElements (aSOAPDocument, eSOAPVersion, aIncomingAttachments, aStateImpl, aErrorMessages);
 
+      // May have been replaced by a decrypted document
+      aEffectiveStreamedSOAP = aStateImpl.getStreamedSOAPDocument ();
       aState = aStateImpl;
     }
 
@@ -690,11 +717,13 @@ public final class AS4Handler implements AutoCloseable
     Ebms3UserMessage aEbmsUserMessage = null;
     Ebms3SignalMessage aEbmsSignalMessage = null;
     Ebms3Error aEbmsError = null;
+    Node aBodyNode = null;
     Node aPayloadNode = null;
     ICommonsList <WSS4JAttachment> aDecryptedAttachments = null;
     // Storing for two-way response messages
     final ICommonsList <WSS4JAttachment> aResponseAttachments = new CommonsArrayList <> ();
     boolean bCanInvokeSPIs = false;
+    AS4BoundedExecutor.Reservation aWorkerReservation = null;
     String sMessageID = null;
     String sProfileID = null;
 
@@ -792,13 +821,12 @@ public final class AS4Handler implements AutoCloseable
       assert aRealSOAPDoc != null;
 
       // Find SOAP body
-      final Node aBodyNode = XMLHelper.getFirstChildElementOfName (aRealSOAPDoc.getDocumentElement (),
-                                                                   eSOAPVersion.getNamespaceURI (),
-                                                                   eSOAPVersion.getBodyElementName ());
+      aBodyNode = XMLHelper.getFirstChildElementOfName (aRealSOAPDoc.getDocumentElement (),
+                                                        eSOAPVersion.getNamespaceURI (),
+                                                        eSOAPVersion.getBodyElementName ());
       if (aBodyNode == null)
         throw new BadRequestException ((bUseDecryptedSOAP ? "Decrypted" : "Original") +
                                        " SOAP document is missing a Body element");
-      aPayloadNode = aBodyNode.getFirstChild ();
 
       if (aEbmsUserMessage != null)
       {
@@ -814,6 +842,18 @@ public final class AS4Handler implements AutoCloseable
         _checkPropertiesOrignalSenderAndFinalRecipient (aProps);
       }
 
+      // Reserve the worker before the message ID is remembered, so that an
+      // exhausted pool is never reported as a duplicate and the sender can
+      // retry later
+      if (_isInvokeSPIsAsynchronous (aPMode, bIsEffectiveLeg1))
+      {
+        aWorkerReservation = AS4WorkerPool.getInstance ().tryReserve ();
+        if (aWorkerReservation == null)
+          throw new ServiceUnavailableException ("The AS4 worker pool is exhausted - please retry later");
+        // Releases the reservation if it is not used
+        m_aResMgr.addCloseable (aWorkerReservation);
+      }
+
       final boolean bIsDuplicate = MetaAS4Manager.getIncomingDuplicateMgr ()
                                                  .registerAndCheck (sMessageID,
                                                                     sProfileID,
@@ -844,11 +884,11 @@ public final class AS4Handler implements AutoCloseable
     final SPIInvocationResult aSPIResult = new SPIInvocationResult ();
     if (bCanInvokeSPIs)
     {
-      // PMode may be null for receipts
-      if (aPMode == null ||
-          aPMode.getMEPBinding ().isSynchronous () ||
-          aPMode.getMEPBinding ().isAsynchronousInitiator () ||
-          !bIsEffectiveLeg1)
+      // The SOAP Body payload is only needed from here on
+      _materializeSOAPBody (aEffectiveStreamedSOAP);
+      aPayloadNode = aBodyNode.getFirstChild ();
+
+      if (!_isInvokeSPIsAsynchronous (aPMode, bIsEffectiveLeg1))
       {
         // Call synchronous
 
@@ -880,7 +920,8 @@ public final class AS4Handler implements AutoCloseable
         final Node aFinalPayloadNode = aPayloadNode;
         final ICommonsList <WSS4JAttachment> aFinalDecryptedAttachments = aDecryptedAttachments;
 
-        AS4WorkerPool.getInstance ().run ( () -> {
+        // Cannot be rejected, as the capacity was reserved upfront
+        aWorkerReservation.run ( () -> {
           final ICommonsList <Ebms3Error> aLocalErrorMessages = new CommonsArrayList <> ();
           final ICommonsList <WSS4JAttachment> aLocalResponseAttachments = new CommonsArrayList <> ();
           IAS4ResponseFactory aAsyncResponseFactory;
@@ -1138,13 +1179,11 @@ public final class AS4Handler implements AutoCloseable
    * @param aDoc
    *        the message that should be sent
    * @throws WSSecurityException
-   * @throws MessagingException
    */
   @Nonnull
   private IAS4ResponseFactory _createResponseUserMessage (@Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachments,
                                                           @Nonnull final PModeLeg aLeg,
-                                                          @Nonnull final Document aDoc) throws WSSecurityException,
-                                                                                        MessagingException
+                                                          @Nonnull final Document aDoc) throws WSSecurityException
   {
     Document aResponseDoc;
     if (aLeg.getSecurity () != null)
@@ -1163,8 +1202,10 @@ public final class AS4Handler implements AutoCloseable
     if (aResponseAttachments.isEmpty ())
       return new AS4ResponseFactoryXML (aResponseDoc);
 
-    final MimeMessage aMimeMsg = _generateMimeMessageForResponse (aResponseAttachments, aLeg, aResponseDoc);
-    return new AS4ResponseFactoryMIME (aMimeMsg);
+    final HttpMultipartRelatedEntity aEntity = _generateMultipartEntityForResponse (aResponseAttachments,
+                                                                                    aLeg,
+                                                                                    aResponseDoc);
+    return new AS4ResponseFactoryMIME (aEntity);
   }
 
   /**
@@ -1206,8 +1247,8 @@ public final class AS4Handler implements AutoCloseable
   }
 
   /**
-   * Returns the MimeMessage with encrypted attachment or without depending on
-   * what is configured in the PMode within Leg2.
+   * Returns the multipart entity with encrypted attachment or without
+   * depending on what is configured in the PMode within Leg2.
    *
    * @param aResponseAttachments
    *        The Attachments that should be encrypted
@@ -1215,37 +1256,25 @@ public final class AS4Handler implements AutoCloseable
    *        Leg2 to get necessary information, EncryptionAlgorithm, SOAPVersion
    * @param aResponseDoc
    *        the document that contains the user message
-   * @return a MimeMessage to be sent
-   * @throws MessagingException
+   * @return a multipart entity to be sent
    * @throws WSSecurityException
    */
   @Nonnull
-  private MimeMessage _generateMimeMessageForResponse (@Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachments,
-                                                       @Nonnull final PModeLeg aLeg,
-                                                       @Nonnull final Document aResponseDoc) throws WSSecurityException,
-                                                                                             MessagingException
+  private HttpMultipartRelatedEntity _generateMultipartEntityForResponse (@Nonnull final ICommonsList <WSS4JAttachment> aResponseAttachments,
+                                                                          @Nonnull final PModeLeg aLeg,
+                                                                          @Nonnull final Document aResponseDoc) throws WSSecurityException
   {
-    MimeMessage aMimeMsg = null;
     if (aLeg.getSecurity () != null && aLeg.getSecurity ().getX509EncryptionAlgorithm () != null)
     {
       final EncryptionCreator aEncryptCreator = new EncryptionCreator (m_aCryptoFactory);
-      aMimeMsg = aEncryptCreator.encryptMimeMessage (aLeg.getProtocol ().getSOAPVersion (),
+      return aEncryptCreator.encryptMultipartEntity (aLeg.getProtocol ().getSOAPVersion (),
                                                      aResponseDoc,
                                                      true,
                                                      aResponseAttachments,
                                                      m_aResMgr,
                                                      aLeg.getSecurity ().getX509EncryptionAlgorithm ());
-
-    }
-    else
-    {
-      aMimeMsg = MimeMessageCreator.generateMimeMessage (aLeg.getProtocol ().getSOAPVersion (),
-                                                         aResponseDoc,
-                                                         aResponseAttachments);
     }
-    if (aMimeMsg == null)
-      throw new IllegalStateException ("No MimeMessage created!");
-    return aMimeMsg;
+    return new HttpMultipartRelatedEntity (aLeg.getProtocol ().getSOAPVersion (), aResponseDoc, aResponseAttachments);
   }
 
   /**
@@ -1292,6 +1321,24 @@ public final class AS4Handler implements AutoCloseable
     return false;
   }
 
+  /**
+   * Check if the SPIs are invoked asynchronously in the AS4 worker pool.
+   *
+   * @param aPMode
+   *        The PMode to use. May be <code>null</code> for receipts.
+   * @param bIsEffectiveLeg1
+   *        <code>true</code> if the effective leg is leg 1
+   * @return <code>true</code> if the SPIs are invoked asynchronously
+   */
+  private static boolean _isInvokeSPIsAsynchronous (@Nullable final IPMode aPMode, final boolean bIsEffectiveLeg1)
+  {
+    // Only leg1 can be async!
+    return aPMode != null &&
+           !aPMode.getMEPBinding ().isSynchronous () &&
+           !aPMode.getMEPBinding ().isAsynchronousInitiator () &&
+           bIsEffectiveLeg1;
+  }
+
   /**
    * Checks if in the given PMode isReportAsResponse is set.
    *
@@ -1373,6 +1420,14 @@ public final class AS4Handler implements AutoCloseable
     return aIS;
   }
 
+  @Nonnull
+  private static InternetHeaders _readPartHeaders (@Nonnull final MultipartStream aMulti) throws IOException,
+                                                                                                MessagingException
+  {
+    final String sHeaders = aMulti.readHeaders ();
+    return new InternetHeaders (new NonBlockingByteArrayInputStream (sHeaders.getBytes (StandardCharsets.ISO_8859_1)));
+  }
+
   @Nonnull
   private static Document _readXML (@Nonnull final InputStream aRequestIS) throws SAXException
   {
@@ -1386,6 +1441,122 @@ public final class AS4Handler implements AutoCloseable
     return DOMReader.readXMLDOM (aRequestIS);
   }
 
+  @Nullable
+  private StreamedSOAPDocument _readStreamedXML (@Nonnull final InputStream aRequestIS) throws IOException
+  {
+    if (isDebug ())
+    {
+      final byte [] aBytes = StreamHelper.getAllBytes (aRequestIS);
+      final Charset aCharset = Charset.defaultCharset ();
+      LOGGER.info ("GOT[" + aCharset.name () + "]:\n" + new String (aBytes, aCharset));
+      return SOAPEnvelopeStreamReader.readSOAPDocument (new NonBlockingByteArrayInputStream (aBytes), m_aResMgr);
+    }
+    return SOAPEnvelopeStreamReader.readSOAPDocument (aRequestIS, m_aResMgr);
+  }
+
+  /**
+   * Check the ebMS header of an incoming message before the attachments are
+   * read and before the WS-Security header is processed, so that e.g.
+   * retransmissions of large messages are rejected as early as possible. Only
+   * duplicate message IDs and user messages without a PMode are handled here -
+   * everything else is checked by the regular processing. As the message ID is
+   * not registered here, an unauthenticated message can only be rejected but
+   * never block a later message.
+   *
+   * @param aSOAPDocument
+   *        The SOAP document. May not be <code>null</code>.
+   * @param eSOAPVersion
+   *        The SOAP version. May be <code>null</code> if it was not determined
+   *        yet.
+   * @param aHttpResponse
+   *        The response to fill in case of an error.
+   * @return {@link EContinue#BREAK} if the response was created and the message
+   *         must not be processed any further.
+   */
+  @Nonnull
+  private EContinue _preCheckSOAPMessage (@Nonnull final Document aSOAPDocument,
+                                          @Nullable final ESOAPVersion eSOAPVersion,
+                                          @Nonnull final AS4Response aHttpResponse)
+  {
+    if (!AS4ServerSettings.isIncomingPreCheckEnabled ())
+      return EContinue.CONTINUE;
+
+    final ESOAPVersion eEffectiveSOAPVersion = eSOAPVersion != null ? eSOAPVersion
+                                                                    : _getSOAPVersionOfNamespace (aSOAPDocument);
+    if (eEffectiveSOAPVersion == null)
+      return EContinue.CONTINUE;
+
+    final AS4IncomingMessageInfo aInfo = AS4IncomingMessageInfo.createOrNull (aSOAPDocument, eEffectiveSOAPVersion);
+    if (aInfo == null)
+    {
+      // Let the regular processing handle it
+      return EContinue.CONTINUE;
+    }
+
+    final String sMessageID = aInfo.getMessageID ();
+    PModeLeg aEffectiveLeg = null;
+    Ebms3Error aError = null;
+    if (aInfo.isUserMessage ())
+    {
+      final IPMode aPMode = AS4ServerSettings.getPModeResolver ()
+                                             .getPModeOfID (aInfo.getPModeID (),
+                                                            aInfo.getService (),
+                                                            aInfo.getAction (),
+                                                            aInfo.getInitiatorID (),
+                                                            aInfo.getResponderID (),
+                                                            AS4ServerConfiguration.getServerAddress ());
+      if (aPMode == null)
+      {
+        LOGGER.warn ("Rejecting message '" +
+                     sMessageID +
+                     "' before processing, because PMode '" +
+                     aInfo.getPModeID () +
+                     "' could not be resolved");
+        aError = EEbmsError.EBMS_PROCESSING_MODE_MISMATCH.getAsEbms3Error (m_aLocale, sMessageID);
+      }
+      else
+      {
+        aEffectiveLeg = aInfo.isUseLeg1 () ? aPMode.getLeg1 () : aPMode.getLeg2 ();
+        m_aPreCheckInfo = aInfo;
+        m_aPreCheckPMode = aPMode;
+        m_aPreCheckLeg = aEffectiveLeg;
+      }
+    }
+
+    if (aError == null && MetaAS4Manager.getIncomingDuplicateMgr ().containsMessageID (sMessageID))
+    {
+      LOGGER.info ("Rejecting message '" + sMessageID + "' before processing, because it was already handled");
+      aError = EEbmsError.EBMS_OTHER.getAsEbms3Error (m_aLocale,
+                                                     sMessageID,
+                                                     "Another message with the same ID was already received!");
+    }
+
+    if (aError == null)
+      return EContinue.CONTINUE;
+
+    if (_isSendErrorAsResponse (aEffectiveLeg))
+    {
+      final AS4ErrorMessage aErrorMsg = AS4ErrorMessage.create (eEffectiveSOAPVersion,
+                                                                new CommonsArrayList <> (aError));
+      new AS4ResponseFactoryXML (aErrorMsg.getAsSOAPDocument ()).applyToResponse (eEffectiveSOAPVersion,
+                                                                                 aHttpResponse);
+    }
+    else
+    {
+      LOGGER.warn ("Not sending back the error, because sending error response is prohibited in PMode");
+      aHttpResponse.setStatus (HttpServletResponse.SC_NO_CONTENT);
+    }
+    AS4HttpDebug.debug ( () -> "RECEIVE-END with early rejection of " + sMessageID);
+    return EContinue.BREAK;
+  }
+
+  @Nullable
+  private static ESOAPVersion _getSOAPVersionOfNamespace (@Nonnull final Document aSOAPDocument)
+  {
+    final String sNamespaceURI = XMLHelper.getNamespaceURI (aSOAPDocument);
+    return ArrayHelper.findFirst (ESOAPVersion.values (), x -> x.getNamespaceURI ().equals (sNamespaceURI));
+  }
+
   public void handleRequest (@Nonnull final IRequestWebScopeWithoutResponse aRequestScope,
                              @Nonnull final AS4Response aHttpResponse) throws BadRequestException,
                                                                        IOException,
@@ -1409,6 +1580,7 @@ public final class AS4Handler implements AutoCloseable
       throw new BadRequestException ("Failed to parse Content-Type '" + sContentType + "'");
 
     Document aSOAPDocument = null;
+    StreamedSOAPDocument aStreamedSOAP = null;
     ESOAPVersion eSOAPVersion = null;
     final ICommonsList <WSS4JAttachment> aIncomingAttachments = new CommonsArrayList <> ();
 
@@ -1443,26 +1615,41 @@ public final class AS4Handler implements AutoCloseable
 
         if (isDebug ())
           LOGGER.info ("Found MIME part " + nIndex);
-        final MultipartItemInputStream aItemIS2 = aMulti.createInputStream ();
-
-        final MimeBodyPart aBodyPart = new MimeBodyPart (aItemIS2);
-        if (nIndex == 0)
+        // Only parse the part headers - the body is read directly from the
+        // request stream afterwards
+        final InternetHeaders aPartHeaders = _readPartHeaders (aMulti);
+        try (final MultipartItemInputStream aItemIS2 = aMulti.createInputStream ())
         {
-          // First MIME part -> SOAP document
-          final IMimeType aPlainPartMT = MimeTypeParser.parseMimeType (aBodyPart.getContentType ())
-                                                       .getCopyWithoutParameters ();
-
-          // Determine SOAP version from MIME part content type
-          eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (), x -> aPlainPartMT.equals (x.getMimeType ()));
+          if (nIndex == 0)
+          {
+            // First MIME part -> SOAP document
+            final String sPartContentType = aPartHeaders.getHeader (CHttpHeader.CONTENT_TYPE, null);
+            final MimeType aPartMT = MimeTypeParser.parseMimeType (sPartContentType);
+            if (aPartMT != null)
+            {
+              // Determine SOAP version from MIME part content type
+              final IMimeType aPlainPartMT = aPartMT.getCopyWithoutParameters ();
+              eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (),
+                                                    x -> aPlainPartMT.equals (x.getMimeType ()));
+            }
 
-          // Read SOAP document
-          aSOAPDocument = _readXML (aBodyPart.getInputStream ());
-        }
-        else
-        {
-          // MIME Attachment (index is gt 0)
-          final WSS4JAttachment aAttachment = aIAF.createAttachment (aBodyPart, m_aResMgr);
-          aIncomingAttachments.add (aAttachment);
+            // Read SOAP document
+            final String sCTE = aPartHeaders.getHeader (CHttpHeader.CONTENT_TRANSFER_ENCODING, null);
+            aSOAPDocument = _readXML (sCTE != null ? MimeUtility.decode (aItemIS2, sCTE.trim ()) : aItemIS2);
+            if (aSOAPDocument != null &&
+                _preCheckSOAPMessage (aSOAPDocument, eSOAPVersion, aHttpResponse).isBreak ())
+            {
+              // The attachments are neither read nor spooled
+              return;
+            }
+          }
+          else
+          {
+            // MIME Attachment (index is gt 0)
+            // The body is spooled directly to its final storage
+            final WSS4JAttachment aAttachment = aIAF.createAttachment (aPartHeaders, aItemIS2, m_aResMgr);
+            aIncomingAttachments.add (aAttachment);
+          }
         }
         nIndex++;
       }
@@ -1472,14 +1659,15 @@ public final class AS4Handler implements AutoCloseable
       if (isDebug ())
         LOGGER.info ("Received plain message with Content-Type " + aContentType.getAsString ());
 
-      // Expect plain SOAP - read whole request to DOM
-      // Note: this may require a huge amount of memory for large requests
-      aSOAPDocument = _readXML (_getRequestIS (aHttpServletRequest));
+      // Expect plain SOAP - read only the SOAP Header to DOM and spool the
+      // SOAP Body content, which is parsed only when it is needed
+      aStreamedSOAP = _readStreamedXML (_getRequestIS (aHttpServletRequest));
 
-      if (aSOAPDocument != null)
+      if (aStreamedSOAP != null)
       {
+        aSOAPDocument = aStreamedSOAP.getDocument ();
         // Determine SOAP version from the read document
-        eSOAPVersion = ESOAPVersion.getFromNamespaceURIOrNull (aSOAPDocument.getDocumentElement ().getNamespaceURI ());
+        eSOAPVersion = aStreamedSOAP.getSOAPVersion ();
       }
 
       if (eSOAPVersion == null)
@@ -1487,6 +1675,9 @@ public final class AS4Handler implements AutoCloseable
         // Determine SOAP version from content type
         eSOAPVersion = ESOAPVersion.getFromMimeTypeOrNull (aPlainContentType);
       }
+
+      if (aSOAPDocument != null && _preCheckSOAPMessage (aSOAPDocument, eSOAPVersion, aHttpResponse).isBreak ())
+        return;
     }
 
     if (aSOAPDocument == null)
@@ -1502,14 +1693,16 @@ public final class AS4Handler implements AutoCloseable
     {
       // Determine SOAP version from namespace URI of read document as the
       // last fallback
-      final String sNamespaceURI = XMLHelper.getNamespaceURI (aSOAPDocument);
-      eSOAPVersion = ArrayHelper.findFirst (ESOAPVersion.values (), x -> x.getNamespaceURI ().equals (sNamespaceURI));
+      eSOAPVersion = _getSOAPVersionOfNamespace (aSOAPDocument);
       if (eSOAPVersion == null)
         throw new BadRequestException ("Failed to determine SOAP version from XML document!");
     }
 
     // SOAP document and SOAP version are determined
-    final IAS4ResponseFactory aResponder = _handleSOAPMessage (aSOAPDocument, eSOAPVersion, aIncomingAttachments);
+    final IAS4ResponseFactory aResponder = _handleSOAPMessage (aSOAPDocument,
+                                                               eSOAPVersion,
+                                                               aIncomingAttachments,
+                                                               aStreamedSOAP);
     if (aResponder != null)
     {
       // Response present -> send back
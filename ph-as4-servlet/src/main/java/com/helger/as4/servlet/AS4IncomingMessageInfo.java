@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.equals.EqualsHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.xml.ChildElementIterator;
+import com.helger.xml.XMLHelper;
+
+/**
+ * The key values of the ebMS header of an incoming message, read directly from
+ * the DOM without unmarshalling and validating it. This is used to reject
+ * duplicate messages and messages without a PMode before the attachments are
+ * read and before the WS-Security header is processed. The complete header is
+ * checked by the regular processing afterwards.
+ *
+ * @author Philip Helger
+ */
+@Immutable
+public final class AS4IncomingMessageInfo
+{
+  private final String m_sMessageID;
+  private final String m_sRefToMessageID;
+  private final boolean m_bUserMessage;
+  private final String m_sPModeID;
+  private final String m_sService;
+  private final String m_sAction;
+  private final String m_sInitiatorID;
+  private final String m_sResponderID;
+
+  private AS4IncomingMessageInfo (@Nonnull @Nonempty final String sMessageID,
+                                  @Nullable final String sRefToMessageID,
+                                  final boolean bUserMessage,
+                                  @Nullable final String sPModeID,
+                                  @Nullable final String sService,
+                                  @Nullable final String sAction,
+                                  @Nullable final String sInitiatorID,
+                                  @Nullable final String sResponderID)
+  {
+    m_sMessageID = sMessageID;
+    m_sRefToMessageID = sRefToMessageID;
+    m_bUserMessage = bUserMessage;
+    m_sPModeID = sPModeID;
+    m_sService = sService;
+    m_sAction = sAction;
+    m_sInitiatorID = sInitiatorID;
+    m_sResponderID = sResponderID;
+  }
+
+  /**
+   * @return The ID of the user message or signal message. Never
+   *         <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public String getMessageID ()
+  {
+    return m_sMessageID;
+  }
+
+  @Nullable
+  public String getRefToMessageID ()
+  {
+    return m_sRefToMessageID;
+  }
+
+  /**
+   * @return <code>true</code> for a user message, <code>false</code> for a
+   *         signal message.
+   */
+  public boolean isUserMessage ()
+  {
+    return m_bUserMessage;
+  }
+
+  /**
+   * @return <code>true</code> if leg 1 of the PMode is used, that is if the
+   *         message does not reference a different message.
+   */
+  public boolean isUseLeg1 ()
+  {
+    return StringHelper.hasNoText (m_sRefToMessageID) || m_sRefToMessageID.equals (m_sMessageID);
+  }
+
+  /**
+   * @return The PMode ID from the agreement reference. Only present for user
+   *         messages and even then it is optional.
+   */
+  @Nullable
+  public String getPModeID ()
+  {
+    return m_sPModeID;
+  }
+
+  /**
+   * @return The service. Always present for user messages.
+   */
+  @Nullable
+  public String getService ()
+  {
+    return m_sService;
+  }
+
+  /**
+   * @return The action. Always present for user messages.
+   */
+  @Nullable
+  public String getAction ()
+  {
+    return m_sAction;
+  }
+
+  /**
+   * @return The from party ID. Always present for user messages.
+   */
+  @Nullable
+  public String getInitiatorID ()
+  {
+    return m_sInitiatorID;
+  }
+
+  /**
+   * @return The to party ID. Always present for user messages.
+   */
+  @Nullable
+  public String getResponderID ()
+  {
+    return m_sResponderID;
+  }
+
+  /**
+   * Check if the PMode of this message is resolved with the same values as
+   * provided.
+   *
+   * @param sPModeID
+   *        PMode ID. May be <code>null</code>.
+   * @param sService
+   *        Service. May be <code>null</code>.
+   * @param sAction
+   *        Action. May be <code>null</code>.
+   * @param sInitiatorID
+   *        From party ID. May be <code>null</code>.
+   * @param sResponderID
+   *        To party ID. May be <code>null</code>.
+   * @return <code>true</code> if all values are equal.
+   */
+  public boolean hasSamePModeLookup (@Nullable final String sPModeID,
+                                     @Nullable final String sService,
+                                     @Nullable final String sAction,
+                                     @Nullable final String sInitiatorID,
+                                     @Nullable final String sResponderID)
+  {
+    return EqualsHelper.equals (m_sPModeID, sPModeID) &&
+           EqualsHelper.equals (m_sService, sService) &&
+           EqualsHelper.equals (m_sAction, sAction) &&
+           EqualsHelper.equals (m_sInitiatorID, sInitiatorID) &&
+           EqualsHelper.equals (m_sResponderID, sResponderID);
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("MessageID", m_sMessageID)
+                                       .append ("RefToMessageID", m_sRefToMessageID)
+                                       .append ("UserMessage", m_bUserMessage)
+                                       .append ("PModeID", m_sPModeID)
+                                       .append ("Service", m_sService)
+                                       .append ("Action", m_sAction)
+                                       .append ("InitiatorID", m_sInitiatorID)
+                                       .append ("ResponderID", m_sResponderID)
+                                       .getToString ();
+  }
+
+  @Nonnull
+  private static ICommonsList <Element> _getChildren (@Nullable final Element aParent,
+                                                      @Nonnull final String sLocalName)
+  {
+    final ICommonsList <Element> ret = new CommonsArrayList <> ();
+    if (aParent != null)
+      for (final Element aChild : new ChildElementIterator (aParent))
+        if (CAS4.EBMS_NS.equals (aChild.getNamespaceURI ()) && sLocalName.equals (aChild.getLocalName ()))
+          ret.add (aChild);
+    return ret;
+  }
+
+  @Nullable
+  private static Element _getChild (@Nullable final Element aParent, @Nonnull final String sLocalName)
+  {
+    return aParent == null ? null : XMLHelper.getFirstChildElementOfName (aParent, CAS4.EBMS_NS, sLocalName);
+  }
+
+  /**
+   * The text is not trimmed, so that the values are identical to the ones
+   * read via JAXB later on.
+   */
+  @Nullable
+  private static String _getSingleChildText (@Nullable final Element aParent, @Nonnull final String sLocalName)
+  {
+    final ICommonsList <Element> aChildren = _getChildren (aParent, sLocalName);
+    return aChildren.size () == 1 ? aChildren.getFirst ().getTextContent () : null;
+  }
+
+  /**
+   * Extract the key values from the ebMS header of the provided SOAP document.
+   *
+   * @param aSOAPDoc
+   *        The SOAP document. May not be <code>null</code>.
+   * @param eSOAPVersion
+   *        The SOAP version of the document. May not be <code>null</code>.
+   * @return <code>null</code> if the document does not contain exactly one
+   *         user message or signal message with a message ID, or if a
+   *         mandatory user message value is missing.
+   */
+  @Nullable
+  public static AS4IncomingMessageInfo createOrNull (@Nonnull final Document aSOAPDoc,
+                                                     @Nonnull final ESOAPVersion eSOAPVersion)
+  {
+    ValueEnforcer.notNull (aSOAPDoc, "SOAPDoc");
+    ValueEnforcer.notNull (eSOAPVersion, "SOAPVersion");
+
+    final Element aHeader = XMLHelper.getFirstChildElementOfName (aSOAPDoc.getDocumentElement (),
+                                                                  eSOAPVersion.getNamespaceURI (),
+                                                                  eSOAPVersion.getHeaderElementName ());
+    final Element aMessaging = aHeader == null ? null
+                                               : XMLHelper.getFirstChildElementOfName (aHeader,
+                                                                                       CAS4.EBMS_NS,
+                                                                                       "Messaging");
+    if (aMessaging == null)
+      return null;
+
+    final ICommonsList <Element> aUserMessages = _getChildren (aMessaging, "UserMessage");
+    final ICommonsList <Element> aSignalMessages = _getChildren (aMessaging, "SignalMessage");
+    if (aUserMessages.size () + aSignalMessages.size () != 1)
+      return null;
+
+    final boolean bUserMessage = aUserMessages.isNotEmpty ();
+    final Element aMessage = bUserMessage ? aUserMessages.getFirst () : aSignalMessages.getFirst ();
+    final Element aMessageInfo = _getChild (aMessage, "MessageInfo");
+    final String sMessageID = _getSingleChildText (aMessageInfo, "MessageId");
+    if (StringHelper.hasNoText (sMessageID))
+      return null;
+    final String sRefToMessageID = _getSingleChildText (aMessageInfo, "RefToMessageId");
+
+    if (!bUserMessage)
+      return new AS4IncomingMessageInfo (sMessageID, sRefToMessageID, false, null, null, null, null, null);
+
+    final Element aPartyInfo = _getChild (aMessage, "PartyInfo");
+    final String sInitiatorID = _getSingleChildText (_getChild (aPartyInfo, "From"), "PartyId");
+    final String sResponderID = _getSingleChildText (_getChild (aPartyInfo, "To"), "PartyId");
+    final Element aCollaborationInfo = _getChild (aMessage, "CollaborationInfo");
+    final String sService = _getSingleChildText (aCollaborationInfo, "Service");
+    final String sAction = _getSingleChildText (aCollaborationInfo, "Action");
+    if (StringHelper.hasNoText (sInitiatorID) ||
+        StringHelper.hasNoText (sResponderID) ||
+        sService == null ||
+        sAction == null)
+      return null;
+
+    final Element aAgreementRef = _getChild (aCollaborationInfo, "AgreementRef");
+    final String sPModeID = aAgreementRef == null ? null : aAgreementRef.getAttribute ("pmode");
+
+    return new AS4IncomingMessageInfo (sMessageID,
+                                       sRefToMessageID,
+                                       true,
+                                       StringHelper.hasText (sPModeID) ? sPModeID : null,
+                                       sService,
+                                       sAction,
+                                       sInitiatorID,
+                                       sResponderID);
+  }
+}
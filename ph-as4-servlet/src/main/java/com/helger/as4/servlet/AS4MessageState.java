@@ -33,6 +33,7 @@ import com.helger.as4.model.mpc.IMPC;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
 import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.soap.StreamedSOAPDocument;
 import com.helger.as4.util.AS4ResourceManager;
 import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.commons.ValueEnforcer;
@@ -60,6 +61,8 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
   private static final String KEY_DECRYPTED_ATTACHMENT_LIST = "as4.soap.decrypted.attachmentlist";
   private static final String KEY_COMPRESSED_ATTACHMENT_IDS = "as4.compressed.attachment.ids";
   private static final String KEY_SOAP_BODY_PAYLOAD_PRESENT = "as4.soap.body.payload.present";
+  private static final String KEY_SOAP_BODY_DEFERRED = "as4.soap.body.deferred";
+  private static final String KEY_STREAMED_SOAP_DOCUMENT = "as4.soap.streamed.document";
   private static final String KEY_INITIATOR_ID = "as4.initiator.id";
   private static final String KEY_RESPONDER_ID = "as4.responder.id";
   private static final String KEY_USED_CERTIFICATE = "as4.used.certificate";
@@ -67,6 +70,9 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
   private static final String KEY_EFFECTIVE_PMODE_LEG_NUMBER = "as4.pmode.effective.leg.number";
   private static final String KEY_SOAP_CHECKED_SIGNATURE = "as4.soap.signature.checked";
   private static final String KEY_SOAP_DECRYPTED = "as4.soap.decrypted";
+  private static final String KEY_PRE_CHECK_INFO = "as4.precheck.info";
+  private static final String KEY_PRE_CHECK_PMODE = "as4.precheck.pmode";
+  private static final String KEY_PRE_CHECK_PMODE_LEG = "as4.precheck.pmode.leg";
 
   private final LocalDateTime m_aReceiptDT;
   private final ESOAPVersion m_eSOAPVersion;
@@ -125,6 +131,59 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
     return getCastedValue (KEY_PMODE);
   }
 
+  /**
+   * Remember the PMode that was already resolved by the pre-check of the
+   * incoming message, so that the Ebms3 header processor does not need to
+   * resolve it again.
+   *
+   * @param aInfo
+   *        The information the PMode was resolved from. May not be
+   *        <code>null</code>.
+   * @param aPMode
+   *        The resolved PMode. May not be <code>null</code>.
+   * @param aEffectiveLeg
+   *        The effective leg of the PMode. May be <code>null</code>.
+   */
+  public void setPreCheckResult (@Nonnull final AS4IncomingMessageInfo aInfo,
+                                 @Nonnull final IPMode aPMode,
+                                 @Nullable final PModeLeg aEffectiveLeg)
+  {
+    ValueEnforcer.notNull (aInfo, "Info");
+    ValueEnforcer.notNull (aPMode, "PMode");
+    putIn (KEY_PRE_CHECK_INFO, aInfo);
+    putIn (KEY_PRE_CHECK_PMODE, aPMode);
+    putIn (KEY_PRE_CHECK_PMODE_LEG, aEffectiveLeg);
+  }
+
+  /**
+   * @return The information the pre-check resolved the PMode from or
+   *         <code>null</code> if the pre-check did not resolve a PMode.
+   */
+  @Nullable
+  public AS4IncomingMessageInfo getPreCheckMessageInfo ()
+  {
+    return getCastedValue (KEY_PRE_CHECK_INFO);
+  }
+
+  /**
+   * @return The PMode resolved by the pre-check or <code>null</code>.
+   */
+  @Nullable
+  public IPMode getPreCheckPMode ()
+  {
+    return getCastedValue (KEY_PRE_CHECK_PMODE);
+  }
+
+  /**
+   * @return The effective leg determined by the pre-check or
+   *         <code>null</code>.
+   */
+  @Nullable
+  public PModeLeg getPreCheckEffectivePModeLeg ()
+  {
+    return getCastedValue (KEY_PRE_CHECK_PMODE_LEG);
+  }
+
   public void setOriginalAttachments (@Nullable final ICommonsList <WSS4JAttachment> aAttachments)
   {
     putIn (KEY_ORIGINAL_ATTACHMENT_LIST, aAttachments);
@@ -190,6 +249,50 @@ public class AS4MessageState extends AttributeContainerAny <String> implements I
     return getAsBoolean (KEY_SOAP_BODY_PAYLOAD_PRESENT, false);
   }
 
+  /**
+   * Remember if the SOAP Body has content that is not yet part of the SOAP
+   * document, because it was spooled while reading.
+   *
+   * @param bDeferred
+   *        <code>true</code> if the SOAP Body content is deferred.
+   */
+  public void setSoapBodyDeferred (final boolean bDeferred)
+  {
+    putIn (KEY_SOAP_BODY_DEFERRED, bDeferred);
+  }
+
+  /**
+   * @return <code>true</code> if the SOAP Body has content that was not yet
+   *         added to the SOAP document, <code>false</code> otherwise.
+   */
+  public boolean isSoapBodyDeferred ()
+  {
+    return getAsBoolean (KEY_SOAP_BODY_DEFERRED, false);
+  }
+
+  /**
+   * Remember the lazily read SOAP document whose Body is materialized on
+   * demand. If the message was decrypted while streaming, this is the
+   * decrypted document.
+   *
+   * @param aStreamedSOAP
+   *        The streamed SOAP document. May be <code>null</code>.
+   */
+  public void setStreamedSOAPDocument (@Nullable final StreamedSOAPDocument aStreamedSOAP)
+  {
+    putIn (KEY_STREAMED_SOAP_DOCUMENT, aStreamedSOAP);
+  }
+
+  /**
+   * @return The lazily read SOAP document or <code>null</code> if the SOAP
+   *         document was read completely.
+   */
+  @Nullable
+  public StreamedSOAPDocument getStreamedSOAPDocument ()
+  {
+    return getCastedValue (KEY_STREAMED_SOAP_DOCUMENT);
+  }
+
   public void setInitiatorID (@Nullable final String sInitiatorID)
   {
     putIn (KEY_INITIATOR_ID, sInitiatorID);
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.commons.annotation.UsedViaReflection;
+import com.helger.commons.callback.IThrowingRunnable;
+import com.helger.scope.IScope;
+import com.helger.scope.singleton.AbstractGlobalSingleton;
+
+/**
+ * Bounded worker pool that runs the processing of the requests received by
+ * {@link AS4AsyncServlet}. It is separate from the {@link AS4WorkerPool}
+ * because the request processing reserves capacity of the
+ * {@link AS4WorkerPool} for asynchronous SPI invocations. If both shared the
+ * same pool, a fully busy pool could never accept another asynchronous
+ * message.
+ *
+ * @author Philip Helger
+ * @see AS4BoundedExecutor
+ */
+public final class AS4RequestWorkerPool extends AbstractGlobalSingleton
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS4RequestWorkerPool.class);
+
+  private final AS4BoundedExecutor m_aExecutor;
+
+  @Deprecated
+  @UsedViaReflection
+  public AS4RequestWorkerPool ()
+  {
+    final int nCoreSize = Math.max (AS4ServerConfiguration.getRequestPoolCoreSize (), 1);
+    final int nMaxSize = Math.max (AS4ServerConfiguration.getRequestPoolMaxSize (), nCoreSize);
+    final int nQueueSize = Math.max (AS4ServerConfiguration.getRequestPoolQueueSize (), 0);
+    m_aExecutor = new AS4BoundedExecutor (AS4RequestWorkerPool.class.getName (),
+                                          nCoreSize,
+                                          nMaxSize,
+                                          nQueueSize,
+                                          AS4ServerConfiguration.isRequestPoolUseVirtualThreads ());
+    if (m_aExecutor.isUsingVirtualThreads ())
+      LOGGER.info ("AS4 request worker pool uses virtual threads with at most " +
+                   m_aExecutor.getMaxTaskCount () +
+                   " concurrent tasks");
+    else
+      LOGGER.info ("AS4 request worker pool uses " +
+                   nCoreSize +
+                   "-" +
+                   nMaxSize +
+                   " threads and a queue size of " +
+                   nQueueSize);
+  }
+
+  @Nonnull
+  public static AS4RequestWorkerPool getInstance ()
+  {
+    return getGlobalSingleton (AS4RequestWorkerPool.class);
+  }
+
+  @Override
+  protected void onDestroy (@Nonnull final IScope aScopeInDestruction) throws Exception
+  {
+    LOGGER.info ("AS4 request worker pool about to be closed");
+    m_aExecutor.close ();
+    LOGGER.info ("AS4 request worker pool closed!");
+  }
+
+  /**
+   * @return The maximum number of requests that can be queued or processed at
+   *         the same time. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxTaskCount ()
+  {
+    return m_aExecutor.getMaxTaskCount ();
+  }
+
+  /**
+   * @return The number of requests currently processed. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getActiveTaskCount ()
+  {
+    return m_aExecutor.getActiveTaskCount ();
+  }
+
+  /**
+   * @return The number of requests rejected since startup. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getRejectedTaskCount ()
+  {
+    return m_aExecutor.getRejectedTaskCount ();
+  }
+
+  /**
+   * Run the provided runnable asynchronously.
+   *
+   * @param aRunnable
+   *        The runnable to run. May not be <code>null</code>.
+   * @return The future for the result. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the pool is exhausted
+   */
+  @Nonnull
+  public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
+  {
+    return m_aExecutor.run (aRunnable);
+  }
+}
@@ -16,23 +16,33 @@
  */
 package com.helger.as4.servlet;
 
+import java.io.File;
+
 import javax.annotation.concurrent.Immutable;
 import javax.xml.namespace.QName;
 
+import com.helger.as4.crypto.AS4TrustValidationCache;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.servlet.mgr.AS4DuplicateCleanupJob;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.as4.servlet.mgr.AS4ServerSettings;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorExtractEbms3Messaging;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorRegistry;
 import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorWSS4J;
+import com.helger.as4.servlet.soap.SOAPHeaderElementProcessorWSS4JStreaming;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4TempFileArena;
+import com.helger.commons.string.StringHelper;
 
 /**
  * This class contains the init method for the AS4Server. Registering alle
  * Processors that are currently used
  * {@link SOAPHeaderElementProcessorExtractEbms3Messaging} and
- * {@link SOAPHeaderElementProcessorWSS4J}. Also a {@link MetaAS4Manager}
- * instance gets provided for the server to use. The duplicate cleanup job will
- * also be started.
+ * {@link SOAPHeaderElementProcessorWSS4JStreaming} (which falls back to
+ * {@link SOAPHeaderElementProcessorWSS4J} unless streaming is configured). Also
+ * a {@link MetaAS4Manager} instance gets provided for the server to use. The
+ * duplicate cleanup job will also be started.
  *
  * @author bayerlma
  */
@@ -60,9 +70,32 @@ public final class AS4ServerInitializer
       aReg.registerHeaderElementProcessor (QNAME_MESSAGING, new SOAPHeaderElementProcessorExtractEbms3Messaging ());
     // WSS4J must be after Ebms3Messaging handler!
     if (!aReg.containsHeaderElementProcessor (QNAME_SECURITY))
-      aReg.registerHeaderElementProcessor (QNAME_SECURITY, new SOAPHeaderElementProcessorWSS4J ());
+      aReg.registerHeaderElementProcessor (QNAME_SECURITY, new SOAPHeaderElementProcessorWSS4JStreaming ());
+
+    Ebms3MarshallerPool.setDefaultValidationMode (AS4ServerConfiguration.getEbms3ValidationMode ());
+    AS4ResourceManager.setMemoryBudget (Math.max (AS4ServerConfiguration.getAttachmentMemoryBudget (), 0));
+
+    // Temporary files - remove left-overs of a previous run
+    final String sTempDir = AS4ServerConfiguration.getTempDirectory ();
+    if (StringHelper.hasText (sTempDir))
+      AS4TempFileArena.setDefaultInstance (new AS4TempFileArena (new File (sTempDir)));
+    AS4TempFileArena.getDefaultInstance ().sweep ();
+
+    // Cache for certificate path validation results
+    final int nTrustCacheMaxSize = AS4ServerConfiguration.getTrustCacheMaxSize ();
+    if (nTrustCacheMaxSize > 0)
+    {
+      final long nTTLMS = Math.max (AS4ServerConfiguration.getTrustCacheTTLMS (), 0);
+      final long nNegativeTTLMS = Math.max (AS4ServerConfiguration.getTrustCacheNegativeTTLMS (), 0);
+      AS4ServerSettings.setTrustValidationCache (new AS4TrustValidationCache (nTrustCacheMaxSize,
+                                                                              nTTLMS,
+                                                                              nNegativeTTLMS));
+    }
+    else
+      AS4ServerSettings.setTrustValidationCache (null);
 
     // Ensure all managers are initialized
+    MetaAS4Manager.setIncomingDuplicateStoreType (AS4ServerConfiguration.getIncomingDuplicateStoreType ());
     MetaAS4Manager.getInstance ();
 
     // Schedule jobs
@@ -17,41 +17,66 @@
 package com.helger.as4.servlet;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Supplier;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
 import com.helger.commons.annotation.UsedViaReflection;
 import com.helger.commons.callback.IThrowingRunnable;
-import com.helger.commons.concurrent.BasicThreadFactory;
-import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.statistics.StatisticsManager;
 import com.helger.scope.IScope;
 import com.helger.scope.singleton.AbstractGlobalSingleton;
 
 /**
- * Asynchronous worker pool that handles stuff that runs in the background.
+ * Asynchronous worker pool that handles stuff that runs in the background.<br>
+ * The pool is bounded: if all threads are busy and the queue is full, new tasks
+ * are rejected with a {@link RejectedExecutionException}. Use
+ * {@link #tryReserve()} to reserve the capacity for a task upfront. Optionally
+ * each task can be run in a virtual thread, if the runtime supports it - in
+ * that case the number of concurrent tasks is limited by the sum of the maximum
+ * pool size and the queue size.<br>
+ * The wait time and the run time of the tasks as well as the number of
+ * rejected tasks are available via the {@link StatisticsManager}.
  *
  * @author Philip Helger
+ * @see AS4BoundedExecutor
  */
 public final class AS4WorkerPool extends AbstractGlobalSingleton
 {
   private static final Logger LOGGER = LoggerFactory.getLogger (AS4WorkerPool.class);
 
-  private final ExecutorService m_aES;
+  private final AS4BoundedExecutor m_aExecutor;
 
   @Deprecated
   @UsedViaReflection
   public AS4WorkerPool ()
   {
-    m_aES = Executors.newFixedThreadPool (Runtime.getRuntime ().availableProcessors () * 2,
-                                          new BasicThreadFactory.Builder ().setDaemon (true)
-                                                                           .setNamingPattern ("as4-worker-%d")
-                                                                           .build ());
+    final int nCoreSize = Math.max (AS4ServerConfiguration.getWorkerPoolCoreSize (), 1);
+    final int nMaxSize = Math.max (AS4ServerConfiguration.getWorkerPoolMaxSize (), nCoreSize);
+    final int nQueueSize = Math.max (AS4ServerConfiguration.getWorkerPoolQueueSize (), 0);
+    m_aExecutor = new AS4BoundedExecutor (AS4WorkerPool.class.getName (),
+                                          nCoreSize,
+                                          nMaxSize,
+                                          nQueueSize,
+                                          AS4ServerConfiguration.isWorkerPoolUseVirtualThreads ());
+    if (m_aExecutor.isUsingVirtualThreads ())
+      LOGGER.info ("Global AS4 worker pool uses virtual threads with at most " +
+                   m_aExecutor.getMaxTaskCount () +
+                   " concurrent tasks");
+    else
+      LOGGER.info ("Global AS4 worker pool uses " +
+                   nCoreSize +
+                   "-" +
+                   nMaxSize +
+                   " threads and a queue size of " +
+                   nQueueSize);
   }
 
   @Nonnull
@@ -64,38 +89,109 @@ public final class AS4WorkerPool extends AbstractGlobalSingleton
   protected void onDestroy (@Nonnull final IScope aScopeInDestruction) throws Exception
   {
     LOGGER.info ("Global AS4 worker queue about to be closed");
-    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aES);
+    m_aExecutor.close ();
     LOGGER.info ("Global AS4 worker queue closed!");
   }
 
+  /**
+   * @return <code>true</code> if the tasks are run in virtual threads,
+   *         <code>false</code> if a platform thread pool is used.
+   */
+  public boolean isUsingVirtualThreads ()
+  {
+    return m_aExecutor.isUsingVirtualThreads ();
+  }
+
+  /**
+   * @return The maximum number of tasks that can be queued or executed at the
+   *         same time. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxTaskCount ()
+  {
+    return m_aExecutor.getMaxTaskCount ();
+  }
+
+  /**
+   * @return The number of tasks waiting for execution. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getQueuedTaskCount ()
+  {
+    return m_aExecutor.getQueuedTaskCount ();
+  }
+
+  /**
+   * @return The number of tasks currently executing. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getActiveTaskCount ()
+  {
+    return m_aExecutor.getActiveTaskCount ();
+  }
+
+  /**
+   * @return The number of tasks rejected since startup. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getRejectedTaskCount ()
+  {
+    return m_aExecutor.getRejectedTaskCount ();
+  }
+
+  /**
+   * Check if a new task would currently be accepted. As this is only a
+   * snapshot, {@link #run(IThrowingRunnable)} and {@link #supply(Supplier)} may
+   * still reject the task afterwards. Use {@link #tryReserve()} to be sure.
+   *
+   * @return <code>true</code> if there is capacity for at least one more task.
+   */
+  public boolean canAcceptTask ()
+  {
+    return m_aExecutor.canAcceptTask ();
+  }
+
+  /**
+   * Reserve the capacity for one task.
+   *
+   * @return <code>null</code> if the pool is exhausted. Otherwise the
+   *         reservation that must either be used or closed.
+   */
+  @Nullable
+  public AS4BoundedExecutor.Reservation tryReserve ()
+  {
+    return m_aExecutor.tryReserve ();
+  }
+
+  /**
+   * Run the provided runnable asynchronously.
+   *
+   * @param aRunnable
+   *        The runnable to run. May not be <code>null</code>.
+   * @return The future for the result. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the pool is exhausted
+   */
   @Nonnull
   public CompletableFuture <Void> run (@Nonnull final IThrowingRunnable <? extends Throwable> aRunnable)
   {
-    return CompletableFuture.runAsync ( () -> {
-      try
-      {
-        aRunnable.run ();
-      }
-      catch (final Throwable t)
-      {
-        LOGGER.error ("Error running AS4 runner " + aRunnable, t);
-      }
-    }, m_aES);
+    return m_aExecutor.run (aRunnable);
   }
 
+  /**
+   * Run the provided supplier asynchronously.
+   *
+   * @param aSupplier
+   *        The supplier to run. May not be <code>null</code>.
+   * @return The future for the result. Never <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If the pool is exhausted
+   * @param <T>
+   *        Result type
+   */
   @Nonnull
   public <T> CompletableFuture <T> supply (@Nonnull final Supplier <T> aSupplier)
   {
-    return CompletableFuture.supplyAsync ( () -> {
-      try
-      {
-        return aSupplier.get ();
-      }
-      catch (final Exception ex)
-      {
-        LOGGER.error ("Error running AS4 supplier " + aSupplier, ex);
-        return null;
-      }
-    }, m_aES);
+    return m_aExecutor.supply (aSupplier);
   }
 }
@@ -16,6 +16,8 @@
  */
 package com.helger.as4.servlet;
 
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.annotation.Nonnull;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -78,6 +80,13 @@ public final class AS4XServletHandler implements IXServletSimpleHandler
                                       "Bad Request: " + ex.getMessage (),
                                       ex.getCause ());
     }
+    catch (final ServiceUnavailableException | RejectedExecutionException ex)
+    {
+      // Logged inside or rejected by the worker pool
+      aHttpResponse.setResponseError (HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                      "Service Unavailable: " + ex.getMessage (),
+                                      ex.getCause ());
+    }
     catch (final Throwable t)
     {
       // Logged inside
@@ -23,8 +23,17 @@ import javax.annotation.concurrent.NotThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.helger.as4.crypto.AS4TrustValidationCache;
+import com.helger.as4.duplicate.EAS4DuplicateStoreType;
+import com.helger.as4.marshaller.EEbms3ValidationMode;
+import com.helger.as4.mgr.MetaAS4Manager;
+import com.helger.as4.profile.IAS4Profile;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4TempFileArena;
+import com.helger.as4.wss.EWSSProcessingMode;
 import com.helger.commons.annotation.VisibleForTesting;
 import com.helger.commons.exception.InitializationException;
+import com.helger.commons.string.StringHelper;
 import com.helger.settings.ISettings;
 import com.helger.settings.Settings;
 import com.helger.settings.exchange.configfile.ConfigFile;
@@ -48,6 +57,8 @@ public final class AS4ServerConfiguration
   private static final Settings SETTINGS = new Settings ("as4-server");
   private static boolean s_bTestMode = false;
   private static final long DEFAULT_RESET_MINUTES = 10;
+  private static final int DEFAULT_WORKERPOOL_QUEUE_SIZE = 1000;
+  private static final long DEFAULT_ASYNC_TIMEOUT_MS = 5 * 60 * 1000L;
 
   public static void reinit (final boolean bForTest)
   {
@@ -109,6 +120,17 @@ public final class AS4ServerConfiguration
     return getSettings ().getAsString ("server.profile");
   }
 
+  /**
+   * @return The AS4 profile with the ID from {@link #getAS4ProfileID()}. May
+   *         be <code>null</code> if no or an unknown profile ID is configured.
+   */
+  @Nullable
+  public static IAS4Profile getAS4Profile ()
+  {
+    final String sProfileID = getAS4ProfileID ();
+    return StringHelper.hasText (sProfileID) ? MetaAS4Manager.getProfileMgr ().getProfileOfID (sProfileID) : null;
+  }
+
   @Nonnull
   public static boolean isGlobalDebug ()
   {
@@ -140,9 +162,194 @@ public final class AS4ServerConfiguration
     return getSettings ().getAsLong (sFieldName, DEFAULT_RESET_MINUTES);
   }
 
+  /**
+   * @return The store type for incoming duplicate message IDs. Defaults to
+   *         {@link EAS4DuplicateStoreType#XML}.
+   */
+  @Nonnull
+  public static EAS4DuplicateStoreType getIncomingDuplicateStoreType ()
+  {
+    final String sFieldName = "server.incoming.duplicatestore";
+    return EAS4DuplicateStoreType.getFromIDOrDefault (getSettings ().getAsString (sFieldName),
+                                                     EAS4DuplicateStoreType.XML);
+  }
+
+  /**
+   * @return The default validation mode for Ebms3 headers. May be overridden
+   *         per AS4 profile. Defaults to {@link EEbms3ValidationMode#FULL}.
+   */
+  @Nonnull
+  public static EEbms3ValidationMode getEbms3ValidationMode ()
+  {
+    final String sFieldName = "server.ebms3.validation";
+    return EEbms3ValidationMode.getFromIDOrDefault (getSettings ().getAsString (sFieldName),
+                                                   EEbms3ValidationMode.FULL);
+  }
+
+  /**
+   * @return The default processing mode for the WS-Security header of incoming
+   *         messages. May be overridden per AS4 profile. Defaults to
+   *         {@link EWSSProcessingMode#DOM}.
+   */
+  @Nonnull
+  public static EWSSProcessingMode getWSSProcessingMode ()
+  {
+    final String sFieldName = "server.wss.processing";
+    return EWSSProcessingMode.getFromIDOrDefault (getSettings ().getAsString (sFieldName), EWSSProcessingMode.DOM);
+  }
+
+  /**
+   * @return The maximum number of threads used to decrypt and spool the
+   *         attachments of a single incoming message in parallel. Defaults to
+   *         the number of available processors. A value of 1 disables the
+   *         parallel processing.
+   */
+  public static int getAttachmentWorkerCount ()
+  {
+    return getSettings ().getAsInt ("server.attachments.threads", Runtime.getRuntime ().availableProcessors ());
+  }
+
+  /**
+   * @return The process-wide number of bytes of attachments and other content
+   *         that may be kept in memory by all concurrent requests. Defaults to
+   *         {@link AS4ResourceManager#DEFAULT_MEMORY_BUDGET}.
+   */
+  public static long getAttachmentMemoryBudget ()
+  {
+    return getSettings ().getAsLong ("server.attachments.memorybudget", AS4ResourceManager.DEFAULT_MEMORY_BUDGET);
+  }
+
+  /**
+   * @return The directory for temporary files, e.g. on a tmpfs or a fast local
+   *         disk. May be <code>null</code> to use the default location of
+   *         {@link AS4TempFileArena}.
+   */
+  @Nullable
+  public static String getTempDirectory ()
+  {
+    return getSettings ().getAsString ("server.tempdir");
+  }
+
+  /**
+   * @return The maximum time in milliseconds an asynchronously handled request
+   *         (see <code>AS4AsyncServlet</code>) may take from the start of
+   *         reading until the response was written completely. Defaults to 5
+   *         minutes.
+   */
+  public static long getAsyncTimeoutMS ()
+  {
+    return getSettings ().getAsLong ("server.async.timeoutms", DEFAULT_ASYNC_TIMEOUT_MS);
+  }
+
+  /**
+   * @return The maximum number of cached certificate path validation results.
+   *         Defaults to {@link AS4TrustValidationCache#DEFAULT_MAX_SIZE}. A
+   *         value of 0 disables the cache.
+   */
+  public static int getTrustCacheMaxSize ()
+  {
+    return getSettings ().getAsInt ("server.trustcache.maxsize", AS4TrustValidationCache.DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @return The duration in milliseconds a successful certificate path
+   *         validation is cached. Defaults to
+   *         {@link AS4TrustValidationCache#DEFAULT_TTL_MS}.
+   */
+  public static long getTrustCacheTTLMS ()
+  {
+    return getSettings ().getAsLong ("server.trustcache.ttlms", AS4TrustValidationCache.DEFAULT_TTL_MS);
+  }
+
+  /**
+   * @return The duration in milliseconds a failed certificate path validation
+   *         is cached. Defaults to
+   *         {@link AS4TrustValidationCache#DEFAULT_NEGATIVE_TTL_MS}.
+   */
+  public static long getTrustCacheNegativeTTLMS ()
+  {
+    return getSettings ().getAsLong ("server.trustcache.negativettlms",
+                                     AS4TrustValidationCache.DEFAULT_NEGATIVE_TTL_MS);
+  }
+
   @Nullable
   public static String getServerAddress ()
   {
     return getSettings ().getAsString ("server.address");
   }
+
+  /**
+   * @return The number of core threads of the AS4 worker pool. Defaults to two
+   *         times the number of available processors.
+   */
+  public static int getWorkerPoolCoreSize ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.coresize", Runtime.getRuntime ().availableProcessors () * 2);
+  }
+
+  /**
+   * @return The maximum number of threads of the AS4 worker pool. Defaults to
+   *         the core size.
+   */
+  public static int getWorkerPoolMaxSize ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.maxsize", getWorkerPoolCoreSize ());
+  }
+
+  /**
+   * @return The maximum number of tasks waiting for execution in the AS4
+   *         worker pool. If the queue is full, new tasks are rejected.
+   */
+  public static int getWorkerPoolQueueSize ()
+  {
+    return getSettings ().getAsInt ("server.workerpool.queuesize", DEFAULT_WORKERPOOL_QUEUE_SIZE);
+  }
+
+  /**
+   * @return <code>true</code> to run each AS4 worker pool task in a virtual
+   *         thread, if the runtime supports it. The maximum number of
+   *         concurrent tasks is then the sum of max size and queue size.
+   */
+  public static boolean isWorkerPoolUseVirtualThreads ()
+  {
+    return getSettings ().getAsBoolean ("server.workerpool.virtualthreads", false);
+  }
+
+  /**
+   * @return The number of core threads of the pool processing the requests of
+   *         the asynchronous servlet. Defaults to two times the number of
+   *         available processors.
+   */
+  public static int getRequestPoolCoreSize ()
+  {
+    return getSettings ().getAsInt ("server.requestpool.coresize", Runtime.getRuntime ().availableProcessors () * 2);
+  }
+
+  /**
+   * @return The maximum number of threads of the pool processing the requests
+   *         of the asynchronous servlet. Defaults to the core size.
+   */
+  public static int getRequestPoolMaxSize ()
+  {
+    return getSettings ().getAsInt ("server.requestpool.maxsize", getRequestPoolCoreSize ());
+  }
+
+  /**
+   * @return The maximum number of requests of the asynchronous servlet
+   *         waiting for processing. If the queue is full, new requests are
+   *         rejected.
+   */
+  public static int getRequestPoolQueueSize ()
+  {
+    return getSettings ().getAsInt ("server.requestpool.queuesize", DEFAULT_WORKERPOOL_QUEUE_SIZE);
+  }
+
+  /**
+   * @return <code>true</code> to process each request of the asynchronous
+   *         servlet in a virtual thread, if the runtime supports it.
+   */
+  public static boolean isRequestPoolUseVirtualThreads ()
+  {
+    return getSettings ().getAsBoolean ("server.requestpool.virtualthreads", false);
+  }
 }
@@ -16,14 +16,19 @@
  */
 package com.helger.as4.servlet.mgr;
 
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 
+import com.helger.as4.attachment.DefaultIncomingAttachmentFactory;
+import com.helger.as4.attachment.EAS4DecryptedAttachmentMode;
 import com.helger.as4.attachment.IIncomingAttachmentFactory;
-import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4TrustValidationCache;
 import com.helger.as4.model.pmode.resolve.DefaultPModeResolver;
 import com.helger.as4.model.pmode.resolve.IPModeResolver;
+import com.helger.as4.util.AS4SpoolOutputStream;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 
@@ -33,9 +38,13 @@ public final class AS4ServerSettings
   private static final String DEFAULT_RESPONDER_ID = "default";
 
   private static String s_sResponderID = DEFAULT_RESPONDER_ID;
-  private static IIncomingAttachmentFactory s_aIncomingAttachmentFactory = WSS4JAttachment::createIncomingFileAttachment;
+  private static IIncomingAttachmentFactory s_aIncomingAttachmentFactory = new DefaultIncomingAttachmentFactory ();
   private static IPModeResolver s_aPModeResolver = new DefaultPModeResolver (false);
   private static AS4CryptoFactory s_aAS4CryptoFactory = AS4CryptoFactory.DEFAULT_INSTANCE;
+  private static EAS4DecryptedAttachmentMode s_eDecryptedAttachmentMode = EAS4DecryptedAttachmentMode.SPOOL;
+  private static long s_nDecryptedAttachmentMemoryThreshold = AS4SpoolOutputStream.DEFAULT_MEMORY_THRESHOLD;
+  private static boolean s_bIncomingPreCheckEnabled = true;
+  private static AS4TrustValidationCache s_aTrustValidationCache = new AS4TrustValidationCache ();
 
   private AS4ServerSettings ()
   {}
@@ -88,4 +97,68 @@ public final class AS4ServerSettings
     ValueEnforcer.notNull (aAS4CryptoFactory, "AS4CryptoFactory");
     s_aAS4CryptoFactory = aAS4CryptoFactory;
   }
+
+  /**
+   * @return How decrypted incoming attachments are provided to the message
+   *         processors. Defaults to {@link EAS4DecryptedAttachmentMode#SPOOL}.
+   */
+  @Nonnull
+  public static EAS4DecryptedAttachmentMode getDecryptedAttachmentMode ()
+  {
+    return s_eDecryptedAttachmentMode;
+  }
+
+  public static void setDecryptedAttachmentMode (@Nonnull final EAS4DecryptedAttachmentMode eDecryptedAttachmentMode)
+  {
+    ValueEnforcer.notNull (eDecryptedAttachmentMode, "DecryptedAttachmentMode");
+    s_eDecryptedAttachmentMode = eDecryptedAttachmentMode;
+  }
+
+  /**
+   * @return The maximum size in bytes of a decrypted attachment that is kept
+   *         in memory in {@link EAS4DecryptedAttachmentMode#SPOOL} mode. Larger
+   *         attachments are decrypted into a temporary file.
+   */
+  @Nonnegative
+  public static long getDecryptedAttachmentMemoryThreshold ()
+  {
+    return s_nDecryptedAttachmentMemoryThreshold;
+  }
+
+  public static void setDecryptedAttachmentMemoryThreshold (@Nonnegative final long nDecryptedAttachmentMemoryThreshold)
+  {
+    ValueEnforcer.isGE0 (nDecryptedAttachmentMemoryThreshold, "DecryptedAttachmentMemoryThreshold");
+    s_nDecryptedAttachmentMemoryThreshold = nDecryptedAttachmentMemoryThreshold;
+  }
+
+  /**
+   * @return <code>true</code> if the ebMS header of incoming messages is
+   *         checked for duplicate message IDs and unknown PModes before the
+   *         attachments are read and before the WS-Security header is
+   *         processed. Enabled by default.
+   */
+  public static boolean isIncomingPreCheckEnabled ()
+  {
+    return s_bIncomingPreCheckEnabled;
+  }
+
+  public static void setIncomingPreCheckEnabled (final boolean bIncomingPreCheckEnabled)
+  {
+    s_bIncomingPreCheckEnabled = bIncomingPreCheckEnabled;
+  }
+
+  /**
+   * @return The cache for certificate path validation results of incoming
+   *         signed messages. May be <code>null</code> if caching is disabled.
+   */
+  @Nullable
+  public static AS4TrustValidationCache getTrustValidationCache ()
+  {
+    return s_aTrustValidationCache;
+  }
+
+  public static void setTrustValidationCache (@Nullable final AS4TrustValidationCache aTrustValidationCache)
+  {
+    s_aTrustValidationCache = aTrustValidationCache;
+  }
 }
@@ -67,4 +67,17 @@ public interface ISOAPHeaderElementProcessor
                                  @Nonnull AS4MessageState aState,
                                  @Nonnull ErrorList aErrorList,
                                  @Nonnull Locale aLocale);
+
+  /**
+   * @return <code>true</code> if this processor needs the content of the SOAP
+   *         Body to be part of the SOAP document (e.g. for signature
+   *         verification or decryption), <code>false</code> if the SOAP header
+   *         is sufficient. If <code>true</code> a lazily read SOAP Body is
+   *         materialized before this processor is invoked. Defaults to
+   *         <code>true</code>.
+   */
+  default boolean isRequiringSOAPBody ()
+  {
+    return true;
+  }
 }
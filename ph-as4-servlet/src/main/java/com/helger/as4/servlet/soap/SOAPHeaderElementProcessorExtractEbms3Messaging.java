@@ -30,13 +30,17 @@ import org.w3c.dom.Element;
 import com.helger.as4.attachment.EAS4CompressionMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.error.EEbmsError;
-import com.helger.as4.marshaller.Ebms3ReaderBuilder;
+import com.helger.as4.marshaller.EEbms3DocumentType;
+import com.helger.as4.marshaller.EEbms3ValidationMode;
+import com.helger.as4.marshaller.Ebms3MarshallerPool;
 import com.helger.as4.messaging.domain.MessageHelperMethods;
 import com.helger.as4.mgr.MetaAS4Manager;
 import com.helger.as4.model.mpc.IMPC;
 import com.helger.as4.model.mpc.MPCManager;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.profile.IAS4Profile;
+import com.helger.as4.servlet.AS4IncomingMessageInfo;
 import com.helger.as4.servlet.AS4MessageState;
 import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
 import com.helger.as4.servlet.mgr.AS4ServerSettings;
@@ -159,16 +163,92 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
    *        to get the SOAPVersion
    * @param aSOAPDoc
    *        the document that should be checked if it contains a SOAPBodyPayload
+   * @param aState
+   *        the current state, to check for a not yet materialized SOAP Body
    * @return true if it contains a SOAPBodyPayload else false
    */
-  private static boolean _checkSOAPBodyHasPayload (@Nonnull final PModeLeg aPModeLeg, @Nonnull final Document aSOAPDoc)
+  private static boolean _checkSOAPBodyHasPayload (@Nonnull final PModeLeg aPModeLeg,
+                                                   @Nonnull final Document aSOAPDoc,
+                                                   @Nonnull final AS4MessageState aState)
   {
     // Check if a SOAPBodyPayload exists
     final Element aBody = XMLHelper.getFirstChildElementOfName (aSOAPDoc.getFirstChild (),
                                                                 aPModeLeg.getProtocol ()
                                                                          .getSOAPVersion ()
                                                                          .getBodyElementName ());
-    return aBody != null && aBody.hasChildNodes ();
+    return aBody != null && (aBody.hasChildNodes () || aState.isSoapBodyDeferred ());
+  }
+
+  private static boolean _hasPartyIdValues (@Nonnull final List <Ebms3PartyId> aPartyIDs)
+  {
+    if (aPartyIDs.isEmpty ())
+      return false;
+    for (final Ebms3PartyId aPartyID : aPartyIDs)
+      if (aPartyID == null || StringHelper.hasNoText (aPartyID.getValue ()))
+        return false;
+    return true;
+  }
+
+  /**
+   * Check the mandatory elements that are accessed below. With
+   * {@link EEbms3ValidationMode#STRUCTURE} the XML Schema is not applied, so
+   * they may be missing.
+   *
+   * @param aUserMessage
+   *        The user message to check. May be <code>null</code>.
+   * @param aSignalMessage
+   *        The signal message to check. May be <code>null</code>.
+   * @return The name of the first missing element or <code>null</code> if all
+   *         mandatory elements are present.
+   */
+  @Nullable
+  private static String _getMissingMandatoryElement (@Nullable final Ebms3UserMessage aUserMessage,
+                                                     @Nullable final Ebms3SignalMessage aSignalMessage)
+  {
+    if (aUserMessage != null)
+    {
+      if (aUserMessage.getMessageInfo () == null || StringHelper.hasNoText (aUserMessage.getMessageInfo ()
+                                                                                        .getMessageId ()))
+        return "UserMessage/MessageInfo/MessageId";
+      if (aUserMessage.getPartyInfo () == null)
+        return "UserMessage/PartyInfo";
+      if (aUserMessage.getPartyInfo ().getFrom () == null ||
+          !_hasPartyIdValues (aUserMessage.getPartyInfo ().getFrom ().getPartyId ()))
+        return "UserMessage/PartyInfo/From/PartyId";
+      if (aUserMessage.getPartyInfo ().getTo () == null ||
+          !_hasPartyIdValues (aUserMessage.getPartyInfo ().getTo ().getPartyId ()))
+        return "UserMessage/PartyInfo/To/PartyId";
+      final Ebms3CollaborationInfo aCollaborationInfo = aUserMessage.getCollaborationInfo ();
+      if (aCollaborationInfo == null)
+        return "UserMessage/CollaborationInfo";
+      if (aCollaborationInfo.getService () == null)
+        return "UserMessage/CollaborationInfo/Service";
+    }
+    if (aSignalMessage != null && aSignalMessage.getMessageInfo () == null)
+      return "SignalMessage/MessageInfo";
+    return null;
+  }
+
+  @Override
+  public boolean isRequiringSOAPBody ()
+  {
+    // Only the header is needed - the payload presence is taken from the state
+    return false;
+  }
+
+  /**
+   * The PMode is only known after the header was read, so the validation mode
+   * of the configured AS4 profile is used.
+   *
+   * @return The validation mode to use. Never <code>null</code>.
+   */
+  @Nonnull
+  private static EEbms3ValidationMode _getEbms3ValidationMode ()
+  {
+    final IAS4Profile aProfile = AS4ServerConfiguration.getAS4Profile ();
+    if (aProfile != null && aProfile.getEbms3ValidationMode () != null)
+      return aProfile.getEbms3ValidationMode ();
+    return Ebms3MarshallerPool.getDefaultValidationMode ();
   }
 
   @Nonnull
@@ -181,6 +261,8 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
   {
     final MPCManager aMPCMgr = MetaAS4Manager.getMPCMgr ();
     IPMode aPMode = null;
+    // Set if the PMode resolved by the pre-check is used
+    AS4IncomingMessageInfo aPreCheckInfo = null;
     final ICommonsMap <String, EAS4CompressionMode> aCompressionAttachmentIDs = new CommonsHashMap <> ();
     IMPC aEffectiveMPC = null;
     String sInitiatorID = null;
@@ -188,9 +270,11 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
 
     // Parse EBMS3 Messaging object
     final CollectingValidationEventHandler aCVEH = new CollectingValidationEventHandler ();
-    final Ebms3Messaging aMessaging = Ebms3ReaderBuilder.ebms3Messaging ()
-                                                        .setValidationEventHandler (aCVEH)
-                                                        .read (aElement);
+    final Ebms3Messaging aMessaging = Ebms3MarshallerPool.getInstance (EEbms3DocumentType.MESSAGING)
+                                                         .read (aElement,
+                                                                Ebms3Messaging.class,
+                                                                _getEbms3ValidationMode (),
+                                                                aCVEH);
 
     // If the ebms3reader above fails aMessageing will be null => invalid/not
     // wellformed
@@ -241,6 +325,16 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
 
     // Check if the usermessage has a PMode in the collaboration info
     final Ebms3UserMessage aUserMessage = CollectionHelper.getAtIndex (aMessaging.getUserMessage (), 0);
+
+    final String sMissingElement = _getMissingMandatoryElement (aUserMessage,
+                                                                CollectionHelper.getAtIndex (aMessaging.getSignalMessage (),
+                                                                                             0));
+    if (sMissingElement != null)
+    {
+      LOGGER.warn ("Mandatory Ebms3 element " + sMissingElement + " is missing");
+      aErrorList.add (EEbmsError.EBMS_INVALID_HEADER.getAsError (aLocale));
+      return ESuccess.FAILURE;
+    }
     if (aUserMessage != null)
     {
       final List <Ebms3PartyId> aFromPartyIdList = aUserMessage.getPartyInfo ().getFrom ().getPartyId ();
@@ -266,15 +360,27 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
         if (aCollaborationInfo.getAgreementRef () != null)
           sPModeID = aCollaborationInfo.getAgreementRef ().getPmode ();
 
-        // Get responder address from properties file
-        final String sResponderAddress = AS4ServerConfiguration.getServerAddress ();
-
-        aPMode = AS4ServerSettings.getPModeResolver ().getPModeOfID (sPModeID,
-                                                                     aCollaborationInfo.getService ().getValue (),
-                                                                     aCollaborationInfo.getAction (),
-                                                                     sInitiatorID,
-                                                                     sResponderID,
-                                                                     sResponderAddress);
+        final String sService = aCollaborationInfo.getService ().getValue ();
+        final AS4IncomingMessageInfo aInfo = aState.getPreCheckMessageInfo ();
+        if (aInfo != null &&
+            aInfo.hasSamePModeLookup (sPModeID, sService, aCollaborationInfo.getAction (), sInitiatorID, sResponderID))
+        {
+          // Already resolved with the same values before processing
+          aPreCheckInfo = aInfo;
+          aPMode = aState.getPreCheckPMode ();
+        }
+        else
+        {
+          // Get responder address from properties file
+          final String sResponderAddress = AS4ServerConfiguration.getServerAddress ();
+
+          aPMode = AS4ServerSettings.getPModeResolver ().getPModeOfID (sPModeID,
+                                                                       sService,
+                                                                       aCollaborationInfo.getAction (),
+                                                                       sInitiatorID,
+                                                                       sResponderID,
+                                                                       sResponderAddress);
+        }
 
         // Should be screened by the xsd conversion already
         if (aPMode == null)
@@ -312,7 +418,11 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
         }
 
         final boolean bUseLeg1 = _isUseLeg1 (aUserMessage);
-        final PModeLeg aEffectiveLeg = bUseLeg1 ? aPModeLeg1 : aPModeLeg2;
+        final PModeLeg aEffectiveLeg;
+        if (aPreCheckInfo != null && aPreCheckInfo.isUseLeg1 () == bUseLeg1)
+          aEffectiveLeg = aState.getPreCheckEffectivePModeLeg ();
+        else
+          aEffectiveLeg = bUseLeg1 ? aPModeLeg1 : aPModeLeg2;
         final int nLegNum = bUseLeg1 ? 1 : 2;
         if (aEffectiveLeg == null)
         {
@@ -325,7 +435,7 @@ public final class SOAPHeaderElementProcessorExtractEbms3Messaging implements IS
         if (_checkMPCOfPMode (aEffectiveLeg, aMPCMgr, aLocale, aErrorList).isFailure ())
           return ESuccess.FAILURE;
 
-        bHasSoapBodyPayload = _checkSOAPBodyHasPayload (aEffectiveLeg, aSOAPDoc);
+        bHasSoapBodyPayload = _checkSOAPBodyHasPayload (aEffectiveLeg, aSOAPDoc, aState);
         final String sEffectiveMPCID = _getMPCIDOfUserMsg (aUserMessage, aEffectiveLeg);
 
         // PMode is valid
@@ -16,12 +16,12 @@
  */
 package com.helger.as4.servlet.soap;
 
-import java.io.File;
-import java.io.InputStream;
+import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 import javax.annotation.Nonnull;
 
@@ -37,24 +37,34 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import com.helger.as4.CAS4;
+import com.helger.as4.attachment.EAS4DecryptedAttachmentMode;
 import com.helger.as4.attachment.WSS4JAttachment;
 import com.helger.as4.attachment.WSS4JAttachmentCallbackHandler;
+import com.helger.as4.crypto.AS4CachingSignatureTrustValidator;
+import com.helger.as4.crypto.AS4CryptoFactory;
+import com.helger.as4.crypto.AS4TrustValidationCache;
 import com.helger.as4.crypto.ECryptoAlgorithmSign;
 import com.helger.as4.crypto.ECryptoAlgorithmSignDigest;
+import com.helger.as4.crypto.revocation.AS4RevocationChecker;
 import com.helger.as4.error.EEbmsError;
 import com.helger.as4.model.pmode.IPMode;
 import com.helger.as4.model.pmode.leg.PModeLeg;
+import com.helger.as4.servlet.AS4AttachmentWorkerPool;
 import com.helger.as4.servlet.AS4MessageState;
 import com.helger.as4.servlet.mgr.AS4ServerSettings;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SpoolOutputStream;
 import com.helger.as4lib.ebms3header.Ebms3Messaging;
 import com.helger.as4lib.ebms3header.Ebms3UserMessage;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
 import com.helger.commons.collection.impl.CommonsHashSet;
 import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
 import com.helger.commons.collection.impl.ICommonsSet;
 import com.helger.commons.debug.GlobalDebug;
 import com.helger.commons.error.list.ErrorList;
-import com.helger.commons.io.file.FileHelper;
-import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.IHasInputStream;
 import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.state.ESuccess;
 import com.helger.commons.string.StringHelper;
@@ -180,90 +190,212 @@ public class SOAPHeaderElementProcessorWSS4J implements ISOAPHeaderElementProces
       }
 
       // Signing Verification and Decryption
-      final WSSecurityEngine aSecurityEngine = new WSSecurityEngine ();
-      List <WSSecurityEngineResult> aResults = null;
+      return processSecurityHeader (aSOAPDoc, aAttachments, aState, aErrorList, aLocale);
+    }
+    return ESuccess.SUCCESS;
+  }
 
-      try
-      {
-        // Convert to WSS4J attachments
-        final KeyStoreCallbackHandler aKeyStoreCallback = new KeyStoreCallbackHandler ();
-        final WSS4JAttachmentCallbackHandler aAttachmentCallbackHandler = new WSS4JAttachmentCallbackHandler (aAttachments,
-                                                                                                              aState.getResourceMgr ());
-
-        // Configure RequestData needed for the check / decrpyt process!
-        final RequestData aRequestData = new RequestData ();
-        aRequestData.setCallbackHandler (aKeyStoreCallback);
-        if (aAttachments.isNotEmpty ())
-          aRequestData.setAttachmentCallbackHandler (aAttachmentCallbackHandler);
-        aRequestData.setSigVerCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
-        aRequestData.setDecCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
-        aRequestData.setWssConfig (WSSConfig.getNewInstance ());
-
-        // Upon success, the SOAP document contains the decrypted content
-        // afterwards!
-        aResults = aSecurityEngine.processSecurityHeader (aSOAPDoc, aRequestData).getResults ();
-
-        // Collect all unique used certificates
-        final ICommonsSet <X509Certificate> aCertSet = new CommonsHashSet <> ();
-        for (final WSSecurityEngineResult aResult : aResults)
-        {
-          final X509Certificate aCert = (X509Certificate) aResult.get (WSSecurityEngineResult.TAG_X509_CERTIFICATE);
-          if (aCert != null)
-            aCertSet.add (aCert);
-
-          final Integer aAction = (Integer) aResult.get (WSSecurityEngineResult.TAG_ACTION);
-          if (aAction != null)
-            switch (aAction.intValue ())
-            {
-              case WSConstants.SIGN:
-                aState.setSoapSignatureChecked (true);
-                break;
-              case WSConstants.ENCR:
-                aState.setSoapDecrypted (true);
-                break;
-            }
+  private static void _spoolDecryptedAttachment (@Nonnull final WSS4JAttachment aAttachment,
+                                                 final long nEncryptedLength,
+                                                 @Nonnull final AS4ResourceManager aResMgr) throws IOException
+  {
+    // If the encrypted attachment is already too large for memory, decrypt
+    // directly into the temporary file
+    final long nThreshold = AS4ServerSettings.getDecryptedAttachmentMemoryThreshold ();
+    final AS4SpoolOutputStream aSpoolOS = new AS4SpoolOutputStream (aResMgr,
+                                                                    nEncryptedLength > nThreshold ? 0 : nThreshold);
+    // Decryption happens while reading - each byte is written only once
+    StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aAttachment.getSourceStream (), aSpoolOS);
+    if (aSpoolOS.isSpooledToFile ())
+      aAttachment.setSourceFile (aSpoolOS.getTempFile ());
+    else
+      aAttachment.setSourceStreamProvider (aSpoolOS.getAsInputStreamProvider (), aSpoolOS.getSize ());
+  }
 
-        }
-        if (aCertSet.size () > 1)
-        {
-          if (GlobalDebug.isDebugMode ())
-            LOGGER.warn ("Found " + aCertSet.size () + " different certificates in message: " + aCertSet);
-          else
-            LOGGER.warn ("Found " + aCertSet.size () + " different certificates in message!");
-        }
+  /**
+   * Prepare the decrypted attachments for further processing according to
+   * {@link AS4ServerSettings#getDecryptedAttachmentMode()}.
+   *
+   * @param aEncryptedAttachments
+   *        The attachments as received. May not be <code>null</code>.
+   * @param aDecryptedAttachments
+   *        The attachments with the decrypting streams. May not be
+   *        <code>null</code>.
+   * @param aResMgr
+   *        The resource manager for temporary files. May not be
+   *        <code>null</code>.
+   * @throws Exception
+   *         If decrypting or spooling failed
+   */
+  static void handleDecryptedAttachments (@Nonnull final ICommonsList <WSS4JAttachment> aEncryptedAttachments,
+                                          @Nonnull final ICommonsList <WSS4JAttachment> aDecryptedAttachments,
+                                          @Nonnull final AS4ResourceManager aResMgr) throws Exception
+  {
+    if (AS4ServerSettings.getDecryptedAttachmentMode () == EAS4DecryptedAttachmentMode.SPOOL)
+    {
+      final ICommonsMap <String, WSS4JAttachment> aEncryptedMap = new CommonsHashMap <> ();
+      for (final WSS4JAttachment aAttachment : aEncryptedAttachments)
+        aEncryptedMap.put (aAttachment.getId (), aAttachment);
+
+      // The decryption happens while the streams are read, so each
+      // attachment is decrypted and spooled in parallel
+      final ICommonsList <Callable <Void>> aTasks = new CommonsArrayList <> (aDecryptedAttachments.size ());
+      for (final WSS4JAttachment aDecryptedAttachment : aDecryptedAttachments)
+      {
+        // Attachments that were not decrypted can already be read multiple
+        // times
+        final IHasInputStream aISP = aDecryptedAttachment.getInputStreamProvider ();
+        if (aISP != null && aISP.isReadMultiple ())
+          continue;
+
+        final WSS4JAttachment aEncryptedAttachment = aEncryptedMap.get (aDecryptedAttachment.getId ());
+        final long nEncryptedLength = aEncryptedAttachment == null ? -1 : aEncryptedAttachment.getSourceLength ();
+        aTasks.add ( () -> {
+          _spoolDecryptedAttachment (aDecryptedAttachment, nEncryptedLength, aResMgr);
+          return null;
+        });
+      }
+      AS4AttachmentWorkerPool.getInstance ().runAll (aTasks);
+    }
+    // else: the decrypting streams are passed on as they are
+  }
 
-        // Remember in State
-        aState.setUsedCertificate (aCertSet.getAtIndex (0));
-        aState.setDecryptedSOAPDocument (aSOAPDoc);
+  /**
+   * Check the revocation status of the certificates used in a message, if
+   * revocation checking is enabled in the crypto properties.
+   *
+   * @param aCerts
+   *        The certificates to check. Never <code>null</code>.
+   * @param aErrorList
+   *        The error list to be filled. Never <code>null</code>.
+   * @param aLocale
+   *        The locale to be used. Never <code>null</code>.
+   * @return {@link ESuccess#FAILURE} if at least one certificate is rejected.
+   * @see AS4RevocationChecker
+   */
+  @Nonnull
+  protected static ESuccess checkRevocation (@Nonnull final Iterable <X509Certificate> aCerts,
+                                             @Nonnull final ErrorList aErrorList,
+                                             @Nonnull final Locale aLocale)
+  {
+    final AS4CryptoFactory aCryptoFactory = AS4ServerSettings.getAS4CryptoFactory ();
+    final AS4RevocationChecker aChecker = aCryptoFactory.getRevocationChecker ();
+    if (aChecker != null && aChecker.getAllRejectedCertificates (aCerts, aCryptoFactory.getCrypto ()).isNotEmpty ())
+    {
+      aErrorList.add (EEbmsError.EBMS_FAILED_AUTHENTICATION.getAsError (aLocale));
+      return ESuccess.FAILURE;
+    }
+    return ESuccess.SUCCESS;
+  }
 
-        // Decrypting the Attachments
-        final ICommonsList <WSS4JAttachment> aResponseAttachments = aAttachmentCallbackHandler.getAllResponseAttachments ();
-        for (final WSS4JAttachment aResponseAttachment : aResponseAttachments)
-        {
-          final InputStream aIS = aResponseAttachment.getSourceStream ();
-
-          // Always copy to a temporary file, so that decrypted content can be
-          // read more than once.
-          // Not nice, but working :)
-          final File aTempFile = aState.getResourceMgr ().createTempFile ();
-          StreamHelper.copyInputStreamToOutputStreamAndCloseOS (aIS, FileHelper.getBufferedOutputStream (aTempFile));
-          aResponseAttachment.setSourceStreamProvider (HasInputStream.multiple ( () -> FileHelper.getBufferedInputStream (aTempFile)));
-        }
+  /**
+   * Verify the signature and decrypt the SOAP document and the attachments
+   * using the DOM based WSS4J engine. Upon success the SOAP document contains
+   * the decrypted content.
+   *
+   * @param aSOAPDoc
+   *        The complete SOAP document. Never <code>null</code>.
+   * @param aAttachments
+   *        Existing extracted attachments. Never <code>null</code> but maybe
+   *        empty.
+   * @param aState
+   *        The current processing state. Never <code>null</code>.
+   * @param aErrorList
+   *        The error list to be filled. Never <code>null</code>.
+   * @param aLocale
+   *        The locale to be used. Never <code>null</code>.
+   * @return Never <code>null</code>.
+   */
+  @Nonnull
+  protected ESuccess processSecurityHeader (@Nonnull final Document aSOAPDoc,
+                                            @Nonnull final ICommonsList <WSS4JAttachment> aAttachments,
+                                            @Nonnull final AS4MessageState aState,
+                                            @Nonnull final ErrorList aErrorList,
+                                            @Nonnull final Locale aLocale)
+  {
+    final WSSecurityEngine aSecurityEngine = new WSSecurityEngine ();
+    List <WSSecurityEngineResult> aResults = null;
 
-        // Remember in State
-        aState.setDecryptedAttachments (aResponseAttachments);
+    try
+    {
+      // Convert to WSS4J attachments
+      final KeyStoreCallbackHandler aKeyStoreCallback = new KeyStoreCallbackHandler ();
+      final WSS4JAttachmentCallbackHandler aAttachmentCallbackHandler = new WSS4JAttachmentCallbackHandler (aAttachments,
+                                                                                                            aState.getResourceMgr ());
+
+      // Configure RequestData needed for the check / decrpyt process!
+      final RequestData aRequestData = new RequestData ();
+      aRequestData.setCallbackHandler (aKeyStoreCallback);
+      if (aAttachments.isNotEmpty ())
+        aRequestData.setAttachmentCallbackHandler (aAttachmentCallbackHandler);
+      aRequestData.setSigVerCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
+      aRequestData.setDecCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
+      final WSSConfig aWSSConfig = WSSConfig.getNewInstance ();
+      final AS4TrustValidationCache aTrustCache = AS4ServerSettings.getTrustValidationCache ();
+      if (aTrustCache != null)
+      {
+        // Validate the trust chain of known certificates only once
+        aWSSConfig.setValidator (WSConstants.SIGNATURE, new AS4CachingSignatureTrustValidator (aTrustCache));
       }
-      catch (final Exception ex)
+      aRequestData.setWssConfig (aWSSConfig);
+
+      // Upon success, the SOAP document contains the decrypted content
+      // afterwards!
+      aResults = aSecurityEngine.processSecurityHeader (aSOAPDoc, aRequestData).getResults ();
+
+      // Collect all unique used certificates
+      final ICommonsSet <X509Certificate> aCertSet = new CommonsHashSet <> ();
+      for (final WSSecurityEngineResult aResult : aResults)
       {
-        // Decryption or Signature check failed
-        LOGGER.info ("Error processing the WSSSecurity Header", ex);
+        final X509Certificate aCert = (X509Certificate) aResult.get (WSSecurityEngineResult.TAG_X509_CERTIFICATE);
+        if (aCert != null)
+          aCertSet.add (aCert);
 
-        // TODO we need a way to distinct
-        // signature and decrypt WSSecurityException provides no such thing
-        aErrorList.add (EEbmsError.EBMS_FAILED_DECRYPTION.getAsError (aLocale));
+        final Integer aAction = (Integer) aResult.get (WSSecurityEngineResult.TAG_ACTION);
+        if (aAction != null)
+          switch (aAction.intValue ())
+          {
+            case WSConstants.SIGN:
+              aState.setSoapSignatureChecked (true);
+              break;
+            case WSConstants.ENCR:
+              aState.setSoapDecrypted (true);
+              break;
+          }
 
-        return ESuccess.FAILURE;
       }
+      if (aCertSet.size () > 1)
+      {
+        if (GlobalDebug.isDebugMode ())
+          LOGGER.warn ("Found " + aCertSet.size () + " different certificates in message: " + aCertSet);
+        else
+          LOGGER.warn ("Found " + aCertSet.size () + " different certificates in message!");
+      }
+
+      if (checkRevocation (aCertSet, aErrorList, aLocale).isFailure ())
+        return ESuccess.FAILURE;
+
+      // Remember in State
+      aState.setUsedCertificate (aCertSet.getAtIndex (0));
+      aState.setDecryptedSOAPDocument (aSOAPDoc);
+
+      // Decrypting the Attachments
+      final ICommonsList <WSS4JAttachment> aResponseAttachments = aAttachmentCallbackHandler.getAllResponseAttachments ();
+      handleDecryptedAttachments (aAttachments, aResponseAttachments, aState.getResourceMgr ());
+
+      // Remember in State
+      aState.setDecryptedAttachments (aResponseAttachments);
+    }
+    catch (final Exception ex)
+    {
+      // Decryption or Signature check failed
+      LOGGER.info ("Error processing the WSSSecurity Header", ex);
+
+      // TODO we need a way to distinct
+      // signature and decrypt WSSecurityException provides no such thing
+      aErrorList.add (EEbmsError.EBMS_FAILED_DECRYPTION.getAsError (aLocale));
+
+      return ESuccess.FAILURE;
     }
     return ESuccess.SUCCESS;
   }
@@ -0,0 +1,299 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.soap;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
+
+import org.apache.wss4j.stax.ext.InboundWSSec;
+import org.apache.wss4j.stax.ext.WSSSecurityProperties;
+import org.apache.wss4j.stax.setup.WSSec;
+import org.apache.xml.security.stax.securityEvent.AbstractSecuredElementSecurityEvent;
+import org.apache.xml.security.stax.securityEvent.SecurityEvent;
+import org.apache.xml.security.stax.securityEvent.TokenSecurityEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.error.EEbmsError;
+import com.helger.as4.profile.IAS4Profile;
+import com.helger.as4.servlet.AS4MessageState;
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.as4.servlet.mgr.AS4ServerSettings;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.as4.soap.SOAPEnvelopeStreamReader;
+import com.helger.as4.soap.StreamedSOAPDocument;
+import com.helger.as4.util.AS4SpoolOutputStream;
+import com.helger.as4.util.AS4XMLHelper;
+import com.helger.as4.wss.EWSSProcessingMode;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashSet;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsOrderedSet;
+import com.helger.commons.debug.GlobalDebug;
+import com.helger.commons.error.list.ErrorList;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.state.ESuccess;
+import com.helger.xml.XMLHelper;
+
+/**
+ * A WSS4J SOAP header processor that can verify signatures and decrypt with
+ * the StAX based streaming engine of WSS4J. The SOAP document is streamed
+ * through the engine, so a SOAP Body that was spooled while reading is never
+ * converted to DOM for signature verification or decryption. The decrypted
+ * result is spooled again and the new SOAP Body is only converted to DOM on
+ * demand.<br>
+ * The processing mode is taken from the configured AS4 profile or from the
+ * global configuration (see {@link EWSSProcessingMode}). Messages with
+ * attachments and messages in DOM mode are handled by the DOM based engine of
+ * the super class.
+ *
+ * @author Philip Helger
+ */
+public class SOAPHeaderElementProcessorWSS4JStreaming extends SOAPHeaderElementProcessorWSS4J
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (SOAPHeaderElementProcessorWSS4JStreaming.class);
+  private static final XMLInputFactory XIF;
+
+  static
+  {
+    XIF = XMLInputFactory.newInstance ();
+    XIF.setProperty (XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    XIF.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XIF.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  /**
+   * The SOAP Body is streamed through the engine if possible and is therefore
+   * not needed in the DOM.
+   */
+  @Override
+  public boolean isRequiringSOAPBody ()
+  {
+    return false;
+  }
+
+  @Nonnull
+  private static EWSSProcessingMode _getProcessingMode ()
+  {
+    final IAS4Profile aProfile = AS4ServerConfiguration.getAS4Profile ();
+    if (aProfile != null && aProfile.getWSSProcessingMode () != null)
+      return aProfile.getWSSProcessingMode ();
+    return AS4ServerConfiguration.getWSSProcessingMode ();
+  }
+
+  /**
+   * Open the spooled SOAP Body without its leading XML declaration, so that it
+   * can be embedded into the Envelope.
+   */
+  @Nonnull
+  private static InputStream _getBodyInputStream (@Nonnull final StreamedSOAPDocument aStreamedSOAP) throws IOException
+  {
+    final byte [] aExpected = StreamedSOAPDocument.BODY_XML_DECLARATION.getBytes (StreamedSOAPDocument.BODY_CHARSET);
+    final byte [] aRead = new byte [aExpected.length];
+    final InputStream aIS = aStreamedSOAP.getBodyInputStreamProvider ().getInputStream ();
+    try
+    {
+      new DataInputStream (aIS).readFully (aRead);
+    }
+    catch (final IOException ex)
+    {
+      StreamHelper.close (aIS);
+      throw ex;
+    }
+    if (!Arrays.equals (aRead, aExpected))
+    {
+      StreamHelper.close (aIS);
+      throw new IOException ("The spooled SOAP Body does not start with the expected XML declaration");
+    }
+    return aIS;
+  }
+
+  /**
+   * Create an input stream with the complete SOAP document. If the SOAP Body
+   * was spooled, the Envelope and the Header are serialized from DOM and the
+   * spooled SOAP Body is inserted without parsing it. All parts are encoded
+   * with the charset of the spooled SOAP Body, which is also declared for the
+   * whole document.
+   */
+  @Nonnull
+  private static InputStream _getSOAPInputStream (@Nonnull final Document aSOAPDoc,
+                                                  @Nonnull final ESOAPVersion eSOAPVersion,
+                                                  @Nullable final StreamedSOAPDocument aStreamedSOAP) throws IOException
+  {
+    if (aStreamedSOAP == null || aStreamedSOAP.isBodyMaterialized ())
+      return new NonBlockingByteArrayInputStream (AS4XMLHelper.serializeXMLToBytes (aSOAPDoc));
+
+    final Element aEnvelope = aSOAPDoc.getDocumentElement ();
+    final Element aBody = XMLHelper.getFirstChildElementOfName (aEnvelope,
+                                                                eSOAPVersion.getNamespaceURI (),
+                                                                eSOAPVersion.getBodyElementName ());
+    if (aBody == null)
+      throw new IllegalStateException ("SOAP document is missing a Body element");
+
+    // Serialize without the (empty) Body element
+    final Node aNextSibling = aBody.getNextSibling ();
+    String sEnvelope;
+    aEnvelope.removeChild (aBody);
+    try
+    {
+      sEnvelope = AS4XMLHelper.serializeXML (aEnvelope);
+    }
+    finally
+    {
+      aEnvelope.insertBefore (aBody, aNextSibling);
+    }
+
+    // Replace the XML declaration, as the encoding of the Body is used
+    if (sEnvelope.startsWith ("<?xml"))
+      sEnvelope = sEnvelope.substring (sEnvelope.indexOf ("?>") + 2);
+    sEnvelope = StreamedSOAPDocument.BODY_XML_DECLARATION + sEnvelope;
+
+    // Insert the spooled Body before the closing Envelope tag
+    final int nEnvelopeEnd = sEnvelope.lastIndexOf ("</");
+    if (nEnvelopeEnd < 0)
+      throw new IllegalStateException ("Failed to serialize SOAP Envelope");
+    final Charset aCharset = StreamedSOAPDocument.BODY_CHARSET;
+    final ICommonsList <InputStream> aParts = new CommonsArrayList <> ();
+    aParts.add (new NonBlockingByteArrayInputStream (sEnvelope.substring (0, nEnvelopeEnd).getBytes (aCharset)));
+    aParts.add (_getBodyInputStream (aStreamedSOAP));
+    aParts.add (new NonBlockingByteArrayInputStream (sEnvelope.substring (nEnvelopeEnd).getBytes (aCharset)));
+    return new SequenceInputStream (Collections.enumeration (aParts));
+  }
+
+  @Override
+  @Nonnull
+  protected ESuccess processSecurityHeader (@Nonnull final Document aSOAPDoc,
+                                            @Nonnull final ICommonsList <WSS4JAttachment> aAttachments,
+                                            @Nonnull final AS4MessageState aState,
+                                            @Nonnull final ErrorList aErrorList,
+                                            @Nonnull final Locale aLocale)
+  {
+    final StreamedSOAPDocument aStreamedSOAP = aState.getStreamedSOAPDocument ();
+
+    // Attachments can only be handled by the DOM engine
+    if (_getProcessingMode () != EWSSProcessingMode.STREAMING || aAttachments.isNotEmpty ())
+    {
+      // The DOM engine needs the complete SOAP Body
+      if (aStreamedSOAP != null && !aStreamedSOAP.isBodyMaterialized ())
+      {
+        aStreamedSOAP.materializeBody ();
+        aState.setSoapBodyDeferred (false);
+      }
+      return super.processSecurityHeader (aSOAPDoc, aAttachments, aState, aErrorList, aLocale);
+    }
+
+    final ICommonsList <SecurityEvent> aEvents = new CommonsArrayList <> ();
+    final AS4SpoolOutputStream aSpoolOS = new AS4SpoolOutputStream (aState.getResourceMgr ());
+    try
+    {
+      final WSSSecurityProperties aSecurityProperties = new WSSSecurityProperties ();
+      aSecurityProperties.setCallbackHandler (new KeyStoreCallbackHandler ());
+      aSecurityProperties.setSignatureVerificationCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
+      aSecurityProperties.setDecryptionCrypto (AS4ServerSettings.getAS4CryptoFactory ().getCrypto ());
+      final InboundWSSec aInboundWSSec = WSSec.getInboundWSSec (aSecurityProperties);
+
+      try (final InputStream aIS = _getSOAPInputStream (aSOAPDoc, aState.getSOAPVersion (), aStreamedSOAP))
+      {
+        final XMLStreamReader aSecuredReader = aInboundWSSec.processInMessage (XIF.createXMLStreamReader (aIS),
+                                                                               null,
+                                                                               aEvents::add);
+        // Reading the secured stream verifies and decrypts
+        AS4XMLHelper.serializeXML (new StAXSource (aSecuredReader), aSpoolOS);
+        aSecuredReader.close ();
+      }
+      finally
+      {
+        StreamHelper.close (aSpoolOS);
+      }
+
+      // Collect all unique used certificates
+      final ICommonsOrderedSet <X509Certificate> aCertSet = new CommonsLinkedHashSet <> ();
+      for (final SecurityEvent aEvent : aEvents)
+      {
+        if (aEvent instanceof TokenSecurityEvent <?>)
+        {
+          final X509Certificate [] aCerts = ((TokenSecurityEvent <?>) aEvent).getSecurityToken ()
+                                                                              .getX509Certificates ();
+          if (aCerts != null && aCerts.length > 0)
+            aCertSet.add (aCerts[0]);
+        }
+        if (aEvent instanceof AbstractSecuredElementSecurityEvent)
+        {
+          final AbstractSecuredElementSecurityEvent aSecuredEvent = (AbstractSecuredElementSecurityEvent) aEvent;
+          if (aSecuredEvent.isSigned ())
+            aState.setSoapSignatureChecked (true);
+          if (aSecuredEvent.isEncrypted ())
+            aState.setSoapDecrypted (true);
+        }
+      }
+      if (aCertSet.size () > 1)
+      {
+        if (GlobalDebug.isDebugMode ())
+          LOGGER.warn ("Found " + aCertSet.size () + " different certificates in message: " + aCertSet);
+        else
+          LOGGER.warn ("Found " + aCertSet.size () + " different certificates in message!");
+      }
+
+      if (checkRevocation (aCertSet, aErrorList, aLocale).isFailure ())
+        return ESuccess.FAILURE;
+
+      // Read the decrypted document - the SOAP Body is spooled again
+      final StreamedSOAPDocument aDecrypted;
+      try (final InputStream aIS = aSpoolOS.getAsInputStreamProvider ().getInputStream ())
+      {
+        aDecrypted = SOAPEnvelopeStreamReader.readSOAPDocument (aIS, aState.getResourceMgr ());
+      }
+      if (aDecrypted == null)
+        throw new IllegalStateException ("Failed to read the decrypted SOAP document");
+
+      // Remember in State
+      aState.setUsedCertificate (aCertSet.getFirst ());
+      aState.setDecryptedSOAPDocument (aDecrypted.getDocument ());
+      aState.setStreamedSOAPDocument (aDecrypted);
+      aState.setSoapBodyDeferred (!aDecrypted.isBodyMaterialized ());
+      aState.setDecryptedAttachments (new CommonsArrayList <> ());
+    }
+    catch (final Exception ex)
+    {
+      // Decryption or Signature check failed
+      LOGGER.info ("Error processing the WSSSecurity Header in streaming mode", ex);
+
+      aErrorList.add (EEbmsError.EBMS_FAILED_DECRYPTION.getAsError (aLocale));
+
+      return ESuccess.FAILURE;
+    }
+    return ESuccess.SUCCESS;
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.helger.as4.servlet.AS4AsyncRequestState.EState;
+
+/**
+ * Test class for class {@link AS4AsyncRequestState}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AsyncRequestStateTest
+{
+  @Test
+  public void testRegular ()
+  {
+    final AtomicInteger aReleased = new AtomicInteger (0);
+    final AS4AsyncRequestState aState = new AS4AsyncRequestState (aReleased::incrementAndGet);
+    assertSame (EState.PROCESSING, aState.getState ());
+
+    // Worker
+    aState.acquire ();
+    assertTrue (aState.tryStartWriting ());
+    aState.release ();
+    assertEquals (0, aReleased.get ());
+
+    // Container
+    assertTrue (aState.tryComplete ());
+    assertSame (EState.COMPLETED, aState.getState ());
+    assertFalse (aState.tryAbort ());
+    aState.release ();
+    assertEquals (1, aReleased.get ());
+
+    try
+    {
+      aState.release ();
+      fail ();
+    }
+    catch (final IllegalStateException ex)
+    {
+      // expected
+    }
+  }
+
+  @Test
+  public void testTimeoutDuringProcessing ()
+  {
+    final AtomicInteger aReleased = new AtomicInteger (0);
+    final AS4AsyncRequestState aState = new AS4AsyncRequestState (aReleased::incrementAndGet);
+
+    // Worker is running
+    aState.acquire ();
+
+    // Timeout - the response may be reset
+    assertTrue (aState.tryAbortWhileProcessing ());
+    assertSame (EState.ABORTED, aState.getState ());
+    // onComplete - the worker still uses the resources
+    assertFalse (aState.tryAbort ());
+    aState.release ();
+    assertEquals (0, aReleased.get ());
+
+    // Worker finished - must not apply its result
+    assertFalse (aState.tryStartWriting ());
+    aState.release ();
+    assertEquals (1, aReleased.get ());
+  }
+
+  @Test
+  public void testClientDisconnectWhileWriting ()
+  {
+    final AtomicInteger aReleased = new AtomicInteger (0);
+    final AS4AsyncRequestState aState = new AS4AsyncRequestState (aReleased::incrementAndGet);
+
+    aState.acquire ();
+    assertTrue (aState.tryStartWriting ());
+
+    // Client disconnect - the response must not be reset anymore
+    assertFalse (aState.tryAbortWhileProcessing ());
+    assertTrue (aState.tryAbort ());
+    assertSame (EState.ABORTED, aState.getState ());
+    assertFalse (aState.tryComplete ());
+
+    // onComplete before the worker returned
+    aState.release ();
+    assertEquals (0, aReleased.get ());
+    aState.release ();
+    assertEquals (1, aReleased.get ());
+  }
+
+  @Test
+  public void testClientDisconnectWhileReading ()
+  {
+    final AtomicInteger aReleased = new AtomicInteger (0);
+    final AS4AsyncRequestState aState = new AS4AsyncRequestState (aReleased::incrementAndGet);
+
+    // No worker was started
+    assertTrue (aState.tryAbort ());
+    assertFalse (aState.tryStartWriting ());
+    aState.release ();
+    assertEquals (1, aReleased.get ());
+  }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link AS4AttachmentWorkerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4AttachmentWorkerPoolTest
+{
+  @Test
+  public void testWaitForAllAfterFailure () throws Exception
+  {
+    final AS4AttachmentWorkerPool aPool = new AS4AttachmentWorkerPool (2);
+    try
+    {
+      final AtomicInteger aFinished = new AtomicInteger (0);
+      final Exception aFailure = new IllegalStateException ("Test");
+      final ICommonsList <Callable <?>> aTasks = new CommonsArrayList <> ();
+      aTasks.add ( () -> {
+        throw aFailure;
+      });
+      for (int i = 0; i < 3; ++i)
+        aTasks.add ( () -> {
+          Thread.sleep (50);
+          return Integer.valueOf (aFinished.incrementAndGet ());
+        });
+
+      try
+      {
+        aPool.runAll (aTasks);
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        assertSame (aFailure, ex);
+      }
+      assertEquals (3, aFinished.get ());
+    }
+    finally
+    {
+      aPool.shutdown ();
+    }
+  }
+
+  @Test
+  public void testInterruptWaitsForRunningTasks () throws Exception
+  {
+    final AS4AttachmentWorkerPool aPool = new AS4AttachmentWorkerPool (2);
+    try
+    {
+      final CountDownLatch aStarted = new CountDownLatch (2);
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      final AtomicBoolean aUninterruptibleFinished = new AtomicBoolean (false);
+      final AtomicBoolean aInterruptibleInterrupted = new AtomicBoolean (false);
+      final AtomicBoolean aPendingRun = new AtomicBoolean (false);
+
+      final ICommonsList <Callable <?>> aTasks = new CommonsArrayList <> ();
+      // Run in the calling thread
+      aTasks.add ( () -> null);
+      // Ignores interrupts
+      aTasks.add ( () -> {
+        aStarted.countDown ();
+        while (true)
+        {
+          try
+          {
+            aRelease.await ();
+            break;
+          }
+          catch (final InterruptedException ex)
+          {
+            // Ignore
+          }
+        }
+        aUninterruptibleFinished.set (true);
+        return null;
+      });
+      // Reacts on interrupts
+      aTasks.add ( () -> {
+        aStarted.countDown ();
+        try
+        {
+          aRelease.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          aInterruptibleInterrupted.set (true);
+        }
+        return null;
+      });
+      // Queued, as both threads are busy
+      aTasks.add ( () -> {
+        aPendingRun.set (true);
+        return null;
+      });
+
+      final AtomicReference <Exception> aCaught = new AtomicReference <> ();
+      final AtomicBoolean aFinishedWhenReturning = new AtomicBoolean (false);
+      final AtomicBoolean aInterruptedWhenReturning = new AtomicBoolean (false);
+      final Thread aCaller = new Thread ( () -> {
+        try
+        {
+          aPool.runAll (aTasks);
+        }
+        catch (final Exception ex)
+        {
+          aCaught.set (ex);
+        }
+        aFinishedWhenReturning.set (aUninterruptibleFinished.get ());
+        aInterruptedWhenReturning.set (Thread.currentThread ().isInterrupted ());
+      });
+      aCaller.start ();
+
+      assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+      aCaller.interrupt ();
+
+      // Must still wait for the uninterruptible task
+      aCaller.join (200);
+      assertTrue (aCaller.isAlive ());
+
+      aRelease.countDown ();
+      aCaller.join (5000);
+      assertFalse (aCaller.isAlive ());
+
+      assertTrue (aCaught.get () instanceof InterruptedException);
+      assertTrue (aFinishedWhenReturning.get ());
+      assertTrue (aInterruptedWhenReturning.get ());
+      assertTrue (aInterruptibleInterrupted.get ());
+      assertFalse (aPendingRun.get ());
+    }
+    finally
+    {
+      aPool.shutdown ();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS4BoundedExecutor}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4BoundedExecutorTest
+{
+  private static int s_nIndex = 0;
+
+  private static AS4BoundedExecutor _create (final int nMaxSize, final int nQueueSize)
+  {
+    // Use unique names to keep the statistics separate
+    return new AS4BoundedExecutor (AS4BoundedExecutorTest.class.getName () + (s_nIndex++),
+                                   1,
+                                   nMaxSize,
+                                   nQueueSize,
+                                   false);
+  }
+
+  @Test
+  public void testRejectWhenExhausted () throws Exception
+  {
+    try (final AS4BoundedExecutor aExecutor = _create (1, 1))
+    {
+      assertEquals (2, aExecutor.getMaxTaskCount ());
+      final CountDownLatch aStarted = new CountDownLatch (1);
+      final CountDownLatch aRelease = new CountDownLatch (1);
+      aExecutor.run ( () -> {
+        aStarted.countDown ();
+        aRelease.await ();
+      });
+      assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+      aExecutor.run (aRelease::await);
+      assertFalse (aExecutor.canAcceptTask ());
+      assertEquals (1, aExecutor.getActiveTaskCount ());
+
+      try
+      {
+        aExecutor.run ( () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+      assertNull (aExecutor.tryReserve ());
+      assertEquals (2, aExecutor.getRejectedTaskCount ());
+      aRelease.countDown ();
+    }
+  }
+
+  @Test
+  public void testReservationIsNeverRejected () throws Exception
+  {
+    try (final AS4BoundedExecutor aExecutor = _create (1, 0))
+    {
+      final AS4BoundedExecutor.Reservation aReservation = aExecutor.tryReserve ();
+      assertNotNull (aReservation);
+
+      // The only slot is reserved
+      assertFalse (aExecutor.canAcceptTask ());
+      try
+      {
+        aExecutor.run ( () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+
+      final CountDownLatch aDone = new CountDownLatch (1);
+      aReservation.run (aDone::countDown).get (5, TimeUnit.SECONDS);
+      assertEquals (0, aDone.getCount ());
+
+      // The permit is released after the future is completed
+      while (!aExecutor.canAcceptTask ())
+        Thread.sleep (10);
+
+      // Closing a used reservation must not release another permit
+      aReservation.close ();
+      assertNotNull (aExecutor.tryReserve ());
+      assertNull (aExecutor.tryReserve ());
+    }
+  }
+
+  @Test
+  public void testUnusedReservationIsReleased ()
+  {
+    try (final AS4BoundedExecutor aExecutor = _create (1, 0))
+    {
+      final AS4BoundedExecutor.Reservation aReservation = aExecutor.tryReserve ();
+      assertNotNull (aReservation);
+      assertNull (aExecutor.tryReserve ());
+
+      aReservation.close ();
+      // Closing twice has no effect
+      aReservation.close ();
+      assertTrue (aExecutor.canAcceptTask ());
+
+      try
+      {
+        aReservation.run ( () -> {});
+        fail ();
+      }
+      catch (final IllegalStateException ex)
+      {
+        // expected
+      }
+      assertNotNull (aExecutor.tryReserve ());
+      assertNull (aExecutor.tryReserve ());
+    }
+  }
+
+  @Test
+  public void testSupply () throws Exception
+  {
+    try (final AS4BoundedExecutor aExecutor = _create (2, 2))
+    {
+      assertEquals ("abc", aExecutor.supply ( () -> "abc").get (5, TimeUnit.SECONDS));
+      assertEquals (0, aExecutor.getRejectedTaskCount ());
+    }
+  }
+}
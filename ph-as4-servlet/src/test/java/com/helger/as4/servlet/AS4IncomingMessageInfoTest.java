@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.helger.as4.CAS4;
+import com.helger.as4.soap.ESOAPVersion;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link AS4IncomingMessageInfo}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4IncomingMessageInfoTest
+{
+  @Nonnull
+  private static Document _createDoc (@Nonnull final String sMessaging)
+  {
+    final Document aDoc = DOMReader.readXMLDOM ("<S12:Envelope xmlns:S12=\"" +
+                                                ESOAPVersion.SOAP_12.getNamespaceURI () +
+                                                "\" xmlns:eb=\"" +
+                                                CAS4.EBMS_NS +
+                                                "\"><S12:Header>" +
+                                                sMessaging +
+                                                "</S12:Header><S12:Body /></S12:Envelope>");
+    assertNotNull (aDoc);
+    return aDoc;
+  }
+
+  @Test
+  public void testUserMessage ()
+  {
+    final Document aDoc = _createDoc ("<eb:Messaging><eb:UserMessage>" +
+                                      "<eb:MessageInfo><eb:Timestamp>2018-06-21T12:00:00Z</eb:Timestamp><eb:MessageId> msg-1 </eb:MessageId></eb:MessageInfo>" +
+                                      "<eb:PartyInfo><eb:From><eb:PartyId>sender</eb:PartyId><eb:Role>r1</eb:Role></eb:From>" +
+                                      "<eb:To><eb:PartyId>receiver</eb:PartyId><eb:Role>r2</eb:Role></eb:To></eb:PartyInfo>" +
+                                      "<eb:CollaborationInfo><eb:AgreementRef pmode=\"pm-1\">agreement</eb:AgreementRef>" +
+                                      "<eb:Service>service</eb:Service><eb:Action>action</eb:Action><eb:ConversationId>c</eb:ConversationId></eb:CollaborationInfo>" +
+                                      "</eb:UserMessage></eb:Messaging>");
+    final AS4IncomingMessageInfo aInfo = AS4IncomingMessageInfo.createOrNull (aDoc, ESOAPVersion.SOAP_12);
+    assertNotNull (aInfo);
+    assertTrue (aInfo.isUserMessage ());
+    assertTrue (aInfo.isUseLeg1 ());
+    // Not trimmed - same value as read via JAXB
+    assertEquals (" msg-1 ", aInfo.getMessageID ());
+    assertNull (aInfo.getRefToMessageID ());
+    assertEquals ("pm-1", aInfo.getPModeID ());
+    assertEquals ("service", aInfo.getService ());
+    assertEquals ("action", aInfo.getAction ());
+    assertEquals ("sender", aInfo.getInitiatorID ());
+    assertEquals ("receiver", aInfo.getResponderID ());
+    assertTrue (aInfo.hasSamePModeLookup ("pm-1", "service", "action", "sender", "receiver"));
+    assertFalse (aInfo.hasSamePModeLookup (null, "service", "action", "sender", "receiver"));
+    assertFalse (aInfo.hasSamePModeLookup ("pm-1", "service", "action2", "sender", "receiver"));
+
+    // Wrong SOAP version
+    assertNull (AS4IncomingMessageInfo.createOrNull (aDoc, ESOAPVersion.SOAP_11));
+  }
+
+  @Test
+  public void testSignalMessage ()
+  {
+    final Document aDoc = _createDoc ("<eb:Messaging><eb:SignalMessage>" +
+                                      "<eb:MessageInfo><eb:Timestamp>2018-06-21T12:00:00Z</eb:Timestamp><eb:MessageId>msg-2</eb:MessageId><eb:RefToMessageId>msg-1</eb:RefToMessageId></eb:MessageInfo>" +
+                                      "<eb:Receipt />" +
+                                      "</eb:SignalMessage></eb:Messaging>");
+    final AS4IncomingMessageInfo aInfo = AS4IncomingMessageInfo.createOrNull (aDoc, ESOAPVersion.SOAP_12);
+    assertNotNull (aInfo);
+    assertFalse (aInfo.isUserMessage ());
+    assertFalse (aInfo.isUseLeg1 ());
+    assertEquals ("msg-2", aInfo.getMessageID ());
+    assertEquals ("msg-1", aInfo.getRefToMessageID ());
+    assertNull (aInfo.getPModeID ());
+  }
+
+  @Test
+  public void testInvalid ()
+  {
+    // No Messaging header
+    assertNull (AS4IncomingMessageInfo.createOrNull (_createDoc (""), ESOAPVersion.SOAP_12));
+
+    // No message ID
+    assertNull (AS4IncomingMessageInfo.createOrNull (_createDoc ("<eb:Messaging><eb:SignalMessage><eb:MessageInfo /></eb:SignalMessage></eb:Messaging>"),
+                                                     ESOAPVersion.SOAP_12));
+
+    // Two messages
+    assertNull (AS4IncomingMessageInfo.createOrNull (_createDoc ("<eb:Messaging>" +
+                                                                 "<eb:SignalMessage><eb:MessageInfo><eb:MessageId>a</eb:MessageId></eb:MessageInfo></eb:SignalMessage>" +
+                                                                 "<eb:SignalMessage><eb:MessageInfo><eb:MessageId>b</eb:MessageId></eb:MessageInfo></eb:SignalMessage>" +
+                                                                 "</eb:Messaging>"),
+                                                     ESOAPVersion.SOAP_12));
+
+    // User message without parties
+    assertNull (AS4IncomingMessageInfo.createOrNull (_createDoc ("<eb:Messaging><eb:UserMessage><eb:MessageInfo><eb:MessageId>a</eb:MessageId></eb:MessageInfo></eb:UserMessage></eb:Messaging>"),
+                                                     ESOAPVersion.SOAP_12));
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+
+import com.helger.as4.servlet.mgr.AS4ServerConfiguration;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.photon.basic.mock.PhotonBasicWebTestRule;
+import com.helger.settings.Settings;
+
+/**
+ * Test class for class {@link AS4RequestWorkerPool}.
+ *
+ * @author Philip Helger
+ */
+public final class AS4RequestWorkerPoolTest
+{
+  private static final int POOL_SIZE = 4;
+  private static final String [] POOL_SETTINGS = { "server.workerpool.coresize",
+                                                   "server.workerpool.maxsize",
+                                                   "server.requestpool.coresize",
+                                                   "server.requestpool.maxsize" };
+
+  @Rule
+  public final TestRule m_aTestRule = new PhotonBasicWebTestRule ();
+
+  @Before
+  public void before ()
+  {
+    // Both pools are created on demand within the global scope of the test
+    final Settings aSettings = AS4ServerConfiguration.getMutableSettings ();
+    for (final String sKey : POOL_SETTINGS)
+      aSettings.putIn (sKey, POOL_SIZE);
+    aSettings.putIn ("server.workerpool.queuesize", 0);
+    aSettings.putIn ("server.requestpool.queuesize", 0);
+  }
+
+  @After
+  public void after ()
+  {
+    final Settings aSettings = AS4ServerConfiguration.getMutableSettings ();
+    for (final String sKey : POOL_SETTINGS)
+      aSettings.removeObject (sKey);
+    aSettings.removeObject ("server.workerpool.queuesize");
+    aSettings.removeObject ("server.requestpool.queuesize");
+  }
+
+  @Test
+  public void testAsyncLegsWithFullRequestPool () throws Exception
+  {
+    final AS4RequestWorkerPool aRequestPool = AS4RequestWorkerPool.getInstance ();
+    final AS4WorkerPool aWorkerPool = AS4WorkerPool.getInstance ();
+    assertEquals (POOL_SIZE, aRequestPool.getMaxTaskCount ());
+    assertEquals (POOL_SIZE, aWorkerPool.getMaxTaskCount ());
+
+    final CountDownLatch aAllRunning = new CountDownLatch (POOL_SIZE);
+    final CountDownLatch aSPIsInvoked = new CountDownLatch (POOL_SIZE);
+    final AtomicInteger aUnavailable = new AtomicInteger (0);
+    final ICommonsList <CompletableFuture <Void>> aRequests = new CommonsArrayList <> ();
+    for (int i = 0; i < POOL_SIZE; ++i)
+      aRequests.add (aRequestPool.run ( () -> {
+        // All requests are processed at the same time, so the request pool is
+        // exhausted
+        aAllRunning.countDown ();
+        assertTrue (aAllRunning.await (10, TimeUnit.SECONDS));
+
+        // Same as AS4Handler does for an asynchronous leg
+        final AS4BoundedExecutor.Reservation aReservation = aWorkerPool.tryReserve ();
+        if (aReservation == null)
+          aUnavailable.incrementAndGet ();
+        else
+          aReservation.run (aSPIsInvoked::countDown);
+      }));
+
+    for (final CompletableFuture <Void> aRequest : aRequests)
+      aRequest.get (10, TimeUnit.SECONDS);
+
+    // No request was answered with "503 Service Unavailable"
+    assertEquals (0, aUnavailable.get ());
+    assertTrue (aSPIsInvoked.await (10, TimeUnit.SECONDS));
+    assertEquals (0, aWorkerPool.getRejectedTaskCount ());
+    assertEquals (0, aRequestPool.getRejectedTaskCount ());
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2015-2018 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.as4.servlet.soap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.helger.as4.attachment.EAS4DecryptedAttachmentMode;
+import com.helger.as4.attachment.WSS4JAttachment;
+import com.helger.as4.servlet.mgr.AS4ServerSettings;
+import com.helger.as4.util.AS4ResourceManager;
+import com.helger.as4.util.AS4SpoolOutputStream;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.io.IHasInputStream;
+import com.helger.commons.io.stream.HasInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.mime.CMimeType;
+
+/**
+ * Test class for the handling of decrypted attachments in class
+ * {@link SOAPHeaderElementProcessorWSS4J}.
+ *
+ * @author Philip Helger
+ */
+public final class SOAPHeaderElementProcessorWSS4JTest
+{
+  private static final String ATTACHMENT_ID = "attachment1";
+  private static final long THRESHOLD = 1000;
+
+  /**
+   * Resource manager that counts the memory reservations.
+   */
+  private static final class CountingResourceManager extends AS4ResourceManager
+  {
+    private final AtomicInteger m_aReserveCalls = new AtomicInteger (0);
+
+    @Override
+    public boolean tryReserveMemory (@Nonnegative final long nBytes)
+    {
+      m_aReserveCalls.incrementAndGet ();
+      return super.tryReserveMemory (nBytes);
+    }
+  }
+
+  @After
+  public void after ()
+  {
+    AS4ServerSettings.setDecryptedAttachmentMode (EAS4DecryptedAttachmentMode.SPOOL);
+    AS4ServerSettings.setDecryptedAttachmentMemoryThreshold (AS4SpoolOutputStream.DEFAULT_MEMORY_THRESHOLD);
+  }
+
+  @Nonnull
+  private static byte [] _createData (@Nonnegative final int nLength)
+  {
+    final byte [] ret = new byte [nLength];
+    for (int i = 0; i < nLength; ++i)
+      ret[i] = (byte) i;
+    return ret;
+  }
+
+  @Nonnull
+  private static WSS4JAttachment _createEncrypted (@Nonnull final AS4ResourceManager aResMgr,
+                                                   @Nonnegative final int nLength)
+  {
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, CMimeType.APPLICATION_OCTET_STREAM.getAsString ());
+    ret.setId (ATTACHMENT_ID);
+    final byte [] aData = _createData (nLength);
+    ret.setSourceStreamProvider (HasInputStream.multiple ( () -> new NonBlockingByteArrayInputStream (aData)), nLength);
+    return ret;
+  }
+
+  /**
+   * @return An attachment that behaves like the result of the decryption: the
+   *         data can only be read once.
+   */
+  @Nonnull
+  private static WSS4JAttachment _createDecrypted (@Nonnull final AS4ResourceManager aResMgr,
+                                                   @Nonnull final byte [] aData,
+                                                   @Nonnull final AtomicInteger aOpenCount)
+  {
+    final WSS4JAttachment ret = new WSS4JAttachment (aResMgr, CMimeType.APPLICATION_OCTET_STREAM.getAsString ());
+    ret.setId (ATTACHMENT_ID);
+    ret.setSourceStreamProvider (HasInputStream.once ( () -> {
+      aOpenCount.incrementAndGet ();
+      return new NonBlockingByteArrayInputStream (aData);
+    }));
+    return ret;
+  }
+
+  @Test
+  public void testSpoolSmallAttachmentInMemory () throws Exception
+  {
+    AS4ServerSettings.setDecryptedAttachmentMemoryThreshold (THRESHOLD);
+    try (final AS4ResourceManager aResMgr = new AS4ResourceManager ())
+    {
+      final byte [] aData = _createData (100);
+      final AtomicInteger aOpenCount = new AtomicInteger (0);
+      final WSS4JAttachment aDecrypted = _createDecrypted (aResMgr, aData, aOpenCount);
+
+      SOAPHeaderElementProcessorWSS4J.handleDecryptedAttachments (new CommonsArrayList <> (_createEncrypted (aResMgr,
+                                                                                                           150)),
+                                                                  new CommonsArrayList <> (aDecrypted),
+                                                                  aResMgr);
+      // Decrypted exactly once into memory
+      assertEquals (1, aOpenCount.get ());
+      assertNull (aDecrypted.getSourceFile ());
+      assertEquals (aData.length, aDecrypted.getSourceLength ());
+      assertEquals (aData.length, aResMgr.getReservedMemory ());
+
+      // Can be read multiple times
+      assertTrue (aDecrypted.getInputStreamProvider ().isReadMultiple ());
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aDecrypted.getSourceStream ()));
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aDecrypted.getSourceStream ()));
+    }
+  }
+
+  @Test
+  public void testSpoolLargeAttachmentToFile () throws Exception
+  {
+    AS4ServerSettings.setDecryptedAttachmentMemoryThreshold (THRESHOLD);
+    try (final CountingResourceManager aResMgr = new CountingResourceManager ())
+    {
+      final byte [] aData = _createData (5000);
+      final AtomicInteger aOpenCount = new AtomicInteger (0);
+      final WSS4JAttachment aDecrypted = _createDecrypted (aResMgr, aData, aOpenCount);
+
+      final long nSpillCount = AS4ResourceManager.getSpillCount ();
+      final long nSpilledBytes = AS4ResourceManager.getSpilledBytes ();
+      SOAPHeaderElementProcessorWSS4J.handleDecryptedAttachments (new CommonsArrayList <> (_createEncrypted (aResMgr,
+                                                                                                           5100)),
+                                                                  new CommonsArrayList <> (aDecrypted),
+                                                                  aResMgr);
+      assertEquals (1, aOpenCount.get ());
+
+      // Straight into the temporary file, without buffering in memory first
+      assertNotNull (aDecrypted.getSourceFile ());
+      assertEquals (0, aResMgr.m_aReserveCalls.get ());
+      assertEquals (0, aResMgr.getReservedMemory ());
+
+      // Each byte was written once
+      assertEquals (nSpillCount + 1, AS4ResourceManager.getSpillCount ());
+      assertEquals (nSpilledBytes + aData.length, AS4ResourceManager.getSpilledBytes ());
+      assertEquals (aData.length, aDecrypted.getSourceFile ().length ());
+
+      assertTrue (aDecrypted.getInputStreamProvider ().isReadMultiple ());
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aDecrypted.getSourceStream ()));
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aDecrypted.getSourceStream ()));
+    }
+  }
+
+  @Test
+  public void testStreamIsPassedOnUnbuffered () throws Exception
+  {
+    AS4ServerSettings.setDecryptedAttachmentMode (EAS4DecryptedAttachmentMode.STREAM);
+    try (final CountingResourceManager aResMgr = new CountingResourceManager ())
+    {
+      final byte [] aData = _createData (5000);
+      final AtomicInteger aOpenCount = new AtomicInteger (0);
+      final WSS4JAttachment aDecrypted = _createDecrypted (aResMgr, aData, aOpenCount);
+      final IHasInputStream aDecryptingISP = aDecrypted.getInputStreamProvider ();
+
+      SOAPHeaderElementProcessorWSS4J.handleDecryptedAttachments (new CommonsArrayList <> (_createEncrypted (aResMgr,
+                                                                                                           5100)),
+                                                                  new CommonsArrayList <> (aDecrypted),
+                                                                  aResMgr);
+      // Nothing was read or buffered
+      assertEquals (0, aOpenCount.get ());
+      assertEquals (0, aResMgr.m_aReserveCalls.get ());
+      assertSame (aDecryptingISP, aDecrypted.getInputStreamProvider ());
+      assertNull (aDecrypted.getSourceFile ());
+
+      // The decrypting stream can be read only once
+      assertFalse (aDecrypted.getInputStreamProvider ().isReadMultiple ());
+      assertArrayEquals (aData, StreamHelper.getAllBytes (aDecrypted.getSourceStream ()));
+      assertEquals (1, aOpenCount.get ());
+    }
+  }
+}